@@ -0,0 +1,257 @@
+/*
+ *	AudioPacket.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/**
+ * A datagram of the UDP transport. All packets start with the same header:
+ * <pre>
+ *   int   magic
+ *   byte  version
+ *   byte  type
+ *   short payload length
+ *   int   sequence number
+ *   long  stream position of the payload, in bytes
+ *   int   send time, the sender's clock in milliseconds (low 32 bits)
+ *   byte  format code of the payload (see FORMAT_CODE_*), 0 for the
+ *         sender's source format
+ *   byte  reserved
+ * </pre>
+ * Audio packets are numbered consecutively and carry the audio data that
+ * starts at their stream position, in bytes of their format. Packets with
+ * the same sequence number carry the same audio in all formats. Format
+ * packets carry a StreamHeader, followed by the format code and the codes
+ * of all formats the sender offers.
+ * FEC packets carry the parity of a group of audio packets (see
+ * FecEncoder). Receivers send subscribe packets to a unicast server to
+ * receive its stream; the payload of a subscribe packet is the receiver's
+ * loss report and the format code it requests.
+ * <p>
+ * Instances are mutable and meant to be reused, so that sending and
+ * receiving do not allocate.
+ */
+public class AudioPacket {
+
+    public static final int MAGIC = 0x4A535255; // "JSRU"
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 26;
+    /**
+     * the maximum payload, so that packets fit into an Ethernet frame
+     */
+    public static final int MAX_PAYLOAD = 1440;
+    /**
+     * the maximum audio data in one packet, leaving room for the FEC
+     * header in parity packets
+     */
+    public static final int MAX_AUDIO_PAYLOAD = 1400;
+    public static final int MAX_SIZE = HEADER_SIZE + MAX_PAYLOAD;
+
+    public static final int TYPE_AUDIO = 0;
+    public static final int TYPE_FORMAT = 1;
+    public static final int TYPE_SUBSCRIBE = 2;
+    public static final int TYPE_UNSUBSCRIBE = 3;
+    public static final int TYPE_FEC = 4;
+
+    private int type;
+    private int seq;
+    private long position;
+    private int sendTime;
+    private int format;
+    private final byte[] data = new byte[MAX_PAYLOAD];
+    private int length;
+
+    // the serialized packet
+    private final byte[] raw = new byte[MAX_SIZE];
+    private final ByteBuffer rawBuffer = ByteBuffer.wrap(raw);
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public int getSequence() {
+        return seq;
+    }
+
+    public void setSequence(int seq) {
+        this.seq = seq;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    public int getSendTime() {
+        return sendTime;
+    }
+
+    public void setSendTime(int sendTime) {
+        this.sendTime = sendTime;
+    }
+
+    /**
+     * the format code of the payload, 0 for the sender's source format
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    public void setFormat(int format) {
+        this.format = format;
+    }
+
+    /**
+     * the payload array. Its first <code>getLength()</code> bytes are
+     * valid.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void setLength(int length) {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("illegal payload length: " + length);
+        }
+        this.length = length;
+    }
+
+    /**
+     * sets the payload to a copy of the buffer's remaining bytes
+     */
+    public void setPayload(ByteBuffer payload) {
+        int len = payload.remaining();
+        setLength(len);
+        payload.get(data, 0, len);
+    }
+
+    /**
+     * makes this packet a copy of <code>p</code>
+     */
+    public void copyFrom(AudioPacket p) {
+        type = p.type;
+        seq = p.seq;
+        position = p.position;
+        sendTime = p.sendTime;
+        format = p.format;
+        length = p.length;
+        System.arraycopy(p.data, 0, data, 0, length);
+    }
+
+    /**
+     * serializes the packet into the datagram, which then refers to this
+     * packet's storage
+     */
+    public void write(DatagramPacket dp) {
+        rawBuffer.clear();
+        rawBuffer.putInt(MAGIC);
+        rawBuffer.put((byte) VERSION);
+        rawBuffer.put((byte) type);
+        rawBuffer.putShort((short) length);
+        rawBuffer.putInt(seq);
+        rawBuffer.putLong(position);
+        rawBuffer.putInt(sendTime);
+        rawBuffer.put((byte) format);
+        rawBuffer.put((byte) 0);
+        rawBuffer.put(data, 0, length);
+        dp.setData(raw, 0, rawBuffer.position());
+    }
+
+    /**
+     * lets the datagram receive into this packet's storage, so that read()
+     * does not need to allocate
+     */
+    public void prepareReceive(DatagramPacket dp) {
+        dp.setData(raw, 0, MAX_SIZE);
+    }
+
+    /**
+     * parses the received datagram into this packet
+     *
+     * @return false if the datagram is not a valid packet
+     */
+    public boolean read(DatagramPacket dp) {
+        if (dp.getLength() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer b;
+        if (dp.getData() == raw) {
+            b = rawBuffer;
+            b.clear();
+            b.position(dp.getOffset());
+            b.limit(dp.getOffset() + dp.getLength());
+        } else {
+            b = ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength());
+        }
+        if (b.getInt() != MAGIC || b.get() != VERSION) {
+            return false;
+        }
+        type = b.get();
+        int len = b.getShort() & 0xFFFF;
+        if (len > MAX_PAYLOAD || len > b.remaining() - (HEADER_SIZE - 8)) {
+            return false;
+        }
+        seq = b.getInt();
+        position = b.getLong();
+        sendTime = b.getInt();
+        format = b.get() & 0xFF;
+        b.get();
+        b.get(data, 0, len);
+        length = len;
+        return true;
+    }
+
+    public String toString() {
+        return "AudioPacket type=" + type + " seq=" + seq + " pos=" + position
+                + " len=" + length + " format=" + format;
+    }
+}
+
+/**
+ * * AudioPacket.java **
+ */
@@ -36,6 +36,7 @@
 package org.jsresources.apps.radio;
 
 import java.util.*;
+import java.util.concurrent.*;
 import javax.sound.sampled.*;
 import static org.jsresources.apps.radio.Constants.*; // $$ static import
 
@@ -85,12 +86,33 @@ class AudioSettings {
      */
     private int[] bufferSizeIndex = new int[2];
 
+    /**
+     * if the buffer size is chosen automatically
+     */
+    private boolean[] adaptiveBufferSize = new boolean[2];
+
     private boolean inited = false;
+    // true after the first enumeration
+    private boolean enumerated = false;
+    private boolean enumerating = false;
+    private boolean refreshPending = false;
+
+    /**
+     * the probed mixers, by their Mixer.Info
+     */
+    private final Map<String, MixerEntry> cache = new HashMap<String, MixerEntry>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private static final int MAX_PROBE_THREADS = 8;
+    private static ExecutorService executor;
 
     private AudioFormat preferredFormat;
     private AudioFileFormat.Type preferredType;
+    private int preferredFormatCode;
 
-    private int circBufMillis;
+    private int circBufMillis = CIRCBUF_MILLIS[CIRCBUF_INDEX_DEFAULT];
+    private boolean circBufCompressed;
+    private boolean driftCompensation = true;
 
     public AudioSettings() {
         portNames[0] = new ArrayList<String>();
@@ -101,58 +123,211 @@ class AudioSettings {
         controlIndex[1] = new ArrayList<Integer>();
         mixers[0] = new ArrayList<Mixer>();
         mixers[1] = new ArrayList<Mixer>();
+        // the default mixers can be used before enumeration
+        mixers[0].add(null);
+        mixers[1].add(null);
         bufferSizeIndex[0] = BUFFER_SIZE_INDEX_DEFAULT;
         bufferSizeIndex[1] = BUFFER_SIZE_INDEX_DEFAULT;
         // preferred Audio Format
         setPreferredAudioFormatCode(FORMAT_CODE_DEFAULT);
     }
 
+    /**
+     * Starts enumerating the devices in the background, if not done yet.
+     * Until it is finished, only the default mixer is available.
+     */
     public void init() {
-        for (int d = 0; d < 2; d++) {
-            portNames[d].clear();
-            ports[d].clear();
-            controlIndex[d].clear();
-            mixers[d].clear();
+        synchronized (this) {
+            if (inited) {
+                return;
+            }
+            inited = true;
+        }
+        refresh();
+    }
+
+    /**
+     * Enumerates the devices in the background. Mixers that were probed
+     * before are taken from the cache, only new mixers are probed, in
+     * parallel. When done, the lists are updated and the listeners are
+     * notified.
+     */
+    public void refresh() {
+        synchronized (this) {
+            inited = true;
+            if (enumerating) {
+                // run again when the current enumeration is done
+                refreshPending = true;
+                return;
+            }
+            enumerating = true;
+            refreshPending = false;
         }
-        // go through all mixers and fill all lists
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                boolean again;
+                do {
+                    enumerate();
+                    synchronized (AudioSettings.this) {
+                        again = refreshPending;
+                        refreshPending = false;
+                        enumerating = again;
+                    }
+                } while (again);
+            }
+        }, "AudioSettings enumeration");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * forgets all cached devices and enumerates them again
+     */
+    public void rescan() {
+        synchronized (cache) {
+            cache.clear();
+        }
+        refresh();
+    }
+
+    /**
+     * true while devices are being enumerated
+     */
+    public synchronized boolean isEnumerating() {
+        return enumerating;
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    private void enumerate() {
+        long startTime = System.currentTimeMillis();
         Mixer.Info[] infos = AudioSystem.getMixerInfo();
-        for (int i = 0; i < infos.length; i++) {
+        // probe the new mixers in parallel
+        List<Callable<MixerEntry>> tasks = new ArrayList<Callable<MixerEntry>>();
+        MixerEntry[] entries = new MixerEntry[infos.length];
+        synchronized (cache) {
+            Map<String, MixerEntry> newCache = new HashMap<String, MixerEntry>();
+            for (int i = 0; i < infos.length; i++) {
+                String key = getKey(infos[i]);
+                entries[i] = cache.get(key);
+                if (entries[i] == null) {
+                    tasks.add(new MixerProbe(infos[i]));
+                } else {
+                    newCache.put(key, entries[i]);
+                }
+            }
+            // forget removed mixers
+            cache.clear();
+            cache.putAll(newCache);
+        }
+        int probed = tasks.size();
+        if (probed > 0) {
             try {
-                Mixer mixer = AudioSystem.getMixer(infos[i]);
-                addMixer(mixer, mixer.getSourceLineInfo(), DIR_SPK);
-                addMixer(mixer, mixer.getTargetLineInfo(), DIR_MIC);
+                List<Future<MixerEntry>> results = getExecutor().invokeAll(tasks);
+                for (Future<MixerEntry> f : results) {
+                    MixerEntry e = f.get();
+                    synchronized (cache) {
+                        cache.put(e.key, e);
+                    }
+                    for (int i = 0; i < infos.length; i++) {
+                        if (getKey(infos[i]).equals(e.key)) {
+                            entries[i] = e;
+                        }
+                    }
+                }
             } catch (Exception e) {
                 if (DEBUG) {
                     e.printStackTrace();
                 }
             }
         }
-        // add defaults, if multiples exist
-        for (int d = 0; d < 2; d++) {
-            if (mixers[d].size() > 1) {
-                mixers[d].add(0, null);
-            }
-        }
-        // find selected recording port
-        for (int p = 0; p < ports[DIR_MIC].size(); p++) {
-            setSelPort(DIR_MIC, p, false);
-            if (portSelect[DIR_MIC] != null && portSelect[DIR_MIC].getValue() == true) {
-                portIndex[DIR_MIC] = p;
-                break;
-            }
-        }
-        // set first port for speaker as default
-        setSelPort(DIR_SPK, 0, false);
-        inited = true;
+        update(entries);
         if (VERBOSE) {
+            out("Enumerated " + infos.length + " mixers (" + probed + " probed) in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
             out("Microphone Ports:  " + ports[DIR_MIC].size());
             out("Microphone Mixers: " + mixers[DIR_MIC].size());
             out("Speaker Ports:  " + ports[DIR_SPK].size());
             out("Speaker Mixers: " + mixers[DIR_SPK].size());
         }
+        for (Listener l : listeners) {
+            l.devicesChanged(this);
+        }
+    }
+
+    /**
+     * fill the lists from the probed mixers and keep the selections
+     */
+    private synchronized void update(MixerEntry[] entries) {
+        boolean first = !enumerated;
+        for (int d = 0; d < 2; d++) {
+            Port oldPort = (portIndex[d] < ports[d].size()) ? ports[d].get(portIndex[d]) : null;
+            int oldControl = (oldPort != null) ? controlIndex[d].get(portIndex[d]) : -1;
+            List<String> newPortNames = new ArrayList<String>();
+            List<Port> newPorts = new ArrayList<Port>();
+            List<Integer> newControlIndex = new ArrayList<Integer>();
+            List<Mixer> newMixers = new ArrayList<Mixer>();
+            for (MixerEntry e : entries) {
+                if (e == null) {
+                    continue;
+                }
+                if (e.hasDataLines[d]) {
+                    newMixers.add(e.mixer);
+                }
+                newPorts.addAll(e.ports[d]);
+                newPortNames.addAll(e.portNames[d]);
+                newControlIndex.addAll(e.controlIndex[d]);
+            }
+            // add defaults, if multiples exist
+            if (newMixers.size() != 1) {
+                newMixers.add(0, null);
+            }
+            portNames[d] = newPortNames;
+            ports[d] = newPorts;
+            controlIndex[d] = newControlIndex;
+            mixers[d] = newMixers;
+            if (mixer[d] != null && !newMixers.contains(mixer[d])) {
+                // the selected mixer is gone
+                mixer[d] = null;
+            }
+            if (!first) {
+                // keep the selected port, if it still exists
+                int index = 0;
+                for (int p = 0; p < newPorts.size(); p++) {
+                    if (newPorts.get(p) == oldPort
+                            && newControlIndex.get(p) == oldControl) { // $$ autoboxing
+                        index = p;
+                        break;
+                    }
+                }
+                if (newPorts.isEmpty() || index != portIndex[d]
+                        || newPorts.get(index) != oldPort) {
+                    setSelPort(d, index, false);
+                }
+            }
+        }
+        if (first) {
+            // find selected recording port
+            for (int p = 0; p < ports[DIR_MIC].size(); p++) {
+                setSelPort(DIR_MIC, p, false);
+                if (portSelect[DIR_MIC] != null && portSelect[DIR_MIC].getValue() == true) {
+                    portIndex[DIR_MIC] = p;
+                    break;
+                }
+            }
+            // set first port for speaker as default
+            setSelPort(DIR_SPK, 0, false);
+        }
+        enumerated = true;
     }
 
-    public void exit() {
+    public synchronized void exit() {
         for (int d = 0; d < 2; d++) {
             closePort(d);
             portNames[d].clear();
@@ -162,54 +337,132 @@ class AudioSettings {
         }
     }
 
-    private void addMixer(Mixer mixer, Line.Info[] infos, int dirDataLine) {
+    private static String getKey(Mixer.Info info) {
+        return info.getName() + "|" + info.getVendor() + "|"
+                + info.getVersion() + "|" + info.getDescription();
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.min(MAX_PROBE_THREADS,
+                    Runtime.getRuntime().availableProcessors() * 2);
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AudioSettings probe");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * the data lines and ports of one mixer
+     */
+    private static class MixerEntry {
+
+        private String key;
+        private Mixer mixer;
+        private boolean[] hasDataLines = new boolean[2];
+        private List<String>[] portNames = newLists(2);
+        private List<Port>[] ports = newLists(2);
+        private List<Integer>[] controlIndex = newLists(2);
+
+        MixerEntry(String key, Mixer mixer) {
+            this.key = key;
+            this.mixer = mixer;
+        }
+
+        // there are no arrays of a generic type
+        @SuppressWarnings("unchecked")
+        private static <T> List<T>[] newLists(int n) {
+            List<T>[] res = (List<T>[]) new List<?>[n];
+            for (int i = 0; i < n; i++) {
+                res[i] = new ArrayList<T>();
+            }
+            return res;
+        }
+    }
+
+    /**
+     * opens the ports of a mixer to find their controls
+     */
+    private static class MixerProbe implements Callable<MixerEntry> {
+
+        private Mixer.Info info;
 
-        for (int i = 0; i < infos.length; i++) {
+        MixerProbe(Mixer.Info info) {
+            this.info = info;
+        }
+
+        public MixerEntry call() {
+            MixerEntry entry = new MixerEntry(getKey(info), null);
             try {
-                if (infos[i] instanceof Port.Info) {
-                    Port.Info info = (Port.Info) infos[i];
-                    int d;
-                    if (info.isSource()) {
-                        // microphone port
-                        d = DIR_MIC;
-                    } else {
-                        d = DIR_SPK;
-                    }
-                    // walk through all top-level controls
-                    Port p = (Port) mixer.getLine(info);
-                    p.open();
-                    try {
-                        Control[] cs = p.getControls();
-                        for (int c = 0; c < cs.length; c++) {
-                            if (cs[c] instanceof CompoundControl) {
-                                ports[d].add(p);
-                                portNames[d].add(mixer.getMixerInfo().getName() + ": " + cs[c].getType().toString());
-                                // $$ autoboxing
-                                controlIndex[d].add(c);
+                entry.mixer = AudioSystem.getMixer(info);
+                addLines(entry, entry.mixer.getSourceLineInfo(), DIR_SPK);
+                addLines(entry, entry.mixer.getTargetLineInfo(), DIR_MIC);
+            } catch (Exception e) {
+                if (DEBUG) {
+                    e.printStackTrace();
+                }
+            }
+            return entry;
+        }
+
+        private void addLines(MixerEntry entry, Line.Info[] infos, int dirDataLine) {
+            Mixer mixer = entry.mixer;
+            for (int i = 0; i < infos.length; i++) {
+                try {
+                    if (infos[i] instanceof Port.Info) {
+                        Port.Info info = (Port.Info) infos[i];
+                        int d;
+                        if (info.isSource()) {
+                            // microphone port
+                            d = DIR_MIC;
+                        } else {
+                            d = DIR_SPK;
+                        }
+                        // walk through all top-level controls
+                        Port p = (Port) mixer.getLine(info);
+                        p.open();
+                        try {
+                            Control[] cs = p.getControls();
+                            for (int c = 0; c < cs.length; c++) {
+                                if (cs[c] instanceof CompoundControl) {
+                                    entry.ports[d].add(p);
+                                    entry.portNames[d].add(mixer.getMixerInfo().getName() + ": " + cs[c].getType().toString());
+                                    // $$ autoboxing
+                                    entry.controlIndex[d].add(c);
+                                }
                             }
+                        } finally {
+                            p.close();
                         }
-                    } finally {
-                        p.close();
                     }
-                }
-                if (infos[i] instanceof DataLine.Info) {
-                    if (!mixers[dirDataLine].contains(mixer)) {
-                        mixers[dirDataLine].add(mixer);
+                    if (infos[i] instanceof DataLine.Info) {
+                        entry.hasDataLines[dirDataLine] = true;
+                    }
+                } catch (Exception e) {
+                    if (DEBUG) {
+                        e.printStackTrace();
                     }
-                }
-            } catch (Exception e) {
-                if (DEBUG) {
-                    e.printStackTrace();
                 }
             }
         }
     }
 
+    /**
+     * notified from the enumeration thread when the devices changed
+     */
+    public interface Listener {
+
+        public void devicesChanged(AudioSettings settings);
+    }
+
     // MIXER HANDLING //
-    public List<String> getMixers(int d) {
-        if (!inited) {
-            init();
-        }
+    public synchronized List<String> getMixers(int d) {
+        init();
         List<String> res = new ArrayList<String>();
         for (Mixer m : mixers[d]) {   // $$ enhanced for
             if (m == null) {
@@ -221,6 +474,13 @@ class AudioSettings {
         return res;
     }
 
+    /**
+     * the index of the selected mixer in the list returned by getMixers
+     */
+    public synchronized int getSelMixerIndex(int d) {
+        return Math.max(mixers[d].indexOf(mixer[d]), 0);
+    }
+
     public Mixer getSelMixer(int d) {
         return mixer[d];
     }
@@ -228,7 +488,7 @@ class AudioSettings {
     /**
      * set index in list returned in getMixers
      */
-    public void setSelMixer(int d, int index) {
+    public synchronized void setSelMixer(int d, int index) {
         if (index < 0 || index >= mixers[d].size()) {
             if (DEBUG) {
                 out("setSelMixer out of range: index=" + index);
@@ -240,11 +500,9 @@ class AudioSettings {
     }
 
     // PORT HANDLING //
-    public List<String> getPorts(int d) {
-        if (!inited) {
-            init();
-        }
-        return portNames[d];
+    public synchronized List<String> getPorts(int d) {
+        init();
+        return new ArrayList<String>(portNames[d]);
     }
 
     public Port getSelPort(int d) {
@@ -285,7 +543,7 @@ class AudioSettings {
         setSelPort(d, index, true);
     }
 
-    public void setSelPort(int d, int index, boolean doSelect) {
+    public synchronized void setSelPort(int d, int index, boolean doSelect) {
         if (index < 0 || index >= ports[d].size()) {
             if (DEBUG) {
                 out("setSelPort out of range: iondex=" + index);
@@ -366,11 +624,23 @@ class AudioSettings {
         this.bufferSizeIndex[d] = bufferSizeIndex;
     }
 
+    public boolean isAdaptiveBufferSize(int d) {
+        return adaptiveBufferSize[d];
+    }
+
+    public void setAdaptiveBufferSize(int d, boolean adaptive) {
+        adaptiveBufferSize[d] = adaptive;
+    }
+
     // audio format //
     public AudioFormat getPreferredAudioFormat() {
         return preferredFormat;
     }
 
+    public int getPreferredAudioFormatCode() {
+        return preferredFormatCode;
+    }
+
     public AudioFileFormat.Type getPreferredAudioFileType() {
         return preferredType;
     }
@@ -443,18 +713,19 @@ class AudioSettings {
         TYPE_MP3, TYPE_MP3, TYPE_MP3,
         TYPE_OGG, TYPE_OGG, TYPE_OGG,};
 
-    public AudioFormat getAudioFormatFromCode(int code) {
+    public static AudioFormat getAudioFormatFromCode(int code) {
         AudioFormat.Encoding enc = new AudioFormat.Encoding(encodings[code]);
         AudioFormat af = new AudioFormat(enc, sampleRate[code], sampleSize[code],
                 channels[code], frameSize[code], frameRate[code], false);
         return af;
     }
 
-    public AudioFileFormat.Type getTypeFromCode(int code) {
+    public static AudioFileFormat.Type getTypeFromCode(int code) {
         return types[code];
     }
 
     public void setPreferredAudioFormatCode(int formatCode) {
+        preferredFormatCode = formatCode;
         preferredFormat = getAudioFormatFromCode(formatCode);
         preferredType = getTypeFromCode(formatCode);
         if (VERBOSE) {
@@ -472,4 +743,29 @@ class AudioSettings {
     public int getCircBufMillis() {
         return circBufMillis;
     }
+
+    public void setCircBufCompressed(boolean compressed) {
+        circBufCompressed = compressed;
+        if (VERBOSE) {
+            out("Circular Buffer compression: " + (compressed ? "on" : "off"));
+        }
+    }
+
+    public boolean isCircBufCompressed() {
+        return circBufCompressed;
+    }
+
+    /**
+     * resample the playback to compensate the clock drift to the source
+     */
+    public void setDriftCompensation(boolean on) {
+        driftCompensation = on;
+        if (VERBOSE) {
+            out("Drift compensation: " + (on ? "on" : "off"));
+        }
+    }
+
+    public boolean isDriftCompensation() {
+        return driftCompensation;
+    }
 }
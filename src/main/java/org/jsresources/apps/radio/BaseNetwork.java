@@ -44,11 +44,11 @@ public abstract class BaseNetwork
         m_masterModel = masterModel;
     }
 
-    private MasterModel getMasterModel() {
+    protected MasterModel getMasterModel() {
         return m_masterModel;
     }
 
-    private ConnectionSettings getConnectionSettings() {
+    protected ConnectionSettings getConnectionSettings() {
         return getMasterModel().getConnectionSettings();
     }
 
@@ -36,16 +36,27 @@
 package org.jsresources.apps.radio;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import javax.sound.sampled.*;
 import org.jsresources.utils.Utils;
 import org.jsresources.utils.audio.AudioUtils;
+import org.jsresources.utils.audio.ImaAdpcmCodec;
 import org.jsresources.utils.audio.ReopenableAIS;
+import org.jsresources.utils.audio.TimestampedOutput;
 import static org.jsresources.apps.radio.Constants.*;
 
-public class CircularBuffer extends OutputStream {
+public class CircularBuffer extends OutputStream implements TimestampedOutput {
 
     private static final boolean DEBUG_IO = false;
 
+    /**
+     * number of frames in one block of the compressed storage
+     */
+    private static final int COMPRESSED_BLOCK_FRAMES = 1024;
+
     /**
      * how many bytes does the speaker lag behind the write cursor
      */
@@ -64,22 +75,77 @@ public class CircularBuffer extends OutputStream {
      */
     private int availRead;
 
+    /**
+     * total number of bytes written since init: the absolute write position
+     */
+    private long writeCount;
+
+    /**
+     * the bytes handed out by beginWrite() and not committed yet. The
+     * producer may overwrite the oldest pendingWrite bytes at any time, so
+     * readers skip them.
+     */
+    private int pendingWrite;
+
+    /**
+     * maps capture time to absolute positions
+     */
+    private TimeIndex timeIndex = new TimeIndex();
+
+    /**
+     * the titles of the audio in the buffer
+     */
+    private TitleIndex titleIndex = new TitleIndex();
+
+    /**
+     * all open range streams. Pinned ones get a copy of their data before
+     * it is overwritten.
+     */
+    private List<RangeAIS> rangeReaders = new ArrayList<RangeAIS>();
+
     /**
      * AudioFormat of the data
      */
     private AudioFormat audioFormat;
 
     /**
-     * the array holding the buffer's data
+     * the array holding the buffer's data. In compressed mode, it holds
+     * the encoded blocks.
      */
     private byte[] buffer;
 
+    /**
+     * the logical size of the buffer, in PCM bytes
+     */
+    private int size;
+
     // size of buffer next time it is inited
     private int nextSizeBytes;
     private int nextSizeMillis;
-
-    private Object recorderReaderLock = new Object();
-    private Object speakerReaderLock = new Object();
+    private boolean nextCompressed;
+
+    // compressed storage: null if the buffer holds raw PCM
+    private ImaAdpcmCodec codec;
+    // size of a decoded block in bytes
+    private int blockSize;
+    // size of an encoded block in bytes
+    private int encodedBlockSize;
+    // the raw data of the block that is currently written to
+    private byte[] stage;
+    // incremented whenever a block is encoded, for invalidating caches
+    private int[] blockGeneration;
+    // decoded blocks and views, one for each reader
+    private DecodedBlock speakerBlock = new DecodedBlock();
+    private DecodedBlock recorderBlock = new DecodedBlock();
+    private DecodedBlock sliceBlock = new DecodedBlock();
+
+    // reusable views for beginWrite(), wrapping buffer and stage
+    private ByteBuffer writeView0;
+    private ByteBuffer writeView1;
+    private ByteBuffer stageView;
+
+    // filler for unused slices
+    private static final ByteBuffer EMPTY_SLICE = ByteBuffer.allocate(0).asReadOnlyBuffer();
 
     // for debugging
     private boolean hasReadSpeaker, hasReadRecorder;
@@ -100,18 +166,65 @@ public class CircularBuffer extends OutputStream {
 
     public synchronized void init() {
         int size = getSizeBytes();
+        int memSize = size;
+        codec = null;
+        if (nextCompressed) {
+            if (ImaAdpcmCodec.isSupported(getFormat())) {
+                codec = new ImaAdpcmCodec(getFormat().getChannels(),
+                        getFormat().isBigEndian(), COMPRESSED_BLOCK_FRAMES);
+                blockSize = codec.getDecodedBlockSize();
+                encodedBlockSize = codec.getEncodedBlockSize();
+                int blocks = size / blockSize;
+                if (blocks < 2) {
+                    blocks = 2;
+                }
+                size = blocks * blockSize;
+                memSize = blocks * encodedBlockSize;
+                if (stage == null || stage.length != blockSize) {
+                    stage = new byte[blockSize];
+                }
+                blockGeneration = new int[blocks];
+                speakerBlock.invalidate(blockSize);
+                recorderBlock.invalidate(blockSize);
+                sliceBlock.invalidate(blockSize);
+            } else if (VERBOSE) {
+                Debug.out("Circular Buffer: cannot compress " + getFormat()
+                        + ", using raw storage.");
+            }
+        }
         if (VERBOSE) {
             Debug.out("Circular Buffer: init. Size=" + (size / 1024) + "KB <=> "
-                    + AudioUtils.bytes2millis(size, getFormat()));
+                    + AudioUtils.bytes2millis(size, getFormat())
+                    + ((codec != null) ? " (compressed: " + (memSize / 1024) + "KB)" : ""));
         }
 
-        if (buffer == null || size != buffer.length) {
-            buffer = new byte[size];
+        if (buffer == null || memSize != buffer.length) {
+            buffer = new byte[memSize];
+            writeView0 = ByteBuffer.wrap(buffer);
+            writeView1 = ByteBuffer.wrap(buffer);
+            speakerBlock.wrap(buffer);
+            recorderBlock.wrap(buffer);
+            sliceBlock.wrap(buffer);
+        }
+        if (codec != null && (stageView == null || stageView.array() != stage)) {
+            stageView = ByteBuffer.wrap(stage);
         }
+        this.size = size;
         speakerLag = 0;
         recorderLag = 0;
         writePos = 0;
         availRead = 0;
+        writeCount = 0;
+        pendingWrite = 0;
+        // the range streams' positions are invalid now
+        for (RangeAIS r : rangeReaders) {
+            r.closed = true;
+        }
+        rangeReaders.clear();
+        notifyAll();
+        titleIndex.init();
+        timeIndex.init(getFormat().getFrameRate() * getFormat().getFrameSize() / 1000.0,
+                getFormat().getFrameSize());
     }
 
     /**
@@ -152,12 +265,48 @@ public class CircularBuffer extends OutputStream {
     }
 
     /**
-     * returns the actual size, in bytes, of the internal buffer
+     * the absolute write position: the number of bytes written since init
+     */
+    public synchronized long getWritePosition() {
+        return writeCount;
+    }
+
+    /**
+     * the absolute position of the oldest byte still in the buffer
+     */
+    public synchronized long getOldestPosition() {
+        int avail = Math.min(availRead, getEffectiveSize() - pendingWrite);
+        return writeCount - avail;
+    }
+
+    /**
+     * returns the actual size, in bytes, of the internal buffer. In
+     * compressed mode, this is the size of the decoded data.
      */
     public int getEffectiveSize() {
+        return (buffer == null) ? 0 : size;
+    }
+
+    /**
+     * returns the number of bytes of memory used for storing the audio data
+     */
+    public int getMemorySize() {
         return (buffer == null) ? 0 : buffer.length;
     }
 
+    /**
+     * if true, the buffer stores its data IMA ADPCM compressed, so that it
+     * can hold about 4 times as much audio in the same memory. Only
+     * 16-bit PCM can be compressed. Will only be effective upon next init.
+     */
+    public void setCompressed(boolean compressed) {
+        nextCompressed = compressed;
+    }
+
+    public boolean isCompressed() {
+        return codec != null;
+    }
+
     /**
      * set size of buffer -- will only be effective upon next init
      */
@@ -225,19 +374,173 @@ public class CircularBuffer extends OutputStream {
         throw new IOException("illegal call to CircularBuffer.write(int)!");
     }
 
+    /**
+     * write data which was captured at the wall clock time
+     * <code>timeMillis</code>, and add it to the time index.
+     */
+    public synchronized void write(byte[] b, int off, int len, long timeMillis) throws IOException {
+        timeIndex.add(timeMillis, writeCount);
+        write(b, off, len);
+        timeIndex.prune(getOldestPosition());
+    }
+
     public synchronized void write(byte[] b, int off, int len) throws IOException {
         // write always overwrites
         int si = getEffectiveSize();
-        int fs = getFormat().getFrameSize();
-        if (fs < 1) {
-            fs = 1;
-        }
+        int fs = getFrameSize();
 		// aligning is necessary but still dangerous
         // if fractional frames are written:
         // the next write will again write the second half
         // of the fractional frame and therefore be unaligned
         // from then on.
         len = Utils.align(len, fs);
+        preserve(len);
+        advanceReaders(len);
+
+        // finally copy to the buffer
+        if (codec != null) {
+            writeCompressed(b, off, len);
+            len = 0;
+        }
+        while (len > 0) {
+            int thisLen = len;
+            if ((len + writePos) > si) {
+                thisLen = si - writePos;
+            }
+            if (DEBUG_IO) {
+                Debug.out("Writing from b[" + b.length + "], off=" + off + " to " + (off + thisLen - 1));
+                Debug.out("          to buffer[" + buffer.length + "], writePos=" + writePos + " to " + (writePos + thisLen - 1));
+            }
+            if (DEBUG) {
+                if (off + thisLen > b.length || thisLen < 0 || off < 0) {
+                    Debug.out("## Error: CircularBuffer.readImpl: copying from b[" + b.length + "] off=" + off + " to " + (off + thisLen - 1));
+                }
+                if (writePos + thisLen > buffer.length || thisLen < 0 || writePos < 0) {
+                    Debug.out("## Error: CircularBuffer.write: copying to buffer[" + buffer.length + "] readPos=" + writePos + " to " + (writePos + thisLen - 1));
+                }
+            }
+            System.arraycopy(b, off, buffer, writePos, thisLen);
+            writePos += thisLen;
+            off += thisLen;
+            if (writePos >= si + 1 - fs) {
+                writePos -= si;
+            }
+            len -= thisLen;
+        }
+        notifyReaders();
+    }
+
+    /**
+     * Get writable views of the buffer's storage at the write position, so
+     * that a producer can write directly into the buffer. At most
+     * <code>maxLen</code> bytes are returned in up to 2 views (because of
+     * the wrap-around; unused views are empty), from each view's position
+     * to its limit. The views are owned by the buffer and reused by the
+     * next call, so nothing is allocated. The data is only visible to
+     * readers after commitWrite() is called; until then, readers skip the
+     * oldest data that the producer may overwrite. In compressed mode, the
+     * views never span more than one block.
+     *
+     * @return the number of bytes available in the views
+     */
+    public synchronized int beginWrite(int maxLen, ByteBuffer[] slices) {
+        int si = getEffectiveSize();
+        int len = Utils.align(Math.min(maxLen, si), getFrameSize());
+        slices[0] = EMPTY_SLICE;
+        slices[1] = EMPTY_SLICE;
+        // pinned range streams copy the data that may be overwritten now.
+        // This does not discard anything: if less is committed, the copy
+        // is still valid and is not made again.
+        preserve(len);
+        if (codec != null) {
+            int inBlock = writePos % blockSize;
+            if (len > blockSize - inBlock) {
+                len = blockSize - inBlock;
+            }
+            // only the stage beyond the committed data is written to, and
+            // the old block is replaced in commitWrite()
+            slices[0] = setView(stageView, inBlock, len);
+        } else {
+            int first = Math.min(len, si - writePos);
+            slices[0] = setView(writeView0, writePos, first);
+            if (len > first) {
+                slices[1] = setView(writeView1, 0, len - first);
+            }
+            pendingWrite = len;
+        }
+        return len;
+    }
+
+    // limit the view to [off, off + len) of its array
+    private static ByteBuffer setView(ByteBuffer view, int off, int len) {
+        view.clear();
+        view.position(off);
+        view.limit(off + len);
+        return view;
+    }
+
+    /**
+     * Make <code>len</code> bytes written to the views returned by
+     * beginWrite() available to the readers.
+     */
+    public synchronized void commitWrite(int len) {
+        int si = getEffectiveSize();
+        len = Utils.align(len, getFrameSize());
+        pendingWrite = 0;
+        advanceReaders(len);
+        if (codec != null) {
+            int inBlock = writePos % blockSize;
+            if (inBlock + len == blockSize) {
+                int block = writePos / blockSize;
+                codec.encode(stage, 0, buffer, block * encodedBlockSize);
+                blockGeneration[block]++;
+            }
+        }
+        writePos += len;
+        if (writePos >= si) {
+            writePos -= si;
+        }
+        notifyReaders();
+    }
+
+    // move the speaker and recorder cursors out of the data that a pending
+    // write may overwrite
+    private void skipPendingWrite() {
+        int maxLag = getEffectiveSize() - pendingWrite;
+        if (speakerLag > maxLag) {
+            speakerLag = maxLag;
+        }
+        if (recorderLag > maxLag) {
+            recorderLag = maxLag;
+        }
+    }
+
+    // give the pinned range streams a chance to copy the data that is
+    // lost when writing len bytes
+    private void preserve(int len) {
+        if (rangeReaders.isEmpty()) {
+            return;
+        }
+        int lost = availRead + len - getEffectiveSize();
+        if (lost <= 0) {
+            return;
+        }
+        if (lost > availRead) {
+            lost = availRead;
+        }
+        long from = writeCount - availRead;
+        for (int i = 0; i < rangeReaders.size(); i++) {
+            RangeAIS r = rangeReaders.get(i);
+            if (r.pinned) {
+                r.preserve(from, lost);
+            }
+        }
+    }
+
+    // account for len bytes being written to the buffer
+    private void advanceReaders(int len) {
+        int si = getEffectiveSize();
+        writeCount += len;
         // adjust available bytes
         availRead += len;
         if (availRead > si) {
@@ -268,44 +571,314 @@ public class CircularBuffer extends OutputStream {
             }
             recorderLag = si;
         }
+    }
 
-        // finally copy to the buffer
-        while (len > 0) {
-            int thisLen = len;
-            if ((len + writePos) > si) {
-                thisLen = si - writePos;
+    private void notifyReaders() {
+        // all readers wait on this buffer's monitor
+        notifyAll();
+    }
+
+    private int getFrameSize() {
+        int fs = getFormat().getFrameSize();
+        if (fs < 1) {
+            fs = 1;
+        }
+        return fs;
+    }
+
+    /* Time index */
+
+    /**
+     * returns the absolute position of the data captured at the wall clock
+     * time <code>timeMillis</code>, limited to the data in the buffer. Returns
+     * -1 if the buffer has no time information.
+     */
+    public synchronized long getPositionForTime(long timeMillis) {
+        long pos = timeIndex.getPosition(timeMillis);
+        if (pos < 0) {
+            return -1;
+        }
+        long oldest = getOldestPosition();
+        if (pos < oldest) {
+            pos = oldest;
+        }
+        if (pos > writeCount) {
+            pos = writeCount;
+        }
+        return pos;
+    }
+
+    /**
+     * returns the wall clock time when the data at the absolute position
+     * <code>pos</code> was captured, or -1 if unknown.
+     */
+    public synchronized long getTimeForPosition(long pos) {
+        return timeIndex.getTime(pos);
+    }
+
+    /**
+     * returns the capture time of the oldest data in the buffer, or -1
+     */
+    public synchronized long getOldestTime() {
+        return timeIndex.getTime(getOldestPosition());
+    }
+
+    /**
+     * returns the capture time of the newest data in the buffer, or -1
+     */
+    public synchronized long getNewestTime() {
+        return timeIndex.getTime(writeCount);
+    }
+
+    /**
+     * move the speaker or recorder cursor to the data captured at the wall
+     * clock time <code>timeMillis</code>.
+     *
+     * @return false if the buffer has no time information
+     */
+    public synchronized boolean seek(boolean isSpeaker, long timeMillis) {
+        long pos = getPositionForTime(timeMillis);
+        if (pos < 0) {
+            return false;
+        }
+        int lag = (int) (writeCount - pos);
+        if (isSpeaker) {
+            speakerLag = lag;
+        } else {
+            recorderLag = lag;
+        }
+        notifyReaders();
+        return true;
+    }
+
+    /* Reading with ByteBuffers */
+
+    /**
+     * the data written from now on has the title <code>title</code>
+     */
+    public synchronized void addTitle(String title) {
+        titleIndex.prune(getOldestPosition());
+        titleIndex.add(writeCount, title);
+    }
+
+    /**
+     * the title of the audio at the absolute position, or null if unknown
+     */
+    public synchronized String getTitle(long pos) {
+        return titleIndex.getTitle(pos);
+    }
+
+    /**
+     * the absolute position of the speaker cursor
+     */
+    public synchronized long getSpeakerPosition() {
+        return writeCount - speakerLag;
+    }
+
+    /**
+     * the title of the audio at the speaker cursor, or null if unknown
+     */
+    public synchronized String getSpeakerTitle() {
+        return titleIndex.getTitle(writeCount - speakerLag);
+    }
+
+    /**
+     * Get read-only views of the data that the speaker or recorder cursor
+     * can read, without copying. At most <code>maxLen</code> bytes are
+     * returned in up to 2 views (because of the wrap-around; unused views
+     * are empty), from each view's position to its limit. The cursor is not
+     * moved: call advance() after consuming the data. The views are owned
+     * by the buffer and reused by the next peek or read of this cursor.
+     * <p>
+     * In raw mode, the views show the storage itself: the writer overwrites
+     * the data once it has written size - lag more bytes, so consume them
+     * right away. In compressed mode, the views hold a decoded copy, and
+     * never span more than one block.
+     *
+     * @return the number of bytes available in the views
+     */
+    public synchronized int peek(boolean isSpeaker, int maxLen, ByteBuffer[] slices) {
+        skipPendingWrite();
+        int avail = isSpeaker ? availableReadSpeaker() : availableReadRecorder();
+        int lag = isSpeaker ? speakerLag : recorderLag;
+        int len = Utils.align(Math.min(maxLen, avail), getFrameSize());
+        return sliceImpl(lag, len, slices, isSpeaker ? speakerBlock : recorderBlock);
+    }
+
+    /**
+     * Move the speaker or recorder cursor forward by <code>len</code> bytes,
+     * typically after consuming the slices returned by peek().
+     *
+     * @return the number of bytes the cursor was moved
+     */
+    public synchronized int advance(boolean isSpeaker, int len) {
+        int avail = isSpeaker ? availableReadSpeaker() : availableReadRecorder();
+        if (len > avail) {
+            len = avail;
+        }
+        if (isSpeaker) {
+            speakerLag -= len;
+            hasReadSpeaker = true;
+        } else {
+            recorderLag -= len;
+            hasReadRecorder = true;
+        }
+        return len;
+    }
+
+    /**
+     * Get read-only views of the data at the absolute position
+     * <code>pos</code> (see getWritePosition()), for readers that maintain
+     * their own cursor. Like peek(), the views are reused by the next call
+     * of this method, and in raw mode they show the storage, which the
+     * writer overwrites once <code>pos</code> is no longer in the buffer. In
+     * compressed mode, the views never span more than one block.
+     *
+     * @return the number of bytes available in the views, or -1 if the data
+     *         at <code>pos</code> was already overwritten.
+     */
+    public synchronized int peekAt(long pos, int maxLen, ByteBuffer[] slices) {
+        if (pos < getOldestPosition() || pos > writeCount) {
+            slices[0] = EMPTY_SLICE;
+            slices[1] = EMPTY_SLICE;
+            return -1;
+        }
+        int lag = (int) (writeCount - pos);
+        return sliceImpl(lag, Math.min(maxLen, lag), slices, sliceBlock);
+    }
+
+    private int sliceImpl(int lag, int len, ByteBuffer[] slices, DecodedBlock cache) {
+        int si = getEffectiveSize();
+        slices[0] = EMPTY_SLICE;
+        slices[1] = EMPTY_SLICE;
+        if (len <= 0) {
+            return 0;
+        }
+        int readPos = ((writePos - lag) + si) % si;
+        if (codec != null) {
+            int block = readPos / blockSize;
+            int inBlock = readPos % blockSize;
+            if (len > blockSize - inBlock) {
+                len = blockSize - inBlock;
             }
-            if (DEBUG_IO) {
-                Debug.out("Writing from b[" + b.length + "], off=" + off + " to " + (off + thisLen - 1));
-                Debug.out("          to buffer[" + buffer.length + "], writePos=" + writePos + " to " + (writePos + thisLen - 1));
+            byte[] src;
+            if (block == writePos / blockSize && inBlock < writePos % blockSize) {
+                // not yet encoded: the writer reuses stage for the next
+                // block, so never hand it out, but a copy in the cache
+                src = cache.data;
+                System.arraycopy(stage, inBlock, src, inBlock, len);
+                cache.index = -1;
+            } else {
+                src = decodeBlock(block, cache);
             }
-            if (DEBUG) {
-                if (off + thisLen > b.length || thisLen < 0 || off < 0) {
-                    Debug.out("## Error: CircularBuffer.readImpl: copying from b[" + b.length + "] off=" + off + " to " + (off + thisLen - 1));
-                }
-                if (writePos + thisLen > buffer.length || thisLen < 0 || writePos < 0) {
-                    Debug.out("## Error: CircularBuffer.write: copying to buffer[" + buffer.length + "] readPos=" + writePos + " to " + (writePos + thisLen - 1));
-                }
+            slices[0] = setView(cache.dataView, inBlock, len);
+        } else {
+            int first = Math.min(len, si - readPos);
+            slices[0] = setView(cache.view0, readPos, first);
+            if (len > first) {
+                slices[1] = setView(cache.view1, 0, len - first);
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Write the data available to the speaker or recorder cursor to the
+     * channel with gathering writes directly from the buffer's storage, and
+     * advance the cursor by the number of bytes written. This method does
+     * not block for new data.
+     *
+     * @return the number of bytes written
+     */
+    public int transferTo(boolean isSpeaker, GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] slices = (isSpeaker ? speakerBlock : recorderBlock).slices;
+        int total = 0;
+        while (true) {
+            int len = peek(isSpeaker, Integer.MAX_VALUE, slices);
+            if (len <= 0) {
+                break;
+            }
+            int written = (int) channel.write(slices);
+            if (written <= 0) {
+                break;
+            }
+            total += advance(isSpeaker, written);
+            if (written < len) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    // write len bytes to the stage block, encoding it when it is full
+    private void writeCompressed(byte[] b, int off, int len) {
+        int si = getEffectiveSize();
+        while (len > 0) {
+            int inBlock = writePos % blockSize;
+            int thisLen = blockSize - inBlock;
+            if (thisLen > len) {
+                thisLen = len;
+            }
+            System.arraycopy(b, off, stage, inBlock, thisLen);
+            if (inBlock + thisLen == blockSize) {
+                int block = writePos / blockSize;
+                codec.encode(stage, 0, buffer, block * encodedBlockSize);
+                blockGeneration[block]++;
             }
-            System.arraycopy(b, off, buffer, writePos, thisLen);
             writePos += thisLen;
             off += thisLen;
-            if (writePos >= si + 1 - fs) {
+            if (writePos >= si) {
                 writePos -= si;
             }
             len -= thisLen;
         }
-        synchronized (speakerReaderLock) {
-            speakerReaderLock.notifyAll();
+    }
+
+    // return the decoded data of the block, using the cache if possible
+    private byte[] decodeBlock(int block, DecodedBlock cache) {
+        if (cache.index != block
+                || cache.generation != blockGeneration[block]) {
+            codec.decode(buffer, block * encodedBlockSize, cache.data, 0);
+            cache.index = block;
+            cache.generation = blockGeneration[block];
         }
-        synchronized (recorderReaderLock) {
-            recorderReaderLock.notifyAll();
+        return cache.data;
+    }
+
+    // read len bytes starting at readPos, decoding the blocks as necessary
+    private void readCompressed(int readPos, byte[] b, int off, int len,
+            DecodedBlock cache) {
+        int si = getEffectiveSize();
+        int writeBlock = writePos / blockSize;
+        int writeInBlock = writePos % blockSize;
+        while (len > 0) {
+            int block = readPos / blockSize;
+            int inBlock = readPos % blockSize;
+            int thisLen = blockSize - inBlock;
+            if (thisLen > len) {
+                thisLen = len;
+            }
+            byte[] src;
+            if (block == writeBlock && inBlock < writeInBlock) {
+                // not yet encoded
+                src = stage;
+            } else {
+                src = decodeBlock(block, cache);
+            }
+            System.arraycopy(src, inBlock, b, off, thisLen);
+            readPos += thisLen;
+            off += thisLen;
+            if (readPos >= si) {
+                readPos -= si;
+            }
+            len -= thisLen;
         }
     }
 
 	// if not isSpeaker, it is read from Recorder position
     // this method is not blocking
     synchronized int readImpl(byte[] b, int off, int len, boolean isSpeaker) {
+        skipPendingWrite();
         int avail, oldLag;
         if (isSpeaker) {
             avail = availableReadSpeaker();
@@ -349,6 +922,18 @@ public class CircularBuffer extends OutputStream {
         // copy the data
         int readPos = ((writePos - oldLag) + si) % si;
         len = maxRead;
+        copyOut(readPos, b, off, len, isSpeaker ? speakerBlock : recorderBlock);
+        return maxRead;
+    }
+
+    // copy len bytes from the buffer, starting at readPos
+    private void copyOut(int readPos, byte[] b, int off, int len, DecodedBlock cache) {
+        if (codec != null) {
+            readCompressed(readPos, b, off, len, cache);
+            return;
+        }
+        int si = getEffectiveSize();
+        int fs = getFrameSize();
         while (len > 0) {
             int thisLen = len;
             if ((readPos + thisLen) > si) {
@@ -377,7 +962,72 @@ public class CircularBuffer extends OutputStream {
             }
             len -= thisLen;
         }
-        return maxRead;
+    }
+
+    // copy up to len bytes from the absolute position pos. Returns -1 if
+    // the data at pos was already overwritten.
+    private int readAt(long pos, byte[] b, int off, int len, DecodedBlock cache) {
+        if (pos < getOldestPosition()) {
+            return -1;
+        }
+        int lag = (int) (writeCount - pos);
+        if (len > lag) {
+            len = lag;
+        }
+        len = Utils.align(len, getFrameSize());
+        if (len > 0) {
+            int si = getEffectiveSize();
+            copyOut(((writePos - lag) + si) % si, b, off, len, cache);
+        }
+        return len;
+    }
+
+    /**
+     * Get a stream that reads the data captured from the wall clock time
+     * <code>fromMillis</code> up to <code>toMillis</code>. Data that is
+     * already in the buffer is returned without delay. If
+     * <code>toMillis</code> is in the future, or Long.MAX_VALUE for an open
+     * end, reading blocks until the data is captured. The stream has its own
+     * cursor and does not interfere with the speaker and recorder.
+     *
+     * @throws IOException if the buffer has no time information
+     */
+    public synchronized AudioInputStream getRangeAIS(long fromMillis, long toMillis) throws IOException {
+        long startPos = getPositionForTime(fromMillis);
+        if (startPos < 0) {
+            throw new IOException("no time information available");
+        }
+        return new RangeAIS(startPos, toMillis, false);
+    }
+
+    /**
+     * Get a snapshot of the data captured from the wall clock time
+     * <code>fromMillis</code> up to <code>toMillis</code>. Like
+     * getRangeAIS(), but the data of the range is pinned: before the writer
+     * overwrites data that was not yet read from the stream, it is copied
+     * to the stream. So the stream can be read at any speed without losing
+     * data, e.g. for saving the last minutes to a file in the background.
+     * Creating a snapshot takes constant time.
+     *
+     * @throws IOException if the buffer has no time information
+     */
+    public synchronized AudioInputStream getSnapshotAIS(long fromMillis, long toMillis) throws IOException {
+        long startPos = getPositionForTime(fromMillis);
+        if (startPos < 0) {
+            throw new IOException("no time information available");
+        }
+        return new RangeAIS(startPos, toMillis, true);
+    }
+
+    /**
+     * Get a stream that reads from the absolute position <code>pos</code>
+     * (see getWritePosition()) with its own cursor, and then follows the
+     * live data without end. If the reader is too slow, the overwritten
+     * data is skipped. The stream ends when the buffer is re-initialized.
+     */
+    public synchronized AudioInputStream getLiveAIS(long pos) {
+        pos = Math.max(getOldestPosition(), Math.min(pos, writeCount));
+        return new RangeAIS(Utils.align(pos, getFrameSize()), Long.MAX_VALUE, false);
     }
 
     public AudioInputStream getSpeakerAIS() {
@@ -392,7 +1042,7 @@ public class CircularBuffer extends OutputStream {
     private class CircBufAIS extends AudioInputStream implements ReopenableAIS {
 
         private boolean isSpeaker;
-        private boolean closed;
+        private volatile boolean closed;
 
         CircBufAIS(boolean isSpeaker) {
             super(new ByteArrayInputStream(new byte[0]), CircularBuffer.this.getFormat(), AudioSystem.NOT_SPECIFIED);
@@ -418,46 +1068,34 @@ public class CircularBuffer extends OutputStream {
             if (closed) {
                 return -1;
             }
-            Object lock = recorderReaderLock;
-            if (isSpeaker) {
-                lock = speakerReaderLock;
-            }
-
             int res = 0;
             int thisLen = len;
 
-            while (true) {
-                int thisRead = readImpl(b, off, thisLen, isSpeaker);
-                off += thisRead;
-                res += thisRead;
-                thisLen -= thisRead;
-                if (!closed && (res < len)) {
-                    synchronized (lock) {
-                        try {
-                            lock.wait(20);
-                        } catch (InterruptedException ie) {
-                        }
+            synchronized (CircularBuffer.this) {
+                // sleep until the writer or close() notifies
+                while (true) {
+                    int thisRead = readImpl(b, off, thisLen, isSpeaker);
+                    off += thisRead;
+                    res += thisRead;
+                    thisLen -= thisRead;
+                    if (closed || thisLen < getFrameSize()) {
+                        break;
+                    }
+                    try {
+                        CircularBuffer.this.wait();
+                    } catch (InterruptedException ie) {
+                        break;
                     }
-                } else {
-                    break;
                 }
             }
             return res;
         }
 
-        private void notifyLock() {
-            Object lock = recorderReaderLock;
-            if (isSpeaker) {
-                lock = speakerReaderLock;
-            }
-            synchronized (lock) {
-                lock.notifyAll();
-            }
-        }
-
         public void close() throws IOException {
-            closed = true;
-            notifyLock();
+            synchronized (CircularBuffer.this) {
+                closed = true;
+                notifyReaders();
+            }
         }
 
         public void open() {
@@ -490,8 +1128,8 @@ public class CircularBuffer extends OutputStream {
                 } else {
                     recorderLag = lag;
                 }
+                notifyReaders();
             }
-            notifyLock();
             return n;
         }
 
@@ -506,4 +1144,209 @@ public class CircularBuffer extends OutputStream {
         }
 
     } // CircBufAIS
+
+    // an AudioInputStream that reads a time range with its own cursor
+    private class RangeAIS extends AudioInputStream {
+
+        // size of the chunks for saving pinned data
+        private final int chunkSize = Utils.align(65536, getFrameSize());
+
+        private long pos;
+        private long endTime;
+        private long endPos = Long.MAX_VALUE;
+        private boolean closed;
+        private boolean pinned;
+        private DecodedBlock cache = new DecodedBlock();
+
+        // data saved from being overwritten: [savedStart, savedEnd)
+        private List<byte[]> chunks = new ArrayList<byte[]>();
+        private List<byte[]> spareChunks = new ArrayList<byte[]>();
+        private long savedStart;
+        private long savedEnd;
+
+        // call in synchronized context
+        RangeAIS(long startPos, long endTime, boolean pinned) {
+            super(new ByteArrayInputStream(new byte[0]), CircularBuffer.this.getFormat(), AudioSystem.NOT_SPECIFIED);
+            this.pos = startPos;
+            this.endTime = endTime;
+            this.pinned = pinned;
+            savedStart = startPos;
+            savedEnd = startPos;
+            if (codec != null) {
+                cache.invalidate(blockSize);
+            }
+            resolveEnd();
+            if (endPos != Long.MAX_VALUE) {
+                frameLength = (endPos - startPos) / getFrameSize();
+            }
+            rangeReaders.add(this);
+        }
+
+        // called by the writer before [from, from + len) is overwritten
+        void preserve(long from, int len) {
+            if (savedEnd <= pos) {
+                // all saved data is consumed
+                spareChunks.addAll(chunks);
+                chunks.clear();
+                savedStart = pos;
+                savedEnd = pos;
+            }
+            long start = Math.max(from, savedEnd);
+            long end = Math.min(from + len, endPos);
+            while (start < end) {
+                int chunk = (int) ((start - savedStart) / chunkSize);
+                int inChunk = (int) ((start - savedStart) % chunkSize);
+                if (chunk == chunks.size()) {
+                    if (spareChunks.isEmpty()) {
+                        chunks.add(new byte[chunkSize]);
+                    } else {
+                        chunks.add(spareChunks.remove(spareChunks.size() - 1));
+                    }
+                }
+                int thisLen = (int) Math.min(end - start, chunkSize - inChunk);
+                thisLen = readAt(start, chunks.get(chunk), inChunk, thisLen, cache);
+                if (thisLen <= 0) {
+                    break;
+                }
+                start += thisLen;
+                savedEnd = start;
+            }
+        }
+
+        // read from the saved chunks
+        private int readSaved(byte[] b, int off, int len) {
+            int chunk = (int) ((pos - savedStart) / chunkSize);
+            int inChunk = (int) ((pos - savedStart) % chunkSize);
+            len = (int) Math.min(len, Math.min(savedEnd - pos, chunkSize - inChunk));
+            len = Utils.align(len, getFrameSize());
+            System.arraycopy(chunks.get(chunk), inChunk, b, off, len);
+            pos += len;
+            // recycle consumed chunks
+            while (!chunks.isEmpty() && pos >= savedStart + chunkSize) {
+                spareChunks.add(chunks.remove(0));
+                savedStart += chunkSize;
+            }
+            return len;
+        }
+
+        // call in synchronized context
+        private void unregister() {
+            rangeReaders.remove(this);
+            chunks.clear();
+            spareChunks.clear();
+        }
+
+        // find the end position once the end time is captured
+        private void resolveEnd() {
+            if (endPos == Long.MAX_VALUE && endTime != Long.MAX_VALUE
+                    && getNewestTime() >= endTime) {
+                endPos = Math.max(pos, getPositionForTime(endTime));
+            }
+        }
+
+        public int available() throws IOException {
+            synchronized (CircularBuffer.this) {
+                if (closed) {
+                    return 0;
+                }
+                return (int) Math.max(0, Math.min(writeCount, endPos) - pos);
+            }
+        }
+
+        public int read() throws IOException {
+            throw new IOException("illegal call to RangeAIS.read()!");
+        }
+
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        // this method blocks until at least one frame is available
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (CircularBuffer.this) {
+                while (true) {
+                    resolveEnd();
+                    if (closed || pos >= endPos) {
+                        unregister();
+                        return -1;
+                    }
+                    if (pos < savedEnd && len >= getFrameSize()) {
+                        return readSaved(b, off, len);
+                    }
+                    if (pos < getOldestPosition()) {
+                        // too slow: the data is lost
+                        pos = getOldestPosition();
+                    }
+                    int thisLen = (int) Math.min(len, endPos - pos);
+                    int r = readAt(pos, b, off, thisLen, cache);
+                    if (r > 0) {
+                        pos += r;
+                        return r;
+                    }
+                    try {
+                        CircularBuffer.this.wait();
+                    } catch (InterruptedException ie) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        public long skip(long n) throws IOException {
+            synchronized (CircularBuffer.this) {
+                n = Math.max(0, Math.min(n, Math.min(writeCount, endPos) - pos));
+                n = Utils.align(n, getFrameSize());
+                pos += n;
+                return n;
+            }
+        }
+
+        public void close() throws IOException {
+            synchronized (CircularBuffer.this) {
+                closed = true;
+                unregister();
+                CircularBuffer.this.notifyAll();
+            }
+        }
+
+        public void mark(int readlimit) {
+        }
+
+        public void reset() throws IOException {
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+    } // RangeAIS
+
+    // a decoded block of the compressed storage, and the views handed out
+    // to its reader
+    private static class DecodedBlock {
+
+        int index = -1;
+        int generation;
+        byte[] data;
+        // read-only views of data, and of the raw storage
+        ByteBuffer dataView;
+        ByteBuffer view0;
+        ByteBuffer view1;
+        // for transferTo()
+        final ByteBuffer[] slices = new ByteBuffer[2];
+
+        void invalidate(int blockSize) {
+            index = -1;
+            if (data == null || data.length != blockSize) {
+                data = new byte[blockSize];
+                dataView = ByteBuffer.wrap(data).asReadOnlyBuffer();
+            }
+        }
+
+        // called when the storage is allocated
+        void wrap(byte[] buffer) {
+            view0 = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+            view1 = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+        }
+    }
 }
@@ -50,12 +50,100 @@ import static org.jsresources.apps.radio.Constants.*;
 
 public class ConnectionSettings {
 
+    private int port;
+
+    /**
+     * the transport used for broadcasting, CONNECTION_TYPE_*
+     */
+    private int connectionType;
+
+    /**
+     * the port of the HTTP streaming server
+     */
+    private int httpPort = DEFAULT_HTTP_PORT;
+
+    /**
+     * how the stream server handles listeners that cannot keep up
+     */
+    private int slowClientPolicy = StreamServer.SLOW_SKIP_TO_LIVE;
+
+    /**
+     * the received audio to buffer before playback starts
+     */
+    private int prebufferMillis = DEFAULT_PREBUFFER_MILLIS;
+
+    /**
+     * the group the multicast server sends to
+     */
+    private String multicastGroup = MULTICAST_GROUP;
+
+    /**
+     * the name of the network interface for multicast, or null for the
+     * system's default
+     */
+    private String multicastInterface;
+
     public ConnectionSettings(MasterModel masterModel) {
-	    //setPort(DEFAULT_PORT);
+        setPort(DEFAULT_PORT);
         //setFormatCode(DEFAULT_FORMAT_CODE);
-        //setConnectionType(DEFAULT_CONNECTION_TYPE);
+        setConnectionType(DEFAULT_CONNECTION_TYPE);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getConnectionType() {
+        return connectionType;
+    }
+
+    public void setConnectionType(int type) {
+        connectionType = type;
+    }
+
+    public int getHttpPort() {
+        return httpPort;
     }
 
+    public void setHttpPort(int port) {
+        httpPort = port;
+    }
+
+    public int getPrebufferMillis() {
+        return prebufferMillis;
+    }
+
+    public void setPrebufferMillis(int millis) {
+        prebufferMillis = millis;
+    }
+
+    public String getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    public void setMulticastGroup(String group) {
+        multicastGroup = group;
+    }
+
+    public String getMulticastInterface() {
+        return multicastInterface;
+    }
+
+    public void setMulticastInterface(String name) {
+        multicastInterface = name;
+    }
+
+    public int getSlowClientPolicy() {
+        return slowClientPolicy;
+    }
+
+    public void setSlowClientPolicy(int policy) {
+        slowClientPolicy = policy;
+    }
 }
 
 /**
@@ -45,6 +45,9 @@ class Constants {
 
     public static final String[] SOURCE_LIST = {
         "Radio connected to LINE IN",
+        "Local radio server radio://localhost:8778",
+        "Local radio server over UDP udp://localhost:8778",
+        "Local radio multicast multicast://239.255.87.78:8778",
         "SwissGroove http://213.246.58.34:9900",
         "Club 977 the 80's channel http://64.236.34.67:80/stream/1040",
         "Groove Salad http://64.236.34.97:80/stream/1018",
@@ -114,6 +117,10 @@ class Constants {
     };
     public static final int BUFFER_SIZE_INDEX_DEFAULT = 3;
 
+    // ----------------- constants for catching up ----------------------
+    // speaker lag at which catching up stops
+    public static final int CATCH_UP_TARGET_MILLIS = 500;
+
     // ----------------- constants for property changes ----------------------
     public static final String CONNECTION_PROPERTY = "CONNECTION";
     public static final String AUDIO_PROPERTY = "AUDIO";
@@ -123,8 +130,53 @@ class Constants {
     // ----------------- constants for sockets ----------------------
     public static final boolean TCP_NODELAY = false;
     // -1 means do not set the value
-    public static final int TCP_RECEIVE_BUFFER_SIZE = 1024;
+    public static final int TCP_RECEIVE_BUFFER_SIZE = -1;
     public static final int TCP_SEND_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_PORT = 8778;
+    public static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_HTTP_PORT = 8080;
+    // received audio to buffer before playback starts
+    public static final int DEFAULT_PREBUFFER_MILLIS = 1000;
+
+    // ----------------- constants for the UDP transport ----------------------
+    public static final int CONNECTION_TYPE_TCP = 0;
+    public static final int CONNECTION_TYPE_UDP = 1;
+    public static final int CONNECTION_TYPE_MULTICAST = 2;
+    public static final String[] CONNECTION_TYPE_NAMES = {
+        "TCP (reliable)",
+        "UDP (low latency, lossy)",
+        "UDP multicast (local network)",};
+    public static final int DEFAULT_CONNECTION_TYPE = CONNECTION_TYPE_TCP;
+    // the audio in one packet, if it fits into AudioPacket.MAX_AUDIO_PAYLOAD
+    public static final int UDP_PACKET_MILLIS = 20;
+    // how often receivers renew their subscription
+    public static final int UDP_SUBSCRIBE_INTERVAL_MILLIS = 2000;
+    // subscribers that did not renew are dropped after this time
+    public static final int UDP_SUBSCRIBER_TIMEOUT_MILLIS = 10000;
+    // how often the format is repeated
+    public static final int UDP_FORMAT_INTERVAL_MILLIS = 1000;
+    // -1 means do not set the value
+    public static final int UDP_RECEIVE_BUFFER_SIZE = 262144;
+    // the limits of the adaptive jitter buffer delay
+    public static final int JITTER_MIN_DELAY_MILLIS = 40;
+    public static final int JITTER_MAX_DELAY_MILLIS = 2000;
+    // the jitter buffer paces the stream, so little prebuffer is needed
+    public static final int UDP_PREBUFFER_MILLIS = 200;
+
+    // ----------------- constants for the multicast transport ----------------------
+    // a group of the organization-local scope
+    public static final String MULTICAST_GROUP = "239.255.87.78";
+    // 1 keeps the packets in the local network
+    public static final int MULTICAST_TTL = 1;
+    // how often the format is announced: receivers that join wait for it
+    public static final int MULTICAST_FORMAT_INTERVAL_MILLIS = 250;
+    // the fixed FEC group size and interleaving, as nobody reports the loss
+    public static final int MULTICAST_FEC_K = 8;
+    public static final int MULTICAST_FEC_D = 1;
+
+    // ----------------- constants for the background stations ----------------------
+    // how often the shared pool moves each station's data
+    public static final int STATION_PUMP_MILLIS = 20;
 
     public static void out(String s) {
         Debug.out(s);
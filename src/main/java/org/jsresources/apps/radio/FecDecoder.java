@@ -0,0 +1,248 @@
+/*
+ *	FecDecoder.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+/**
+ * Rebuilds lost audio packets from the parity packets of a FecEncoder.
+ * The decoder keeps copies of the recently received audio packets and of
+ * the parity packets whose groups are not complete yet. As soon as exactly
+ * one packet of a group is missing and the group's parity is received,
+ * the missing packet is the XOR of the parity and the other packets.
+ * Packets only form a group if they have the parity's format code, so
+ * that a switch of the stream's format does not corrupt the recovery.
+ * Decoding does not allocate.
+ */
+public class FecDecoder {
+
+    // must be powers of 2; the data ring spans several blocks
+    private static final int DATA_SLOTS = 256;
+    private static final int PARITY_SLOTS = 32;
+
+    private final Entry[] data = new Entry[DATA_SLOTS];
+    private final Parity[] parities = new Parity[PARITY_SLOTS];
+    private int nextParity;
+
+    // statistics
+    private long recovered;
+    private long parityReceived;
+    private int k;
+    private int d;
+
+    public FecDecoder() {
+        for (int i = 0; i < DATA_SLOTS; i++) {
+            data[i] = new Entry();
+        }
+        for (int i = 0; i < PARITY_SLOTS; i++) {
+            parities[i] = new Parity();
+        }
+    }
+
+    /**
+     * Adds a received audio packet.
+     *
+     * @param out receives a packet that could be rebuilt with this one
+     * @return true if a packet was rebuilt into <code>out</code>
+     */
+    public synchronized boolean addData(AudioPacket p, AudioPacket out) {
+        store(p);
+        for (Parity par : parities) {
+            if (par.valid && par.format == p.getFormat() && par.covers(p.getSequence())) {
+                return recover(par, out);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a received parity packet.
+     *
+     * @param out receives the rebuilt packet, if one is missing
+     * @return true if a packet was rebuilt into <code>out</code>
+     */
+    public synchronized boolean addParity(AudioPacket p, AudioPacket out) {
+        if (p.getLength() < FecEncoder.HEADER_SIZE) {
+            return false;
+        }
+        byte[] b = p.getData();
+        Parity par = parities[nextParity];
+        nextParity = (nextParity + 1) & (PARITY_SLOTS - 1);
+        par.baseSeq = p.getSequence();
+        par.format = p.getFormat();
+        par.k = b[0] & 0xFF;
+        par.d = b[1] & 0xFF;
+        par.j = b[2] & 0xFF;
+        if (par.k < 1 || par.d < 1 || par.j >= par.d || par.k * par.d > DATA_SLOTS / 2) {
+            par.valid = false;
+            return false;
+        }
+        par.lengthXor = (int) FecEncoder.getBits(b, 4, 2);
+        par.positionXor = FecEncoder.getBits(b, 6, 8);
+        par.sendTimeXor = (int) FecEncoder.getBits(b, 14, 4);
+        par.length = p.getLength() - FecEncoder.HEADER_SIZE;
+        System.arraycopy(b, FecEncoder.HEADER_SIZE, par.data, 0, par.length);
+        par.valid = true;
+        parityReceived++;
+        k = par.k;
+        d = par.d;
+        return recover(par, out);
+    }
+
+    private void store(AudioPacket p) {
+        Entry e = data[p.getSequence() & (DATA_SLOTS - 1)];
+        e.seq = p.getSequence();
+        e.format = p.getFormat();
+        e.position = p.getPosition();
+        e.sendTime = p.getSendTime();
+        e.length = p.getLength();
+        System.arraycopy(p.getData(), 0, e.data, 0, e.length);
+        e.valid = true;
+    }
+
+    private boolean has(int seq, int format) {
+        Entry e = data[seq & (DATA_SLOTS - 1)];
+        return e.valid && e.seq == seq && e.format == format;
+    }
+
+    // rebuild the group's packet if exactly one is missing
+    private boolean recover(Parity par, AudioPacket out) {
+        int missing = 0;
+        int missingSeq = 0;
+        for (int i = 0; i < par.k; i++) {
+            int seq = par.baseSeq + par.j + i * par.d;
+            if (!has(seq, par.format)) {
+                missing++;
+                missingSeq = seq;
+            }
+        }
+        if (missing == 0) {
+            // complete: the parity is not needed anymore
+            par.valid = false;
+            return false;
+        }
+        if (missing > 1) {
+            return false;
+        }
+        byte[] b = out.getData();
+        System.arraycopy(par.data, 0, b, 0, par.length);
+        int length = par.lengthXor;
+        long position = par.positionXor;
+        int sendTime = par.sendTimeXor;
+        for (int i = 0; i < par.k; i++) {
+            int seq = par.baseSeq + par.j + i * par.d;
+            if (seq != missingSeq) {
+                Entry e = data[seq & (DATA_SLOTS - 1)];
+                FecEncoder.xor(b, e.data, e.length);
+                length ^= e.length;
+                position ^= e.position;
+                sendTime ^= e.sendTime;
+            }
+        }
+        par.valid = false;
+        if (length <= 0 || length > par.length) {
+            // corrupt
+            return false;
+        }
+        out.setType(AudioPacket.TYPE_AUDIO);
+        out.setFormat(par.format);
+        out.setSequence(missingSeq);
+        out.setPosition(position);
+        out.setSendTime(sendTime);
+        out.setLength(length);
+        store(out);
+        recovered++;
+        return true;
+    }
+
+    /**
+     * @return the group size of the last parity packet, or 0
+     */
+    public synchronized int getK() {
+        return k;
+    }
+
+    /**
+     * @return the interleaving depth of the last parity packet
+     */
+    public synchronized int getD() {
+        return d;
+    }
+
+    public synchronized long getRecovered() {
+        return recovered;
+    }
+
+    public synchronized String getStats() {
+        return "FEC k=" + k + " d=" + d + ", parity: " + parityReceived
+                + ", recovered: " + recovered;
+    }
+
+    // a received audio packet
+    private static class Entry {
+
+        private final byte[] data = new byte[AudioPacket.MAX_PAYLOAD];
+        private int seq;
+        private int format;
+        private long position;
+        private int sendTime;
+        private int length;
+        private boolean valid;
+    }
+
+    // a received parity packet
+    private static class Parity {
+
+        private final byte[] data = new byte[AudioPacket.MAX_PAYLOAD];
+        private int baseSeq;
+        private int format;
+        private int k;
+        private int d;
+        private int j;
+        private int lengthXor;
+        private long positionXor;
+        private int sendTimeXor;
+        private int length;
+        private boolean valid;
+
+        boolean covers(int seq) {
+            int i = seq - baseSeq - j;
+            return i >= 0 && i < k * d && i % d == 0;
+        }
+    }
+}
+
+/**
+ * * FecDecoder.java **
+ */
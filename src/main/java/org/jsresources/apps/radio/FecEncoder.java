@@ -0,0 +1,264 @@
+/*
+ *	FecEncoder.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+/**
+ * Forward error correction for the UDP transport with interleaved XOR
+ * parity. The audio packets are sent in blocks of <code>k * d</code>
+ * packets. After a block, <code>d</code> parity packets follow: parity
+ * packet <code>j</code> is the XOR of the block's packets
+ * <code>j, j + d, j + 2d, ...</code>. So a receiver can rebuild one lost
+ * packet per group, and a burst of up to <code>d</code> consecutive lost
+ * packets, without a round trip. The overhead is <code>1/k</code>.
+ * <p>
+ * The payload of a parity packet starts with the FEC header, followed by
+ * the XOR of the (zero padded) payloads:
+ * <pre>
+ *   byte  k
+ *   byte  d
+ *   byte  j, the group in the block
+ *   byte  reserved
+ *   short XOR of the payload lengths
+ *   long  XOR of the stream positions
+ *   int   XOR of the send times
+ * </pre>
+ * The sequence number of a parity packet is the sequence number of the
+ * block's first audio packet.
+ * <p>
+ * With adapt(), k and d follow the loss reported by the receivers: the
+ * group size is the largest one for which two losses in a group are
+ * unlikely, and the interleaving depth follows the average burst length.
+ * Encoding does not allocate.
+ */
+public class FecEncoder {
+
+    public static final int HEADER_SIZE = 18;
+    public static final int MAX_K = 16;
+    public static final int MAX_D = 4;
+
+    // below this loss rate, FEC is switched off
+    private static final double MIN_LOSS = 0.002;
+    // the acceptable rate of groups with two or more losses
+    private static final double TARGET_RESIDUAL = 0.001;
+
+    private int k;
+    private int d;
+    // the parameters for the next block
+    private int nextK;
+    private int nextD;
+
+    // the parity accumulators of the current block
+    private final byte[][] parity = new byte[MAX_D][AudioPacket.MAX_PAYLOAD];
+    private final int[] parityLength = new int[MAX_D];
+    private final int[] lengthXor = new int[MAX_D];
+    private final long[] positionXor = new long[MAX_D];
+    private final int[] sendTimeXor = new int[MAX_D];
+    private int baseSeq;
+    private int count;
+
+    // statistics
+    private long blocks;
+    private long parityPackets;
+
+    /**
+     * @param k the group size, or 0 for no FEC
+     * @param d the interleaving depth
+     */
+    public FecEncoder(int k, int d) {
+        setParameters(k, d);
+    }
+
+    /**
+     * sets the group size and interleaving depth, effective with the next
+     * block. A group size of 0 switches FEC off.
+     */
+    public synchronized void setParameters(int k, int d) {
+        nextK = (k < 2) ? 0 : Math.min(k, MAX_K);
+        nextD = Math.max(1, Math.min(d, MAX_D));
+    }
+
+    /**
+     * Chooses the parameters for the reported loss.
+     *
+     * @param lossRate the fraction of lost packets, 0..1
+     * @param burstLength the average number of packets lost in a row
+     */
+    public void adapt(double lossRate, double burstLength) {
+        if (lossRate < MIN_LOSS) {
+            setParameters(0, 1);
+            return;
+        }
+        // within a group, losses are about independent thanks to the
+        // interleaving: two or more losses with probability ~ k(k+1)/2 p^2
+        int newK = 2;
+        for (int i = MAX_K; i > 2; i--) {
+            if (i * (i + 1) / 2.0 * lossRate * lossRate <= TARGET_RESIDUAL) {
+                newK = i;
+                break;
+            }
+        }
+        // with geometric burst lengths, a burst is longer than d with
+        // probability (1 - 1/burstLength)^d: spread 90% of the bursts
+        // over different groups
+        int newD = 1;
+        double longer = 1 - 1 / Math.max(1, burstLength);
+        for (double q = longer; q > 0.1 && newD < MAX_D; q *= longer) {
+            newD++;
+        }
+        setParameters(newK, newD);
+    }
+
+    public synchronized int getK() {
+        return (count > 0) ? k : nextK;
+    }
+
+    public synchronized int getD() {
+        return (count > 0) ? d : nextD;
+    }
+
+    /**
+     * Adds an audio packet to the current block.
+     *
+     * @return the number of parity packets to send now (see getParity()),
+     *         0 if the block is not complete yet
+     */
+    public synchronized int add(AudioPacket p) {
+        if (count == 0) {
+            k = nextK;
+            d = nextD;
+            if (k == 0) {
+                return 0;
+            }
+            baseSeq = p.getSequence();
+            for (int j = 0; j < d; j++) {
+                lengthXor[j] = 0;
+                positionXor[j] = 0;
+                sendTimeXor[j] = 0;
+            }
+        }
+        int j = count % d;
+        byte[] acc = parity[j];
+        int len = p.getLength();
+        if (count < d) {
+            // the first packet of the group
+            System.arraycopy(p.getData(), 0, acc, 0, len);
+            parityLength[j] = len;
+        } else {
+            if (len > parityLength[j]) {
+                // zero padding
+                for (int i = parityLength[j]; i < len; i++) {
+                    acc[i] = 0;
+                }
+                parityLength[j] = len;
+            }
+            xor(acc, p.getData(), len);
+        }
+        lengthXor[j] ^= len;
+        positionXor[j] ^= p.getPosition();
+        sendTimeXor[j] ^= p.getSendTime();
+        count++;
+        if (count == k * d) {
+            count = 0;
+            blocks++;
+            return d;
+        }
+        return 0;
+    }
+
+    /**
+     * Restarts the block, e.g. when the stream restarts. The packets of the
+     * incomplete block are not protected.
+     */
+    public synchronized void reset() {
+        count = 0;
+    }
+
+    /**
+     * writes the parity packet <code>j</code> of the block just completed
+     * into <code>p</code>
+     */
+    public synchronized void getParity(int j, AudioPacket p) {
+        p.setType(AudioPacket.TYPE_FEC);
+        p.setSequence(baseSeq);
+        p.setPosition(0);
+        p.setSendTime((int) System.currentTimeMillis());
+        byte[] out = p.getData();
+        out[0] = (byte) k;
+        out[1] = (byte) d;
+        out[2] = (byte) j;
+        out[3] = 0;
+        putBits(out, 4, lengthXor[j], 2);
+        putBits(out, 6, positionXor[j], 8);
+        putBits(out, 14, sendTimeXor[j], 4);
+        System.arraycopy(parity[j], 0, out, HEADER_SIZE, parityLength[j]);
+        p.setLength(HEADER_SIZE + parityLength[j]);
+        parityPackets++;
+    }
+
+    // big endian
+    static void putBits(byte[] b, int off, long value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            b[off + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    static long getBits(byte[] b, int off, int bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = (value << 8) | (b[off + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * acc ^= data, for the first len bytes
+     */
+    static void xor(byte[] acc, byte[] data, int len) {
+        for (int i = 0; i < len; i++) {
+            acc[i] ^= data[i];
+        }
+    }
+
+    public synchronized String getStats() {
+        return "FEC k=" + getK() + " d=" + getD() + ", blocks: " + blocks
+                + ", parity packets: " + parityPackets;
+    }
+}
+
+/**
+ * * FecEncoder.java **
+ */
@@ -0,0 +1,213 @@
+/*
+ *	FormatAdapter.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Chooses the format that a UdpReceiver requests from the formats that the
+ * server offers, from the loss, the throughput and the queueing delay
+ * measured in each subscription interval. As soon as the link does not
+ * carry the current format, i.e. packets get lost or a queue builds up on
+ * the way, it steps down to the next lower bitrate. The queueing delay
+ * tells congestion from random loss, which FEC repairs better than a lower
+ * bitrate: a queue makes it step down at once, loss and low throughput
+ * only when they last for BAD_INTERVALS. After the link was clean
+ * for a hold time, it probes the next higher bitrate. A probe that fails
+ * within PROBE_MILLIS doubles the hold time, so that a link at the edge of
+ * a format's bitrate does not flap between two formats; a probe that
+ * succeeds resets it.
+ */
+public class FormatAdapter {
+
+    /**
+     * the loss rate above which the format steps down
+     */
+    public static final double DOWN_LOSS = 0.10;
+    /**
+     * the throughput, relative to the format's bitrate, below which the
+     * format steps down
+     */
+    public static final double DOWN_THROUGHPUT = 0.85;
+    /**
+     * the loss rate below which the link is clean
+     */
+    public static final double UP_LOSS = 0.01;
+    /**
+     * the relative throughput above which the link is clean
+     */
+    public static final double UP_THROUGHPUT = 0.95;
+    /**
+     * the queueing delay above which the format steps down
+     */
+    public static final double DOWN_QUEUE_MILLIS = 100;
+    /**
+     * the queueing delay below which the link is clean
+     */
+    public static final double UP_QUEUE_MILLIS = 40;
+    /**
+     * the number of intervals in a row with loss or low throughput that
+     * make the format step down
+     */
+    public static final int BAD_INTERVALS = 2;
+    public static final long MIN_HOLD_MILLIS = 10000;
+    public static final long MAX_HOLD_MILLIS = 320000;
+    /**
+     * how long a higher format has to last for the probe to succeed
+     */
+    public static final long PROBE_MILLIS = 10000;
+
+    // the requested format code, or -1 before the first update
+    private int requested = -1;
+    private long since;
+    private long holdMillis = MIN_HOLD_MILLIS;
+    private boolean probing;
+    private int badIntervals;
+    private int switches;
+    private int failedProbes;
+
+    /**
+     * Called once per subscription interval.
+     *
+     * @param offered the format codes the server offers, best first
+     * @param best the best format code to request
+     * @param current the format code of the received packets, or -1 if not
+     *            known
+     * @param loss the rate of the packets lost in the interval that FEC
+     *            did not rebuild
+     * @param throughput the bytes received or rebuilt in the interval,
+     *            relative to the bitrate of the current format, or -1 if
+     *            the format changed during the interval
+     * @param queueMillis the mean transit time of the interval above the
+     *            lowest transit time
+     * @return the format code to request
+     */
+    public synchronized int update(int[] offered, int best, int current,
+            double loss, double throughput, double queueMillis, long now) {
+        if (DEBUG) {
+            out("FormatAdapter: format " + current + ", loss " + Math.round(loss * 1000) / 10.0
+                    + "%, throughput " + Math.round(throughput * 100) + "%, queue "
+                    + Math.round(queueMillis) + "ms");
+        }
+        int top = Math.max(0, indexOf(offered, best));
+        int level = indexOf(offered, requested);
+        if (level < 0 || level < top) {
+            // the first update, or the offered formats changed
+            return change(offered, top, now);
+        }
+        if (current != requested || throughput < 0) {
+            // wait until the switch took effect
+            return requested;
+        }
+        boolean congested = queueMillis > DOWN_QUEUE_MILLIS;
+        if (congested || loss > DOWN_LOSS || throughput < DOWN_THROUGHPUT) {
+            badIntervals++;
+        } else {
+            badIntervals = 0;
+        }
+        if (congested || badIntervals >= BAD_INTERVALS) {
+            if (probing && now - since < PROBE_MILLIS) {
+                holdMillis = Math.min(2 * holdMillis, MAX_HOLD_MILLIS);
+                failedProbes++;
+            }
+            probing = false;
+            if (level + 1 < offered.length) {
+                return change(offered, level + 1, now);
+            }
+        } else if (loss < UP_LOSS && throughput >= UP_THROUGHPUT
+                && queueMillis < UP_QUEUE_MILLIS) {
+            if (probing && now - since >= PROBE_MILLIS) {
+                probing = false;
+                holdMillis = MIN_HOLD_MILLIS;
+            }
+            if (level > top && now - since >= holdMillis) {
+                int code = change(offered, level - 1, now);
+                probing = true;
+                return code;
+            }
+        }
+        return requested;
+    }
+
+    private int change(int[] offered, int level, long now) {
+        int code = offered[level];
+        if (requested >= 0 && code != requested) {
+            switches++;
+            if (DEBUG) {
+                out("FormatAdapter: switching from format " + requested + " to " + code
+                        + ", hold " + (holdMillis / 1000) + "s");
+            }
+        }
+        requested = code;
+        since = now;
+        probing = false;
+        badIntervals = 0;
+        return code;
+    }
+
+    private static int indexOf(int[] codes, int code) {
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] == code) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * the requested format code, or -1 before the first update
+     */
+    public synchronized int getRequested() {
+        return requested;
+    }
+
+    public synchronized long getHoldMillis() {
+        return holdMillis;
+    }
+
+    public synchronized int getSwitches() {
+        return switches;
+    }
+
+    public synchronized String getStats() {
+        return "format " + requested + ", switches: " + switches + ", failed probes: "
+                + failedProbes + ", hold: " + (holdMillis / 1000) + "s";
+    }
+}
+
+/**
+ * * FormatAdapter.java **
+ */
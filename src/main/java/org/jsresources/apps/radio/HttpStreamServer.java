@@ -0,0 +1,1137 @@
+/*
+ *	HttpStreamServer.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.jsresources.utils.Utils;
+import org.jsresources.utils.audio.AudioUtils;
+import org.jsresources.utils.audio.FormatConversions;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Re-broadcasts the live content of a CircularBuffer over HTTP to many
+ * browsers and players at once. The output format is selected with the
+ * request path: the name of a format code, optionally with an extension,
+ * e.g. /cd.wav, /telephone.au or /mp3-mid (see FORMAT_CODE_*). The path
+ * "/" plays the default format.
+ * <p>
+ * For every format that is requested, one encoder thread converts the
+ * circular buffer's data into a shared ring of encoded data. So the audio
+ * is encoded once per format, not once per listener. All connections are
+ * handled from one selector thread with non-blocking gathering writes
+ * directly from the encoded ring. A listener only holds its cursor in the
+ * ring, so an idle connection costs little more than its socket.
+ * <p>
+ * New listeners start <code>burstMillis</code> before the live position:
+ * the burst is sent as fast as the connection allows, so that players can
+ * start playback instantly. Listeners that fall behind by more than the
+ * ring size skip to the burst position again. An encoder is stopped when
+ * it had no listeners for <code>idleMillis</code>.
+ */
+public class HttpStreamServer implements Runnable {
+
+    // the request path of each format code
+    private static final String[] FORMAT_PATHS = {
+        "", "cd", "fm", "telephone", "gsm",
+        "mp3-hi", "mp3-mid", "mp3-low",
+        "ogg-hi", "ogg-mid", "ogg-low"
+    };
+
+    private static final String[] CONTENT_TYPES = {
+        "", "audio/wav", "audio/wav", "audio/basic", "audio/x-gsm",
+        "audio/mpeg", "audio/mpeg", "audio/mpeg",
+        "application/ogg", "application/ogg", "application/ogg"
+    };
+
+    private static final String SERVER_NAME = "Java Sound Radio";
+    private static final int MAX_REQUEST_SIZE = 2048;
+    private static final int ENCODE_BUFFER_SIZE = 4096;
+    // the ring size for formats with unknown data rate
+    private static final int DEFAULT_RING_SIZE = 512 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final CircularBuffer circBuf;
+    private final AudioSettings audioSettings;
+    private final int port;
+
+    private volatile int defaultFormatCode = FORMAT_CODE_DEFAULT;
+    private volatile int burstMillis = 5000;
+    private volatile int ringMillis = 20000;
+    private volatile int flushMillis = 50;
+    private volatile int idleMillis = 30000;
+    private volatile int maxListeners = 10000;
+    private volatile String stationName = SERVER_NAME;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean terminated;
+
+    // only accessed by the selector thread
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private final Encoder[] encoders = new Encoder[FORMAT_PATHS.length];
+    private final ByteBuffer[] slices = new ByteBuffer[2];
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+    private boolean hasClosed;
+
+    // statistics
+    private volatile int listenerCount;
+    private volatile int encoderCount;
+    private volatile long accepted;
+    private volatile long rejected;
+    private volatile long disconnected;
+    private volatile long bytesSent;
+    private volatile long slowEvents;
+    private volatile long droppedBytes;
+
+    public HttpStreamServer(CircularBuffer circBuf, AudioSettings audioSettings, int port) {
+        this.circBuf = circBuf;
+        this.audioSettings = audioSettings;
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        terminated = false;
+        thread = new Thread(this, "HttpStreamServer");
+        thread.setDaemon(true);
+        thread.start();
+        if (VERBOSE) {
+            out("HttpStreamServer: listening on port " + getPort());
+        }
+    }
+
+    /**
+     * stop the server, its encoders, and close all connections
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            terminated = true;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(2000);
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * the port the server is bound to
+     */
+    public int getPort() {
+        ServerSocketChannel ssc = serverChannel;
+        if (ssc != null && ssc.socket().isBound()) {
+            return ssc.socket().getLocalPort();
+        }
+        return port;
+    }
+
+    /**
+     * the request path of the format code, e.g. "/cd.wav"
+     */
+    public String getPath(int formatCode) {
+        AudioFileFormat.Type type = AudioSettings.getTypeFromCode(formatCode);
+        return "/" + FORMAT_PATHS[formatCode] + "." + type.getExtension();
+    }
+
+    public void run() {
+        long nextFlush = 0;
+        try {
+            while (!terminated) {
+                long now = System.currentTimeMillis();
+                selector.select(Math.max(1, nextFlush - now));
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Listener l = (Listener) key.attachment();
+                    if (key.isReadable()) {
+                        read(l);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        // the socket can take more data
+                        l.blocked = false;
+                        key.interestOps(SelectionKey.OP_READ);
+                        service(l);
+                    }
+                }
+                now = System.currentTimeMillis();
+                if (now >= nextFlush) {
+                    checkEncoders(now);
+                    for (int i = 0; i < listeners.size(); i++) {
+                        service(listeners.get(i));
+                    }
+                    nextFlush = now + flushMillis;
+                }
+                if (hasClosed) {
+                    removeClosed();
+                }
+            }
+        } catch (IOException ioe) {
+            if (DEBUG) {
+                Debug.out(ioe);
+            }
+        } finally {
+            for (Listener l : listeners) {
+                close(l);
+            }
+            removeClosed();
+            for (int i = 0; i < encoders.length; i++) {
+                if (encoders[i] != null) {
+                    encoders[i].stop();
+                    encoders[i] = null;
+                }
+            }
+            encoderCount = 0;
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ioe) {
+            }
+            synchronized (this) {
+                if (thread == Thread.currentThread()) {
+                    thread = null;
+                }
+            }
+            if (VERBOSE) {
+                out("HttpStreamServer: stopped. " + getStats());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = serverChannel.accept()) != null) {
+            if (listeners.size() >= maxListeners) {
+                rejected++;
+                ch.close();
+                continue;
+            }
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(TCP_NODELAY);
+                Listener l = new Listener(ch);
+                l.request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+                l.key = ch.register(selector, SelectionKey.OP_READ, l);
+                listeners.add(l);
+                listenerCount = listeners.size();
+                accepted++;
+            } catch (IOException ioe) {
+                ch.close();
+            }
+        }
+    }
+
+    private void read(Listener l) {
+        try {
+            if (l.request == null) {
+                // the data sent after the request is not interpreted
+                readBuffer.clear();
+                if (l.channel.read(readBuffer) < 0) {
+                    close(l);
+                }
+                return;
+            }
+            if (l.channel.read(l.request) < 0) {
+                close(l);
+                return;
+            }
+        } catch (IOException ioe) {
+            close(l);
+            return;
+        }
+        String head = getRequestHead(l.request);
+        if (head != null) {
+            // release the request buffer
+            l.request = null;
+            handleRequest(l, head);
+        } else if (!l.request.hasRemaining()) {
+            l.request = null;
+            sendError(l, "400 Bad Request", "request too large");
+        }
+    }
+
+    // the request up to the empty line, or null if not complete yet
+    private static String getRequestHead(ByteBuffer request) {
+        byte[] b = request.array();
+        int len = request.position();
+        for (int i = 1; i < len; i++) {
+            if (b[i] == '\n' && (b[i - 1] == '\n'
+                    || (i > 2 && b[i - 1] == '\r' && b[i - 2] == '\n'))) {
+                try {
+                    return new String(b, 0, i, "ISO-8859-1");
+                } catch (UnsupportedEncodingException uee) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void handleRequest(Listener l, String head) {
+        int eol = head.indexOf('\n');
+        String[] requestLine = head.substring(0, (eol < 0) ? head.length() : eol).trim().split(" ");
+        if (requestLine.length < 2) {
+            sendError(l, "400 Bad Request", "malformed request");
+            return;
+        }
+        boolean isHead = requestLine[0].equals("HEAD");
+        if (!isHead && !requestLine[0].equals("GET")) {
+            sendError(l, "405 Method Not Allowed", "only GET is supported");
+            return;
+        }
+        int code = getFormatCode(requestLine[1]);
+        if (code < 0) {
+            sendError(l, "404 Not Found", getIndex());
+            return;
+        }
+        Encoder enc = getEncoder(code);
+        if (enc == null) {
+            sendError(l, "404 Not Found", "The format " + FORMAT_PATHS[code]
+                    + " is not available.\r\n\r\n" + getIndex());
+            return;
+        }
+        byte[] response = getResponse("200 OK", CONTENT_TYPES[code], null);
+        if (isHead) {
+            send(l, response);
+            return;
+        }
+        l.encoder = enc;
+        enc.listenerCount++;
+        l.pos = enc.getStartPosition();
+        byte[] prefix = enc.getPrefix(l.pos);
+        l.pending = ByteBuffer.allocate(response.length + prefix.length);
+        l.pending.put(response).put(prefix).flip();
+        if (DEBUG) {
+            out("HttpStreamServer: new listener for " + FORMAT_PATHS[code] + ": "
+                    + l.channel.socket().getRemoteSocketAddress());
+        }
+        service(l);
+    }
+
+    /**
+     * the format code from the request path, or -1 if the path does not
+     * name a format
+     */
+    private int getFormatCode(String path) {
+        int q = path.indexOf('?');
+        if (q >= 0) {
+            path = path.substring(0, q);
+        }
+        int start = path.lastIndexOf('/') + 1;
+        int dot = path.lastIndexOf('.');
+        String name = path.substring(start, (dot >= start) ? dot : path.length());
+        if (name.length() == 0) {
+            return defaultFormatCode;
+        }
+        for (int i = 1; i < FORMAT_PATHS.length; i++) {
+            if (FORMAT_PATHS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // a plain text list of the streams
+    private String getIndex() {
+        StringBuilder sb = new StringBuilder(stationName);
+        sb.append(" - available streams:\r\n");
+        for (int i = 0; i < FORMAT_CODES.length; i++) {
+            sb.append(getPath(FORMAT_CODES[i])).append("  ");
+            sb.append(FORMAT_NAMES[i]).append("\r\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * returns the shared encoder of the format code, and starts it if
+     * necessary
+     *
+     * @return the encoder, or null if the circular buffer's data cannot be
+     *         converted to the format
+     */
+    private Encoder getEncoder(int code) {
+        Encoder enc = encoders[code];
+        if (enc != null && !enc.ended) {
+            return enc;
+        }
+        AudioFormat source = circBuf.getFormat();
+        if (source == null) {
+            return null;
+        }
+        AudioFileFormat.Type type = AudioSettings.getTypeFromCode(code);
+        AudioFormat target = getTargetFormat(AudioSettings.getAudioFormatFromCode(code), type);
+        if (!FormatConversions.isConversionSupported(target, source)) {
+            // without sample rate converter, keep the source's sample rate
+            if (target.getFrameRate() == AudioSystem.NOT_SPECIFIED) {
+                return null;
+            }
+            target = new AudioFormat(target.getEncoding(), source.getSampleRate(),
+                    target.getSampleSizeInBits(), target.getChannels(),
+                    target.getFrameSize(), source.getSampleRate(), target.isBigEndian());
+            if (!FormatConversions.isConversionSupported(target, source)) {
+                return null;
+            }
+        }
+        enc = new Encoder(code, target, type);
+        enc.start();
+        encoders[code] = enc;
+        updateEncoderCount();
+        return enc;
+    }
+
+    // the byte order of PCM data is given by the file type
+    private static AudioFormat getTargetFormat(AudioFormat format, AudioFileFormat.Type type) {
+        if (format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+                && type.equals(AudioFileFormat.Type.AU) != format.isBigEndian()) {
+            return new AudioFormat(format.getEncoding(), format.getSampleRate(),
+                    format.getSampleSizeInBits(), format.getChannels(),
+                    format.getFrameSize(), format.getFrameRate(),
+                    type.equals(AudioFileFormat.Type.AU));
+        }
+        return format;
+    }
+
+    // stop idle encoders, and close the listeners of failed encoders
+    private void checkEncoders(long now) {
+        for (int i = 0; i < encoders.length; i++) {
+            Encoder enc = encoders[i];
+            if (enc == null) {
+                continue;
+            }
+            if (enc.ended) {
+                for (Listener l : listeners) {
+                    if (l.encoder == enc) {
+                        close(l);
+                    }
+                }
+                encoders[i] = null;
+            } else if (enc.listenerCount == 0 && now - enc.idleSince > idleMillis) {
+                if (DEBUG) {
+                    out("HttpStreamServer: stopping idle encoder " + FORMAT_PATHS[i]);
+                }
+                enc.stop();
+                encoders[i] = null;
+            }
+        }
+        updateEncoderCount();
+    }
+
+    private void updateEncoderCount() {
+        int count = 0;
+        for (Encoder enc : encoders) {
+            if (enc != null) {
+                count++;
+            }
+        }
+        encoderCount = count;
+    }
+
+    private byte[] getResponse(String status, String contentType, String body) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.0 ").append(status).append("\r\n");
+        sb.append("Server: ").append(SERVER_NAME).append("\r\n");
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+        sb.append("Cache-Control: no-cache, no-store\r\n");
+        sb.append("Pragma: no-cache\r\n");
+        sb.append("Connection: close\r\n");
+        if (body == null) {
+            sb.append("icy-name: ").append(stationName).append("\r\n");
+        }
+        sb.append("\r\n");
+        if (body != null) {
+            sb.append(body);
+        }
+        try {
+            return sb.toString().getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException uee) {
+            return sb.toString().getBytes();
+        }
+    }
+
+    private void sendError(Listener l, String status, String text) {
+        rejected++;
+        send(l, getResponse(status, "text/plain", text));
+    }
+
+    // send the data, then close the connection
+    private void send(Listener l, byte[] data) {
+        l.pending = ByteBuffer.wrap(data);
+        l.closeWhenSent = true;
+        service(l);
+    }
+
+    private void service(Listener l) {
+        if (l.blocked || l.closed) {
+            return;
+        }
+        try {
+            if (l.pending != null) {
+                bytesSent += l.channel.write(l.pending);
+                if (l.pending.hasRemaining()) {
+                    block(l);
+                    return;
+                }
+                l.pending = null;
+                if (l.closeWhenSent) {
+                    close(l);
+                    return;
+                }
+            }
+            Encoder enc = l.encoder;
+            if (enc == null) {
+                return;
+            }
+            long live = enc.writeCount;
+            if (l.pos < live - enc.ring.length + enc.getSafety()) {
+                // too slow: the data is about to be overwritten
+                long newPos = enc.getStartPosition();
+                slowEvents++;
+                droppedBytes += newPos - l.pos;
+                l.pos = newPos;
+            }
+            while (true) {
+                int len = enc.slice(l.pos, slices);
+                if (len <= 0) {
+                    break;
+                }
+                long written = l.channel.write(slices);
+                l.pos += written;
+                bytesSent += written;
+                if (written < len) {
+                    block(l);
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            close(l);
+        }
+    }
+
+    // wait until the socket can take more data
+    private void block(Listener l) {
+        l.blocked = true;
+        l.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void close(Listener l) {
+        if (l.closed) {
+            return;
+        }
+        l.closed = true;
+        hasClosed = true;
+        if (l.encoder != null) {
+            if (--l.encoder.listenerCount == 0) {
+                l.encoder.idleSince = System.currentTimeMillis();
+            }
+            l.encoder = null;
+        }
+        if (l.key != null) {
+            l.key.cancel();
+        }
+        try {
+            l.channel.close();
+        } catch (IOException ioe) {
+        }
+        disconnected++;
+    }
+
+    private void removeClosed() {
+        for (int i = listeners.size() - 1; i >= 0; i--) {
+            if (listeners.get(i).closed) {
+                // order does not matter: replace with the last one
+                Listener last = listeners.remove(listeners.size() - 1);
+                if (i < listeners.size()) {
+                    listeners.set(i, last);
+                }
+            }
+        }
+        listenerCount = listeners.size();
+        hasClosed = false;
+    }
+
+    // a WAVE header with unknown length, as sent by streaming servers
+    private static byte[] createWaveHeader(AudioFormat format) {
+        ByteBuffer b = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        int tag = 1; // PCM
+        if (format.getEncoding().equals(AudioFormat.Encoding.ULAW)) {
+            tag = 7;
+        } else if (format.getEncoding().equals(AudioFormat.Encoding.ALAW)) {
+            tag = 6;
+        }
+        b.put(new byte[]{'R', 'I', 'F', 'F'}).putInt(-1);
+        b.put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '}).putInt(16);
+        b.putShort((short) tag).putShort((short) format.getChannels());
+        b.putInt((int) format.getSampleRate());
+        b.putInt((int) (format.getFrameRate() * format.getFrameSize()));
+        b.putShort((short) format.getFrameSize());
+        b.putShort((short) format.getSampleSizeInBits());
+        b.put(new byte[]{'d', 'a', 't', 'a'}).putInt(-1);
+        return b.array();
+    }
+
+    // an AU header with unknown length
+    private static byte[] createAuHeader(AudioFormat format) {
+        ByteBuffer b = ByteBuffer.allocate(24);
+        int encoding;
+        if (format.getEncoding().equals(AudioFormat.Encoding.ULAW)) {
+            encoding = 1;
+        } else if (format.getEncoding().equals(AudioFormat.Encoding.ALAW)) {
+            encoding = 27;
+        } else {
+            encoding = format.getSampleSizeInBits() / 8 + 1;
+        }
+        b.putInt(0x2E736E64).putInt(24).putInt(-1).putInt(encoding);
+        b.putInt((int) format.getSampleRate()).putInt(format.getChannels());
+        return b.array();
+    }
+
+    // ------------------------------------------------------ settings
+
+    /**
+     * the format code played for the path "/"
+     */
+    public void setDefaultFormatCode(int code) {
+        defaultFormatCode = code;
+    }
+
+    /**
+     * the recent audio that new listeners receive at once
+     */
+    public void setBurstMillis(int millis) {
+        burstMillis = millis;
+    }
+
+    /**
+     * the duration of encoded data kept for each format. Takes effect for
+     * encoders started afterwards.
+     */
+    public void setRingMillis(int millis) {
+        ringMillis = millis;
+    }
+
+    /**
+     * the interval at which new data is sent to the listeners
+     */
+    public void setFlushMillis(int millis) {
+        flushMillis = Math.max(millis, 1);
+    }
+
+    /**
+     * the time an encoder without listeners keeps running
+     */
+    public void setIdleMillis(int millis) {
+        idleMillis = millis;
+    }
+
+    public void setMaxListeners(int max) {
+        maxListeners = max;
+    }
+
+    public void setStationName(String name) {
+        stationName = name;
+    }
+
+    // ------------------------------------------------------ statistics
+
+    /**
+     * the number of open connections
+     */
+    public int getListenerCount() {
+        return listenerCount;
+    }
+
+    /**
+     * the number of running encoders, i.e. of formats being streamed
+     */
+    public int getEncoderCount() {
+        return encoderCount;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * the number of refused connections and failed requests
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getDisconnected() {
+        return disconnected;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * the number of times a slow listener skipped ahead
+     */
+    public long getSlowEvents() {
+        return slowEvents;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public String getStats() {
+        return "listeners: " + listenerCount + ", encoders: " + encoderCount
+                + ", accepted: " + accepted + ", rejected: " + rejected
+                + ", disconnected: " + disconnected + ", sent: "
+                + (bytesSent / 1024) + "KB, slow: " + slowEvents
+                + ", dropped: " + (droppedBytes / 1024) + "KB";
+    }
+
+    /**
+     * Encodes the circular buffer's data in one format into a ring that is
+     * shared by all listeners of that format. The encoder thread appends to
+     * the ring, the selector thread writes from it. The write count is
+     * volatile, so data below it is visible to the selector thread. If the
+     * circular buffer is re-initialized, encoding continues with the new
+     * data at the same ring position.
+     */
+    private class Encoder implements Runnable {
+
+        private final int code;
+        private final AudioFormat format;
+        private final byte[] ring;
+        // listeners start at multiples of this
+        private final int frameSize;
+        // the WAVE or AU header, sent to every listener
+        private final byte[] fileHeader;
+        // the Ogg page boundaries, or null for other formats
+        private final OggPages oggPages;
+        // views on the ring, only used by the selector thread
+        private final ByteBuffer view0;
+        private final ByteBuffer view1;
+
+        private volatile long writeCount;
+        // the source data consumed, to estimate the encoded data rate
+        private volatile long sourceBytes;
+        private volatile boolean terminated;
+        private volatile boolean ended;
+        private AudioInputStream source;
+        private Thread thread;
+
+        // only accessed by the selector thread
+        private int listenerCount;
+        private long idleSince = System.currentTimeMillis();
+
+        Encoder(int code, AudioFormat format, AudioFileFormat.Type type) {
+            this.code = code;
+            this.format = format;
+            this.frameSize = Math.max(1, format.getFrameSize());
+            double rate = getKnownBytesPerMilli();
+            int size = DEFAULT_RING_SIZE;
+            if (rate > 0) {
+                size = Utils.align(Math.max(65536, (int) (rate * ringMillis)), frameSize);
+            }
+            ring = new byte[size];
+            view0 = ByteBuffer.wrap(ring);
+            view1 = ByteBuffer.wrap(ring);
+            if (type.equals(AudioFileFormat.Type.WAVE)) {
+                fileHeader = createWaveHeader(format);
+            } else if (type.equals(AudioFileFormat.Type.AU)) {
+                fileHeader = createAuHeader(format);
+            } else {
+                fileHeader = EMPTY;
+            }
+            oggPages = (CONTENT_TYPES[code].equals("application/ogg")) ? new OggPages() : null;
+        }
+
+        void start() {
+            thread = new Thread(this, "HttpStreamServer encoder " + FORMAT_PATHS[code]);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() {
+            AudioInputStream ais;
+            synchronized (this) {
+                terminated = true;
+                ais = source;
+            }
+            if (ais != null) {
+                try {
+                    // lets the encoder thread's read return
+                    ais.close();
+                } catch (IOException ioe) {
+                }
+            }
+        }
+
+        public void run() {
+            byte[] buffer = new byte[Utils.align(ENCODE_BUFFER_SIZE, frameSize)];
+            // encode the burst for the first listener
+            long startPos = circBuf.getWritePosition()
+                    - AudioUtils.millis2bytes(burstMillis, circBuf.getFormat());
+            try {
+                while (!terminated) {
+                    AudioInputStream ais = open(startPos);
+                    try {
+                        int r;
+                        while (!terminated && (r = ais.read(buffer, 0, buffer.length)) >= 0) {
+                            if (r > 0) {
+                                append(buffer, r);
+                            }
+                        }
+                    } finally {
+                        ais.close();
+                    }
+                    // the circular buffer was re-initialized
+                    if (!terminated) {
+                        Thread.sleep(100);
+                    }
+                    startPos = circBuf.getWritePosition();
+                }
+            } catch (Exception e) {
+                if (DEBUG) {
+                    Debug.out(e);
+                }
+            } finally {
+                ended = true;
+            }
+        }
+
+        private AudioInputStream open(long startPos) throws IOException {
+            final AudioInputStream live = circBuf.getLiveAIS(startPos);
+            synchronized (this) {
+                source = live;
+                if (terminated) {
+                    live.close();
+                }
+            }
+            FilterInputStream counter = new FilterInputStream(live) {
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int r = super.read(b, off, len);
+                    if (r > 0) {
+                        sourceBytes += r;
+                    }
+                    return r;
+                }
+            };
+            AudioInputStream counted = new AudioInputStream(counter,
+                    live.getFormat(), AudioSystem.NOT_SPECIFIED);
+            return FormatConversions.getAudioInputStream(format, counted);
+        }
+
+        private void append(byte[] b, int len) {
+            if (oggPages != null) {
+                oggPages.scan(b, len, writeCount);
+            }
+            int off = 0;
+            while (len > 0) {
+                int p = (int) (writeCount % ring.length);
+                int n = Math.min(len, ring.length - p);
+                System.arraycopy(b, off, ring, p, n);
+                off += n;
+                len -= n;
+                // publishes the data to the selector thread
+                writeCount += n;
+            }
+        }
+
+        // the data rate of the format, or 0 if not specified
+        private double getKnownBytesPerMilli() {
+            if (format.getFrameRate() > 0 && format.getFrameSize() > 0) {
+                return format.getFrameRate() * format.getFrameSize() / 1000.0;
+            }
+            return 0;
+        }
+
+        private double getBytesPerMilli() {
+            double rate = getKnownBytesPerMilli();
+            if (rate > 0) {
+                return rate;
+            }
+            long millis = AudioUtils.bytes2millis(sourceBytes, circBuf.getFormat());
+            if (millis > 1000) {
+                return writeCount / (double) millis;
+            }
+            // assume 128KBit/s
+            return 16.0;
+        }
+
+        // data this close to being overwritten is not sent
+        long getSafety() {
+            return ring.length / 8;
+        }
+
+        /**
+         * the position of a new listener: the burst before the live
+         * position, limited to the data in the ring
+         */
+        long getStartPosition() {
+            long live = writeCount;
+            long pos = live - (long) (burstMillis * getBytesPerMilli());
+            pos = Math.max(Math.max(pos, live - ring.length + getSafety()), 0);
+            if (oggPages != null) {
+                return oggPages.getPageStart(pos);
+            }
+            return Utils.align(pos, frameSize);
+        }
+
+        /**
+         * the data to send to a listener starting at <code>pos</code>
+         * before the ring data
+         */
+        byte[] getPrefix(long pos) {
+            if (oggPages != null) {
+                return oggPages.getHeaderPages(pos);
+            }
+            return fileHeader;
+        }
+
+        /**
+         * sets the views on the ring data from <code>pos</code> up to the
+         * write position into <code>slices</code>
+         *
+         * @return the number of bytes available
+         */
+        int slice(long pos, ByteBuffer[] slices) {
+            int len = (int) Math.min(writeCount - pos, ring.length);
+            if (len <= 0) {
+                return 0;
+            }
+            int p = (int) (pos % ring.length);
+            int first = Math.min(len, ring.length - p);
+            view0.clear();
+            view0.position(p);
+            view0.limit(p + first);
+            view1.clear();
+            view1.limit(len - first);
+            slices[0] = view0;
+            slices[1] = view1;
+            return len;
+        }
+    }
+
+    /**
+     * Finds the page boundaries in an Ogg stream, so that listeners start
+     * at a page, and collects the header pages of the current logical
+     * stream, which every listener needs before the audio pages.
+     */
+    private static class OggPages {
+
+        private static final int HEADER_SIZE = 27;
+
+        // the start positions of the last audio pages
+        private final long[] starts = new long[256];
+        private int startCount;
+
+        private final byte[] header = new byte[HEADER_SIZE + 255];
+        private int headerLen;
+        private int headerNeeded = HEADER_SIZE;
+        private int bodyLeft;
+        private long pageStart;
+        private boolean valid = true;
+
+        // collects the header pages of a new logical stream
+        private ByteArrayOutputStream collecting;
+        // the header pages, and where they are in the stream
+        private byte[] headerPages = EMPTY;
+        private long headerStart;
+        private long headerEnd;
+
+        // called by the encoder thread with the data at stream position pos
+        synchronized void scan(byte[] b, int len, long pos) {
+            int off = 0;
+            while (valid && len > 0) {
+                int n;
+                if (bodyLeft > 0) {
+                    n = Math.min(bodyLeft, len);
+                    if (collecting != null) {
+                        collecting.write(b, off, n);
+                    }
+                    bodyLeft -= n;
+                } else {
+                    if (headerLen == 0) {
+                        pageStart = pos;
+                    }
+                    n = Math.min(headerNeeded - headerLen, len);
+                    System.arraycopy(b, off, header, headerLen, n);
+                    headerLen += n;
+                    if (headerLen == HEADER_SIZE && headerNeeded == HEADER_SIZE) {
+                        if (header[0] != 'O' || header[1] != 'g'
+                                || header[2] != 'g' || header[3] != 'S') {
+                            // lost the page structure: start anywhere
+                            valid = false;
+                            break;
+                        }
+                        headerNeeded += header[26] & 0xFF;
+                    }
+                    if (headerLen == headerNeeded) {
+                        pageHeader();
+                    }
+                }
+                off += n;
+                len -= n;
+                pos += n;
+            }
+        }
+
+        // a complete page header is in the header array
+        private void pageHeader() {
+            int segments = header[26] & 0xFF;
+            bodyLeft = 0;
+            for (int i = 0; i < segments; i++) {
+                bodyLeft += header[HEADER_SIZE + i] & 0xFF;
+            }
+            long granule = ByteBuffer.wrap(header, 6, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+            boolean bos = (header[5] & 0x02) != 0;
+            if (bos) {
+                // a new logical stream starts with its header pages
+                collecting = new ByteArrayOutputStream();
+                headerStart = pageStart;
+                headerEnd = Long.MAX_VALUE;
+            } else if (collecting != null && granule != 0) {
+                // the first audio page
+                headerPages = collecting.toByteArray();
+                headerEnd = pageStart;
+                collecting = null;
+            }
+            if (collecting != null) {
+                collecting.write(header, 0, headerLen);
+            } else {
+                starts[startCount % starts.length] = pageStart;
+                startCount++;
+            }
+            headerLen = 0;
+            headerNeeded = HEADER_SIZE;
+        }
+
+        /**
+         * the first page start at or after pos, or the last page start
+         */
+        synchronized long getPageStart(long pos) {
+            if (!valid) {
+                return pos;
+            }
+            if (pos < headerEnd) {
+                // start with the header pages in the ring
+                return Math.min(pos, headerStart);
+            }
+            int first = Math.max(0, startCount - starts.length);
+            for (int i = first; i < startCount; i++) {
+                if (starts[i % starts.length] >= pos) {
+                    return starts[i % starts.length];
+                }
+            }
+            return (startCount > 0) ? starts[(startCount - 1) % starts.length] : pos;
+        }
+
+        /**
+         * the header pages, if a listener at pos does not get them from
+         * the ring
+         */
+        synchronized byte[] getHeaderPages(long pos) {
+            return (valid && pos >= headerEnd) ? headerPages : EMPTY;
+        }
+    }
+
+    /**
+     * one connection
+     */
+    private static class Listener {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // the request being received, or null when handled
+        private ByteBuffer request;
+        // the rest of the response header and prefix, or null when sent
+        private ByteBuffer pending;
+        private boolean closeWhenSent;
+        // the encoder, or null before the request is handled
+        private Encoder encoder;
+        // the absolute position in the encoder's ring
+        private long pos;
+        // if the socket's buffer is full
+        private boolean blocked;
+        private boolean closed;
+
+        Listener(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
+
+/**
+ * * HttpStreamServer.java **
+ */
@@ -0,0 +1,210 @@
+/*
+ *	IcyInputStream.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.*;
+
+/**
+ * Removes the ICY metadata blocks from a SHOUTcast/Icecast stream. Every
+ * <code>metaInt</code> bytes of audio, the server inserts a length byte
+ * and up to 4080 bytes of metadata. The audio is read directly into the
+ * caller's buffer, reads never cross a metadata block. The metadata is
+ * parsed into a reused buffer, and a changed StreamTitle is reported with
+ * the number of audio bytes read before it.
+ */
+public class IcyInputStream extends InputStream {
+
+    private static final int MAX_METADATA = 255 * 16;
+
+    private final InputStream in;
+    private final int metaInt;
+    private Listener listener;
+
+    // audio bytes until the next metadata block
+    private int remaining;
+    private long audioBytes;
+    private final byte[] metadata = new byte[MAX_METADATA];
+    private String title;
+    private long metadataBlocks;
+
+    /**
+     * @param metaInt the value of the icy-metaint header, or 0 if the
+     *            stream has no metadata
+     */
+    public IcyInputStream(InputStream in, int metaInt) {
+        this.in = in;
+        this.metaInt = metaInt;
+        remaining = metaInt;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int r = read(b, 0, 1);
+        return (r <= 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (metaInt > 0) {
+            if (remaining == 0) {
+                if (!readMetadata()) {
+                    return -1;
+                }
+                remaining = metaInt;
+            }
+            if (len > remaining) {
+                len = remaining;
+            }
+        }
+        int r = in.read(b, off, len);
+        if (r > 0) {
+            audioBytes += r;
+            if (metaInt > 0) {
+                remaining -= r;
+            }
+        }
+        return r;
+    }
+
+    // returns false at the end of the stream
+    private boolean readMetadata() throws IOException {
+        int lengthByte = in.read();
+        if (lengthByte < 0) {
+            return false;
+        }
+        metadataBlocks++;
+        int length = lengthByte * 16;
+        int read = 0;
+        while (read < length) {
+            int r = in.read(metadata, read, length - read);
+            if (r < 0) {
+                return false;
+            }
+            read += r;
+        }
+        if (length > 0) {
+            parseMetadata(length);
+        }
+        return true;
+    }
+
+    // e.g. StreamTitle='Artist - Song';StreamUrl='';
+    private void parseMetadata(int length) {
+        // the block is padded with zeros
+        while (length > 0 && metadata[length - 1] == 0) {
+            length--;
+        }
+        String s;
+        try {
+            s = new String(metadata, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            s = new String(metadata, 0, length);
+        }
+        String newTitle = getField(s, "StreamTitle");
+        if (newTitle != null && !newTitle.equals(title)) {
+            title = newTitle;
+            if (listener != null) {
+                listener.titleChanged(this, title, audioBytes);
+            }
+        }
+    }
+
+    private static String getField(String metadata, String name) {
+        String start = name + "='";
+        int i = metadata.indexOf(start);
+        if (i < 0) {
+            return null;
+        }
+        i += start.length();
+        // the value may contain quotes, it ends with ';
+        int end = metadata.indexOf("';", i);
+        if (end < 0) {
+            end = metadata.lastIndexOf('\'');
+            if (end < i) {
+                end = metadata.length();
+            }
+        }
+        return metadata.substring(i, end);
+    }
+
+    public int available() throws IOException {
+        int a = in.available();
+        if (metaInt > 0 && a > remaining) {
+            a = remaining;
+        }
+        return a;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * the last title, or null
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * the number of audio bytes read so far
+     */
+    public long getAudioBytes() {
+        return audioBytes;
+    }
+
+    public long getMetadataBlocks() {
+        return metadataBlocks;
+    }
+
+    public interface Listener {
+
+        /**
+         * the audio after <code>audioPosition</code> bytes has the title
+         */
+        public void titleChanged(IcyInputStream stream, String title, long audioPosition);
+    }
+}
+
+/**
+ * * IcyInputStream.java **
+ */
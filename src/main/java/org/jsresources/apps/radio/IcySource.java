@@ -0,0 +1,521 @@
+/*
+ *	IcySource.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.*;
+import java.net.*;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import javax.sound.sampled.*;
+import org.jsresources.utils.audio.AudioUtils;
+import org.jsresources.utils.audio.FormatConversions;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Plays a SHOUTcast/Icecast stream: connects with HTTP, requesting ICY
+ * metadata, removes the metadata with an IcyInputStream, decodes the
+ * stream to PCM and receives it into a CircularBuffer with a
+ * StreamReceiver. Stream titles are added to the circular buffer at the
+ * position where the decoder reaches them.
+ * <p>
+ * When the connection is lost, it reconnects with exponential backoff
+ * (INITIAL_BACKOFF_MILLIS, doubling up to MAX_BACKOFF_MILLIS). The
+ * backoff is reset after a connection was stable for STABLE_MILLIS. A
+ * large socket receive buffer and the prebuffer absorb slow links, and a
+ * stalled connection is detected with a read timeout.
+ */
+public class IcySource implements Runnable, StreamReceiver.Listener,
+        IcyInputStream.Listener {
+
+    private static final int INITIAL_BACKOFF_MILLIS = 500;
+    private static final int MAX_BACKOFF_MILLIS = 30000;
+    private static final int STABLE_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 15000;
+    private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+    // for detecting the stream type
+    private static final int DECODER_BUFFER_SIZE = 16384;
+
+    private final String url;
+    private Listener listener;
+
+    // of the current connection
+    private Socket socket;
+    private AudioInputStream current;
+    private Map<String, String> headers = new HashMap<String, String>();
+    // titles that the decoder has not reached yet
+    private final LinkedList<PendingTitle> pendingTitles =
+            new LinkedList<PendingTitle>();
+    private volatile String title;
+
+    private CircularBuffer circBuf;
+    private int prebufferMillis;
+    private Thread thread;
+    private StreamReceiver receiver;
+    private volatile boolean terminated;
+    private boolean prebuffered;
+    private IOException lastError;
+
+    // statistics
+    private volatile int connects;
+    private volatile int reconnects;
+    private volatile long bytesReceived;
+
+    public IcySource(String url) {
+        this.url = url;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Connect to the server and return the decoded stream. Called by the
+     * user for the first connection, to find out the format of the
+     * stream, and by the receiving thread for reconnecting.
+     *
+     * @throws IOException if the server cannot be reached, or the stream
+     *             cannot be decoded
+     */
+    public AudioInputStream connect() throws IOException {
+        String location = url;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            int code = request(location);
+            if (code == 200) {
+                break;
+            }
+            String newLocation = getHeader("location");
+            closeSocket();
+            if (code < 300 || code >= 400 || newLocation == null) {
+                throw new IOException("Server returned " + code + " for " + location);
+            }
+            location = new URL(new URL(location), newLocation).toString();
+        }
+        if (socket == null) {
+            throw new IOException("Too many redirects for " + url);
+        }
+        try {
+            int metaInt = 0;
+            if (getHeader("icy-metaint") != null) {
+                metaInt = Integer.parseInt(getHeader("icy-metaint").trim());
+            }
+            IcyInputStream icy = new IcyInputStream(socket.getInputStream(), metaInt);
+            icy.setListener(this);
+            synchronized (pendingTitles) {
+                pendingTitles.clear();
+            }
+            // the file readers need mark/reset
+            InputStream decoderInput = new TitleTracker(
+                    new BufferedInputStream(icy, DECODER_BUFFER_SIZE));
+            AudioInputStream encoded;
+            try {
+                encoded = AudioSystem.getAudioInputStream(decoderInput);
+            } catch (UnsupportedAudioFileException uafe) {
+                throw new IOException("No decoder for " + getContentType());
+            }
+            AudioFormat format = encoded.getFormat();
+            if (VERBOSE) {
+                out("IcySource: " + getStationName() + " (" + getContentType()
+                        + ", " + getBitrate() + "KBit/s): " + format);
+            }
+            AudioInputStream ais = encoded;
+            if (!AudioUtils.isPCM(format)) {
+                AudioFormat pcm = new AudioFormat(format.getSampleRate(), 16,
+                        format.getChannels(), true, false);
+                try {
+                    ais = FormatConversions.getAudioInputStream(pcm, encoded);
+                } catch (IllegalArgumentException iae) {
+                    throw new IOException("Cannot decode " + format);
+                }
+            }
+            connects++;
+            current = ais;
+            return ais;
+        } catch (IOException ioe) {
+            closeSocket();
+            throw ioe;
+        } catch (RuntimeException re) {
+            closeSocket();
+            throw new IOException("Cannot play " + url + ": " + re);
+        }
+    }
+
+    // send the request and read the response headers, returns the status
+    private int request(String location) throws IOException {
+        URL u = new URL(location);
+        if (!"http".equals(u.getProtocol())) {
+            throw new IOException("Unsupported URL: " + location);
+        }
+        int port = (u.getPort() < 0) ? 80 : u.getPort();
+        String path = (u.getFile().length() == 0) ? "/" : u.getFile();
+        Socket s = new Socket();
+        socket = s;
+        s.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        s.connect(new InetSocketAddress(u.getHost(), port), CONNECT_TIMEOUT_MILLIS);
+        s.setSoTimeout(READ_TIMEOUT_MILLIS);
+        String request = "GET " + path + " HTTP/1.0\r\n"
+                + "Host: " + u.getHost() + ((u.getPort() < 0) ? "" : ":" + port) + "\r\n"
+                + "User-Agent: jsresources-radio\r\n"
+                + "Icy-MetaData: 1\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream os = s.getOutputStream();
+        os.write(request.getBytes("ISO-8859-1"));
+        os.flush();
+        // read byte by byte, so that no audio data is consumed
+        InputStream in = s.getInputStream();
+        String status = readLine(in);
+        // "ICY 200 OK" or "HTTP/1.0 200 OK"
+        String[] parts = status.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Invalid response: " + status);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Invalid response: " + status);
+        }
+        headers.clear();
+        String line;
+        while ((line = readLine(in)).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return code;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+            if (sb.length() > 8192) {
+                throw new IOException("Header line too long");
+            }
+        }
+        return sb.toString();
+    }
+
+    private synchronized void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+            }
+            socket = null;
+        }
+    }
+
+    /**
+     * Start receiving the stream returned by connect() into the circular
+     * buffer, which must be initialized with the stream's format.
+     */
+    public synchronized void start(CircularBuffer circBuf, int prebufferMillis) {
+        if (thread != null) {
+            return;
+        }
+        this.circBuf = circBuf;
+        this.prebufferMillis = prebufferMillis;
+        terminated = false;
+        thread = new Thread(this, "IcySource");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        StreamReceiver r;
+        synchronized (this) {
+            terminated = true;
+            t = thread;
+            thread = null;
+            r = receiver;
+        }
+        if (r != null) {
+            r.stop();
+        }
+        closeSocket();
+        if (t != null && t != Thread.currentThread()) {
+            t.interrupt();
+            try {
+                t.join(2000);
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    public void run() {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        while (!terminated) {
+            AudioInputStream ais = current;
+            if (ais != null) {
+                long connected = System.currentTimeMillis();
+                StreamReceiver r = new StreamReceiver(ais, circBuf, prebufferMillis);
+                r.setListener(this);
+                synchronized (this) {
+                    if (terminated) {
+                        break;
+                    }
+                    receiver = r;
+                }
+                // receive on this thread until the stream ends
+                r.run();
+                bytesReceived += r.getBytesReceived();
+                synchronized (this) {
+                    receiver = null;
+                }
+                current = null;
+                closeSocket();
+                if (terminated) {
+                    break;
+                }
+                if (System.currentTimeMillis() - connected > STABLE_MILLIS) {
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                }
+            }
+            reconnects++;
+            if (VERBOSE) {
+                out("IcySource: connection lost (" + lastError + "), reconnecting in "
+                        + backoff + "ms");
+            }
+            if (listener != null) {
+                listener.connectionLost(this, lastError, backoff);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            try {
+                AudioInputStream ais2 = connect();
+                // the format may have changed
+                current = FormatConversions.getAudioInputStream(circBuf.getFormat(), ais2);
+            } catch (IOException ioe) {
+                lastError = ioe;
+            } catch (IllegalArgumentException iae) {
+                closeSocket();
+                lastError = new IOException(iae.getMessage());
+            }
+        }
+        if (VERBOSE) {
+            out("IcySource: stopped. " + getStats());
+        }
+    }
+
+    // StreamReceiver.Listener
+    public void prebuffered(StreamReceiver r) {
+        if (!prebuffered) {
+            prebuffered = true;
+            if (listener != null) {
+                listener.prebuffered(this);
+            }
+        }
+    }
+
+    public void streamEnded(StreamReceiver r, IOException error) {
+        lastError = (error == null) ? new EOFException("end of stream") : error;
+    }
+
+    // IcyInputStream.Listener: the decoder has not read this audio yet
+    public void titleChanged(IcyInputStream stream, String newTitle, long audioPosition) {
+        synchronized (pendingTitles) {
+            pendingTitles.add(new PendingTitle(audioPosition, newTitle));
+        }
+    }
+
+    // called when the decoder reads audio up to position
+    private void decoderPosition(long position) {
+        synchronized (pendingTitles) {
+            while (!pendingTitles.isEmpty()
+                    && pendingTitles.getFirst().position <= position) {
+                String t = pendingTitles.removeFirst().title;
+                title = t;
+                if (circBuf != null) {
+                    circBuf.addTitle(t);
+                }
+                if (VERBOSE) {
+                    out("IcySource: now playing: " + t);
+                }
+                if (listener != null) {
+                    listener.titleChanged(this, t);
+                }
+            }
+        }
+    }
+
+    // a title and the audio position where it starts
+    private static class PendingTitle {
+
+        final long position;
+        final String title;
+
+        PendingTitle(long position, String title) {
+            this.position = position;
+            this.title = title;
+        }
+    }
+
+    /**
+     * counts the bytes read by the decoder, to add the titles to the
+     * circular buffer when the decoder reaches them
+     */
+    private class TitleTracker extends FilterInputStream {
+
+        private long position;
+        private long markPosition;
+
+        TitleTracker(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int r = super.read();
+            if (r >= 0) {
+                decoderPosition(++position);
+            }
+            return r;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = super.read(b, off, len);
+            if (r > 0) {
+                position += r;
+                decoderPosition(position);
+            }
+            return r;
+        }
+
+        public long skip(long n) throws IOException {
+            long r = super.skip(n);
+            if (r > 0) {
+                position += r;
+                decoderPosition(position);
+            }
+            return r;
+        }
+
+        public synchronized void mark(int readlimit) {
+            super.mark(readlimit);
+            markPosition = position;
+        }
+
+        public synchronized void reset() throws IOException {
+            super.reset();
+            position = markPosition;
+        }
+    }
+
+    // ------------------------------------------------------- info
+
+    public String getURL() {
+        return url;
+    }
+
+    private synchronized String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public String getStationName() {
+        String name = getHeader("icy-name");
+        return (name == null) ? url : name;
+    }
+
+    public String getContentType() {
+        return getHeader("content-type");
+    }
+
+    /**
+     * the announced bitrate in KBit/s, or -1
+     */
+    public int getBitrate() {
+        try {
+            return Integer.parseInt(getHeader("icy-br").trim());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * the title of the audio the decoder is working on, or null
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    public String getStats() {
+        StreamReceiver r = receiver;
+        long bytes = bytesReceived + ((r != null) ? r.getBytesReceived() : 0);
+        return "connects: " + connects + ", reconnects: " + reconnects
+                + ", decoded: " + (bytes / 1024) + "KB";
+    }
+
+    /**
+     * notified from the receiving thread
+     */
+    public interface Listener {
+
+        /**
+         * enough data was received to start playback
+         */
+        public void prebuffered(IcySource source);
+
+        public void titleChanged(IcySource source, String title);
+
+        /**
+         * the connection was lost, reconnecting in
+         * <code>retryMillis</code>
+         */
+        public void connectionLost(IcySource source, IOException error, long retryMillis);
+    }
+}
+
+/**
+ * * IcySource.java **
+ */
@@ -0,0 +1,177 @@
+/*
+ *	IcySourceCheck.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Checks IcySource against a local IcyStandInServer, in two runs. The
+ * first checks that each title is added to the circular buffer where the
+ * server changed it: the server changes the title every TITLE_SECONDS of
+ * audio, and sends it with the next metadata block. The second run lets
+ * the server drop the connection, and checks that IcySource reconnects
+ * and keeps receiving. The server streams faster than real time, so that
+ * the check takes a few seconds. Exits with status 1 if a check fails.
+ * <p>
+ * Usage: java org.jsresources.apps.radio.IcySourceCheck [-v]
+ */
+public class IcySourceCheck implements IcySource.Listener {
+
+    private static final int TITLE_SECONDS = 2;
+    private static final int META_INT = 2048;
+    private static final int SPEED_PERCENT = 400;
+    // the length of the AU header before the audio
+    private static final int HEADER_SIZE = 24;
+
+    private CircularBuffer circBuf;
+    // the titles, and their positions in the circular buffer
+    private final List<String> titles = new ArrayList<String>();
+    private final List<Long> positions = new ArrayList<Long>();
+    private int connectionsLost;
+    // the write position when the first connection was lost
+    private long lostPosition = -1;
+
+    public static void main(String[] args) throws Exception {
+        boolean verbose = args.length > 0 && args[0].equals("-v");
+        Constants.VERBOSE = verbose;
+        Constants.DEBUG = false;
+        boolean ok = new IcySourceCheck().checkTitles(verbose);
+        ok &= new IcySourceCheck().checkReconnect(verbose);
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private boolean checkTitles(boolean verbose) throws Exception {
+        IcyStandInServer server = startServer(0);
+        IcySource source = receive(server, TITLE_SECONDS * 3);
+        source.stop();
+        server.stop();
+        AudioFormat format = circBuf.getFormat();
+        int byteRate = (int) format.getFrameRate() * format.getFrameSize();
+        // the server decides about the title after a step of 20ms, and
+        // IcySource adds it at the start of the decoder's read
+        int before = byteRate / 50 + 8192;
+        boolean ok = titles.size() >= 3;
+        for (int i = 0; i < titles.size(); i++) {
+            String title = titles.get(i);
+            long pos = positions.get(i);
+            // the title changes at this position of the server's audio
+            long expected = (long) i * TITLE_SECONDS * byteRate;
+            boolean good = title.endsWith("Track " + (i + 1))
+                    && pos >= expected - before
+                    && pos <= expected + META_INT - HEADER_SIZE
+                    && title.equals(circBuf.getTitle(pos));
+            if (verbose || !good) {
+                System.out.println("  " + title + " at " + pos + ", expected "
+                        + expected + (good ? "" : ": wrong"));
+            }
+            ok &= good;
+        }
+        System.out.println("titles: " + titles.size() + " received"
+                + (ok ? ", at the right positions" : ": FAILED"));
+        return ok;
+    }
+
+    private boolean checkReconnect(boolean verbose) throws Exception {
+        IcyStandInServer server = startServer(1);
+        IcySource source = receive(server, 2);
+        // the first reconnect is after INITIAL_BACKOFF_MILLIS
+        Thread.sleep(1500);
+        long after = circBuf.getWritePosition();
+        source.stop();
+        server.stop();
+        long received = after - lostPosition;
+        boolean ok = source.getReconnects() >= 1 && lostPosition >= 0
+                && server.getConnections() >= 2 && received > 0;
+        if (verbose) {
+            System.out.println("  " + source.getStats());
+        }
+        System.out.println("reconnect: " + server.getConnections()
+                + " connections, " + source.getReconnects() + " reconnects, "
+                + Math.max(received, 0) + " bytes received after the drop"
+                + (ok ? "" : ": FAILED"));
+        return ok;
+    }
+
+    private IcyStandInServer startServer(int dropSeconds) throws IOException {
+        IcyStandInServer server = new IcyStandInServer(0);
+        server.setMetaInt(META_INT);
+        server.setTitleSeconds(TITLE_SECONDS);
+        server.setDropSeconds(dropSeconds);
+        server.setSpeedPercent(SPEED_PERCENT);
+        server.start();
+        return server;
+    }
+
+    // receive for the given seconds of stream time
+    private IcySource receive(IcyStandInServer server, int seconds)
+            throws Exception {
+        IcySource source = new IcySource("http://localhost:"
+                + server.getPort() + "/");
+        source.setListener(this);
+        AudioInputStream ais = source.connect();
+        circBuf = new CircularBuffer();
+        circBuf.init(ais.getFormat(), 60000);
+        source.start(circBuf, 100);
+        Thread.sleep(seconds * 1000L * 100 / SPEED_PERCENT + 500);
+        return source;
+    }
+
+    // IcySource.Listener
+
+    public void prebuffered(IcySource source) {
+    }
+
+    public synchronized void titleChanged(IcySource source, String title) {
+        titles.add(title);
+        positions.add(circBuf.getWritePosition());
+    }
+
+    public synchronized void connectionLost(IcySource source,
+            IOException error, long retryMillis) {
+        if (connectionsLost++ == 0) {
+            lostPosition = circBuf.getWritePosition();
+        }
+    }
+}
+
+/**
+ * * IcySourceCheck.java **
+ */
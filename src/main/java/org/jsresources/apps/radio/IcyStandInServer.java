@@ -0,0 +1,305 @@
+/*
+ *	IcyStandInServer.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * A local stand-in for a SHOUTcast server, for testing IcySource without
+ * network access. It streams a generated tone as an AU file (16-bit PCM,
+ * which Java Sound decodes without plug-ins) in real time, with ICY
+ * metadata every <code>metaint</code> bytes if requested by the client.
+ * The title changes every few seconds. Connections can be dropped
+ * periodically to test reconnecting, and the rate can be throttled to
+ * simulate a slow link.
+ * <p>
+ * Usage: java org.jsresources.apps.radio.IcyStandInServer [-p port]
+ * [-metaint bytes] [-title seconds] [-drop seconds] [-speed percent]
+ */
+public class IcyStandInServer implements Runnable {
+
+    private static final float SAMPLE_RATE = 22050.0f;
+    private static final int CHANNELS = 1;
+    // bytes per second
+    private static final int BYTE_RATE = (int) SAMPLE_RATE * CHANNELS * 2;
+    // the audio written per step
+    private static final int STEP_MILLIS = 20;
+
+    private final ServerSocket serverSocket;
+    private int metaInt = 8192;
+    private int titleSeconds = 5;
+    private int dropSeconds = 0;
+    private int speedPercent = 100;
+    private volatile boolean terminated;
+    private volatile int connections;
+
+    public IcyStandInServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 8000;
+        int metaInt = 8192;
+        int title = 5;
+        int drop = 0;
+        int speed = 100;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            if (args[i].equals("-p")) {
+                port = value;
+            } else if (args[i].equals("-metaint")) {
+                metaInt = value;
+            } else if (args[i].equals("-title")) {
+                title = value;
+            } else if (args[i].equals("-drop")) {
+                drop = value;
+            } else if (args[i].equals("-speed")) {
+                speed = value;
+            }
+        }
+        IcyStandInServer server = new IcyStandInServer(port);
+        server.setMetaInt(metaInt);
+        server.setTitleSeconds(title);
+        server.setDropSeconds(drop);
+        server.setSpeedPercent(speed);
+        System.out.println("Stand-in server: http://localhost:" + server.getPort() + "/");
+        server.run();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * the metadata interval, 0 for no metadata
+     */
+    public void setMetaInt(int metaInt) {
+        this.metaInt = metaInt;
+    }
+
+    public void setTitleSeconds(int seconds) {
+        titleSeconds = seconds;
+    }
+
+    /**
+     * close each connection after <code>seconds</code>, 0 for never
+     */
+    public void setDropSeconds(int seconds) {
+        dropSeconds = seconds;
+    }
+
+    /**
+     * the speed of the stream relative to real time, to simulate slow
+     * links
+     */
+    public void setSpeedPercent(int percent) {
+        speedPercent = percent;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * serve in a background thread
+     */
+    public void start() {
+        Thread t = new Thread(this, "IcyStandInServer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        terminated = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+        }
+    }
+
+    public void run() {
+        while (!terminated) {
+            try {
+                final Socket s = serverSocket.accept();
+                connections++;
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        serve(s);
+                    }
+                }, "IcyStandInServer connection");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException ioe) {
+                if (!terminated) {
+                    ioe.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        try {
+            InputStream in = s.getInputStream();
+            boolean sendMeta = false;
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                if (line.toLowerCase().startsWith("icy-metadata:")
+                        && line.substring(13).trim().equals("1")) {
+                    sendMeta = metaInt > 0;
+                }
+            }
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16384);
+            String response = "ICY 200 OK\r\n"
+                    + "icy-name: Stand-in Radio\r\n"
+                    + "icy-br: " + (BYTE_RATE * 8 / 1000) + "\r\n"
+                    + "content-type: audio/basic\r\n"
+                    + (sendMeta ? "icy-metaint: " + metaInt + "\r\n" : "")
+                    + "\r\n";
+            out.write(response.getBytes("ISO-8859-1"));
+            stream(out, sendMeta);
+        } catch (IOException ioe) {
+            // the client disconnected
+        } finally {
+            try {
+                s.close();
+            } catch (IOException ioe) {
+            }
+        }
+    }
+
+    private void stream(OutputStream out, boolean sendMeta) throws IOException {
+        // AU header: magic, offset, unknown length, 16-bit PCM, rate, channels
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0x2e736e64);
+        dos.writeInt(24);
+        dos.writeInt(-1);
+        dos.writeInt(3);
+        dos.writeInt((int) SAMPLE_RATE);
+        dos.writeInt(CHANNELS);
+        byte[] audio = baos.toByteArray();
+        int untilMeta = metaInt;
+        String lastTitle = null;
+        long start = System.currentTimeMillis();
+        long sample = 0;
+        int stepBytes = BYTE_RATE * STEP_MILLIS / 1000;
+        byte[] pcm = new byte[stepBytes];
+        int pos = 0;
+        for (long step = 0; !terminated; step++) {
+            long elapsed = System.currentTimeMillis() - start;
+            if (dropSeconds > 0 && elapsed >= dropSeconds * 1000L) {
+                return;
+            }
+            if (step > 0) {
+                // a 440Hz tone, with a 1kHz beep at each title change
+                long streamMillis = sample * 1000 / (long) SAMPLE_RATE;
+                double freq = (streamMillis % (titleSeconds * 1000L) < 100) ? 1000 : 440;
+                for (int i = 0; i < stepBytes; i += 2) {
+                    int v = (int) (8000 * Math.sin(2 * Math.PI * freq * sample / SAMPLE_RATE));
+                    pcm[i] = (byte) (v >> 8);
+                    pcm[i + 1] = (byte) v;
+                    sample++;
+                }
+                audio = pcm;
+            }
+            // write the audio, interleaved with metadata
+            pos = 0;
+            while (pos < audio.length) {
+                int len = audio.length - pos;
+                if (sendMeta && len > untilMeta) {
+                    len = untilMeta;
+                }
+                out.write(audio, pos, len);
+                pos += len;
+                if (sendMeta) {
+                    untilMeta -= len;
+                    if (untilMeta == 0) {
+                        String title = "Stand-in - Track "
+                                + (1 + sample / (long) (SAMPLE_RATE * titleSeconds));
+                        writeMetadata(out, title.equals(lastTitle) ? null : title);
+                        lastTitle = title;
+                        untilMeta = metaInt;
+                    }
+                }
+            }
+            out.flush();
+            // pace the stream
+            long due = start + (step + 1) * STEP_MILLIS * 100 / speedPercent;
+            long wait = due - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // title null: no change, just the zero length byte
+    private static void writeMetadata(OutputStream out, String title) throws IOException {
+        if (title == null) {
+            out.write(0);
+            return;
+        }
+        byte[] meta = ("StreamTitle='" + title + "';StreamUrl='';").getBytes("UTF-8");
+        int blocks = (meta.length + 15) / 16;
+        out.write(blocks);
+        out.write(meta);
+        for (int i = meta.length; i < blocks * 16; i++) {
+            out.write(0);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * * IcyStandInServer.java **
+ */
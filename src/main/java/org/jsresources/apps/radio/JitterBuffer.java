@@ -0,0 +1,472 @@
+/*
+ *	JitterBuffer.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Reorders received audio packets and plays them out at the sender's pace.
+ * The audio data at stream position <code>p</code> is released at
+ * <pre>
+ *   p / bytesPerMilli + meanTransit + delay
+ * </pre>
+ * where the transit of a packet is its local arrival time minus its
+ * stream time. The mean transit and its deviation are smoothed over the
+ * received packets, and the delay is four times the deviation plus one
+ * packet, limited to [minDelayMillis, maxDelayMillis]. So the delay grows
+ * when the network gets jittery, and shrinks when it calms down.
+ * <p>
+ * A packet that is missing at its playout time is concealed: the last
+ * packet is repeated, fading out over two packet lengths, then silence
+ * follows. For encodings other than signed 8 and 16 bit PCM, silence is
+ * played. Packets that arrive after their playout time are discarded.
+ * <p>
+ * The received packets are put into the buffer by the receiver thread;
+ * the played out data is read from this stream.
+ */
+public class JitterBuffer extends InputStream {
+
+    // must be a power of 2
+    private static final int SLOTS = 512;
+    private static final int MASK = SLOTS - 1;
+    // smoothing factor of the transit estimation
+    private static final double ALPHA = 0.99;
+
+    private final AudioFormat format;
+    private final double bytesPerMilli;
+    private final int frameSize;
+    private final boolean canFade;
+    private final byte silence;
+    private volatile int minDelayMillis;
+    private volatile int maxDelayMillis;
+
+    private final Slot[] slots = new Slot[SLOTS];
+    private boolean started;
+    private boolean closed;
+    // the sequence number and stream position of the next data to play
+    private int playSeq;
+    private long playPos;
+    // where the data of playSeq starts
+    private long seqStart;
+    private int highestSeq;
+    private int packetLength;
+
+    // playout estimation, in milliseconds
+    private double meanTransit;
+    private double transitDeviation;
+    // the interarrival jitter as in RFC 3550, from the send times
+    private double jitter;
+    private int lastSendTransit;
+
+    // concealment
+    private final byte[] history = new byte[AudioPacket.MAX_PAYLOAD];
+    private int historyLength;
+    private int historyIndex;
+    private float concealGain;
+
+    // statistics
+    private volatile long received;
+    private volatile long lost;
+    private volatile long late;
+    private volatile long duplicates;
+    private volatile long reordered;
+    private volatile long concealedBytes;
+    private volatile long resyncs;
+
+    public JitterBuffer(AudioFormat format, int minDelayMillis, int maxDelayMillis) {
+        this.format = format;
+        this.frameSize = Math.max(1, format.getFrameSize());
+        this.bytesPerMilli = format.getFrameRate() * frameSize / 1000.0;
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        AudioFormat.Encoding enc = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        canFade = enc.equals(AudioFormat.Encoding.PCM_SIGNED) && (bits == 8 || bits == 16);
+        if (enc.equals(AudioFormat.Encoding.ULAW)) {
+            silence = (byte) 0xFF;
+        } else if (enc.equals(AudioFormat.Encoding.ALAW)) {
+            silence = (byte) 0xD5;
+        } else if (enc.equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+            silence = (byte) 0x80;
+        } else {
+            silence = 0;
+        }
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Adds a received audio packet. Called by the receiver thread.
+     *
+     * @param arrivalMillis the local time when the packet was received
+     */
+    public synchronized void put(AudioPacket p, long arrivalMillis) {
+        if (closed || p.getLength() == 0) {
+            return;
+        }
+        int seq = p.getSequence();
+        if (!started) {
+            restart(p, arrivalMillis);
+        }
+        int ahead = seq - playSeq;
+        if (ahead < 0 || (ahead == 0 && playPos >= p.getPosition() + p.getLength())) {
+            // already played or concealed. The transit still counts, so
+            // that the playout follows a lasting increase of the delay,
+            // e.g. when a queue builds up on the way
+            late++;
+            updateTransit(p, arrivalMillis);
+            return;
+        }
+        if (ahead >= SLOTS) {
+            // far ahead of the playout: the sender restarted, or we stalled
+            resyncs++;
+            restart(p, arrivalMillis);
+        }
+        Slot s = slots[seq & MASK];
+        if (s.full && s.seq == seq) {
+            duplicates++;
+            return;
+        }
+        s.seq = seq;
+        s.position = p.getPosition();
+        s.length = p.getLength();
+        System.arraycopy(p.getData(), 0, s.data, 0, s.length);
+        s.full = true;
+        received++;
+        if (seq - highestSeq < 0) {
+            reordered++;
+        } else {
+            highestSeq = seq;
+            packetLength = s.length;
+        }
+        updateTransit(p, arrivalMillis);
+        notifyAll();
+    }
+
+    // start playout with this packet
+    private void restart(AudioPacket p, long arrivalMillis) {
+        for (Slot s : slots) {
+            s.full = false;
+        }
+        started = true;
+        playSeq = p.getSequence();
+        highestSeq = playSeq;
+        playPos = p.getPosition();
+        seqStart = playPos;
+        packetLength = p.getLength();
+        meanTransit = arrivalMillis - playPos / bytesPerMilli;
+        transitDeviation = 0;
+        lastSendTransit = (int) arrivalMillis - p.getSendTime();
+        historyLength = 0;
+    }
+
+    private void updateTransit(AudioPacket p, long arrivalMillis) {
+        double transit = arrivalMillis - p.getPosition() / bytesPerMilli;
+        meanTransit = ALPHA * meanTransit + (1 - ALPHA) * transit;
+        transitDeviation = ALPHA * transitDeviation + (1 - ALPHA) * Math.abs(transit - meanTransit);
+        int sendTransit = (int) arrivalMillis - p.getSendTime();
+        jitter += (Math.abs(sendTransit - lastSendTransit) - jitter) / 16.0;
+        lastSendTransit = sendTransit;
+    }
+
+    /**
+     * the current playout delay on top of the mean transit time
+     */
+    public synchronized double getDelayMillis() {
+        double delay = 4 * transitDeviation + packetLength / bytesPerMilli;
+        return Math.max(minDelayMillis, Math.min(maxDelayMillis, delay));
+    }
+
+    // the local time when the data at pos is due
+    private double getDeadline(long pos) {
+        return pos / bytesPerMilli + meanTransit + getDelayMillis();
+    }
+
+    public int read() throws IOException {
+        throw new IOException("illegal call to JitterBuffer.read()!");
+    }
+
+    /**
+     * The data that is due now, in whole frames: reading up to this many
+     * bytes does not block. Concealed data counts, too.
+     */
+    public synchronized int available() {
+        if (closed || !started) {
+            return 0;
+        }
+        double due = (System.currentTimeMillis() - meanTransit - getDelayMillis()) * bytesPerMilli;
+        long avail = (long) due - playPos;
+        if (avail < frameSize) {
+            return 0;
+        }
+        return (int) Math.min(avail - avail % frameSize, Integer.MAX_VALUE - frameSize);
+    }
+
+    /**
+     * Blocks until the next data is due, and returns at most one packet.
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        len -= len % frameSize;
+        if (len <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    return -1;
+                }
+                long wait = 1;
+                if (started) {
+                    wait = (long) Math.ceil(getDeadline(playPos) - System.currentTimeMillis());
+                    if (wait <= 0) {
+                        int n = playout(b, off, len);
+                        if (n > 0) {
+                            return n;
+                        }
+                        continue;
+                    }
+                }
+                try {
+                    wait(started ? wait : 0);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes played out, or 0 to try again
+     */
+    private int playout(byte[] b, int off, int len) {
+        Slot s = slots[playSeq & MASK];
+        if (s.full && s.seq == playSeq) {
+            if (playPos < s.position) {
+                // a gap in the stream positions
+                return conceal(b, off, (int) Math.min(len, s.position - playPos));
+            }
+            int inPacket = (int) (playPos - s.position);
+            int n = Math.min(len, s.length - inPacket);
+            if (n > 0) {
+                System.arraycopy(s.data, inPacket, b, off, n);
+                playPos += n;
+                concealGain = 1;
+            }
+            if (inPacket + n >= s.length) {
+                // remember the packet for concealment
+                System.arraycopy(s.data, 0, history, 0, s.length);
+                historyLength = s.length;
+                historyIndex = 0;
+                s.full = false;
+                advance();
+            }
+            return n;
+        }
+        // missing: conceal up to the next packet, or one packet length
+        long end = seqStart + packetLength;
+        Slot next = slots[(playSeq + 1) & MASK];
+        if (next.full && next.seq == playSeq + 1) {
+            end = next.position;
+        }
+        int n = conceal(b, off, (int) Math.min(len, Math.max(end - playPos, frameSize)));
+        if (playPos >= end) {
+            lost++;
+            advance();
+        }
+        return n;
+    }
+
+    private void advance() {
+        playSeq++;
+        seqStart = playPos;
+    }
+
+    // repeat the last packet while fading out, then silence
+    private int conceal(byte[] b, int off, int len) {
+        len -= len % frameSize;
+        if (len <= 0) {
+            len = frameSize;
+        }
+        if (!canFade || historyLength < frameSize || concealGain <= 0) {
+            for (int i = 0; i < len; i++) {
+                b[off + i] = silence;
+            }
+        } else {
+            boolean is16 = format.getSampleSizeInBits() == 16;
+            boolean bigEndian = format.isBigEndian();
+            // fade out over two packet lengths
+            float step = frameSize / (2.0f * Math.max(packetLength, frameSize));
+            for (int i = 0; i < len; i += frameSize) {
+                for (int j = 0; j < frameSize; j += (is16 ? 2 : 1)) {
+                    int h = historyIndex + j;
+                    if (is16) {
+                        int hi = bigEndian ? h : h + 1;
+                        int lo = bigEndian ? h + 1 : h;
+                        int sample = (int) (((history[hi] << 8) | (history[lo] & 0xFF)) * concealGain);
+                        b[off + i + j + (bigEndian ? 0 : 1)] = (byte) (sample >> 8);
+                        b[off + i + j + (bigEndian ? 1 : 0)] = (byte) sample;
+                    } else {
+                        b[off + i + j] = (byte) (history[h] * concealGain);
+                    }
+                }
+                historyIndex += frameSize;
+                if (historyIndex + frameSize > historyLength) {
+                    historyIndex = 0;
+                }
+                concealGain = Math.max(0, concealGain - step);
+            }
+        }
+        playPos += len;
+        concealedBytes += len;
+        return len;
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    // ------------------------------------------------------ settings
+
+    public void setMinDelayMillis(int millis) {
+        minDelayMillis = millis;
+    }
+
+    public void setMaxDelayMillis(int millis) {
+        maxDelayMillis = millis;
+    }
+
+    // ------------------------------------------------------ statistics
+
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * the number of packets that were concealed
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * the number of packets discarded because they arrived too late
+     */
+    public long getLate() {
+        return late;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * the number of packets that arrived after a packet with a higher
+     * sequence number
+     */
+    public long getReordered() {
+        return reordered;
+    }
+
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    /**
+     * the fraction of packets that were concealed
+     */
+    public double getLossRate() {
+        long l = lost;
+        long total = received + l;
+        return (total <= 0) ? 0 : l / (double) total;
+    }
+
+    public long getConcealedMillis() {
+        return (long) (concealedBytes / bytesPerMilli);
+    }
+
+    /**
+     * the interarrival jitter (RFC 3550), in milliseconds
+     */
+    public synchronized double getJitterMillis() {
+        return jitter;
+    }
+
+    /**
+     * the received audio that is not played out yet
+     */
+    public synchronized long getBufferedMillis() {
+        Slot s = slots[highestSeq & MASK];
+        if (!started || !s.full || s.seq != highestSeq) {
+            return 0;
+        }
+        return (long) Math.max(0, (s.position + s.length - playPos) / bytesPerMilli);
+    }
+
+    public String getStats() {
+        return "received: " + received + ", lost: " + lost + " ("
+                + Math.round(getLossRate() * 1000) / 10.0 + "%), late: " + late
+                + ", reordered: " + reordered + ", duplicates: " + duplicates
+                + ", jitter: " + Math.round(getJitterMillis()) + "ms, delay: "
+                + Math.round(getDelayMillis()) + "ms, buffered: "
+                + getBufferedMillis() + "ms, concealed: "
+                + getConcealedMillis() + "ms";
+    }
+
+    // one received packet
+    private static class Slot {
+
+        private final byte[] data = new byte[AudioPacket.MAX_PAYLOAD];
+        private int seq;
+        private long position;
+        private int length;
+        private boolean full;
+    }
+}
+
+/**
+ * * JitterBuffer.java **
+ */
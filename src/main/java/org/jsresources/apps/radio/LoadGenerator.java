@@ -0,0 +1,326 @@
+/*
+ *	LoadGenerator.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A load test for the StreamServer: opens many listener connections from
+ * one selector thread, discards the received data and reports the
+ * throughput per listener every second. With <code>-server</code>, a
+ * local server is started that streams a generated 128 KBit/s stream
+ * (8000Hz, 16-bit, mono).
+ * <p>
+ * Usage: java org.jsresources.apps.radio.LoadGenerator [-server]
+ * [-policy drop|skip|disconnect] [-h host] [-p port] [-n listeners]
+ * [-t seconds]
+ */
+public class LoadGenerator {
+
+    // connections opened per ramp-up step
+    private static final int CONNECT_BATCH = 200;
+    private static final int CONNECT_INTERVAL_MILLIS = 20;
+    // a listener without data for this long counts as stalled
+    private static final int STALL_MILLIS = 1000;
+
+    private String host = "localhost";
+    private int port = Constants.DEFAULT_PORT;
+    private int count = 100;
+    private int seconds = 30;
+
+    private Selector selector;
+    private List<Client> clients = new ArrayList<Client>();
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+    private int failed;
+    private int closed;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator lg = new LoadGenerator();
+        boolean server = false;
+        int policy = StreamServer.SLOW_SKIP_TO_LIVE;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-server")) {
+                server = true;
+            } else if (args[i].equals("-policy") && i + 1 < args.length) {
+                String p = args[++i];
+                policy = p.equals("drop") ? StreamServer.SLOW_DROP
+                        : p.equals("disconnect") ? StreamServer.SLOW_DISCONNECT
+                        : StreamServer.SLOW_SKIP_TO_LIVE;
+            } else if (args[i].equals("-h") && i + 1 < args.length) {
+                lg.host = args[++i];
+            } else if (args[i].equals("-p") && i + 1 < args.length) {
+                lg.port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                lg.count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                lg.seconds = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("Usage: LoadGenerator [-server] [-policy drop|skip|disconnect]"
+                        + " [-h host] [-p port] [-n listeners] [-t seconds]");
+                System.exit(1);
+            }
+        }
+        Constants.VERBOSE = false;
+        Constants.DEBUG = false;
+        StreamServer ss = null;
+        if (server) {
+            ss = startTestServer(lg.port, policy);
+            lg.port = ss.getPort();
+        }
+        lg.run();
+        if (ss != null) {
+            System.out.println("Server: " + ss.getStats());
+            ss.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * a server that streams a generated 128 KBit/s stream in real time
+     */
+    private static StreamServer startTestServer(int port, int policy) throws IOException {
+        StreamServer ss = new StreamServer(startTestSource(), port);
+        ss.setSlowClientPolicy(policy);
+        ss.start();
+        System.out.println("Test server on port " + ss.getPort() + ", policy: "
+                + StreamServer.getPolicyName(policy));
+        return ss;
+    }
+
+    /**
+     * a circular buffer that is filled with a generated 128 KBit/s stream
+     * in real time
+     */
+    static CircularBuffer startTestSource() {
+        return startTestSource(new AudioFormat(8000.0f, 16, 1, true, false));
+    }
+
+    /**
+     * a circular buffer that is filled with a 440Hz sine in real time, in
+     * the given 16-bit signed little endian format
+     */
+    static CircularBuffer startTestSource(final AudioFormat format) {
+        final CircularBuffer cb = new CircularBuffer();
+        cb.init(format, 30000);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                // 20ms of a 440Hz sine
+                final int frames = (int) (format.getFrameRate() / 50);
+                final int channels = format.getChannels();
+                byte[] data = new byte[frames * format.getFrameSize()];
+                long start = System.currentTimeMillis();
+                long blocks = 0;
+                try {
+                    while (true) {
+                        for (int i = 0; i < frames; i++) {
+                            double t = (blocks * frames + i) / (double) format.getFrameRate();
+                            int s = (int) (8000 * Math.sin(2 * Math.PI * 440 * t));
+                            for (int c = 0; c < channels; c++) {
+                                data[2 * (i * channels + c)] = (byte) s;
+                                data[2 * (i * channels + c) + 1] = (byte) (s >> 8);
+                            }
+                        }
+                        cb.write(data, 0, data.length);
+                        blocks++;
+                        long wait = start + blocks * 20 - System.currentTimeMillis();
+                        if (wait > 0) {
+                            Thread.sleep(wait);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "LoadGenerator source");
+        t.setDaemon(true);
+        t.start();
+        return cb;
+    }
+
+    private void run() throws IOException {
+        selector = Selector.open();
+        InetSocketAddress addr = new InetSocketAddress(host, port);
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        long nextConnect = start;
+        long nextReport = start + 1000;
+        int opened = 0;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= end) {
+                break;
+            }
+            // ramp up
+            if (opened < count && now >= nextConnect) {
+                for (int i = 0; i < CONNECT_BATCH && opened < count; i++, opened++) {
+                    open(addr, now);
+                }
+                nextConnect = now + CONNECT_INTERVAL_MILLIS;
+            }
+            long timeout = Math.min(nextReport, (opened < count) ? nextConnect : end) - now;
+            selector.select(Math.max(1, timeout));
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            now = System.currentTimeMillis();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Client c = (Client) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        c.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        c.lastData = now;
+                    } else if (key.isReadable()) {
+                        read(c, now);
+                    }
+                } catch (IOException ioe) {
+                    close(c, key);
+                    failed++;
+                }
+            }
+            if (now >= nextReport) {
+                report(now, now - nextReport + 1000);
+                nextReport = now + 1000;
+            }
+        }
+        report(System.currentTimeMillis(), -1);
+        for (Client c : clients) {
+            c.channel.close();
+        }
+        selector.close();
+    }
+
+    private void open(InetSocketAddress addr, long now) {
+        try {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            Client c = new Client(ch);
+            c.lastData = now;
+            if (ch.connect(addr)) {
+                ch.register(selector, SelectionKey.OP_READ, c);
+            } else {
+                ch.register(selector, SelectionKey.OP_CONNECT, c);
+            }
+            clients.add(c);
+        } catch (IOException ioe) {
+            failed++;
+        }
+    }
+
+    private void read(Client c, long now) throws IOException {
+        while (true) {
+            readBuffer.clear();
+            int r = c.channel.read(readBuffer);
+            if (r < 0) {
+                close(c, c.channel.keyFor(selector));
+                closed++;
+                return;
+            }
+            if (r == 0) {
+                break;
+            }
+            c.bytes += r;
+            c.lastData = now;
+        }
+    }
+
+    private void close(Client c, SelectionKey key) {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            c.channel.close();
+        } catch (IOException ioe) {
+        }
+        c.open = false;
+    }
+
+    /**
+     * @param intervalMillis the reporting interval, or -1 for the summary
+     */
+    private void report(long now, long intervalMillis) {
+        int connected = 0;
+        int stalled = 0;
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        for (Client c : clients) {
+            if (!c.open) {
+                continue;
+            }
+            connected++;
+            long bytes = (intervalMillis < 0) ? c.bytes : c.bytes - c.reportedBytes;
+            c.reportedBytes = c.bytes;
+            total += bytes;
+            min = Math.min(min, bytes);
+            if (now - c.lastData >= STALL_MILLIS) {
+                stalled++;
+            }
+        }
+        long millis = (intervalMillis < 0) ? seconds * 1000L : intervalMillis;
+        double kbit = 8.0 / millis; // bytes per interval to KBit/s
+        System.out.println(((intervalMillis < 0) ? "Total: " : "")
+                + "listeners: " + connected + ", stalled: " + stalled
+                + ", closed: " + closed + ", failed: " + failed
+                + ", total: " + Math.round(total * kbit) + " KBit/s"
+                + (connected > 0 ? ", per listener: avg "
+                + Math.round(total * kbit / connected) + " min "
+                + Math.round(min * kbit) + " KBit/s" : ""));
+    }
+
+    private static class Client {
+
+        private final SocketChannel channel;
+        private boolean open = true;
+        private long bytes;
+        private long reportedBytes;
+        private long lastData;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
+
+/**
+ * * LoadGenerator.java **
+ */
@@ -0,0 +1,472 @@
+/*
+ *	LossyProxy.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.PriorityQueue;
+import java.util.Random;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A UDP proxy that simulates a bad network for testing the UDP transport.
+ * Datagrams from the client are forwarded to the target unchanged.
+ * Datagrams from the target are forwarded to the last client, but may be
+ * lost, and are delayed by <code>delayMillis</code> plus a random jitter of
+ * up to <code>jitterMillis</code>, which also reorders them.
+ * <p>
+ * Losses follow a two-state (Gilbert) model: in the bad state, all
+ * packets are lost. The transition probabilities are chosen so that the
+ * average loss rate is <code>lossRate</code>, and losses come in bursts
+ * of <code>burstLength</code> packets on average. A burst length of 1
+ * gives independent losses.
+ * <p>
+ * With a rate limit, the proxy also simulates a link of that bandwidth:
+ * datagrams queue up behind each other, and are dropped when they would
+ * have to wait longer than <code>queueMillis</code>.
+ * <p>
+ * Usage: java org.jsresources.apps.radio.LossyProxy [-test] [-cd] [-l port]
+ * [-h host] [-p port] [-loss percent] [-burst packets] [-delay ms]
+ * [-jitter ms] [-rate kbit/s] [-queue ms] [-t seconds] [-fec off|auto|k,d]
+ * <p>
+ * With <code>-test</code>, a local UdpStreamServer with a generated
+ * stream is the target, and a receiver subscribed through the proxy
+ * reports its statistics every second. The generated stream has telephone
+ * bandwidth, or CD quality with <code>-cd</code>. <code>-fec</code> sets
+ * the test server's forward error correction: off, adaptive (the
+ * default), or fixed groups of k packets interleaved with depth d.
+ */
+public class LossyProxy implements Runnable {
+
+    private final int port;
+    private final SocketAddress target;
+
+    private volatile double lossRate;
+    private volatile double burstLength = 1;
+    private volatile int delayMillis;
+    private volatile int jitterMillis;
+    private volatile int rateKbit;
+    private volatile int queueMillis = 200;
+
+    private DatagramSocket socket;
+    private Thread receiver;
+    private Thread sender;
+    private volatile boolean terminated;
+    private volatile SocketAddress client;
+
+    // only accessed by the receiver thread
+    private final Random random = new Random();
+    private boolean bad;
+    // the delayed datagrams, by release time
+    private final PriorityQueue<Delayed> queue = new PriorityQueue<Delayed>();
+    private long order;
+    // the time when the simulated link has sent all queued datagrams
+    private double linkFree;
+
+    // statistics
+    private volatile long forwarded;
+    private volatile long dropped;
+    private volatile long overflows;
+
+    public LossyProxy(int port, SocketAddress target) {
+        this.port = port;
+        this.target = target;
+    }
+
+    public synchronized void start() throws IOException {
+        if (receiver != null) {
+            return;
+        }
+        socket = new DatagramSocket(port);
+        terminated = false;
+        receiver = new Thread(this, "LossyProxy");
+        receiver.setDaemon(true);
+        receiver.start();
+        sender = new Thread(new Runnable() {
+            public void run() {
+                sendDelayed();
+            }
+        }, "LossyProxy sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            terminated = true;
+            receiver = null;
+            sender = null;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+    }
+
+    public int getPort() {
+        DatagramSocket s = socket;
+        return (s != null && s.isBound()) ? s.getLocalPort() : port;
+    }
+
+    public void run() {
+        byte[] buffer = new byte[65536];
+        DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+        while (!terminated) {
+            dp.setData(buffer);
+            try {
+                socket.receive(dp);
+            } catch (IOException ioe) {
+                break;
+            }
+            if (!dp.getSocketAddress().equals(target)) {
+                client = dp.getSocketAddress();
+                send(dp, target);
+            } else if (client != null && !isLost()) {
+                int queued = getQueueDelay(dp.getLength());
+                if (queued < 0) {
+                    continue;
+                }
+                int delay = queued + delayMillis
+                        + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+                if (delay <= 0) {
+                    send(dp, client);
+                } else {
+                    byte[] data = new byte[dp.getLength()];
+                    System.arraycopy(buffer, dp.getOffset(), data, 0, data.length);
+                    synchronized (queue) {
+                        queue.add(new Delayed(System.currentTimeMillis() + delay, order++, data, client));
+                        queue.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    // the two-state loss model
+    private boolean isLost() {
+        double loss = lossRate;
+        if (loss <= 0) {
+            bad = false;
+        } else if (bad) {
+            bad = random.nextDouble() >= 1 / Math.max(1, burstLength);
+        } else {
+            double toBad = loss / (Math.max(1, burstLength) * (1 - Math.min(loss, 0.99)));
+            bad = random.nextDouble() < toBad;
+        }
+        if (bad) {
+            dropped++;
+        }
+        return bad;
+    }
+
+    /**
+     * the time the datagram waits for the simulated link, or -1 if the
+     * queue is full
+     */
+    private int getQueueDelay(int length) {
+        int rate = rateKbit;
+        if (rate <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        double start = Math.max(now, linkFree);
+        if (start - now > queueMillis) {
+            overflows++;
+            return -1;
+        }
+        // with the IP and UDP headers
+        linkFree = start + (length + 28) * 8.0 / rate;
+        return (int) Math.round(linkFree - now);
+    }
+
+    private void sendDelayed() {
+        DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+        while (!terminated) {
+            Delayed d;
+            synchronized (queue) {
+                d = queue.peek();
+                long wait = (d == null) ? 0 : d.time - System.currentTimeMillis();
+                if (d == null || wait > 0) {
+                    try {
+                        queue.wait(Math.max(wait, 0));
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                    continue;
+                }
+                queue.poll();
+            }
+            dp.setData(d.data);
+            send(dp, d.address);
+        }
+    }
+
+    private void send(DatagramPacket dp, SocketAddress address) {
+        try {
+            dp.setSocketAddress(address);
+            socket.send(dp);
+            forwarded++;
+        } catch (IOException ioe) {
+        }
+    }
+
+    /**
+     * the average fraction of lost packets, 0..1
+     */
+    public void setLossRate(double rate) {
+        lossRate = rate;
+    }
+
+    /**
+     * the average number of packets lost in a row
+     */
+    public void setBurstLength(double packets) {
+        burstLength = packets;
+    }
+
+    public void setDelayMillis(int millis) {
+        delayMillis = millis;
+    }
+
+    /**
+     * the maximum random delay added to each packet
+     */
+    public void setJitterMillis(int millis) {
+        jitterMillis = millis;
+    }
+
+    /**
+     * the bandwidth of the simulated link in KBit/s, or 0 for no limit
+     */
+    public void setRate(int kbit) {
+        rateKbit = kbit;
+    }
+
+    /**
+     * the longest time a datagram can wait for the simulated link
+     */
+    public void setQueueMillis(int millis) {
+        queueMillis = millis;
+    }
+
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public String getStats() {
+        return "forwarded: " + forwarded + ", dropped: " + dropped
+                + ((rateKbit > 0) ? ", queue overflows: " + overflows : "");
+    }
+
+    // a datagram waiting for its release time
+    private static class Delayed implements Comparable<Delayed> {
+
+        private final long time;
+        private final long order;
+        private final byte[] data;
+        private final SocketAddress address;
+
+        Delayed(long time, long order, byte[] data, SocketAddress address) {
+            this.time = time;
+            this.order = order;
+            this.data = data;
+            this.address = address;
+        }
+
+        public int compareTo(Delayed d) {
+            if (time != d.time) {
+                return (time < d.time) ? -1 : 1;
+            }
+            return (order < d.order) ? -1 : ((order == d.order) ? 0 : 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean test = false;
+        int listenPort = Constants.DEFAULT_PORT + 1;
+        String host = "localhost";
+        int targetPort = Constants.DEFAULT_PORT;
+        double loss = 0.05;
+        double burst = 1;
+        int delay = 20;
+        int jitter = 30;
+        int seconds = 30;
+        int rate = 0;
+        int queue = 200;
+        boolean cd = false;
+        int fecMode = UdpStreamServer.FEC_ADAPTIVE;
+        int fecK = 0;
+        int fecD = 1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-test")) {
+                test = true;
+            } else if (args[i].equals("-cd")) {
+                cd = true;
+            } else if (args[i].equals("-rate") && i + 1 < args.length) {
+                rate = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-queue") && i + 1 < args.length) {
+                queue = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-l") && i + 1 < args.length) {
+                listenPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-h") && i + 1 < args.length) {
+                host = args[++i];
+            } else if (args[i].equals("-p") && i + 1 < args.length) {
+                targetPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-loss") && i + 1 < args.length) {
+                loss = Double.parseDouble(args[++i]) / 100;
+            } else if (args[i].equals("-burst") && i + 1 < args.length) {
+                burst = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-delay") && i + 1 < args.length) {
+                delay = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-jitter") && i + 1 < args.length) {
+                jitter = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-fec") && i + 1 < args.length) {
+                String fec = args[++i];
+                if (fec.equals("off")) {
+                    fecMode = UdpStreamServer.FEC_OFF;
+                } else if (fec.equals("auto")) {
+                    fecMode = UdpStreamServer.FEC_ADAPTIVE;
+                } else {
+                    fecMode = UdpStreamServer.FEC_FIXED;
+                    int comma = fec.indexOf(',');
+                    if (comma < 0) {
+                        fecK = Integer.parseInt(fec);
+                    } else {
+                        fecK = Integer.parseInt(fec.substring(0, comma));
+                        fecD = Integer.parseInt(fec.substring(comma + 1));
+                    }
+                }
+            } else {
+                System.out.println("Usage: LossyProxy [-test] [-cd] [-l port] [-h host] [-p port]"
+                        + " [-loss percent] [-burst packets] [-delay ms] [-jitter ms]"
+                        + " [-rate kbit/s] [-queue ms] [-t seconds] [-fec off|auto|k,d]");
+                System.exit(1);
+            }
+        }
+        Constants.VERBOSE = false;
+        Constants.DEBUG = false;
+        UdpStreamServer server = null;
+        if (test) {
+            CircularBuffer source = cd
+                    ? LoadGenerator.startTestSource(new AudioFormat(44100.0f, 16, 2, true, false))
+                    : LoadGenerator.startTestSource();
+            server = new UdpStreamServer(source, 0);
+            server.setFecMode(fecMode);
+            if (fecMode == UdpStreamServer.FEC_FIXED) {
+                server.setFecParameters(fecK, fecD);
+            }
+            server.start();
+            host = "localhost";
+            targetPort = server.getPort();
+            listenPort = 0;
+        }
+        LossyProxy proxy = new LossyProxy(listenPort, new InetSocketAddress(host, targetPort));
+        proxy.setLossRate(loss);
+        proxy.setBurstLength(burst);
+        proxy.setDelayMillis(delay);
+        proxy.setJitterMillis(jitter);
+        proxy.setRate(rate);
+        proxy.setQueueMillis(queue);
+        proxy.start();
+        System.out.println("Proxy on port " + proxy.getPort() + " -> " + host + ":" + targetPort
+                + ", loss " + (loss * 100) + "% in bursts of " + burst + ", delay " + delay
+                + "ms + up to " + jitter + "ms"
+                + ((rate > 0) ? ", " + rate + "KBit/s with " + queue + "ms queue" : ""));
+        if (test) {
+            runTestReceiver(proxy.getPort(), seconds);
+            System.out.println("Server: " + server.getStats());
+            server.stop();
+        } else {
+            Thread.sleep(seconds * 1000L);
+        }
+        System.out.println("Proxy: " + proxy.getStats());
+        proxy.stop();
+        System.exit(0);
+    }
+
+    // subscribe through the proxy, play out into nowhere and report
+    private static void runTestReceiver(int proxyPort, int seconds) throws Exception {
+        UdpReceiver receiver = new UdpReceiver(new DatagramSocket(),
+                new InetSocketAddress("localhost", proxyPort));
+        receiver.start();
+        StreamHeader header = receiver.waitForHeader(Constants.CONNECT_TIMEOUT_MILLIS);
+        if (header == null) {
+            System.out.println("No response from the server.");
+            return;
+        }
+        final JitterBuffer jb = new JitterBuffer(header.getFormat(),
+                Constants.JITTER_MIN_DELAY_MILLIS, Constants.JITTER_MAX_DELAY_MILLIS);
+        receiver.setJitterBuffer(jb);
+        Thread player = new Thread(new Runnable() {
+            public void run() {
+                byte[] b = new byte[4096];
+                try {
+                    while (jb.read(b, 0, b.length) >= 0) {
+                    }
+                } catch (IOException ioe) {
+                }
+            }
+        }, "LossyProxy player");
+        player.setDaemon(true);
+        player.start();
+        for (int i = 0; i < seconds; i++) {
+            Thread.sleep(1000);
+            System.out.println("format " + receiver.getFormatCode() + ", "
+                    + receiver.getFecDecoder().getStats() + ", " + jb.getStats());
+        }
+        FormatAdapter adapter = receiver.getFormatAdapter();
+        if (adapter != null) {
+            System.out.println("Receiver: " + adapter.getStats());
+        }
+        jb.close();
+        receiver.stop();
+    }
+}
+
+/**
+ * * LossyProxy.java **
+ */
@@ -47,6 +47,8 @@ public class MasterModel {
     public MasterModel() {
         m_connectionSettings = new ConnectionSettings(this);
         m_audioSettings = new AudioSettings();
+        // enumerate the devices in the background
+        m_audioSettings.init();
         m_radioModel = new RadioModel(this);
     }
 
@@ -0,0 +1,227 @@
+/*
+ *	MulticastMonitor.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.util.Random;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Joins a multicast group and reports the reception of each receiver every
+ * second: the loss on the network and after FEC, and the statistics of the
+ * jitter buffer. Several receivers join one after the other, so that the
+ * time until a late joiner gets the format announcement can be seen.
+ * <code>-loss</code> drops that percentage of the packets in each
+ * receiver, to exercise FEC and loss concealment.
+ * <p>
+ * With <code>-test</code>, a local multicast UdpStreamServer sends a
+ * generated stream to the group, with telephone bandwidth, or CD quality
+ * with <code>-cd</code>. On a single machine, <code>-i lo</code> keeps the
+ * packets on the loopback interface.
+ * <p>
+ * Usage: java org.jsresources.apps.radio.MulticastMonitor [-test] [-cd]
+ * [-g group] [-p port] [-i interface] [-n receivers] [-join ms]
+ * [-loss percent] [-t seconds]
+ */
+public class MulticastMonitor {
+
+    public static void main(String[] args) throws Exception {
+        boolean test = false;
+        boolean cd = false;
+        String groupName = Constants.MULTICAST_GROUP;
+        int port = Constants.DEFAULT_PORT;
+        String interfaceName = null;
+        int count = 3;
+        int joinMillis = 2000;
+        double loss = 0;
+        int seconds = 10;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-test")) {
+                test = true;
+            } else if (args[i].equals("-cd")) {
+                cd = true;
+            } else if (args[i].equals("-g") && i + 1 < args.length) {
+                groupName = args[++i];
+            } else if (args[i].equals("-p") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-i") && i + 1 < args.length) {
+                interfaceName = args[++i];
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-join") && i + 1 < args.length) {
+                joinMillis = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-loss") && i + 1 < args.length) {
+                loss = Double.parseDouble(args[++i]) / 100;
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("Usage: MulticastMonitor [-test] [-cd] [-g group] [-p port]"
+                        + " [-i interface] [-n receivers] [-join ms] [-loss percent]"
+                        + " [-t seconds]");
+                System.exit(1);
+            }
+        }
+        Constants.VERBOSE = false;
+        Constants.DEBUG = false;
+        InetAddress group = InetAddress.getByName(groupName);
+        NetworkInterface ni = null;
+        if (interfaceName != null) {
+            ni = NetworkInterface.getByName(interfaceName);
+            if (ni == null) {
+                System.out.println("No network interface " + interfaceName);
+                System.exit(1);
+            }
+        }
+        UdpStreamServer server = null;
+        if (test) {
+            CircularBuffer source = cd
+                    ? LoadGenerator.startTestSource(new AudioFormat(44100.0f, 16, 2, true, false))
+                    : LoadGenerator.startTestSource();
+            server = new UdpStreamServer(source, new InetSocketAddress(group, port));
+            server.setNetworkInterface(ni);
+            server.start();
+        }
+        System.out.println("Receiving " + group.getHostAddress() + ":" + port
+                + ((ni != null) ? " on " + ni.getName() : "") + ", " + count
+                + " receivers joining " + joinMillis + "ms apart"
+                + ((loss > 0) ? ", dropping " + (loss * 100) + "%" : ""));
+        Monitor[] monitors = new Monitor[count];
+        long start = System.currentTimeMillis();
+        int joined = 0;
+        for (int s = 1; s <= seconds; s++) {
+            while (joined < count && System.currentTimeMillis() - start >= (long) joined * joinMillis) {
+                monitors[joined] = new Monitor(new LossyReceiver(
+                        MulticastNetwork.joinGroup(group, port, ni), loss));
+                monitors[joined].start();
+                joined++;
+            }
+            Thread.sleep(Math.max(0, start + s * 1000L - System.currentTimeMillis()));
+            for (int i = 0; i < joined; i++) {
+                System.out.println("receiver " + i + ": " + monitors[i].getStats());
+            }
+        }
+        for (int i = 0; i < joined; i++) {
+            monitors[i].stop();
+        }
+        if (server != null) {
+            System.out.println("Server: " + server.getStats());
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    // drops received packets at random, before the loss is measured
+    private static class LossyReceiver extends UdpReceiver {
+
+        private final Random random = new Random();
+        private final double lossRate;
+
+        LossyReceiver(DatagramSocket socket, double lossRate) {
+            super(socket, null);
+            this.lossRate = lossRate;
+            setRequestedFormat(0);
+        }
+
+        protected void handle(AudioPacket packet, long arrivalMillis) throws IOException {
+            if (random.nextDouble() >= lossRate) {
+                super.handle(packet, arrivalMillis);
+            }
+        }
+    }
+
+    // one receiver that waits for the format, and plays out into nowhere
+    private static class Monitor implements Runnable {
+
+        private final UdpReceiver receiver;
+        private final long joinTime = System.currentTimeMillis();
+        private volatile long formatMillis = -1;
+        private volatile JitterBuffer jitterBuffer;
+
+        Monitor(UdpReceiver receiver) {
+            this.receiver = receiver;
+        }
+
+        void start() {
+            receiver.start();
+            Thread t = new Thread(this, "MulticastMonitor player");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void stop() {
+            JitterBuffer jb = jitterBuffer;
+            if (jb != null) {
+                jb.close();
+            }
+            receiver.stop();
+        }
+
+        public void run() {
+            try {
+                StreamHeader header = receiver.waitForHeader(Constants.CONNECT_TIMEOUT_MILLIS);
+                if (header == null) {
+                    return;
+                }
+                formatMillis = System.currentTimeMillis() - joinTime;
+                JitterBuffer jb = new JitterBuffer(header.getFormat(),
+                        Constants.JITTER_MIN_DELAY_MILLIS, Constants.JITTER_MAX_DELAY_MILLIS);
+                jitterBuffer = jb;
+                receiver.setJitterBuffer(jb);
+                byte[] b = new byte[4096];
+                while (jb.read(b, 0, b.length) >= 0) {
+                }
+            } catch (IOException ioe) {
+            }
+        }
+
+        String getStats() {
+            JitterBuffer jb = jitterBuffer;
+            if (jb == null) {
+                return (System.currentTimeMillis() - joinTime < Constants.CONNECT_TIMEOUT_MILLIS)
+                        ? "waiting for the format" : "no format received";
+            }
+            return "format after " + formatMillis + "ms, " + receiver.getStats();
+        }
+    }
+}
+
+/**
+ * * MulticastMonitor.java **
+ */
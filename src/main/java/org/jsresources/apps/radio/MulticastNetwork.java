@@ -0,0 +1,132 @@
+/*
+ *	MulticastNetwork.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Network over UDP multicast, for many receivers in a local network. When
+ * listening, the circular buffer is sent once to the multicast group of
+ * the connection settings, instead of once per subscriber, so the network
+ * load does not grow with the number of receivers. When connected, the
+ * receiver joins the group given as the address: it does not contact the
+ * server and starts with the next format announcement. As with UdpNetwork,
+ * a JitterBuffer reorders the packets and conceals lost ones.
+ */
+public class MulticastNetwork extends UdpNetwork {
+
+    public MulticastNetwork(MasterModel masterModel) {
+        super(masterModel);
+    }
+
+    /**
+     * join the multicast group addr on port
+     */
+    protected UdpReceiver createReceiver(InetAddress addr, int port) throws IOException {
+        UdpReceiver r = new UdpReceiver(joinGroup(addr, port, getNetworkInterface()), null);
+        // there is only the source format
+        r.setRequestedFormat(0);
+        if (VERBOSE) {
+            out("MulticastNetwork: joined " + addr + ":" + port);
+        }
+        return r;
+    }
+
+    /**
+     * the server that sends to the multicast group of the connection
+     * settings, on the port of the connection settings
+     */
+    protected UdpStreamServer createServer() throws IOException {
+        InetAddress group = InetAddress.getByName(getConnectionSettings().getMulticastGroup());
+        if (!group.isMulticastAddress()) {
+            throw new IOException("not a multicast group: " + group);
+        }
+        if (group.equals(getPeer())) {
+            // the receiver would get its own packets, too
+            throw new IOException("cannot relay to the received group " + group);
+        }
+        UdpStreamServer s = new UdpStreamServer(getMasterModel().getRadioModel().getCircularBuffer(),
+                new InetSocketAddress(group, getConnectionSettings().getPort()));
+        s.setNetworkInterface(getNetworkInterface());
+        return s;
+    }
+
+    /**
+     * a socket on port that joined the multicast group
+     *
+     * @param ni the interface to join on, or null for the default
+     */
+    static MulticastSocket joinGroup(InetAddress group, int port, NetworkInterface ni)
+            throws IOException {
+        if (!group.isMulticastAddress()) {
+            throw new IOException("not a multicast group: " + group);
+        }
+        MulticastSocket s = new MulticastSocket(port);
+        try {
+            if (UDP_RECEIVE_BUFFER_SIZE > 0) {
+                s.setReceiveBufferSize(UDP_RECEIVE_BUFFER_SIZE);
+            }
+            // a null interface joins on the default one
+            s.joinGroup(new InetSocketAddress(group, port), ni);
+        } catch (IOException ioe) {
+            s.close();
+            throw ioe;
+        }
+        return s;
+    }
+
+    // the interface of the connection settings, or null for the default
+    private NetworkInterface getNetworkInterface() throws IOException {
+        String name = getConnectionSettings().getMulticastInterface();
+        if (name == null) {
+            return null;
+        }
+        NetworkInterface ni = NetworkInterface.getByName(name);
+        if (ni == null) {
+            throw new IOException("no network interface " + name);
+        }
+        return ni;
+    }
+}
+
+/**
+ * * MulticastNetwork.java **
+ */
@@ -0,0 +1,208 @@
+/*
+ *	PacketConverter.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import javax.sound.sampled.AudioFormat;
+import org.jsresources.utils.audio.PcmConverter;
+
+/**
+ * Converts the audio packets of one of the formats a UdpStreamServer
+ * offers to the format of the receiver's JitterBuffer. The sample rate
+ * converter carries its filter state from one packet to the next, so the
+ * packets are converted in sequence: a packet that arrives ahead of a
+ * missing one waits until the missing one arrives, e.g. rebuilt by FEC, or
+ * until the wait time is over. Then the conversion restarts after the gap,
+ * which the JitterBuffer conceals.
+ * <p>
+ * The converted packets keep their sequence numbers, send times and
+ * arrival times; their stream positions are in bytes of the target format.
+ * Not thread safe, used by the receiver thread.
+ */
+class PacketConverter {
+
+    // the most packets that wait for a missing one
+    private static final int SLOTS = 16;
+
+    private final AudioFormat sourceFormat;
+    private final AudioFormat targetFormat;
+    private final int targetCode;
+    private final PcmConverter converter;
+    private final byte[] buffer;
+    private final AudioPacket converted = new AudioPacket();
+    private final AudioPacket[] waiting = new AudioPacket[SLOTS];
+    // the arrival times of the waiting packets, 0 for an empty slot
+    private final long[] waitingArrival = new long[SLOTS];
+    private int waitingCount;
+
+    private boolean started;
+    // the next packet to convert, and its position in the target format
+    private int nextSeq;
+    private long position;
+
+    // statistics
+    private long packets;
+    private long gaps;
+
+    /**
+     * @param targetCode the format code of the converted packets
+     */
+    PacketConverter(AudioFormat sourceFormat, AudioFormat targetFormat, int targetCode) {
+        this.sourceFormat = sourceFormat;
+        this.targetFormat = targetFormat;
+        this.targetCode = targetCode;
+        converter = new PcmConverter(sourceFormat, targetFormat, AudioPacket.MAX_AUDIO_PAYLOAD);
+        buffer = new byte[converter.getMaxOutputBytes()];
+        for (int i = 0; i < SLOTS; i++) {
+            waiting[i] = new AudioPacket();
+        }
+    }
+
+    AudioFormat getSourceFormat() {
+        return sourceFormat;
+    }
+
+    AudioFormat getTargetFormat() {
+        return targetFormat;
+    }
+
+    /**
+     * Converts the packet, and the waiting packets that follow it, into
+     * the jitter buffer.
+     *
+     * @param waitMillis how long packets wait for a missing one
+     */
+    void put(AudioPacket p, long arrivalMillis, int waitMillis, JitterBuffer jb) {
+        int seq = p.getSequence();
+        int ahead = seq - nextSeq;
+        if (!started || ahead >= SLOTS) {
+            // the first packet, or the gap is too long to wait
+            discardWaiting();
+            convert(p, arrivalMillis, true, jb);
+        } else if (ahead == 0) {
+            convert(p, arrivalMillis, false, jb);
+            convertWaiting(false, jb);
+        } else if (ahead > 0) {
+            int slot = seq & (SLOTS - 1);
+            if (waitingArrival[slot] == 0) {
+                waiting[slot].copyFrom(p);
+                waitingArrival[slot] = arrivalMillis;
+                waitingCount++;
+            }
+        }
+        // else: too late, the conversion went on without it
+        if (waitingCount > 0 && arrivalMillis - getOldestArrival() >= waitMillis) {
+            // give up on the missing packets
+            gaps++;
+            while (waitingArrival[nextSeq & (SLOTS - 1)] == 0) {
+                nextSeq++;
+            }
+            convertWaiting(true, jb);
+        }
+    }
+
+    // convert the waiting packets from nextSeq on
+    private void convertWaiting(boolean restart, JitterBuffer jb) {
+        while (waitingCount > 0) {
+            int slot = nextSeq & (SLOTS - 1);
+            if (waitingArrival[slot] == 0 || waiting[slot].getSequence() != nextSeq) {
+                break;
+            }
+            long arrival = waitingArrival[slot];
+            waitingArrival[slot] = 0;
+            waitingCount--;
+            convert(waiting[slot], arrival, restart, jb);
+            restart = false;
+        }
+    }
+
+    private long getOldestArrival() {
+        long oldest = Long.MAX_VALUE;
+        for (long arrival : waitingArrival) {
+            if (arrival != 0 && arrival < oldest) {
+                oldest = arrival;
+            }
+        }
+        return oldest;
+    }
+
+    private void discardWaiting() {
+        for (int i = 0; i < SLOTS; i++) {
+            waitingArrival[i] = 0;
+        }
+        waitingCount = 0;
+    }
+
+    private void convert(AudioPacket p, long arrivalMillis, boolean restart, JitterBuffer jb) {
+        if (restart) {
+            converter.reset();
+            position = UdpStreamServer.mapPosition(p.getPosition(), sourceFormat, targetFormat);
+        }
+        int n = converter.process(p.getData(), 0, p.getLength(), buffer, 0);
+        started = true;
+        nextSeq = p.getSequence() + 1;
+        packets++;
+        if (n > AudioPacket.MAX_PAYLOAD) {
+            // cannot happen with the server's formats: a packet carries
+            // less than MAX_AUDIO_PAYLOAD of the source format, and they
+            // need less bandwidth than the source format
+            return;
+        }
+        converted.setType(AudioPacket.TYPE_AUDIO);
+        converted.setSequence(p.getSequence());
+        converted.setPosition(position);
+        converted.setSendTime(p.getSendTime());
+        converted.setFormat(targetCode);
+        System.arraycopy(buffer, 0, converted.getData(), 0, n);
+        converted.setLength(n);
+        position += n;
+        jb.put(converted, arrivalMillis);
+    }
+
+    long getPackets() {
+        return packets;
+    }
+
+    /**
+     * the number of times the conversion restarted after missing packets
+     */
+    long getGaps() {
+        return gaps;
+    }
+}
+
+/**
+ * * PacketConverter.java **
+ */
@@ -39,6 +39,7 @@ package org.jsresources.apps.radio;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.List;
 import javax.swing.*;
 import javax.swing.event.*;
 import javax.sound.sampled.*;
@@ -51,14 +52,15 @@ import static org.jsresources.apps.radio.Constants.*; // $$ static import
 
 public class PanelAudio extends JPanel implements ActionListener, ItemListener,
         ChangeListener, PropertyChangeListener,
-        RadioModel.StatusListener {
+        RadioModel.StatusListener, AudioSettings.Listener {
 
-    private JComboBox[] mixerSelector = new JComboBox[2];
+    private JComboBox<String>[] mixerSelector = newComboBoxes(2);
     private JProgressBar[] volumeMeter = new JProgressBar[2];
     private JSlider[] volumeSlider = new JSlider[2];
-    private JComboBox[] volumePort = new JComboBox[2];
+    private JComboBox<String>[] volumePort = newComboBoxes(2);
 
     private JComboBox[] bufferSelector = new JComboBox[2];
+    private JCheckBox[] adaptiveCheckBox = new JCheckBox[2];
 
     private MasterModel master;
 
@@ -70,6 +72,9 @@ public class PanelAudio extends JPanel implements ActionListener, ItemListener,
         createGUI(1, "Speaker");
 
         getRadioModel().addPropertyChangeListener(this);
+        getAudioSettings().addListener(this);
+        // the devices may have been enumerated while creating the GUI
+        updateDevices();
     }
 
     private void createGUI(int d, String title) {
@@ -79,7 +84,7 @@ public class PanelAudio extends JPanel implements ActionListener, ItemListener,
         p.add(new HoriLine());
 
         p.add(new JLabel("Mixer:"));
-        mixerSelector[d] = new JComboBox(getAudioSettings().getMixers(d).toArray());
+        mixerSelector[d] = new JComboBox<String>(newModel(getAudioSettings().getMixers(d)));
         mixerSelector[d].addItemListener(this);
         p.add(mixerSelector[d]);
         p.add(new HoriLine());
@@ -93,7 +98,7 @@ public class PanelAudio extends JPanel implements ActionListener, ItemListener,
         p.add(volumeSlider[d]);
         p.add(new HoriLine());
 
-        volumePort[d] = new JComboBox(getAudioSettings().getPorts(d).toArray());
+        volumePort[d] = new JComboBox<String>(newModel(getAudioSettings().getPorts(d)));
         volumePort[d].addItemListener(this);
         p.add(volumePort[d]);
         p.add(new HoriLine());
@@ -103,6 +108,11 @@ public class PanelAudio extends JPanel implements ActionListener, ItemListener,
         bufferSelector[d].setSelectedIndex(getAudioSettings().getBufferSizeIndex(d));
         bufferSelector[d].addItemListener(this);
         p.add(bufferSelector[d]);
+        adaptiveCheckBox[d] = new JCheckBox("Automatic");
+        adaptiveCheckBox[d].setSelected(getAudioSettings().isAdaptiveBufferSize(d));
+        adaptiveCheckBox[d].addActionListener(this);
+        p.add(adaptiveCheckBox[d]);
+        bufferSelector[d].setEnabled(!adaptiveCheckBox[d].isSelected());
 
         add(p);
         // show current port
@@ -125,13 +135,49 @@ public class PanelAudio extends JPanel implements ActionListener, ItemListener,
         return getRadioModel().getAudio(d);
     }
 
+    // there are no arrays of a generic type
+    @SuppressWarnings("unchecked")
+    private static JComboBox<String>[] newComboBoxes(int n) {
+        return (JComboBox<String>[]) new JComboBox<?>[n];
+    }
+
+    private static DefaultComboBoxModel<String> newModel(List<String> names) {
+        return new DefaultComboBoxModel<String>(names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * fill the mixer and port lists with the enumerated devices
+     */
+    private void updateDevices() {
+        for (int d = 0; d < 2; d++) {
+            mixerSelector[d].removeItemListener(this);
+            mixerSelector[d].setModel(newModel(getAudioSettings().getMixers(d)));
+            mixerSelector[d].setSelectedIndex(getAudioSettings().getSelMixerIndex(d));
+            mixerSelector[d].addItemListener(this);
+            volumePort[d].removeItemListener(this);
+            volumePort[d].setModel(newModel(getAudioSettings().getPorts(d)));
+            volumePort[d].addItemListener(this);
+            initNewPort(d);
+        }
+    }
+
+    public void devicesChanged(AudioSettings settings) {
+        // called from the enumeration thread
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                updateDevices();
+            }
+        });
+    }
+
     private void initNewPort(int d) {
         int pIndex = getAudioSettings().getSelPortIndex(d);
         Port port = getAudioSettings().getSelPort(d);
         FloatControl c = getAudioSettings().getSelVolControl(d);
         volumeSlider[d].setEnabled(port != null && c != null);
         updateVolumeSlider(d);
-        if (volumePort[d].getSelectedIndex() != pIndex) {
+        if (volumePort[d].getSelectedIndex() != pIndex
+                && pIndex < volumePort[d].getItemCount()) {
             volumePort[d].setSelectedIndex(pIndex);
         }
     }
@@ -169,7 +215,12 @@ public class PanelAudio extends JPanel implements ActionListener, ItemListener,
 
     private void initNewBufferSize(int d) {
         try {
-            getAudio(d).setBufferSizeMillis(getAudioSettings().getBufferSizeMillis(d));
+            if (getAudioSettings().isAdaptiveBufferSize(d)) {
+                getAudio(d).setAdaptiveBufferSize(BUFFER_SIZE_MILLIS);
+            } else {
+                getAudio(d).setAdaptiveBufferSize(null);
+                getAudio(d).setBufferSizeMillis(getAudioSettings().getBufferSizeMillis(d));
+            }
             if (d == DIR_MIC) {
                 //TODO: getRadioModel().initAudioStream();
             }
@@ -241,6 +292,18 @@ public class PanelAudio extends JPanel implements ActionListener, ItemListener,
     }
 
     public void actionPerformed(ActionEvent e) {
+        int d = -1;
+        if (e.getSource() == adaptiveCheckBox[0]) {
+            d = 0;
+        } else if (e.getSource() == adaptiveCheckBox[1]) {
+            d = 1;
+        }
+        if (d >= 0) {
+            boolean adaptive = adaptiveCheckBox[d].isSelected();
+            getAudioSettings().setAdaptiveBufferSize(d, adaptive);
+            bufferSelector[d].setEnabled(!adaptive);
+            initNewBufferSize(d);
+        }
     }
 
     public void propertyChange(PropertyChangeEvent e) {
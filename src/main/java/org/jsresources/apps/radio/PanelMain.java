@@ -62,6 +62,10 @@ public class PanelMain
     private JButton m_startButton;
     private JButton m_rewindButton;
     private JButton m_forwardButton;
+    private JButton m_catchUpButton;
+    private JButton m_latencyButton;
+    private JButton m_serveButton;
+    private JButton m_httpButton;
     private JButton m_recButton;
 
     private JProgressBar m_volumeMeter;
@@ -70,6 +74,7 @@ public class PanelMain
     private JLabel m_playback;
     private JLabel m_realtime;
     private JLabel m_recording;
+    private JLabel m_title;
 
     private JProgressBar m_playProgress;
     private JProgressBar m_recorderProgress;
@@ -104,6 +109,30 @@ public class PanelMain
         m_forwardButton.setEnabled(false);
         panel.add(m_forwardButton);
 
+        m_catchUpButton = new JButton("Catch Up");
+        m_catchUpButton.addActionListener(this);
+        m_catchUpButton.setActionCommand("catchup");
+        m_catchUpButton.setEnabled(false);
+        panel.add(m_catchUpButton);
+
+        m_latencyButton = new JButton("Measure Latency");
+        m_latencyButton.addActionListener(this);
+        m_latencyButton.setActionCommand("latency");
+        m_latencyButton.setEnabled(false);
+        panel.add(m_latencyButton);
+
+        m_serveButton = new JButton("Broadcast");
+        m_serveButton.addActionListener(this);
+        m_serveButton.setActionCommand("serve");
+        m_serveButton.setEnabled(false);
+        panel.add(m_serveButton);
+
+        m_httpButton = new JButton("HTTP Server");
+        m_httpButton.addActionListener(this);
+        m_httpButton.setActionCommand("http");
+        m_httpButton.setEnabled(false);
+        panel.add(m_httpButton);
+
         m_recButton = new JButton("Record");
         m_recButton.addActionListener(this);
         m_recButton.setActionCommand("record");
@@ -167,6 +196,8 @@ public class PanelMain
         p2.add(m_recorderProgress);
         panel.add(p2, BorderLayout.CENTER);
         add(panel);
+        m_title = new JLabel(" ");
+        add(m_title);
 
         add(new HoriLine());
 
@@ -217,13 +248,39 @@ public class PanelMain
                     // use LINE IN as input
                     getRadioModel().startCapture();
                 } else {
-                    Debug.out("Capture from shoutcast not implemented!");
+                    // the URL is the last word of the entry
+                    String entry = (String) m_urlList.getSelectedValue();
+                    getRadioModel().start(entry.substring(entry.lastIndexOf(' ') + 1));
                 }
             }
         } else if (strActionCommand.equals("forward")) {
             getRadioModel().wind(DIR_SPK, WIND_MILLIS);
         } else if (strActionCommand.equals("rewind")) {
             getRadioModel().wind(DIR_SPK, -WIND_MILLIS);
+        } else if (strActionCommand.equals("catchup")) {
+            getRadioModel().catchUp();
+        } else if (strActionCommand.equals("latency")) {
+            if (getRadioModel().isMeasuringLatency()) {
+                getRadioModel().stopLatencyMeasurement();
+                m_latencyButton.setText("Measure Latency");
+            } else {
+                getRadioModel().startLatencyMeasurement();
+                m_latencyButton.setText("Stop Measuring");
+            }
+        } else if (strActionCommand.equals("serve")) {
+            if (getRadioModel().isServing()) {
+                getRadioModel().stopServer();
+            } else {
+                getRadioModel().startServer();
+            }
+            m_serveButton.setText(getRadioModel().isServing() ? "Stop Broadcast" : "Broadcast");
+        } else if (strActionCommand.equals("http")) {
+            if (getRadioModel().isHttpServing()) {
+                getRadioModel().stopHttpServer();
+            } else {
+                getRadioModel().startHttpServer();
+            }
+            m_httpButton.setText(getRadioModel().isHttpServing() ? "Stop HTTP" : "HTTP Server");
         }
 
     }
@@ -276,6 +333,15 @@ public class PanelMain
             m_recButton.setEnabled(newValue);
             m_rewindButton.setEnabled(newValue);
             m_forwardButton.setEnabled(newValue);
+            m_catchUpButton.setEnabled(newValue);
+            m_latencyButton.setEnabled(newValue);
+            m_serveButton.setEnabled(newValue);
+            m_httpButton.setEnabled(newValue);
+            if (!newValue) {
+                m_latencyButton.setText("Measure Latency");
+                m_serveButton.setText("Broadcast");
+                m_httpButton.setText("HTTP Server");
+            }
             if (newValue) {
                 m_startButton.setText("Stop");
                 //displayStatus(0,0);
@@ -325,6 +391,14 @@ public class PanelMain
             }
             m_recorderProgress.setValue((int) (((long) rl) * 1000 / ((long) circBufSize)));
         }
+        // the title of what is playing, if the stream has titles
+        String title = cb.getSpeakerTitle();
+        if (title == null) {
+            title = " ";
+        }
+        if (!title.equals(m_title.getText())) {
+            m_title.setText(title);
+        }
     }
 }
 
@@ -52,6 +52,9 @@ public class PanelSettings extends JPanel implements PropertyChangeListener, Ite
     private MasterModel m_masterModel;
     private JComboBox m_qualityComboBox;
     private JComboBox m_circbufComboBox;
+    private JCheckBox m_compressCheckBox;
+    private JCheckBox m_driftCheckBox;
+    private JComboBox m_connectionComboBox;
 
     public PanelSettings(MasterModel masterModel) {
         m_masterModel = masterModel;
@@ -67,6 +70,18 @@ public class PanelSettings extends JPanel implements PropertyChangeListener, Ite
         m_circbufComboBox = new JComboBox(CIRCBUF_NAMES);
         m_circbufComboBox.addItemListener(this);
         add(m_circbufComboBox);
+        m_compressCheckBox = new JCheckBox("Compress buffer (4 times longer, lossy)");
+        m_compressCheckBox.addItemListener(this);
+        add(m_compressCheckBox);
+        m_driftCheckBox = new JCheckBox("Compensate clock drift (resample playback)");
+        m_driftCheckBox.addItemListener(this);
+        add(m_driftCheckBox);
+
+        add(new HoriLine());
+        add(new JLabel("Broadcast over:"));
+        m_connectionComboBox = new JComboBox(CONNECTION_TYPE_NAMES);
+        m_connectionComboBox.addItemListener(this);
+        add(m_connectionComboBox);
 
         init();
         getRadioModel().addPropertyChangeListener(this);
@@ -89,13 +104,19 @@ public class PanelSettings extends JPanel implements PropertyChangeListener, Ite
     }
 
     public void itemStateChanged(ItemEvent e) {
-        if (e.getStateChange() == ItemEvent.SELECTED) {
+        if (e.getSource() == m_compressCheckBox) {
+            getAudioSettings().setCircBufCompressed(m_compressCheckBox.isSelected());
+        } else if (e.getSource() == m_driftCheckBox) {
+            getAudioSettings().setDriftCompensation(m_driftCheckBox.isSelected());
+        } else if (e.getStateChange() == ItemEvent.SELECTED) {
             if (e.getSource() == m_qualityComboBox) {
                 int nFormatCode = FORMAT_CODES[m_qualityComboBox.getSelectedIndex()];
                 getAudioSettings().setPreferredAudioFormatCode(nFormatCode);
             } else if (e.getSource() == m_circbufComboBox) {
                 int millis = CIRCBUF_MILLIS[m_circbufComboBox.getSelectedIndex()];
                 getAudioSettings().setCircBufMillis(millis);
+            } else if (e.getSource() == m_connectionComboBox) {
+                getConnectionSettings().setConnectionType(m_connectionComboBox.getSelectedIndex());
             }
         }
     }
@@ -111,6 +132,8 @@ public class PanelSettings extends JPanel implements PropertyChangeListener, Ite
         }
         m_qualityComboBox.setSelectedIndex(nIndex);
         m_circbufComboBox.setSelectedIndex(CIRCBUF_INDEX_DEFAULT);
+        m_driftCheckBox.setSelected(getAudioSettings().isDriftCompensation());
+        m_connectionComboBox.setSelectedIndex(getConnectionSettings().getConnectionType());
     }
 
     public void propertyChange(PropertyChangeEvent e) {
@@ -118,6 +141,8 @@ public class PanelSettings extends JPanel implements PropertyChangeListener, Ite
         if (e.getPropertyName().equals(STARTED_PROPERTY)) {
             m_qualityComboBox.setEnabled(!newValue);
             m_circbufComboBox.setEnabled(!newValue);
+            m_compressCheckBox.setEnabled(!newValue);
+            m_driftCheckBox.setEnabled(!newValue);
         }
     }
 
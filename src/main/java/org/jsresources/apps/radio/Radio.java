@@ -39,7 +39,6 @@ import java.awt.Dimension;
 import java.awt.Toolkit;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import javax.swing.JComponent;
 import javax.swing.JFrame;
 
 public class Radio {
@@ -53,14 +52,16 @@ public class Radio {
         JFrame frame = new JFrame();
         frame.setTitle("Radio");
         frame.setSize(new Dimension(600, 500));
+        final RadioPane tabbedPane = new RadioPane();
         WindowAdapter windowAdapter = new WindowAdapter() {
             public void windowClosing(WindowEvent we) {
+                // complete the stations' recordings
+                tabbedPane.close();
                 System.exit(0);
             }
         };
         frame.addWindowListener(windowAdapter);
 
-        JComponent tabbedPane = new RadioPane();
         frame.getContentPane().add(tabbedPane);
 
 		//Validate frames that have preset sizes
@@ -45,12 +45,12 @@ import java.io.DataOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 
-import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import java.util.*;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.sound.sampled.*;
 import org.jsresources.utils.audio.*;
 
@@ -69,11 +69,19 @@ public class RadioModel {
     private PropertyChangeSupport m_propertyChangeSupport;
     private Network m_network;
     private DataInputStream m_receiveStream;
+    private StreamReceiver m_receiver;
+    private IcySource m_icySource;
+    private HttpStreamServer m_httpServer;
+    // the stations that run in the background, by name
+    private final Map<String, Station> m_stations = new LinkedHashMap<String, Station>();
+    // the format of the received stream
+    private AudioFormat m_receiveFormat;
     private AsynchronousRecorder recorder;
 
     // audio related: owned by RadioModel
     private AudioBase[] audio = new AudioBase[2];
     private CircularBuffer circBuf;
+    private LatencyProbe latencyProbe = new LatencyProbe();
     private boolean m_audioActive;
 
     private String m_url; // current shoutcast server
@@ -92,6 +100,7 @@ public class RadioModel {
                 getAudioSettings().getSelMixer(DIR_SPK),
                 getAudioSettings().getBufferSizeMillis(DIR_SPK));
         circBuf = new CircularBuffer();
+        m_network = new TcpNetwork(masterModel);
         m_audioActive = false;
     }
 
@@ -111,6 +120,29 @@ public class RadioModel {
         return m_network;
     }
 
+    /**
+     * the network of the connection type. The current network is replaced
+     * if it is of another type.
+     */
+    private Network getNetwork(int connectionType) {
+        Network n;
+        if (connectionType == CONNECTION_TYPE_MULTICAST) {
+            n = (m_network instanceof MulticastNetwork) ? m_network
+                    : new MulticastNetwork(getMasterModel());
+        } else if (connectionType == CONNECTION_TYPE_UDP) {
+            n = (m_network.getClass() == UdpNetwork.class) ? m_network
+                    : new UdpNetwork(getMasterModel());
+        } else {
+            n = (m_network instanceof TcpNetwork) ? m_network
+                    : new TcpNetwork(getMasterModel());
+        }
+        if (n != m_network) {
+            m_network.disconnect();
+            m_network = n;
+        }
+        return m_network;
+    }
+
     public AudioBase getAudio(int d) {
         return audio[d];
     }
@@ -131,6 +163,7 @@ public class RadioModel {
         m_url = sourceURL;
         try {
             if (isSourceCapture()) {
+                circBuf.setCompressed(getAudioSettings().isCircBufCompressed());
                 circBuf.init(getCircBufFormat(), getAudioSettings().getCircBufMillis());
                 Debug.out("Starting circular buffer with this format:");
                 Debug.out("   " + circBuf.getFormat());
@@ -138,17 +171,26 @@ public class RadioModel {
                 startAudio(DIR_MIC);
                 initAudioOutputStream();
             } else {
-                // TODO: start network connection
-                throw new Exception("Not implemented");
-			// TODO: connect connection with circ buffer
-                // can only init circ buffer after connection is established
-                //circBuf.init(getCircBufFormat(), getAudioSettings().getCircBufMillis());
-                //notifyConnection();
+                SourceURL source = new SourceURL(sourceURL, getConnectionSettings().getPort());
+                if (source.isIcy()) {
+                    startIcy(source);
+                } else {
+                    startReceiving(source);
+                }
             }
             //Debug.out("audio out: " + getAudio(DIR_SPK));
+            ((AudioPlayback) getAudio(DIR_SPK)).setDriftCompensation(
+                    getAudioSettings().isDriftCompensation());
             startAudio(DIR_SPK);
-            // connect DIR_SPK with circular buffer
-            ((AudioPlayback) getAudio(DIR_SPK)).setAudioInputStream(circBuf.getSpeakerAIS());
+            // for network streams, the speaker is connected when prebuffered
+            if (m_receiver != null) {
+                m_receiver.start();
+            } else if (m_icySource != null) {
+                m_icySource.start(circBuf, getConnectionSettings().getPrebufferMillis());
+            } else {
+                // connect DIR_SPK with circular buffer
+                ((AudioPlayback) getAudio(DIR_SPK)).setAudioInputStream(circBuf.getSpeakerAIS());
+            }
             setAudioActive(true);
         } catch (Exception e) {
             Debug.out(e);
@@ -158,11 +200,26 @@ public class RadioModel {
         notifyStarted();
     }
 
+    /**
+     * Stop the speaker's source, the servers and the recording. The
+     * background stations are independent of the speaker and keep running:
+     * see stopStations().
+     */
     public void stop() {
+        if (isMeasuringLatency()) {
+            stopLatencyMeasurement();
+        }
+        AudioPlayback playback = (AudioPlayback) getAudio(DIR_SPK);
+        if (playback.isDriftCompensation() && playback.getDriftEstimator().getUpdates() > 0) {
+            Debug.out("playback " + playback.getDriftEstimator().getStats());
+        }
         Debug.out("closing audio...");
         closeAudio();
         Debug.out("...closed");
         stopRecording();
+        stopServer();
+        stopHttpServer();
+        stopReceiving();
         if (isConnected()) {
             Debug.out("diconnecting network...");
             getNetwork().disconnect();
@@ -185,19 +242,60 @@ public class RadioModel {
         if (recorder != null) {
             stopRecording();
         }
-        AudioFileFormat.Type afft = getAudioSettings().getPreferredAudioFileType();
-        AudioFormat prefFormat = getAudioSettings().getPreferredAudioFormat();
-        AudioInputStream ais = circBuf.getRecorderAIS();
-        // convert stream, if necessary
-        if (!AudioFormats.matches(ais.getFormat(), prefFormat)) {
-            // this may throw an exception
-            ais = AudioSystem.getAudioInputStream(prefFormat, ais);
+        startRecorder(filename, circBuf.getRecorderAIS());
+    }
+
+    /**
+     * record the audio captured between the wall clock times
+     * <code>fromMillis</code> and <code>toMillis</code>. The part that is
+     * already in the circular buffer is written as fast as possible.
+     */
+    public synchronized void startRecording(String filename, long fromMillis, long toMillis) throws Exception {
+        if (recorder != null) {
+            stopRecording();
         }
-        recorder = new AsynchronousRecorder(filename, ais, afft);
+        startRecorder(filename, circBuf.getRangeAIS(fromMillis, toMillis));
+    }
+
+    /**
+     * Save the audio captured between the wall clock times
+     * <code>fromMillis</code> and <code>toMillis</code> to a file. The range
+     * is frozen in the circular buffer immediately and written in the
+     * background as fast as possible, independently of the recorder.
+     *
+     * @return the recorder writing the file, e.g. to check when it is done
+     */
+    public AsynchronousRecorder saveSnapshot(String filename, long fromMillis, long toMillis) throws Exception {
+        AsynchronousRecorder snapshot = createRecorder(filename,
+                circBuf.getSnapshotAIS(fromMillis, toMillis));
+        snapshot.start();
+        return snapshot;
+    }
+
+    /**
+     * save the last <code>millis</code> milliseconds to a file
+     *
+     * @see #saveSnapshot(String, long, long)
+     */
+    public AsynchronousRecorder saveLast(String filename, int millis) throws Exception {
+        long newest = circBuf.getNewestTime();
+        return saveSnapshot(filename, newest - millis, newest);
+    }
+
+    private void startRecorder(String filename, AudioInputStream ais) throws Exception {
+        recorder = createRecorder(filename, ais);
         recorder.start();
         notifyRecording();
     }
 
+    private AsynchronousRecorder createRecorder(String filename, AudioInputStream ais) throws Exception {
+        AudioFileFormat.Type afft = getAudioSettings().getPreferredAudioFileType();
+        AudioFormat prefFormat = getAudioSettings().getPreferredAudioFormat();
+        // convert stream, if necessary. This may throw an exception
+        ais = FormatConversions.getAudioInputStream(prefFormat, ais);
+        return new AsynchronousRecorder(filename, ais, afft);
+    }
+
     public synchronized void stopRecording() {
         if (recorder != null) {
             recorder.stop();
@@ -319,7 +417,7 @@ public class RadioModel {
     /* the format of the incoming stream -- either from Line IN, or
      * from shoutcast */
     public AudioFormat getSourceFormat() {
-        if (m_network == null || isSourceCapture()) {
+        if (m_receiveFormat == null || isSourceCapture()) {
             // for capture, use the recording format
             AudioFormat prefFormat = getAudioSettings().getPreferredAudioFormat();
             if (AudioUtils.isPCM(prefFormat)) {
@@ -331,9 +429,8 @@ public class RadioModel {
                         false); // big endian
             }
         } else {
-		// TODO
-            // return Network.getAudioFormat();
-            return null;
+            // the format of the received stream
+            return m_receiveFormat;
         }
     }
 
@@ -360,6 +457,298 @@ public class RadioModel {
         }
     }
 
+    /**
+     * play slightly faster until the speaker is close to realtime again
+     */
+    public void catchUp() {
+        ((AudioPlayback) getAudio(DIR_SPK)).startCatchUp(CATCH_UP_TARGET_MILLIS);
+    }
+
+    public boolean isCatchingUp() {
+        return ((AudioPlayback) getAudio(DIR_SPK)).isCatchingUp();
+    }
+
+    /**
+     * start measuring the latency from line in through the circular buffer
+     * to the speaker, by mixing short chirps into the captured audio
+     */
+    public void startLatencyMeasurement() {
+        latencyProbe.start((AudioCapture) getAudio(DIR_MIC),
+                           (AudioPlayback) getAudio(DIR_SPK));
+        Debug.out("measuring latency...");
+    }
+
+    /**
+     * stop measuring the latency and print the results
+     */
+    public LatencyProbe stopLatencyMeasurement() {
+        latencyProbe.stop();
+        Debug.out(latencyProbe.getReport());
+        return latencyProbe;
+    }
+
+    public boolean isMeasuringLatency() {
+        return latencyProbe.isRunning();
+    }
+
+    /**
+     * move the speaker to the audio captured at the wall clock time
+     * <code>timeMillis</code>
+     */
+    public void seek(long timeMillis) {
+        if (!circBuf.seek(true, timeMillis)) {
+            Debug.out("cannot seek: no time information in the circular buffer");
+        }
+    }
+
+    /**
+     * stream the circular buffer to listeners on the network
+     */
+    public void startServer() {
+        // while receiving, relay over the same transport
+        Network n = isConnected() ? getNetwork()
+                : getNetwork(getConnectionSettings().getConnectionType());
+        n.setListen(true);
+        if (n.listen()) {
+            if (getStreamServer() != null) {
+                Debug.out("streaming to listeners on port " + getStreamServer().getPort());
+            } else if (getUdpStreamServer().getGroup() != null) {
+                Debug.out("sending to multicast group " + getUdpStreamServer().getGroup());
+            } else {
+                Debug.out("sending to UDP subscribers on port " + getUdpStreamServer().getPort());
+            }
+        } else {
+            Debug.out("cannot start the stream server");
+        }
+    }
+
+    public void stopServer() {
+        if (getStreamServer() != null) {
+            Debug.out(getStreamServer().getStats());
+        } else if (getUdpStreamServer() != null) {
+            Debug.out(getUdpStreamServer().getStats());
+        }
+        getNetwork().setListen(false);
+    }
+
+    public boolean isServing() {
+        return getStreamServer() != null || getUdpStreamServer() != null;
+    }
+
+    /**
+     * the running UDP or multicast server, or null
+     */
+    public UdpStreamServer getUdpStreamServer() {
+        Network n = getNetwork();
+        return (n instanceof UdpNetwork) ? ((UdpNetwork) n).getServer() : null;
+    }
+
+    /**
+     * the running stream server, or null
+     */
+    public StreamServer getStreamServer() {
+        Network n = getNetwork();
+        return (n instanceof TcpNetwork) ? ((TcpNetwork) n).getServer() : null;
+    }
+
+    /**
+     * re-broadcast the circular buffer over HTTP, encoded in the formats
+     * that the listeners request
+     */
+    public synchronized void startHttpServer() {
+        if (m_httpServer != null) {
+            return;
+        }
+        HttpStreamServer server = new HttpStreamServer(circBuf, getAudioSettings(),
+                getConnectionSettings().getHttpPort());
+        server.setDefaultFormatCode(getAudioSettings().getPreferredAudioFormatCode());
+        try {
+            server.start();
+            m_httpServer = server;
+            Debug.out("HTTP streaming on http://localhost:" + server.getPort()
+                    + server.getPath(getAudioSettings().getPreferredAudioFormatCode()));
+        } catch (IOException ioe) {
+            Debug.out("cannot start the HTTP server: " + ioe.getMessage());
+        }
+    }
+
+    public synchronized void stopHttpServer() {
+        if (m_httpServer != null) {
+            m_httpServer.stop();
+            Debug.out(m_httpServer.getStats());
+            m_httpServer = null;
+        }
+    }
+
+    public synchronized boolean isHttpServing() {
+        return m_httpServer != null;
+    }
+
+    /**
+     * the running HTTP streaming server, or null
+     */
+    public synchronized HttpStreamServer getHttpServer() {
+        return m_httpServer;
+    }
+
+    /**
+     * Start a station in the background that receives
+     * <code>sourceURL</code> into its own circular buffer, independent of
+     * the source of the speaker (see Station). Blocks while connecting.
+     *
+     * @return the running station
+     */
+    public Station addStation(String name, String sourceURL) throws Exception {
+        Station station = new Station(name, sourceURL, getMasterModel());
+        synchronized (this) {
+            if (m_stations.containsKey(name)) {
+                throw new Exception("Station " + name + " exists already");
+            }
+            m_stations.put(name, station);
+        }
+        try {
+            station.start();
+        } catch (Exception e) {
+            synchronized (this) {
+                m_stations.remove(name);
+            }
+            throw e;
+        }
+        return station;
+    }
+
+    /**
+     * stop the background station and forget it
+     */
+    public void removeStation(String name) {
+        Station station;
+        synchronized (this) {
+            station = m_stations.remove(name);
+        }
+        if (station != null) {
+            station.stop();
+        }
+    }
+
+    /**
+     * stop all background stations and forget them, e.g. before exiting,
+     * so that their recordings are completed
+     */
+    public void stopStations() {
+        for (Station station : getStations()) {
+            removeStation(station.getName());
+        }
+    }
+
+    /**
+     * the background station, or null
+     */
+    public synchronized Station getStation(String name) {
+        return m_stations.get(name);
+    }
+
+    public synchronized List<Station> getStations() {
+        return new ArrayList<Station>(m_stations.values());
+    }
+
+    /**
+     * connect to the stream server of <code>source</code> over TCP or UDP,
+     * or join its multicast group, and prepare receiving its stream into
+     * the circular buffer
+     */
+    private void startReceiving(SourceURL source) throws Exception {
+        Debug.out("connecting to " + source.getHost() + ":" + source.getPort() + "...");
+        AudioInputStream ais = source.connect(getNetwork(source.getConnectionType()));
+        m_receiveFormat = ais.getFormat();
+        m_receiveStream = new DataInputStream(ais);
+        circBuf.setCompressed(getAudioSettings().isCircBufCompressed());
+        circBuf.init(getCircBufFormat(), getAudioSettings().getCircBufMillis());
+        Debug.out("Starting circular buffer with this format:");
+        Debug.out("   " + circBuf.getFormat());
+        int prebuffer = getConnectionSettings().getPrebufferMillis();
+        if (source.isUdp()) {
+            // the jitter buffer absorbs the network jitter
+            prebuffer = Math.min(prebuffer, UDP_PREBUFFER_MILLIS);
+        }
+        m_receiver = new StreamReceiver(ais, circBuf, prebuffer);
+        m_receiver.setListener(new StreamReceiver.Listener() {
+            public void prebuffered(StreamReceiver receiver) {
+                ((AudioPlayback) getAudio(DIR_SPK)).setAudioInputStream(circBuf.getSpeakerAIS());
+            }
+
+            public void streamEnded(StreamReceiver receiver, final IOException error) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        streamError((error == null) ? "The stream ended."
+                                : "Connection lost: " + error.getMessage());
+                        stop();
+                    }
+                });
+            }
+        });
+        notifyConnection();
+    }
+
+    /**
+     * connect to the SHOUTcast/Icecast server and prepare decoding its
+     * stream into the circular buffer
+     */
+    private void startIcy(SourceURL source) throws Exception {
+        Debug.out("connecting to " + source + "...");
+        m_icySource = new IcySource(source.toString());
+        AudioInputStream ais = m_icySource.connect();
+        m_receiveFormat = ais.getFormat();
+        circBuf.setCompressed(getAudioSettings().isCircBufCompressed());
+        circBuf.init(getCircBufFormat(), getAudioSettings().getCircBufMillis());
+        Debug.out("Starting circular buffer with this format:");
+        Debug.out("   " + circBuf.getFormat());
+        m_icySource.setListener(new IcySource.Listener() {
+            public void prebuffered(IcySource source) {
+                ((AudioPlayback) getAudio(DIR_SPK)).setAudioInputStream(circBuf.getSpeakerAIS());
+            }
+
+            public void titleChanged(IcySource source, String title) {
+            }
+
+            public void connectionLost(IcySource source, IOException error, long retryMillis) {
+                Debug.out("lost connection to " + source.getURL() + ": " + error
+                        + ". Reconnecting in " + retryMillis + "ms");
+            }
+        });
+    }
+
+    /**
+     * the title of the audio that is playing, or null
+     */
+    public String getCurrentTitle() {
+        return circBuf.getSpeakerTitle();
+    }
+
+    private void stopReceiving() {
+        if (m_icySource != null) {
+            m_icySource.stop();
+            m_icySource = null;
+        }
+        if (m_receiver != null) {
+            m_receiver.stop();
+            m_receiver = null;
+            m_receiveStream = null;
+            if (getNetwork() instanceof UdpNetwork) {
+                UdpReceiver r = ((UdpNetwork) getNetwork()).getReceiver();
+                if (r != null) {
+                    Debug.out(r.getStats());
+                }
+            }
+        }
+    }
+
+    /**
+     * the receiver of the network stream, or null
+     */
+    public StreamReceiver getStreamReceiver() {
+        return m_receiver;
+    }
+
     public DataInputStream getReceiveStream() {
         return m_receiveStream;
     }
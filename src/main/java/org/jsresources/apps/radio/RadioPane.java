@@ -48,11 +48,13 @@ public class RadioPane
         extends JPanel {
 
     private JLabel m_statusLabel;
+    private MasterModel m_masterModel;
 
     public RadioPane() {
         super();
 
         MasterModel masterModel = new MasterModel();
+        m_masterModel = masterModel;
         setLayout(new BorderLayout());
         JComponent tabbed = createTabbedPane(masterModel);
         this.add(tabbed, BorderLayout.CENTER);
@@ -62,6 +64,13 @@ public class RadioPane
         //setStatusLine(" ");
     }
 
+    /**
+     * stop what keeps running without the window, before exiting
+     */
+    public void close() {
+        m_masterModel.getRadioModel().stopStations();
+    }
+
     private JComponent createTabbedPane(MasterModel masterModel) {
         JTabbedPane tabbedPane = new JTabbedPane();
         JComponent component;
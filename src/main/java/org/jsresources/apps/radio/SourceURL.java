@@ -0,0 +1,167 @@
+/*
+ *	SourceURL.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.net.InetAddress;
+import java.net.URI;
+import javax.sound.sampled.AudioInputStream;
+import org.jsresources.utils.audio.AudioUtils;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * The source of a received stream, given by a URL: radio://host[:port] or
+ * host[:port] over TCP, udp://host[:port] over UDP,
+ * multicast://group[:port] for a multicast group, and http:// for
+ * SHOUTcast/Icecast servers, which IcySource connects to.
+ * <p>
+ * RadioModel and Station both open their sources here, so that they
+ * accept the same URLs.
+ */
+class SourceURL {
+
+    private final String url;
+    private final boolean icy;
+    private final int connectionType;
+    private final String host;
+    private final int port;
+
+    /**
+     * @param defaultPort the port if the URL has none
+     * @throws Exception if the URL is not supported
+     */
+    SourceURL(String url, int defaultPort) throws Exception {
+        String s = url.trim();
+        this.url = s;
+        icy = s.startsWith("http://");
+        if (icy) {
+            connectionType = -1;
+            host = null;
+            port = -1;
+            return;
+        }
+        if (s.indexOf("://") < 0) {
+            s = "radio://" + s;
+        }
+        URI uri = new URI(s);
+        String scheme = uri.getScheme();
+        if ("multicast".equals(scheme)) {
+            connectionType = CONNECTION_TYPE_MULTICAST;
+        } else if ("udp".equals(scheme)) {
+            connectionType = CONNECTION_TYPE_UDP;
+        } else if ("radio".equals(scheme)) {
+            connectionType = CONNECTION_TYPE_TCP;
+        } else {
+            throw new Exception("Unsupported URL: " + url);
+        }
+        if (uri.getHost() == null) {
+            throw new Exception("Unsupported URL: " + url);
+        }
+        host = uri.getHost();
+        port = (uri.getPort() < 0) ? defaultPort : uri.getPort();
+    }
+
+    /**
+     * true for SHOUTcast/Icecast servers: open them with IcySource
+     */
+    public boolean isIcy() {
+        return icy;
+    }
+
+    /**
+     * CONNECTION_TYPE_TCP, CONNECTION_TYPE_UDP or
+     * CONNECTION_TYPE_MULTICAST. Not for SHOUTcast/Icecast servers.
+     */
+    public int getConnectionType() {
+        return connectionType;
+    }
+
+    public boolean isUdp() {
+        return connectionType == CONNECTION_TYPE_UDP
+                || connectionType == CONNECTION_TYPE_MULTICAST;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * a new, unconnected network of the connection type
+     */
+    public static Network createNetwork(int connectionType, MasterModel masterModel) {
+        if (connectionType == CONNECTION_TYPE_MULTICAST) {
+            return new MulticastNetwork(masterModel);
+        } else if (connectionType == CONNECTION_TYPE_UDP) {
+            return new UdpNetwork(masterModel);
+        }
+        return new TcpNetwork(masterModel);
+    }
+
+    /**
+     * Connect <code>network</code>, which must be of the connection type,
+     * to the source. Blocks while connecting.
+     *
+     * @return the received PCM stream
+     */
+    public AudioInputStream connect(Network network) throws Exception {
+        InetAddress addr = InetAddress.getByName(host);
+        if (network instanceof UdpNetwork) {
+            ((UdpNetwork) network).connect(addr, port);
+        } else {
+            ((TcpNetwork) network).connect(addr, port);
+        }
+        if (!network.isConnected()) {
+            throw new Exception("Cannot connect to " + url);
+        }
+        AudioInputStream ais = (AudioInputStream) network.createReceiveStream();
+        if (!AudioUtils.isPCM(ais.getFormat())) {
+            ais.close();
+            throw new Exception("Cannot receive " + ais.getFormat());
+        }
+        return ais;
+    }
+
+    public String toString() {
+        return url;
+    }
+}
+
+/**
+ * * SourceURL.java **
+ */
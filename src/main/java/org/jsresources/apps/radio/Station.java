@@ -0,0 +1,491 @@
+/*
+ *	Station.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import org.jsresources.utils.audio.AsynchronousRecorder;
+import org.jsresources.utils.audio.AudioUtils;
+import org.jsresources.utils.audio.PcmFileWriter;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * A radio station without user interface: it receives one stream into its
+ * own CircularBuffer, and records it. The source is given by a URL as for
+ * RadioModel, see SourceURL: radio://, udp://, multicast:// or http:// for
+ * SHOUTcast.
+ * The interactive station with line in and speaker stays in RadioModel;
+ * any number of these stations can run beside it.
+ * <p>
+ * Stations have no threads of their own. A pool shared by all stations,
+ * with one thread per processor, pumps each station every
+ * STATION_PUMP_MILLIS: the received data that is available goes into the
+ * circular buffer, and the recorder cursor's data into the file (see
+ * PcmFileWriter). A pump never waits for data, so the stations do not
+ * hold up each other, and they only share the pool. Sources that come
+ * with a blocking reader of their own keep its thread: the UdpReceiver of
+ * udp:// and multicast://, and the decoder of http:// streams.
+ */
+public class Station {
+
+    public static final int STOPPED = 0;
+    public static final int CONNECTING = 1;
+    public static final int RUNNING = 2;
+    public static final int FAILED = 3;
+    private static final String[] STATE_NAMES = {
+        "stopped", "connecting", "running", "failed",};
+
+    private static final int READ_SIZE = 65536;
+    // a silent TCP source is probed this often for the end of the stream
+    private static final int PROBE_INTERVAL_MILLIS = 1000;
+    private static final int PROBE_TIMEOUT_MILLIS = 1;
+    private static ScheduledExecutorService pool;
+
+    private final String name;
+    private final String url;
+    private final MasterModel masterModel;
+    private final CircularBuffer circBuf = new CircularBuffer();
+    private final ByteBuffer[] slices = new ByteBuffer[2];
+
+    private volatile int state = STOPPED;
+    private volatile String error;
+    private Network network;
+    private IcySource icySource;
+    private volatile AudioInputStream source;
+    private ScheduledFuture<?> task;
+    private volatile PcmFileWriter writer;
+
+    // statistics
+    private volatile long startMillis;
+    private volatile long lastDataMillis;
+    private long nextProbeMillis;
+    private volatile long pumps;
+    private volatile long pumpNanos;
+    private volatile long maxPumpNanos;
+    private volatile long recorded;
+
+    /**
+     * @param masterModel for the audio and connection settings
+     */
+    public Station(String name, String url, MasterModel masterModel) {
+        this.name = name;
+        this.url = url;
+        this.masterModel = masterModel;
+    }
+
+    /**
+     * Connect to the source, and start pumping its stream into the
+     * circular buffer. Blocks while connecting.
+     */
+    public synchronized void start() throws Exception {
+        if (state == CONNECTING || state == RUNNING) {
+            return;
+        }
+        state = CONNECTING;
+        error = null;
+        try {
+            SourceURL src = new SourceURL(url, masterModel.getConnectionSettings().getPort());
+            AudioInputStream ais;
+            if (src.isIcy()) {
+                icySource = new IcySource(src.toString());
+                ais = icySource.connect();
+            } else {
+                network = SourceURL.createNetwork(src.getConnectionType(), masterModel);
+                ais = src.connect(network);
+                if (network instanceof TcpNetwork) {
+                    ((TcpNetwork) network).setReceiveTimeout(PROBE_TIMEOUT_MILLIS);
+                }
+            }
+            AudioFormat format = ais.getFormat();
+            if (!AudioUtils.isPCM(format)) {
+                throw new Exception("Cannot receive " + format);
+            }
+            AudioSettings settings = masterModel.getAudioSettings();
+            circBuf.setCompressed(settings.isCircBufCompressed());
+            circBuf.init(format, settings.getCircBufMillis());
+            if (icySource != null) {
+                icySource.start(circBuf, 0);
+            } else {
+                source = ais;
+            }
+        } catch (Exception e) {
+            closeSource();
+            state = FAILED;
+            error = e.getMessage();
+            throw e;
+        }
+        startMillis = System.currentTimeMillis();
+        lastDataMillis = startMillis;
+        state = RUNNING;
+        task = getPool().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                pump();
+            }
+        }, 0, STATION_PUMP_MILLIS, TimeUnit.MILLISECONDS);
+        if (VERBOSE) {
+            out("Station " + name + ": receiving " + circBuf.getFormat());
+        }
+    }
+
+    /**
+     * stop recording and receiving
+     */
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        stopRecording();
+        closeSource();
+        if (state != FAILED) {
+            state = STOPPED;
+        }
+        if (VERBOSE) {
+            out("Station " + name + ": stopped. " + getStats());
+        }
+    }
+
+    private void closeSource() {
+        if (icySource != null) {
+            icySource.stop();
+            icySource = null;
+        }
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException ioe) {
+            }
+            source = null;
+        }
+        if (network != null) {
+            // UdpNetwork closes the jitter buffer, too
+            network.disconnect();
+            network = null;
+        }
+    }
+
+    // one step, on a thread of the pool: does not block
+    private synchronized void pump() {
+        if (state != RUNNING) {
+            return;
+        }
+        long t0 = System.nanoTime();
+        try {
+            if (source != null) {
+                receive(source);
+            }
+            // nobody listens: the speaker cursor stays at the live
+            // position, so that the recorder, which follows it, can read
+            circBuf.advance(true, Integer.MAX_VALUE);
+            if (writer != null) {
+                recorded += circBuf.transferTo(false, writer);
+            }
+        } catch (IOException ioe) {
+            fail(ioe);
+        } catch (RuntimeException re) {
+            // e.g. a decoder choking on garbage: the pool would cancel
+            // the task silently
+            fail(re);
+        }
+        long t = System.nanoTime() - t0;
+        pumps++;
+        pumpNanos += t;
+        if (t > maxPumpNanos) {
+            maxPumpNanos = t;
+        }
+    }
+
+    // read what is available into the circular buffer
+    private void receive(AudioInputStream in) throws IOException {
+        int frameSize = Math.max(1, in.getFormat().getFrameSize());
+        while (true) {
+            int avail = in.available();
+            int len;
+            if (avail >= frameSize) {
+                len = Math.min(avail, READ_SIZE);
+            } else if (isProbeDue()) {
+                len = frameSize;
+            } else {
+                break;
+            }
+            circBuf.beginWrite(len, slices);
+            ByteBuffer slice = slices[0];
+            int r;
+            try {
+                r = in.read(slice.array(), slice.arrayOffset() + slice.position(),
+                        Math.min(slice.remaining(), len));
+            } catch (SocketTimeoutException ste) {
+                // the probe: still connected
+                r = 0;
+            }
+            if (r < 0) {
+                circBuf.commitWrite(0);
+                throw new EOFException("the stream ended");
+            }
+            circBuf.commitWrite(r);
+            if (r == 0) {
+                break;
+            }
+            lastDataMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A source at its end has nothing available, like a silent one. UDP
+     * sources end with their receiver. A TCP source silent for longer than
+     * CONNECT_TIMEOUT_MILLIS is probed with a read, which returns -1 at the
+     * end and times out after PROBE_TIMEOUT_MILLIS otherwise. By then the
+     * server's whole frames have arrived, so the read does not split one.
+     *
+     * @return true to probe with a read now
+     */
+    private boolean isProbeDue() throws IOException {
+        if (network instanceof UdpNetwork) {
+            UdpReceiver r = ((UdpNetwork) network).getReceiver();
+            if (r == null || !r.isRunning()) {
+                throw new EOFException("the receiver stopped");
+            }
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (!(network instanceof TcpNetwork) || now - lastDataMillis <= CONNECT_TIMEOUT_MILLIS
+                || now < nextProbeMillis) {
+            return false;
+        }
+        nextProbeMillis = now + PROBE_INTERVAL_MILLIS;
+        return true;
+    }
+
+    private void fail(Exception e) {
+        error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+        state = FAILED;
+        if (DEBUG) {
+            out("Station " + name + ": " + error);
+        }
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        // keep what was recorded
+        stopRecording();
+        closeSource();
+    }
+
+    /**
+     * Record from now on, in the preferred file type if it can be written
+     * piece by piece, otherwise as WAVE.
+     */
+    public synchronized void startRecording(String filename) throws IOException {
+        if (state != RUNNING) {
+            throw new IOException("station " + name + " is not running");
+        }
+        stopRecording();
+        AudioFileFormat.Type type = masterModel.getAudioSettings().getPreferredAudioFileType();
+        if (type == null || !PcmFileWriter.isSupported(type, circBuf.getFormat())) {
+            type = AudioFileFormat.Type.WAVE;
+        }
+        PcmFileWriter w = new PcmFileWriter(new File(filename), type, circBuf.getFormat());
+        // skip what was received before
+        circBuf.advance(true, Integer.MAX_VALUE);
+        circBuf.advance(false, Integer.MAX_VALUE);
+        recorded = 0;
+        writer = w;
+        if (VERBOSE) {
+            out("Station " + name + ": recording to " + filename);
+        }
+    }
+
+    public synchronized void stopRecording() {
+        PcmFileWriter w = writer;
+        writer = null;
+        if (w == null) {
+            return;
+        }
+        try {
+            // the rest
+            circBuf.advance(true, Integer.MAX_VALUE);
+            recorded += circBuf.transferTo(false, w);
+            w.close();
+        } catch (IOException ioe) {
+            if (DEBUG) {
+                Debug.out(ioe);
+            }
+        }
+    }
+
+    public boolean isRecording() {
+        return writer != null;
+    }
+
+    /**
+     * Save the audio received between the wall clock times
+     * <code>fromMillis</code> and <code>toMillis</code> to a WAVE file, in
+     * the background.
+     *
+     * @see RadioModel#saveSnapshot(String, long, long)
+     */
+    public AsynchronousRecorder saveSnapshot(String filename, long fromMillis, long toMillis) throws IOException {
+        AsynchronousRecorder snapshot = new AsynchronousRecorder(filename,
+                circBuf.getSnapshotAIS(fromMillis, toMillis), AudioFileFormat.Type.WAVE);
+        snapshot.start();
+        return snapshot;
+    }
+
+    private static synchronized ScheduledExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "Station pump");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return pool;
+    }
+
+    // ------------------------------------------------------ properties
+
+    public String getName() {
+        return name;
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    public CircularBuffer getCircularBuffer() {
+        return circBuf;
+    }
+
+    /**
+     * STOPPED, CONNECTING, RUNNING or FAILED
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * why the station failed, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    // ------------------------------------------------------ statistics
+
+    /**
+     * the audio received since the start, in bytes
+     */
+    public long getBytesReceived() {
+        return circBuf.getWritePosition();
+    }
+
+    /**
+     * the audio written by the current recording, in bytes
+     */
+    public long getBytesRecorded() {
+        return recorded;
+    }
+
+    /**
+     * the time since data was received last, for sources pumped by the
+     * pool
+     */
+    public long getIdleMillis() {
+        return System.currentTimeMillis() - lastDataMillis;
+    }
+
+    public long getPumps() {
+        return pumps;
+    }
+
+    /**
+     * the time the pumps took on the pool, in total
+     */
+    public long getPumpNanos() {
+        return pumpNanos;
+    }
+
+    public long getMaxPumpNanos() {
+        return maxPumpNanos;
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(": ").append(STATE_NAMES[state]);
+        if (error != null) {
+            sb.append(" (").append(error).append(")");
+        }
+        AudioFormat format = circBuf.getFormat();
+        long received = getBytesReceived();
+        sb.append(", received: ").append(received / 1024).append("KB");
+        long millis = System.currentTimeMillis() - startMillis;
+        if (format != null && state == RUNNING && millis > 0) {
+            sb.append(" (").append(received * 8 / millis).append("KBit/s)");
+        }
+        if (isRecording()) {
+            sb.append(", recorded: ").append(recorded / 1024).append("KB, recorder lag: ")
+                    .append(circBuf.getRecorderLagMillis()).append("ms");
+        }
+        long p = pumps;
+        sb.append(", pumps: ").append(p);
+        if (p > 0) {
+            sb.append(" (avg ").append(pumpNanos / p / 1000).append("us, max ")
+                    .append(maxPumpNanos / 1000).append("us)");
+        }
+        if (source != null && getIdleMillis() > CONNECT_TIMEOUT_MILLIS) {
+            sb.append(", no data for ").append(getIdleMillis() / 1000).append("s");
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * * Station.java **
+ */
@@ -0,0 +1,141 @@
+/*
+ *	StationLoad.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.File;
+import java.util.List;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A load test for the background stations: runs many stations that
+ * receive the same source and record it, and reports every second how
+ * much they received and recorded, and how busy the shared pool is. The
+ * number of threads shows that the stations do not need threads of their
+ * own. Without <code>-url</code>, a local StreamServer streams a
+ * generated CD quality stream (1411 KBit/s) to all stations over TCP.
+ * <p>
+ * Usage: java org.jsresources.apps.radio.StationLoad [-url url]
+ * [-n stations] [-d directory] [-t seconds] [-v]
+ */
+public class StationLoad {
+
+    public static void main(String[] args) throws Exception {
+        String url = null;
+        int count = 50;
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        int seconds = 10;
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-url") && i + 1 < args.length) {
+                url = args[++i];
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-d") && i + 1 < args.length) {
+                dir = new File(args[++i]);
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                seconds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-v")) {
+                verbose = true;
+            } else {
+                System.out.println("Usage: StationLoad [-url url] [-n stations] [-d directory]"
+                        + " [-t seconds] [-v]");
+                System.exit(1);
+            }
+        }
+        Constants.VERBOSE = false;
+        Constants.DEBUG = false;
+        StreamServer server = null;
+        if (url == null) {
+            server = new StreamServer(LoadGenerator.startTestSource(
+                    new AudioFormat(44100.0f, 16, 2, true, false)), 0);
+            server.start();
+            url = "radio://localhost:" + server.getPort();
+        }
+        RadioModel model = new MasterModel().getRadioModel();
+        int threads = Thread.activeCount();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            Station station = model.addStation("station" + i, url);
+            station.startRecording(new File(dir, "station" + i + ".wav").getPath());
+        }
+        System.out.println(count + " stations recording " + url + " to " + dir + ", started in "
+                + (System.currentTimeMillis() - start) + "ms, "
+                + Runtime.getRuntime().availableProcessors() + " processors");
+        long lastReceived = 0;
+        long lastNanos = 0;
+        long last = System.currentTimeMillis();
+        for (int s = 0; s < seconds; s++) {
+            Thread.sleep(1000);
+            long now = System.currentTimeMillis();
+            List<Station> stations = model.getStations();
+            long received = 0;
+            long recorded = 0;
+            long nanos = 0;
+            int running = 0;
+            for (Station station : stations) {
+                received += station.getBytesReceived();
+                recorded += station.getBytesRecorded();
+                nanos += station.getPumpNanos();
+                if (station.getState() == Station.RUNNING) {
+                    running++;
+                }
+                if (verbose) {
+                    System.out.println("  " + station.getStats());
+                }
+            }
+            System.out.println("running: " + running + ", received: "
+                    + (received - lastReceived) * 8 / (now - last) + "KBit/s, recorded: "
+                    + (recorded / 1024) + "KB, pumps busy: "
+                    + (nanos - lastNanos) / 10000 / (now - last) + "% of one thread, threads: "
+                    + (Thread.activeCount() - threads) + " more than before");
+            lastReceived = received;
+            lastNanos = nanos;
+            last = now;
+        }
+        for (Station station : model.getStations()) {
+            model.removeStation(station.getName());
+            System.out.println(station.getStats());
+        }
+        if (server != null) {
+            server.stop();
+        }
+        System.exit(0);
+    }
+}
+
+/**
+ * * StationLoad.java **
+ */
@@ -0,0 +1,126 @@
+/*
+ *	StreamHeader.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * The header that the stream server sends to each listener before the
+ * audio data: the audio format of the stream, and the absolute position
+ * in the server's circular buffer where the data starts.
+ */
+public class StreamHeader {
+
+    public static final int MAGIC = 0x4A535252; // "JSRR"
+    public static final int VERSION = 1;
+
+    private AudioFormat format;
+    private long startPosition;
+
+    public StreamHeader(AudioFormat format, long startPosition) {
+        this.format = format;
+        this.startPosition = startPosition;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(format.getEncoding().toString());
+        out.writeFloat(format.getSampleRate());
+        out.writeInt(format.getSampleSizeInBits());
+        out.writeInt(format.getChannels());
+        out.writeInt(format.getFrameSize());
+        out.writeFloat(format.getFrameRate());
+        out.writeBoolean(format.isBigEndian());
+        out.writeLong(startPosition);
+    }
+
+    /**
+     * the header as a buffer ready for writing to a channel
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+        try {
+            write(new DataOutputStream(baos));
+        } catch (IOException ioe) {
+            // cannot happen with a ByteArrayOutputStream
+        }
+        return ByteBuffer.wrap(baos.toByteArray());
+    }
+
+    /**
+     * read a header from the stream
+     *
+     * @throws IOException if the stream does not start with a valid header
+     */
+    public static StreamHeader read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a radio stream");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported stream version " + version);
+        }
+        AudioFormat.Encoding enc = new AudioFormat.Encoding(in.readUTF());
+        float sampleRate = in.readFloat();
+        int sampleSize = in.readInt();
+        int channels = in.readInt();
+        int frameSize = in.readInt();
+        float frameRate = in.readFloat();
+        boolean bigEndian = in.readBoolean();
+        AudioFormat format = new AudioFormat(enc, sampleRate, sampleSize,
+                channels, frameSize, frameRate, bigEndian);
+        return new StreamHeader(format, in.readLong());
+    }
+
+    public String toString() {
+        return "StreamHeader: " + format + " from position " + startPosition;
+    }
+}
+
+/**
+ * * StreamHeader.java **
+ */
@@ -0,0 +1,205 @@
+/*
+ *	StreamReceiver.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.sound.sampled.AudioInputStream;
+import org.jsresources.utils.audio.AudioUtils;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Reads a received stream into a CircularBuffer on its own thread. The
+ * data is read directly into the buffer's storage in large reads, through
+ * the views that CircularBuffer.beginWrite() reuses, so nothing is
+ * allocated or copied per read. When <code>prebufferMillis</code> of
+ * audio have been received, the listener is told that playback can start.
+ */
+public class StreamReceiver implements Runnable {
+
+    private static final int READ_SIZE = 65536;
+
+    private final AudioInputStream stream;
+    private final CircularBuffer circBuf;
+    private final long prebufferBytes;
+    private Listener listener;
+
+    private Thread thread;
+    private volatile boolean terminated;
+    private final ByteBuffer[] slices = new ByteBuffer[2];
+
+    // statistics
+    private volatile long bytesReceived;
+    private volatile long reads;
+    private volatile boolean prebuffered;
+    private volatile long startMillis;
+    private volatile long prebufferedMillis;
+
+    /**
+     * @param stream the received stream, in the format of the circular
+     *            buffer
+     */
+    public StreamReceiver(AudioInputStream stream, CircularBuffer circBuf, int prebufferMillis) {
+        this.stream = stream;
+        this.circBuf = circBuf;
+        this.prebufferBytes = AudioUtils.millis2bytes(prebufferMillis, stream.getFormat());
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        terminated = false;
+        thread = new Thread(this, "StreamReceiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stop receiving and close the stream
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            terminated = true;
+        }
+        try {
+            // unblock the read
+            stream.close();
+        } catch (IOException ioe) {
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(2000);
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    public void run() {
+        startMillis = System.currentTimeMillis();
+        if (VERBOSE) {
+            out("StreamReceiver: start receiving " + stream.getFormat());
+        }
+        IOException error = null;
+        try {
+            while (!terminated) {
+                circBuf.beginWrite(READ_SIZE, slices);
+                ByteBuffer slice = slices[0];
+                // AudioInputStream only returns complete frames
+                int r = stream.read(slice.array(), slice.arrayOffset() + slice.position(),
+                        slice.remaining());
+                if (r < 0) {
+                    break;
+                }
+                circBuf.commitWrite(r);
+                reads++;
+                bytesReceived += r;
+                if (!prebuffered && bytesReceived >= prebufferBytes) {
+                    prebuffered = true;
+                    prebufferedMillis = System.currentTimeMillis() - startMillis;
+                    if (VERBOSE) {
+                        out("StreamReceiver: prebuffered in " + prebufferedMillis + "ms");
+                    }
+                    if (listener != null) {
+                        listener.prebuffered(this);
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            error = ioe;
+        }
+        if (VERBOSE) {
+            out("StreamReceiver: stopped. " + getStats());
+        }
+        if (!terminated && listener != null) {
+            listener.streamEnded(this, error);
+        }
+    }
+
+    public AudioInputStream getStream() {
+        return stream;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public boolean isPrebuffered() {
+        return prebuffered;
+    }
+
+    /**
+     * the time from starting until the prebuffer was filled
+     */
+    public long getPrebufferMillis() {
+        return prebufferedMillis;
+    }
+
+    public String getStats() {
+        long r = reads;
+        return "received: " + (bytesReceived / 1024) + "KB in " + r + " reads"
+                + ((r > 0) ? " (avg " + (bytesReceived / r) + " bytes)" : "");
+    }
+
+    /**
+     * notified from the receiver thread
+     */
+    public interface Listener {
+
+        /**
+         * enough data was received to start playback
+         */
+        public void prebuffered(StreamReceiver receiver);
+
+        /**
+         * the stream ended or failed, without calling stop()
+         *
+         * @param error the reason, or null at the end of the stream
+         */
+        public void streamEnded(StreamReceiver receiver, IOException error);
+    }
+}
+
+/**
+ * * StreamReceiver.java **
+ */
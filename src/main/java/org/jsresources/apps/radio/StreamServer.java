@@ -0,0 +1,515 @@
+/*
+ *	StreamServer.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.sound.sampled.AudioFormat;
+import org.jsresources.utils.Utils;
+import org.jsresources.utils.audio.AudioUtils;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Streams the live content of a CircularBuffer to many TCP listeners from
+ * one selector thread. Every listener first receives a StreamHeader, then
+ * the audio data from its own cursor (an absolute position in the
+ * circular buffer). The data is written with non-blocking gathering writes
+ * directly from the buffer's storage, without copying.
+ * <p>
+ * Listeners are serviced every <code>flushMillis</code>, and whenever a
+ * socket that was full becomes writable again. A listener that falls so
+ * far behind that its data is about to be overwritten, or that lags more
+ * than <code>maxLagMillis</code>, is handled according to the slow client
+ * policy.
+ */
+public class StreamServer implements Runnable {
+
+    /**
+     * lose the data that is overwritten, continue with the oldest data
+     */
+    public static final int SLOW_DROP = 0;
+    /**
+     * jump to the live position
+     */
+    public static final int SLOW_SKIP_TO_LIVE = 1;
+    /**
+     * close the connection
+     */
+    public static final int SLOW_DISCONNECT = 2;
+
+    private static final String[] POLICY_NAMES = {
+        "drop", "skip to live", "disconnect"
+    };
+
+    private final CircularBuffer circBuf;
+    private final int port;
+
+    private volatile int slowClientPolicy = SLOW_SKIP_TO_LIVE;
+    private volatile int maxLagMillis = 5000;
+    private volatile int prebufferMillis = 500;
+    private volatile int flushMillis = 50;
+    private volatile int maxListeners = 10000;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean terminated;
+
+    // only accessed by the selector thread
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private final ByteBuffer[] slices = new ByteBuffer[2];
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+    private boolean hasClosed;
+
+    // statistics
+    private volatile int listenerCount;
+    private volatile long accepted;
+    private volatile long disconnected;
+    private volatile long bytesSent;
+    private volatile long slowEvents;
+    private volatile long droppedBytes;
+
+    public StreamServer(CircularBuffer circBuf, int port) {
+        this.circBuf = circBuf;
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port), 1024);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        terminated = false;
+        thread = new Thread(this, "StreamServer");
+        thread.setDaemon(true);
+        thread.start();
+        if (VERBOSE) {
+            out("StreamServer: listening on port " + getPort());
+        }
+    }
+
+    /**
+     * stop the server and close all connections
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            terminated = true;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(2000);
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * the port the server is bound to
+     */
+    public int getPort() {
+        ServerSocketChannel ssc = serverChannel;
+        if (ssc != null && ssc.socket().isBound()) {
+            return ssc.socket().getLocalPort();
+        }
+        return port;
+    }
+
+    public void run() {
+        long nextFlush = 0;
+        try {
+            while (!terminated) {
+                long now = System.currentTimeMillis();
+                selector.select(Math.max(1, nextFlush - now));
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Listener l = (Listener) key.attachment();
+                    if (key.isReadable()) {
+                        checkClosed(l);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        // the socket can take more data
+                        l.blocked = false;
+                        key.interestOps(SelectionKey.OP_READ);
+                        service(l, circBuf.getWritePosition(), circBuf.getOldestPosition());
+                    }
+                }
+                now = System.currentTimeMillis();
+                if (now >= nextFlush) {
+                    serviceAll();
+                    nextFlush = now + flushMillis;
+                }
+                if (hasClosed) {
+                    removeClosed();
+                }
+            }
+        } catch (IOException ioe) {
+            if (DEBUG) {
+                Debug.out(ioe);
+            }
+        } finally {
+            for (Listener l : listeners) {
+                close(l);
+            }
+            removeClosed();
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ioe) {
+            }
+            synchronized (this) {
+                if (thread == Thread.currentThread()) {
+                    thread = null;
+                }
+            }
+            if (VERBOSE) {
+                out("StreamServer: stopped. " + getStats());
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = serverChannel.accept()) != null) {
+            if (listeners.size() >= maxListeners || circBuf.getFormat() == null) {
+                ch.close();
+                continue;
+            }
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(TCP_NODELAY);
+                Listener l = new Listener(ch);
+                l.pos = getStartPosition();
+                l.header = new StreamHeader(circBuf.getFormat(), l.pos).toByteBuffer();
+                l.key = ch.register(selector, SelectionKey.OP_READ, l);
+                listeners.add(l);
+                listenerCount = listeners.size();
+                accepted++;
+                if (DEBUG) {
+                    out("StreamServer: new listener " + ch.socket().getRemoteSocketAddress());
+                }
+            } catch (IOException ioe) {
+                ch.close();
+            }
+        }
+    }
+
+    // the data sent to the listeners is not interpreted
+    private void checkClosed(Listener l) {
+        try {
+            readBuffer.clear();
+            if (l.channel.read(readBuffer) < 0) {
+                close(l);
+            }
+        } catch (IOException ioe) {
+            close(l);
+        }
+    }
+
+    private void serviceAll() {
+        long live = circBuf.getWritePosition();
+        long oldest = circBuf.getOldestPosition();
+        for (int i = 0; i < listeners.size(); i++) {
+            service(listeners.get(i), live, oldest);
+        }
+    }
+
+    private void service(Listener l, long live, long oldest) {
+        if (l.blocked || l.closed || circBuf.getFormat() == null) {
+            return;
+        }
+        try {
+            if (l.header != null) {
+                l.channel.write(l.header);
+                if (l.header.hasRemaining()) {
+                    block(l);
+                    return;
+                }
+                l.header = null;
+            }
+            if (!checkLag(l, live, oldest)) {
+                return;
+            }
+            while (true) {
+                int len = circBuf.peekAt(l.pos, Integer.MAX_VALUE, slices);
+                if (len <= 0) {
+                    // no new data, or the buffer was re-initialized
+                    break;
+                }
+                long written = l.channel.write(slices);
+                l.pos += written;
+                l.bytesSent += written;
+                bytesSent += written;
+                if (written < len) {
+                    block(l);
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            close(l);
+        }
+    }
+
+    /**
+     * applies the slow client policy
+     *
+     * @return false if the listener was closed
+     */
+    private boolean checkLag(Listener l, long live, long oldest) {
+        if (l.pos > live) {
+            // the circular buffer was re-initialized
+            l.pos = getStartPosition();
+            return true;
+        }
+        AudioFormat format = circBuf.getFormat();
+        // do not read data that the writer may be overwriting right now
+        long safety = Math.min(circBuf.getEffectiveSize() / 8,
+                AudioUtils.millis2bytes(1000, format));
+        // data older than this is overwritten soon
+        long threshold = Math.max(oldest, live - circBuf.getEffectiveSize() + safety);
+        boolean behind = l.pos < threshold;
+        boolean late = live - l.pos > AudioUtils.millis2bytes(maxLagMillis, format);
+        if (!behind && !late) {
+            return true;
+        }
+        long newPos;
+        switch (slowClientPolicy) {
+            case SLOW_DROP:
+                if (!behind) {
+                    return true;
+                }
+                newPos = align(threshold);
+                break;
+            case SLOW_SKIP_TO_LIVE:
+                newPos = getStartPosition();
+                break;
+            default:
+                slowEvents++;
+                if (DEBUG) {
+                    out("StreamServer: disconnecting slow listener");
+                }
+                close(l);
+                return false;
+        }
+        slowEvents++;
+        if (newPos > l.pos) {
+            droppedBytes += newPos - l.pos;
+            l.pos = newPos;
+        }
+        return true;
+    }
+
+    // the live position minus the prebuffer, but not older than the oldest data
+    private long getStartPosition() {
+        long live = circBuf.getWritePosition();
+        long oldest = circBuf.getOldestPosition();
+        long pos = live - AudioUtils.millis2bytes(prebufferMillis, circBuf.getFormat());
+        return align(Math.max(pos, oldest));
+    }
+
+    private long align(long pos) {
+        int fs = circBuf.getFormat().getFrameSize();
+        return (fs > 1) ? Utils.align(pos, fs) : pos;
+    }
+
+    // wait until the socket can take more data
+    private void block(Listener l) {
+        l.blocked = true;
+        l.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void close(Listener l) {
+        if (l.closed) {
+            return;
+        }
+        l.closed = true;
+        hasClosed = true;
+        if (l.key != null) {
+            l.key.cancel();
+        }
+        try {
+            l.channel.close();
+        } catch (IOException ioe) {
+        }
+        disconnected++;
+    }
+
+    private void removeClosed() {
+        for (int i = listeners.size() - 1; i >= 0; i--) {
+            if (listeners.get(i).closed) {
+                // order does not matter: replace with the last one
+                Listener last = listeners.remove(listeners.size() - 1);
+                if (i < listeners.size()) {
+                    listeners.set(i, last);
+                }
+            }
+        }
+        listenerCount = listeners.size();
+        hasClosed = false;
+    }
+
+    // ------------------------------------------------------ settings
+
+    public void setSlowClientPolicy(int policy) {
+        slowClientPolicy = policy;
+    }
+
+    public int getSlowClientPolicy() {
+        return slowClientPolicy;
+    }
+
+    public static String getPolicyName(int policy) {
+        return POLICY_NAMES[policy];
+    }
+
+    /**
+     * the maximum time a listener may lag behind the live position
+     */
+    public void setMaxLagMillis(int millis) {
+        maxLagMillis = millis;
+    }
+
+    /**
+     * the time new listeners start before the live position
+     */
+    public void setPrebufferMillis(int millis) {
+        prebufferMillis = millis;
+    }
+
+    /**
+     * the interval at which new data is sent to the listeners
+     */
+    public void setFlushMillis(int millis) {
+        flushMillis = Math.max(millis, 1);
+    }
+
+    public void setMaxListeners(int max) {
+        maxListeners = max;
+    }
+
+    // ------------------------------------------------------ statistics
+
+    public int getListenerCount() {
+        return listenerCount;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    public long getDisconnected() {
+        return disconnected;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * the number of times the slow client policy was applied
+     */
+    public long getSlowEvents() {
+        return slowEvents;
+    }
+
+    /**
+     * the number of bytes skipped for slow listeners
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public String getStats() {
+        return "listeners: " + listenerCount + ", accepted: " + accepted
+                + ", disconnected: " + disconnected + ", sent: "
+                + (bytesSent / 1024) + "KB, slow: " + slowEvents
+                + " (" + getPolicyName(slowClientPolicy) + "), dropped: "
+                + (droppedBytes / 1024) + "KB";
+    }
+
+    /**
+     * one connected listener
+     */
+    private static class Listener {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // the absolute position in the circular buffer
+        private long pos;
+        // the rest of the header, or null when sent
+        private ByteBuffer header;
+        // if the socket's buffer is full
+        private boolean blocked;
+        private boolean closed;
+        private long bytesSent;
+
+        Listener(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
+
+/**
+ * * StreamServer.java **
+ */
@@ -0,0 +1,211 @@
+/*
+ *	TcpNetwork.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Network over TCP. When listening, the circular buffer of the radio is
+ * streamed to all connecting listeners by a StreamServer. When connected,
+ * the stream of another radio's server can be received: the receive
+ * stream is an AudioInputStream in the format announced by the server's
+ * StreamHeader.
+ */
+public class TcpNetwork extends BaseNetwork {
+
+    private Socket socket;
+    private StreamServer server;
+    private boolean listen;
+    private StreamHeader header;
+
+    public TcpNetwork(MasterModel masterModel) {
+        super(masterModel);
+    }
+
+    public void connect(InetAddress addr) {
+        connect(addr, getConnectionSettings().getPort());
+    }
+
+    public synchronized void connect(InetAddress addr, int port) {
+        closeSocket();
+        try {
+            Socket s = new Socket();
+            s.setTcpNoDelay(TCP_NODELAY);
+            if (TCP_RECEIVE_BUFFER_SIZE > 0) {
+                s.setReceiveBufferSize(TCP_RECEIVE_BUFFER_SIZE);
+            }
+            s.connect(new InetSocketAddress(addr, port), CONNECT_TIMEOUT_MILLIS);
+            socket = s;
+            if (VERBOSE) {
+                out("TcpNetwork: connected to " + s.getRemoteSocketAddress());
+            }
+        } catch (IOException ioe) {
+            Debug.out(ioe);
+        }
+    }
+
+    public synchronized void disconnect() {
+        closeSocket();
+        stopServer();
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+            }
+            socket = null;
+        }
+        header = null;
+    }
+
+    public synchronized boolean isConnected() {
+        return socket != null && socket.isConnected() && !socket.isClosed();
+    }
+
+    public synchronized InetAddress getPeer() {
+        return (socket == null) ? null : socket.getInetAddress();
+    }
+
+    public synchronized void setListen(boolean bListen) {
+        listen = bListen;
+        if (!listen) {
+            stopServer();
+        }
+    }
+
+    /**
+     * start serving the circular buffer, if listening is enabled
+     *
+     * @return true if the server is running
+     */
+    public synchronized boolean listen() {
+        if (!listen) {
+            return false;
+        }
+        if (server == null) {
+            StreamServer s = new StreamServer(getMasterModel().getRadioModel().getCircularBuffer(),
+                    getConnectionSettings().getPort());
+            s.setSlowClientPolicy(getConnectionSettings().getSlowClientPolicy());
+            try {
+                s.start();
+            } catch (IOException ioe) {
+                Debug.out(ioe);
+                return false;
+            }
+            server = s;
+        }
+        return true;
+    }
+
+    private void stopServer() {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /**
+     * the running server, or null
+     */
+    public synchronized StreamServer getServer() {
+        return server;
+    }
+
+    /**
+     * reads the server's StreamHeader and returns the audio data that
+     * follows it as an AudioInputStream
+     */
+    public synchronized InputStream createReceiveStream() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("not connected");
+        }
+        InputStream in = socket.getInputStream();
+        socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+        header = StreamHeader.read(new DataInputStream(in));
+        // the stream may pause, e.g. when the server's source stops
+        socket.setSoTimeout(0);
+        if (VERBOSE) {
+            out("TcpNetwork: " + header);
+        }
+        return new AudioInputStream(in, header.getFormat(), AudioSystem.NOT_SPECIFIED);
+    }
+
+    /**
+     * Let reads of the receive stream throw a SocketTimeoutException after
+     * <code>millis</code>, 0 blocks until data arrives. Call after
+     * createReceiveStream().
+     */
+    public synchronized void setReceiveTimeout(int millis) throws IOException {
+        if (!isConnected()) {
+            throw new IOException("not connected");
+        }
+        socket.setSoTimeout(millis);
+    }
+
+    /**
+     * the header of the received stream, or null
+     */
+    public synchronized StreamHeader getStreamHeader() {
+        return header;
+    }
+
+    /**
+     * the stream that is sent to all listeners: the radio's circular
+     * buffer. Starts the server, if necessary.
+     */
+    public synchronized OutputStream createSendStream() throws IOException {
+        setListen(true);
+        if (!listen()) {
+            throw new IOException("cannot start the stream server");
+        }
+        return getMasterModel().getRadioModel().getCircularBuffer();
+    }
+}
+
+/**
+ * * TcpNetwork.java **
+ */
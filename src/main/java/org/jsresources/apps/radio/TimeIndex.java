@@ -0,0 +1,186 @@
+/*
+ *	TimeIndex.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+/**
+ * A compact index mapping wall clock time to absolute positions in the
+ * CircularBuffer.
+ * <p>
+ * Entries are only added when the time of a newly written block deviates
+ * from the time extrapolated from the previous entry by more than
+ * TOLERANCE_MILLIS, so a continuous stream needs very few entries. Clock
+ * drift and dropped capture blocks just create new entries. Lookups are
+ * binary searches. The index keeps at most CAPACITY entries, discarding the
+ * oldest ones.
+ * <p>
+ * This class is not thread safe, CircularBuffer accesses it in synchronized
+ * context only.
+ */
+class TimeIndex {
+
+    private static final int CAPACITY = 4096;
+
+    /**
+     * maximum deviation of extrapolated time before a new entry is added
+     */
+    private static final long TOLERANCE_MILLIS = 10;
+
+    // ring of entries: wall clock time in millis and absolute byte position
+    private long[] times = new long[CAPACITY];
+    private long[] positions = new long[CAPACITY];
+    private int first;
+    private int count;
+
+    private double bytesPerMilli;
+    private int frameSize;
+
+    void init(double bytesPerMilli, int frameSize) {
+        this.bytesPerMilli = bytesPerMilli;
+        this.frameSize = (frameSize < 1) ? 1 : frameSize;
+        first = 0;
+        count = 0;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    private int entry(int i) {
+        return (first + i) % CAPACITY;
+    }
+
+    /**
+     * add the information that the byte at absolute position pos was captured
+     * at timeMillis.
+     */
+    void add(long timeMillis, long pos) {
+        if (count > 0) {
+            int last = entry(count - 1);
+            if (pos <= positions[last]) {
+                // nothing written since the last entry
+                times[last] = Math.max(times[last], timeMillis);
+                return;
+            }
+            long predicted = extrapolate(last, pos);
+            if (Math.abs(timeMillis - predicted) <= TOLERANCE_MILLIS) {
+                return;
+            }
+            // keep the index monotonic if the clock goes backwards
+            if (timeMillis < predicted && timeMillis < times[last]) {
+                timeMillis = predicted;
+            }
+        }
+        if (count == CAPACITY) {
+            first = entry(1);
+            count--;
+        }
+        int e = entry(count);
+        times[e] = timeMillis;
+        positions[e] = pos;
+        count++;
+    }
+
+    /**
+     * remove entries which are no longer needed for positions from
+     * <code>oldestPos</code> on.
+     */
+    void prune(long oldestPos) {
+        while (count > 1 && positions[entry(1)] <= oldestPos) {
+            first = entry(1);
+            count--;
+        }
+    }
+
+    private long extrapolate(int e, long pos) {
+        return times[e] + (long) ((pos - positions[e]) / bytesPerMilli);
+    }
+
+    /**
+     * returns the wall clock time of the absolute position, or -1 if unknown
+     */
+    long getTime(long pos) {
+        if (count == 0 || pos < positions[entry(0)]) {
+            return -1;
+        }
+        // binary search the last entry with a position <= pos
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (positions[entry(mid)] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return extrapolate(entry(lo), pos);
+    }
+
+    /**
+     * returns the absolute position of the data captured at
+     * <code>timeMillis</code>, aligned to frames. If the time falls into a
+     * gap, the position after the gap is returned. Returns -1 if the index
+     * is empty.
+     */
+    long getPosition(long timeMillis) {
+        if (count == 0) {
+            return -1;
+        }
+        if (timeMillis <= times[entry(0)]) {
+            return positions[entry(0)];
+        }
+        // binary search the last entry with a time <= timeMillis
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (times[entry(mid)] <= timeMillis) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        int e = entry(lo);
+        long pos = positions[e]
+                + (long) ((timeMillis - times[e]) * bytesPerMilli);
+        pos -= (pos - positions[e]) % frameSize;
+        if (lo < count - 1 && pos > positions[entry(lo + 1)]) {
+            // in a gap: continue with the next entry
+            pos = positions[entry(lo + 1)];
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *	TitleIndex.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+/**
+ * Maps absolute positions in the CircularBuffer to the title that was
+ * announced for the audio at that position, e.g. by ICY metadata. A title
+ * is valid from its position until the position of the next title. The
+ * index keeps at most CAPACITY entries, discarding the oldest ones.
+ * <p>
+ * This class is not thread safe, CircularBuffer accesses it in synchronized
+ * context only.
+ */
+class TitleIndex {
+
+    private static final int CAPACITY = 256;
+
+    // ring of entries
+    private long[] positions = new long[CAPACITY];
+    private String[] titles = new String[CAPACITY];
+    private int first;
+    private int count;
+
+    void init() {
+        for (int i = 0; i < CAPACITY; i++) {
+            titles[i] = null;
+        }
+        first = 0;
+        count = 0;
+    }
+
+    private int entry(int i) {
+        return (first + i) % CAPACITY;
+    }
+
+    /**
+     * the audio from absolute position <code>pos</code> on has the title
+     */
+    void add(long pos, String title) {
+        if (count > 0 && positions[entry(count - 1)] >= pos) {
+            // replaces the last title
+            titles[entry(count - 1)] = title;
+            return;
+        }
+        if (count == CAPACITY) {
+            titles[first] = null;
+            first = entry(1);
+            count--;
+        }
+        int e = entry(count);
+        positions[e] = pos;
+        titles[e] = title;
+        count++;
+    }
+
+    /**
+     * remove titles which are no longer needed for positions from
+     * <code>oldestPos</code> on
+     */
+    void prune(long oldestPos) {
+        while (count > 1 && positions[entry(1)] <= oldestPos) {
+            titles[first] = null;
+            first = entry(1);
+            count--;
+        }
+    }
+
+    /**
+     * returns the title of the audio at the absolute position, or null
+     */
+    String getTitle(long pos) {
+        if (count == 0 || pos < positions[entry(0)]) {
+            return null;
+        }
+        // binary search the last entry with a position <= pos
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (positions[entry(mid)] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return titles[entry(lo)];
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *	UdpNetwork.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Network over UDP. When listening, the circular buffer of the radio is
+ * sent to all subscribed receivers by a UdpStreamServer. When connected,
+ * the receiver subscribes to another radio's UDP server: the receive
+ * stream is an AudioInputStream read from a JitterBuffer, which reorders
+ * the packets and conceals lost ones. Unlike TCP, a lost packet never
+ * stalls the stream.
+ */
+public class UdpNetwork extends BaseNetwork {
+
+    private UdpReceiver receiver;
+    private InetAddress peer;
+    private UdpStreamServer server;
+    private boolean listen;
+
+    public UdpNetwork(MasterModel masterModel) {
+        super(masterModel);
+    }
+
+    public void connect(InetAddress addr) {
+        connect(addr, getConnectionSettings().getPort());
+    }
+
+    /**
+     * subscribe to the UDP server at addr:port
+     */
+    public synchronized void connect(InetAddress addr, int port) {
+        closeReceiver();
+        try {
+            receiver = createReceiver(addr, port);
+            receiver.start();
+            peer = addr;
+        } catch (IOException ioe) {
+            Debug.out(ioe);
+        }
+    }
+
+    /**
+     * the receiver for the stream at addr:port, not started yet
+     */
+    protected UdpReceiver createReceiver(InetAddress addr, int port) throws IOException {
+        DatagramSocket s = new DatagramSocket();
+        if (UDP_RECEIVE_BUFFER_SIZE > 0) {
+            s.setReceiveBufferSize(UDP_RECEIVE_BUFFER_SIZE);
+        }
+        UdpReceiver r = new UdpReceiver(s, new InetSocketAddress(addr, port));
+        r.setPreferredFormat(getMasterModel().getAudioSettings().getPreferredAudioFormatCode());
+        if (VERBOSE) {
+            out("UdpNetwork: subscribing to " + addr + ":" + port);
+        }
+        return r;
+    }
+
+    /**
+     * the server for the circular buffer, not started yet
+     */
+    protected UdpStreamServer createServer() throws IOException {
+        return new UdpStreamServer(getMasterModel().getRadioModel().getCircularBuffer(),
+                getConnectionSettings().getPort());
+    }
+
+    public synchronized void disconnect() {
+        closeReceiver();
+        stopServer();
+    }
+
+    private void closeReceiver() {
+        if (receiver != null) {
+            JitterBuffer jb = receiver.getJitterBuffer();
+            if (jb != null) {
+                jb.close();
+            }
+            receiver.stop();
+            receiver = null;
+        }
+        peer = null;
+    }
+
+    public synchronized boolean isConnected() {
+        return receiver != null && receiver.isRunning();
+    }
+
+    public synchronized InetAddress getPeer() {
+        return peer;
+    }
+
+    public synchronized void setListen(boolean bListen) {
+        listen = bListen;
+        if (!listen) {
+            stopServer();
+        }
+    }
+
+    /**
+     * start sending the circular buffer, if listening is enabled
+     *
+     * @return true if the server is running
+     */
+    public synchronized boolean listen() {
+        if (!listen) {
+            return false;
+        }
+        if (server == null) {
+            try {
+                UdpStreamServer s = createServer();
+                s.start();
+                server = s;
+            } catch (IOException ioe) {
+                Debug.out(ioe);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stopServer() {
+        if (server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+
+    /**
+     * the running server, or null
+     */
+    public synchronized UdpStreamServer getServer() {
+        return server;
+    }
+
+    /**
+     * waits for the server's format and returns the played out audio of
+     * a new JitterBuffer
+     */
+    public synchronized InputStream createReceiveStream() throws IOException {
+        if (!isConnected()) {
+            throw new IOException("not connected");
+        }
+        StreamHeader header = receiver.waitForHeader(CONNECT_TIMEOUT_MILLIS);
+        if (header == null) {
+            throw new IOException("no response from " + peer);
+        }
+        JitterBuffer jb = new JitterBuffer(header.getFormat(),
+                JITTER_MIN_DELAY_MILLIS, JITTER_MAX_DELAY_MILLIS);
+        receiver.setJitterBuffer(jb);
+        return new AudioInputStream(jb, header.getFormat(), AudioSystem.NOT_SPECIFIED);
+    }
+
+    /**
+     * the header of the received stream, or null
+     */
+    public synchronized StreamHeader getStreamHeader() {
+        return (receiver == null) ? null : receiver.getStreamHeader();
+    }
+
+    /**
+     * the receiver, or null if not connected
+     */
+    public synchronized UdpReceiver getReceiver() {
+        return receiver;
+    }
+
+    /**
+     * the stream that is sent to all subscribers: the radio's circular
+     * buffer. Starts the server, if necessary.
+     */
+    public synchronized OutputStream createSendStream() throws IOException {
+        setListen(true);
+        if (!listen()) {
+            throw new IOException("cannot start the UDP server");
+        }
+        return getMasterModel().getRadioModel().getCircularBuffer();
+    }
+}
+
+/**
+ * * UdpNetwork.java **
+ */
@@ -0,0 +1,642 @@
+/*
+ *	UdpReceiver.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import javax.sound.sampled.AudioFormat;
+import org.jsresources.utils.audio.PcmConverter;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Receives AudioPackets from a UDP socket on its own thread. Audio packets
+ * are put into the JitterBuffer, once one is set; format packets provide
+ * the StreamHeader. Parity packets are passed to a FecDecoder, and rebuilt
+ * packets go to the JitterBuffer like received ones. If a server address
+ * is given, the receiver subscribes to the server's stream and renews the
+ * subscription regularly; each renewal reports the loss measured since the
+ * previous one, so that the server can adapt its FEC overhead. Without a
+ * server address, e.g. on a MulticastSocket that joined a group, the
+ * receiver only listens, and the loss is just counted.
+ * <p>
+ * Each renewal also requests one of the formats the server offers, chosen
+ * by a FormatAdapter from the loss and the throughput, or a fixed one. The
+ * format of the first format packet is the format of the stream; packets
+ * in other formats are converted to it before they go to the JitterBuffer,
+ * so that format switches do not interrupt playback.
+ */
+public class UdpReceiver implements Runnable {
+
+    // the number of reports for the lowest transit, about one minute
+    private static final int BASE_TRANSIT_REPORTS = 30;
+    // how long packets in another format wait for a reordered one
+    private static final int CONVERT_WAIT_MILLIS = 20;
+
+    private final DatagramSocket socket;
+    private final SocketAddress server;
+
+    private Thread thread;
+    private volatile boolean terminated;
+    private volatile JitterBuffer jitterBuffer;
+    private StreamHeader header;
+    // the format code of the header
+    private int headerCode;
+    private final FecDecoder fec = new FecDecoder();
+    private final AudioPacket recoveredPacket = new AudioPacket();
+    // the delay the jitter buffer needs to wait for the parity packets
+    private int fecDelayMillis;
+    private int lastPacketMillis;
+
+    // the formats announced by the format packets, by format code, and
+    // the codes the server offers, best first
+    private final AudioFormat[] formats = new AudioFormat[256];
+    private int[] offered = new int[0];
+    // the requested format code, and the adapter that chooses it
+    private volatile int requestedCode;
+    private volatile FormatAdapter adapter = new FormatAdapter();
+    // the format code of the last audio packet
+    private volatile int currentCode = -1;
+    // conversion to the header's format, by format code
+    private final PacketConverter[] converters = new PacketConverter[256];
+
+    // loss measured on the network since the last report: a packet
+    // counts as lost when it leaves the window of the last 64 sequence
+    // numbers, so that reordered packets are not counted. The residual
+    // loss counts the lost packets that FEC did not rebuild either.
+    private boolean windowStarted;
+    private int windowBase;
+    private long window;
+    private long recoveredWindow;
+    private boolean inLossRun;
+    private int intervalExpected;
+    private int intervalLost;
+    private int intervalResidual;
+    private int intervalBursts;
+    private int intervalParities;
+    // the audio received since the last report, -1 if the format changed
+    private long intervalBytes;
+    private long intervalStart;
+    // the one-way transit (arrival minus send time) of the audio packets
+    // since the last report, and the lowest transit of the last reports:
+    // the difference is the delay of queues on the way
+    private long intervalTransitSum;
+    private int intervalTransitCount;
+    private int intervalTransitMin = Integer.MAX_VALUE;
+    private final int[] baseTransits = new int[BASE_TRANSIT_REPORTS];
+    private int baseTransitIndex;
+
+    // statistics
+    private volatile long packets;
+    private volatile long invalid;
+    private volatile long bytesReceived;
+    private volatile long formatSwitches;
+    private volatile long expected;
+    private volatile long lost;
+    private volatile long residualLost;
+
+    /**
+     * @param server the address to subscribe to, or null to receive
+     *            without subscription
+     */
+    public UdpReceiver(DatagramSocket socket, SocketAddress server) {
+        this.socket = socket;
+        this.server = server;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        terminated = false;
+        thread = new Thread(this, "UdpReceiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * unsubscribe, stop receiving and close the socket
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            terminated = true;
+            notifyAll();
+        }
+        if (server != null && !socket.isClosed()) {
+            sendControl(new AudioPacket(), new DatagramPacket(new byte[0], 0),
+                    AudioPacket.TYPE_UNSUBSCRIBE);
+        }
+        socket.close();
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(2000);
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    public void run() {
+        AudioPacket packet = new AudioPacket();
+        DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+        AudioPacket control = new AudioPacket();
+        DatagramPacket controlDp = new DatagramPacket(new byte[0], 0);
+        long nextReport = 0;
+        try {
+            socket.setSoTimeout(UDP_SUBSCRIBE_INTERVAL_MILLIS / 4);
+            while (!terminated) {
+                long now = System.currentTimeMillis();
+                if (now >= nextReport) {
+                    // without a server, the loss is only counted
+                    writeLossReport(control, now);
+                    if (server != null) {
+                        sendControl(control, controlDp, AudioPacket.TYPE_SUBSCRIBE);
+                    }
+                    nextReport = now + UDP_SUBSCRIBE_INTERVAL_MILLIS;
+                }
+                packet.prepareReceive(dp);
+                try {
+                    socket.receive(dp);
+                } catch (SocketTimeoutException ste) {
+                    continue;
+                }
+                if (!packet.read(dp)) {
+                    invalid++;
+                    continue;
+                }
+                packets++;
+                bytesReceived += dp.getLength();
+                handle(packet, System.currentTimeMillis());
+            }
+        } catch (IOException ioe) {
+            if (DEBUG && !terminated) {
+                Debug.out(ioe);
+            }
+        } finally {
+            synchronized (this) {
+                if (thread == Thread.currentThread()) {
+                    thread = null;
+                }
+                terminated = true;
+                notifyAll();
+            }
+            if (VERBOSE) {
+                out("UdpReceiver: stopped. " + getStats());
+            }
+        }
+    }
+
+    /**
+     * handles a received packet. Called by the receiver thread.
+     */
+    protected void handle(AudioPacket packet, long arrivalMillis) throws IOException {
+        switch (packet.getType()) {
+            case AudioPacket.TYPE_AUDIO:
+                countReceived(packet.getSequence());
+                int transit = (int) arrivalMillis - packet.getSendTime();
+                intervalTransitSum += transit;
+                intervalTransitCount++;
+                intervalTransitMin = Math.min(intervalTransitMin, transit);
+                int code = packet.getFormat();
+                if (code != currentCode) {
+                    if (currentCode >= 0) {
+                        formatSwitches++;
+                    }
+                    currentCode = code;
+                    intervalBytes = -1;
+                } else if (intervalBytes >= 0) {
+                    intervalBytes += packet.getLength();
+                }
+                AudioFormat format = formats[code];
+                if (format != null) {
+                    lastPacketMillis = (int) Math.ceil(packet.getLength() * 1000.0
+                            / UdpStreamServer.getBytesPerSecond(format));
+                }
+                deliver(packet, arrivalMillis);
+                if (fec.addData(packet, recoveredPacket)) {
+                    deliverRecovered(recoveredPacket, arrivalMillis);
+                }
+                break;
+            case AudioPacket.TYPE_FEC:
+                intervalParities++;
+                if (fec.addParity(packet, recoveredPacket)) {
+                    deliverRecovered(recoveredPacket, arrivalMillis);
+                }
+                JitterBuffer jb = jitterBuffer;
+                if (jb != null) {
+                    adaptDelay(jb);
+                }
+                break;
+            case AudioPacket.TYPE_FORMAT:
+                if (!handleFormat(packet)) {
+                    // a truncated or garbled packet: wait for the next one
+                    invalid++;
+                }
+                break;
+        }
+    }
+
+    /**
+     * reads the stream header and the offered formats of a format packet
+     *
+     * @return false if the packet is malformed
+     */
+    private boolean handleFormat(AudioPacket packet) {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
+        StreamHeader h;
+        int code = packet.getFormat();
+        int[] codes = null;
+        try {
+            h = StreamHeader.read(in);
+            // followed by the format code and the offered formats
+            if (in.available() >= 2) {
+                code = in.readUnsignedByte();
+                codes = new int[in.readUnsignedByte()];
+                for (int i = 0; i < codes.length; i++) {
+                    codes[i] = in.readUnsignedByte();
+                }
+            }
+        } catch (IOException ioe) {
+            if (DEBUG) {
+                out("UdpReceiver: invalid format packet: " + ioe);
+            }
+            return false;
+        }
+        if (codes != null) {
+            offered = codes;
+        }
+        if (formats[code] == null || !formats[code].matches(h.getFormat())) {
+            formats[code] = h.getFormat();
+            converters[code] = null;
+        }
+        synchronized (this) {
+            if (header == null) {
+                header = h;
+                headerCode = code;
+                if (VERBOSE) {
+                    out("UdpReceiver: " + h);
+                }
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    private void deliverRecovered(AudioPacket packet, long arrivalMillis) {
+        int offset = packet.getSequence() - windowBase;
+        if (windowStarted && offset >= 0 && offset < 64) {
+            recoveredWindow |= 1L << offset;
+        }
+        if (packet.getFormat() == currentCode && intervalBytes >= 0) {
+            intervalBytes += packet.getLength();
+        }
+        deliver(packet, arrivalMillis);
+    }
+
+    /**
+     * puts an audio packet into the jitter buffer, converted to the
+     * jitter buffer's format if necessary
+     */
+    private void deliver(AudioPacket packet, long arrivalMillis) {
+        JitterBuffer jb = jitterBuffer;
+        AudioFormat format = formats[packet.getFormat()];
+        if (jb == null || format == null) {
+            // no format packet yet
+            return;
+        }
+        if (format.matches(jb.getFormat())) {
+            jb.put(packet, arrivalMillis);
+            return;
+        }
+        PacketConverter converter = converters[packet.getFormat()];
+        if (converter == null || !converter.getTargetFormat().matches(jb.getFormat())) {
+            if (!PcmConverter.isConversionSupported(format, jb.getFormat())) {
+                return;
+            }
+            converter = new PacketConverter(format, jb.getFormat(), headerCode);
+            converters[packet.getFormat()] = converter;
+        }
+        // wait for missing packets as long as FEC may need to rebuild them
+        int wait = Math.max(CONVERT_WAIT_MILLIS, fecDelayMillis - lastPacketMillis);
+        converter.put(packet, arrivalMillis, wait, jb);
+    }
+
+    // a packet can only be rebuilt once its whole block and the parity
+    // arrived: make the jitter buffer wait for that
+    private void adaptDelay(JitterBuffer jb) {
+        int delay = Math.max(JITTER_MIN_DELAY_MILLIS,
+                (fec.getK() * fec.getD() + 1) * lastPacketMillis);
+        if (delay != fecDelayMillis) {
+            fecDelayMillis = delay;
+            jb.setMinDelayMillis(delay);
+            if (DEBUG) {
+                out("UdpReceiver: FEC k=" + fec.getK() + " d=" + fec.getD()
+                        + ", minimum delay " + delay + "ms");
+            }
+        }
+    }
+
+    private void countReceived(int seq) {
+        if (!windowStarted) {
+            windowStarted = true;
+            windowBase = seq;
+            window = 0;
+            recoveredWindow = 0;
+        }
+        if (seq - windowBase < 0) {
+            // too late, already counted as lost
+            return;
+        }
+        if (seq - windowBase >= 128) {
+            // the sender restarted
+            windowBase = seq;
+            window = 0;
+            recoveredWindow = 0;
+        }
+        while (seq - windowBase >= 64) {
+            boolean received = (window & 1) != 0;
+            if (!received) {
+                intervalLost++;
+                if (!inLossRun) {
+                    intervalBursts++;
+                }
+                if ((recoveredWindow & 1) == 0) {
+                    intervalResidual++;
+                }
+            }
+            inLossRun = !received;
+            intervalExpected++;
+            window >>>= 1;
+            recoveredWindow >>>= 1;
+            windowBase++;
+        }
+        window |= 1L << (seq - windowBase);
+    }
+
+    /**
+     * Writes the loss rate in 1/10000 and the mean burst length in 1/100
+     * since the previous report, and the requested format code, into the
+     * packet's payload, and starts a new interval.
+     */
+    private void writeLossReport(AudioPacket packet, long now) {
+        double loss = 0;
+        double residual = 0;
+        double burst = 1;
+        if (intervalExpected > 0) {
+            loss = intervalLost / (double) intervalExpected;
+            residual = intervalResidual / (double) intervalExpected;
+        }
+        if (intervalBursts > 0) {
+            burst = intervalLost / (double) intervalBursts;
+        }
+        expected += intervalExpected;
+        lost += intervalLost;
+        residualLost += intervalResidual;
+        intervalExpected = 0;
+        intervalLost = 0;
+        intervalResidual = 0;
+        intervalBursts = 0;
+        if (intervalParities == 0 && fecDelayMillis != 0) {
+            // FEC was switched off
+            JitterBuffer jb = jitterBuffer;
+            if (jb != null) {
+                jb.setMinDelayMillis(JITTER_MIN_DELAY_MILLIS);
+            }
+            fecDelayMillis = 0;
+        }
+        intervalParities = 0;
+        boolean mixed = (intervalBytes < 0);
+        if (adaptFormat(residual, now) || mixed) {
+            // the loss while the format changes, or of the previous format,
+            // says nothing about the requested one
+            loss = 0;
+            burst = 1;
+        }
+        byte[] b = packet.getData();
+        FecEncoder.putBits(b, 0, Math.min(10000, Math.round(loss * 10000)), 2);
+        FecEncoder.putBits(b, 2, Math.min(0xFFFF, Math.round(burst * 100)), 2);
+        b[4] = (byte) requestedCode;
+        packet.setLength(5);
+    }
+
+    /**
+     * @param loss the loss that FEC did not repair
+     * @return true if another format is requested
+     */
+    private boolean adaptFormat(double loss, long now) {
+        FormatAdapter fa = adapter;
+        int code = currentCode;
+        double throughput = -1;
+        if (code >= 0 && formats[code] != null && intervalBytes >= 0 && now > intervalStart) {
+            throughput = intervalBytes * 1000.0 / (now - intervalStart)
+                    / UdpStreamServer.getBytesPerSecond(formats[code]);
+        }
+        intervalBytes = 0;
+        intervalStart = now;
+        double queueDelay = 0;
+        if (intervalTransitCount > 0) {
+            baseTransits[baseTransitIndex++ % BASE_TRANSIT_REPORTS] = intervalTransitMin;
+            int base = Integer.MAX_VALUE;
+            for (int i = 0; i < Math.min(baseTransitIndex, BASE_TRANSIT_REPORTS); i++) {
+                base = Math.min(base, baseTransits[i]);
+            }
+            queueDelay = intervalTransitSum / (double) intervalTransitCount - base;
+        }
+        intervalTransitSum = 0;
+        intervalTransitCount = 0;
+        intervalTransitMin = Integer.MAX_VALUE;
+        if (fa == null || header == null || offered.length == 0) {
+            return false;
+        }
+        int requested = fa.update(offered, headerCode, code, loss, throughput, queueDelay, now);
+        if (requested == requestedCode) {
+            return false;
+        }
+        requestedCode = requested;
+        return true;
+    }
+
+    private void sendControl(AudioPacket packet, DatagramPacket dp, int type) {
+        packet.setType(type);
+        packet.setSendTime((int) System.currentTimeMillis());
+        packet.write(dp);
+        dp.setSocketAddress(server);
+        try {
+            socket.send(dp);
+        } catch (IOException ioe) {
+            if (DEBUG) {
+                Debug.out(ioe);
+            }
+        }
+    }
+
+    /**
+     * waits for the first format packet
+     *
+     * @return the header, or null if none was received in time
+     */
+    public synchronized StreamHeader waitForHeader(long timeoutMillis) throws IOException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (header == null && !terminated) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+        }
+        return header;
+    }
+
+    public synchronized StreamHeader getStreamHeader() {
+        return header;
+    }
+
+    /**
+     * the buffer that receives the audio packets from now on
+     */
+    public void setJitterBuffer(JitterBuffer jitterBuffer) {
+        this.jitterBuffer = jitterBuffer;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public FecDecoder getFecDecoder() {
+        return fec;
+    }
+
+    /**
+     * The format to ask for when subscribing; the server starts with the
+     * nearest format it offers. The FormatAdapter then switches between
+     * that format and the lower ones. 0, the default, is the server's
+     * source format.
+     */
+    public void setPreferredFormat(int code) {
+        requestedCode = code;
+    }
+
+    /**
+     * request a fixed format from the server, instead of the formats chosen
+     * by the FormatAdapter. 0 is the server's source format.
+     */
+    public void setRequestedFormat(int code) {
+        adapter = null;
+        requestedCode = code;
+    }
+
+    public int getRequestedFormat() {
+        return requestedCode;
+    }
+
+    /**
+     * the adapter that chooses the requested format, or null for the fixed
+     * format of setRequestedFormat()
+     */
+    public void setFormatAdapter(FormatAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    public FormatAdapter getFormatAdapter() {
+        return adapter;
+    }
+
+    /**
+     * the format code of the last received audio packet, or -1
+     */
+    public int getFormatCode() {
+        return currentCode;
+    }
+
+    public long getFormatSwitches() {
+        return formatSwitches;
+    }
+
+    /**
+     * the fraction of the packets that were lost on the network, up to the
+     * last report
+     */
+    public double getLossRate() {
+        long e = expected;
+        return (e <= 0) ? 0 : lost / (double) e;
+    }
+
+    /**
+     * the fraction of the packets that were lost and not rebuilt by FEC,
+     * up to the last report
+     */
+    public double getResidualLossRate() {
+        long e = expected;
+        return (e <= 0) ? 0 : residualLost / (double) e;
+    }
+
+    public String getStats() {
+        JitterBuffer jb = jitterBuffer;
+        return "packets: " + packets + " (" + (bytesReceived / 1024) + "KB), invalid: "
+                + invalid + ", network loss: " + Math.round(getLossRate() * 1000) / 10.0
+                + "%, after FEC: " + Math.round(getResidualLossRate() * 1000) / 10.0
+                + "%, format: " + currentCode + ", switches: " + formatSwitches
+                + ", " + fec.getStats() + ((jb != null) ? ", " + jb.getStats() : "");
+    }
+}
+
+/**
+ * * UdpReceiver.java **
+ */
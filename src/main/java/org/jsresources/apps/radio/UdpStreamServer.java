@@ -0,0 +1,811 @@
+/*
+ *	UdpStreamServer.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.apps.radio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import org.jsresources.utils.Utils;
+import org.jsresources.utils.audio.AudioUtils;
+import org.jsresources.utils.audio.PcmConverter;
+import static org.jsresources.apps.radio.Constants.*;
+
+/**
+ * Sends the live content of a CircularBuffer as AudioPackets over UDP to
+ * all subscribed receivers. A receiver subscribes by sending a subscribe
+ * packet to the server's port, and has to renew the subscription every
+ * UDP_SUBSCRIBE_INTERVAL_MILLIS; otherwise it is dropped after
+ * UDP_SUBSCRIBER_TIMEOUT_MILLIS. New subscribers get a format packet at
+ * once, and the format is repeated every UDP_FORMAT_INTERVAL_MILLIS.
+ * <p>
+ * The sender thread reads the circular buffer from the live position and
+ * sends each packet to all subscribers as soon as its data is captured.
+ * Lost packets are not retransmitted. Instead, parity packets can be sent
+ * (see FecEncoder), so that receivers rebuild lost packets; the remaining
+ * losses are concealed by the receivers' JitterBuffer. In adaptive mode,
+ * the FEC overhead follows the worst loss that the subscribers report with
+ * their subscriptions. A second thread receives the subscriptions.
+ * <p>
+ * Besides the source format, the server offers those PCM and G.711 formats
+ * of the format table that need less bandwidth (see getOfferedFormats()),
+ * and each subscriber requests one of them with its subscriptions. Every
+ * packet is converted once for each format that has subscribers. The
+ * packets of all formats share the sequence numbers, so that a receiver
+ * can switch formats from one packet to the next.
+ * <p>
+ * Given a multicast group, the server sends each packet only once, to the
+ * group, in the source format and with fixed FEC: the receivers join the
+ * group and do not subscribe, so there are no loss reports. To let them
+ * start at once whenever they join, the format is announced every
+ * MULTICAST_FORMAT_INTERVAL_MILLIS.
+ */
+public class UdpStreamServer implements Runnable {
+
+    /**
+     * no forward error correction
+     */
+    public static final int FEC_OFF = 0;
+    /**
+     * forward error correction with the parameters of setFecParameters()
+     */
+    public static final int FEC_FIXED = 1;
+    /**
+     * forward error correction adapted to the reported loss
+     */
+    public static final int FEC_ADAPTIVE = 2;
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    // the formats that can be offered besides the source format, best first
+    private static final int[] FORMAT_LADDER = {
+        FORMAT_CODE_CD,
+        FORMAT_CODE_FM,
+        FORMAT_CODE_TELEPHONE,};
+
+    private final CircularBuffer circBuf;
+    private final int port;
+    // the multicast group, or null for subscribers
+    private final InetSocketAddress group;
+    private volatile NetworkInterface networkInterface;
+    private volatile int packetMillis = UDP_PACKET_MILLIS;
+    private volatile int fecMode = FEC_ADAPTIVE;
+    private volatile int fecK = 0;
+    private volatile int fecD = 1;
+    private volatile boolean multiFormat = true;
+
+    private DatagramSocket socket;
+    private Thread sender;
+    private Thread control;
+    private volatile boolean terminated;
+    private AudioInputStream source;
+
+    // the subscribers by address, and a copy for the sender thread
+    private final Map<SocketAddress, Subscriber> subscriberMap = new HashMap<SocketAddress, Subscriber>();
+    private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
+    // the format codes offered for the current source format, and the
+    // stream in each of them, by format code
+    private volatile int[] offered = {0};
+    private volatile Rendition[] renditions = new Rendition[0];
+
+    // statistics
+    private volatile long packetsSent;
+    private volatile long bytesSent;
+    private volatile long sendErrors;
+    private volatile long subscribed;
+    private volatile long expired;
+
+    public UdpStreamServer(CircularBuffer circBuf, int port) {
+        this.circBuf = circBuf;
+        this.port = port;
+        this.group = null;
+    }
+
+    /**
+     * a server that sends to the multicast group, from any port
+     */
+    public UdpStreamServer(CircularBuffer circBuf, InetSocketAddress group) {
+        this.circBuf = circBuf;
+        this.port = 0;
+        this.group = group;
+        multiFormat = false;
+        fecMode = FEC_FIXED;
+        fecK = MULTICAST_FEC_K;
+        fecD = MULTICAST_FEC_D;
+    }
+
+    public synchronized void start() throws IOException {
+        if (sender != null) {
+            return;
+        }
+        if (group != null) {
+            MulticastSocket ms = new MulticastSocket(port);
+            try {
+                ms.setTimeToLive(MULTICAST_TTL);
+                if (networkInterface != null) {
+                    ms.setNetworkInterface(networkInterface);
+                }
+            } catch (IOException ioe) {
+                ms.close();
+                throw ioe;
+            }
+            socket = ms;
+            // the group is the only subscriber, and never expires
+            Subscriber s = new Subscriber(group);
+            subscriberMap.put(group, s);
+            subscribers = subscriberMap.values().toArray(NO_SUBSCRIBERS);
+        } else {
+            socket = new DatagramSocket(port);
+        }
+        terminated = false;
+        sender = new Thread(this, "UdpStreamServer");
+        sender.setDaemon(true);
+        sender.start();
+        if (group == null) {
+            control = new Thread(new Runnable() {
+                public void run() {
+                    receiveSubscriptions();
+                }
+            }, "UdpStreamServer control");
+            control.setDaemon(true);
+            control.start();
+        }
+        if (VERBOSE) {
+            out("UdpStreamServer: sending to " + ((group != null) ? "group " + group : "subscribers")
+                    + " from port " + getPort());
+        }
+    }
+
+    /**
+     * stop sending and forget all subscribers
+     */
+    public void stop() {
+        Thread t;
+        AudioInputStream ais;
+        synchronized (this) {
+            t = sender;
+            sender = null;
+            control = null;
+            terminated = true;
+            ais = source;
+            if (socket != null) {
+                // unblocks the control thread
+                socket.close();
+            }
+        }
+        if (ais != null) {
+            try {
+                // unblocks the sender thread
+                ais.close();
+            } catch (IOException ioe) {
+            }
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(2000);
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return sender != null;
+    }
+
+    /**
+     * the multicast group, or null if the server sends to subscribers
+     */
+    public InetSocketAddress getGroup() {
+        return group;
+    }
+
+    /**
+     * the interface to send the multicast packets from, or null for the
+     * system's default. Takes effect when the server is started.
+     */
+    public void setNetworkInterface(NetworkInterface networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    /**
+     * the port the server is bound to
+     */
+    public int getPort() {
+        DatagramSocket s = socket;
+        if (s != null && s.isBound()) {
+            return s.getLocalPort();
+        }
+        return port;
+    }
+
+    // the sender thread
+    public void run() {
+        byte[] data = new byte[AudioPacket.MAX_PAYLOAD];
+        long streamPos = 0;
+        int seq = 0;
+        try {
+            while (!terminated) {
+                AudioFormat format = circBuf.getFormat();
+                AudioInputStream live = circBuf.getLiveAIS(circBuf.getWritePosition());
+                synchronized (this) {
+                    source = live;
+                    if (terminated) {
+                        break;
+                    }
+                }
+                int payload = getPayloadSize(format);
+                setSourceFormat(format, payload);
+                int checkInterval = (group != null)
+                        ? MULTICAST_FORMAT_INTERVAL_MILLIS : UDP_FORMAT_INTERVAL_MILLIS;
+                long nextCheck = 0;
+                try {
+                    while (!terminated) {
+                        int n = readFully(live, data, payload);
+                        if (n <= 0) {
+                            break;
+                        }
+                        int sendTime = (int) System.currentTimeMillis();
+                        Subscriber[] subs = subscribers;
+                        assignFormats(subs);
+                        for (Rendition r : renditions) {
+                            if (r == null) {
+                                continue;
+                            }
+                            if (!hasSubscribers(subs, r.code)) {
+                                r.active = false;
+                                continue;
+                            }
+                            if (!r.active) {
+                                r.activate(streamPos);
+                            }
+                            r.sendAudio(data, n, seq, sendTime, subs);
+                        }
+                        seq++;
+                        streamPos += n;
+                        long now = System.currentTimeMillis();
+                        if (now >= nextCheck) {
+                            expireSubscribers(now);
+                            for (Rendition r : renditions) {
+                                if (r != null && r.active) {
+                                    if (fecMode == FEC_ADAPTIVE) {
+                                        adaptFec(r, subs);
+                                    }
+                                    r.sendFormat(subs);
+                                }
+                            }
+                            nextCheck = now + checkInterval;
+                        }
+                    }
+                } finally {
+                    live.close();
+                }
+                // the circular buffer was re-initialized
+                if (!terminated) {
+                    Thread.sleep(100);
+                }
+            }
+        } catch (Exception e) {
+            if (DEBUG) {
+                Debug.out(e);
+            }
+        } finally {
+            synchronized (this) {
+                source = null;
+                if (sender == Thread.currentThread()) {
+                    sender = null;
+                }
+            }
+            if (VERBOSE) {
+                out("UdpStreamServer: stopped. " + getStats());
+            }
+        }
+    }
+
+    // the audio of one packet, in whole frames
+    private int getPayloadSize(AudioFormat format) {
+        int fs = Math.max(1, format.getFrameSize());
+        int size = (int) AudioUtils.millis2bytes(packetMillis, format);
+        return Utils.align(Math.max(fs, Math.min(size, AudioPacket.MAX_AUDIO_PAYLOAD)), fs);
+    }
+
+    // read until len bytes are read, or the end of the stream
+    private static int readFully(AudioInputStream in, byte[] b, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int r = in.read(b, total, len - total);
+            if (r < 0) {
+                break;
+            }
+            total += r;
+        }
+        return total;
+    }
+
+    private void send(DatagramPacket dp, SocketAddress address) {
+        try {
+            dp.setSocketAddress(address);
+            socket.send(dp);
+            packetsSent++;
+            bytesSent += dp.getLength();
+        } catch (IOException ioe) {
+            sendErrors++;
+        }
+    }
+
+    /**
+     * The format codes that are offered for the source format, best first:
+     * 0 for the source format itself, followed by the formats of the
+     * format table that PcmConverter converts to and that need less
+     * bandwidth than the source format.
+     */
+    public static int[] getOfferedFormats(AudioFormat sourceFormat) {
+        int[] codes = new int[FORMAT_LADDER.length + 1];
+        int count = 1;
+        for (int code : FORMAT_LADDER) {
+            AudioFormat format = AudioSettings.getAudioFormatFromCode(code);
+            if (PcmConverter.isConversionSupported(sourceFormat, format)
+                    && getBytesPerSecond(format) < getBytesPerSecond(sourceFormat)) {
+                codes[count++] = code;
+            }
+        }
+        return Arrays.copyOf(codes, count);
+    }
+
+    static double getBytesPerSecond(AudioFormat format) {
+        return format.getFrameRate() * format.getFrameSize();
+    }
+
+    /**
+     * the position in bytes of <code>to</code> that corresponds to the
+     * position <code>pos</code> in bytes of <code>from</code>
+     */
+    static long mapPosition(long pos, AudioFormat from, AudioFormat to) {
+        double seconds = pos / (double) from.getFrameSize() / from.getFrameRate();
+        return Math.round(seconds * to.getFrameRate()) * to.getFrameSize();
+    }
+
+    private void setSourceFormat(AudioFormat format, int payload) {
+        int[] codes = multiFormat ? getOfferedFormats(format) : new int[] {0};
+        Rendition[] rs = new Rendition[codes[codes.length - 1] + 1];
+        for (int code : codes) {
+            AudioFormat f = (code == 0) ? format : AudioSettings.getAudioFormatFromCode(code);
+            rs[code] = new Rendition(code, f, format, payload);
+        }
+        renditions = rs;
+        offered = codes;
+        // everyone gets the new format packets
+        for (Subscriber s : subscribers) {
+            s.code = -1;
+        }
+        if (VERBOSE) {
+            out("UdpStreamServer: offering formats " + Arrays.toString(codes));
+        }
+    }
+
+    // serve each subscriber the format it requested, or the nearest one
+    private void assignFormats(Subscriber[] subs) {
+        for (Subscriber s : subs) {
+            int requested = s.requestedCode;
+            if (requested == s.requestedServed && s.code >= 0) {
+                continue;
+            }
+            int code = getNearestFormat(requested);
+            s.requestedServed = requested;
+            if (code != s.code) {
+                s.code = code;
+                s.needsFormat = true;
+                // the reported loss was measured in the previous format
+                s.lossRate = 0;
+                s.burstLength = 1;
+            }
+        }
+    }
+
+    /**
+     * The requested format if it is offered. Otherwise the best offered
+     * format that does not need more bandwidth than the requested one, or
+     * the lowest offered format. Formats without a fixed bitrate, like
+     * MP3, stand for the source format.
+     */
+    private int getNearestFormat(int requested) {
+        int[] codes = offered;
+        Rendition[] rs = renditions;
+        if (requested <= 0 || requested > FORMAT_CODE_OGG_LOW) {
+            return 0;
+        }
+        AudioFormat format = AudioSettings.getAudioFormatFromCode(requested);
+        if (format.getFrameRate() <= 0 || format.getFrameSize() <= 0) {
+            return 0;
+        }
+        double limit = getBytesPerSecond(format);
+        for (int code : codes) {
+            if (code == requested) {
+                return code;
+            }
+        }
+        for (int code : codes) {
+            if (getBytesPerSecond(rs[code].format) <= limit) {
+                return code;
+            }
+        }
+        return codes[codes.length - 1];
+    }
+
+    private static boolean hasSubscribers(Subscriber[] subs, int code) {
+        for (Subscriber s : subs) {
+            if (s.code == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the control thread
+    private void receiveSubscriptions() {
+        AudioPacket packet = new AudioPacket();
+        DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+        while (!terminated) {
+            packet.prepareReceive(dp);
+            try {
+                socket.receive(dp);
+            } catch (IOException ioe) {
+                // closed
+                break;
+            }
+            if (!packet.read(dp)) {
+                continue;
+            }
+            SocketAddress address = dp.getSocketAddress();
+            if (packet.getType() == AudioPacket.TYPE_SUBSCRIBE) {
+                subscribe(address, packet);
+            } else if (packet.getType() == AudioPacket.TYPE_UNSUBSCRIBE) {
+                unsubscribe(address);
+            }
+        }
+    }
+
+    /**
+     * @return true if it is a new subscriber
+     */
+    private synchronized boolean subscribe(SocketAddress address, AudioPacket packet) {
+        Subscriber s = subscriberMap.get(address);
+        boolean isNew = (s == null);
+        if (isNew) {
+            s = new Subscriber(address);
+        }
+        s.lastSeen = System.currentTimeMillis();
+        // the loss report and the requested format
+        byte[] b = packet.getData();
+        if (packet.getLength() >= 4) {
+            s.lossRate = FecEncoder.getBits(b, 0, 2) / 10000.0;
+            s.burstLength = FecEncoder.getBits(b, 2, 2) / 100.0;
+        }
+        if (packet.getLength() >= 5) {
+            s.requestedCode = b[4] & 0xFF;
+        }
+        if (!isNew) {
+            return false;
+        }
+        subscriberMap.put(address, s);
+        subscribers = subscriberMap.values().toArray(NO_SUBSCRIBERS);
+        subscribed++;
+        if (DEBUG) {
+            out("UdpStreamServer: new subscriber " + address);
+        }
+        return true;
+    }
+
+    private synchronized void unsubscribe(SocketAddress address) {
+        if (subscriberMap.remove(address) != null) {
+            subscribers = subscriberMap.values().toArray(NO_SUBSCRIBERS);
+        }
+    }
+
+    private synchronized void expireSubscribers(long now) {
+        int count = subscriberMap.size();
+        for (Subscriber s : subscribers) {
+            if (now - s.lastSeen > UDP_SUBSCRIBER_TIMEOUT_MILLIS && s.address != group) {
+                subscriberMap.remove(s.address);
+                expired++;
+            }
+        }
+        if (subscriberMap.size() != count) {
+            subscribers = subscriberMap.values().toArray(NO_SUBSCRIBERS);
+        }
+    }
+
+    // protect against the worst loss of the format's subscribers
+    private void adaptFec(Rendition r, Subscriber[] subs) {
+        double loss = 0;
+        double burst = 1;
+        for (Subscriber s : subs) {
+            if (s.code == r.code && s.lossRate > loss) {
+                loss = s.lossRate;
+                burst = s.burstLength;
+            }
+        }
+        r.fec.adapt(loss, burst);
+    }
+
+    // ------------------------------------------------------ settings
+
+    /**
+     * FEC_OFF, FEC_FIXED or FEC_ADAPTIVE
+     */
+    public void setFecMode(int mode) {
+        fecMode = mode;
+        if (mode == FEC_FIXED) {
+            setFecParameters(fecK, fecD);
+        }
+    }
+
+    public int getFecMode() {
+        return fecMode;
+    }
+
+    /**
+     * the group size k (0 for no FEC) and the interleaving depth d for
+     * FEC_FIXED mode
+     */
+    public void setFecParameters(int k, int d) {
+        fecK = k;
+        fecD = d;
+        for (Rendition r : renditions) {
+            if (r != null) {
+                r.fec.setParameters(k, d);
+            }
+        }
+    }
+
+    /**
+     * Whether to offer the formats of getOfferedFormats(), or only the
+     * source format. Takes effect when the circular buffer is initialized
+     * the next time.
+     */
+    public void setMultiFormat(boolean multiFormat) {
+        this.multiFormat = multiFormat;
+    }
+
+    public boolean isMultiFormat() {
+        return multiFormat;
+    }
+
+    /**
+     * the audio duration of one packet. Packets are never larger than
+     * AudioPacket.MAX_AUDIO_PAYLOAD, though. Takes effect when the circular
+     * buffer is initialized the next time.
+     */
+    public void setPacketMillis(int millis) {
+        packetMillis = millis;
+    }
+
+    // ------------------------------------------------------ statistics
+
+    public int getSubscriberCount() {
+        return subscribers.length;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        if (group != null) {
+            sb.append("group: ").append(group).append(", ");
+        }
+        sb.append("subscribers: ").append(subscribers.length);
+        sb.append(", subscribed: ").append(subscribed);
+        sb.append(", expired: ").append(expired);
+        sb.append(", packets: ").append(packetsSent);
+        sb.append(", sent: ").append(bytesSent / 1024).append("KB, errors: ").append(sendErrors);
+        Subscriber[] subs = subscribers;
+        for (Rendition r : renditions) {
+            if (r == null) {
+                continue;
+            }
+            int count = 0;
+            for (Subscriber s : subs) {
+                if (s.code == r.code) {
+                    count++;
+                }
+            }
+            sb.append(", format ").append(r.code).append(": ").append(count);
+            if (fecMode != FEC_OFF && r.active) {
+                sb.append(" (").append(r.fec.getStats()).append(")");
+            }
+        }
+        return sb.toString();
+    }
+
+    // one receiver
+    private static class Subscriber {
+
+        private final SocketAddress address;
+        private volatile long lastSeen = System.currentTimeMillis();
+        // the last loss report
+        private volatile double lossRate;
+        private volatile double burstLength = 1;
+        // the format code the receiver asks for
+        private volatile int requestedCode;
+        // only used by the sender thread: the format code that is sent, or
+        // -1 if none yet, the request it was chosen for, and whether the
+        // receiver still needs the format packet
+        private int code = -1;
+        private int requestedServed = -1;
+        private boolean needsFormat;
+
+        Subscriber(SocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    // the stream in one of the offered formats. Only used by the sender
+    // thread, except for the FEC settings
+    private class Rendition {
+
+        private final int code;
+        private final AudioFormat format;
+        private final AudioFormat sourceFormat;
+        // null for the source format
+        private final PcmConverter converter;
+        private final byte[] converted;
+        private final FecEncoder fec;
+        private final AudioPacket packet = new AudioPacket();
+        private final DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+        private final AudioPacket parity = new AudioPacket();
+        private final DatagramPacket parityDp = new DatagramPacket(new byte[0], 0);
+        private byte[] formatPayload;
+        private long formatPosition;
+        private long streamPos;
+        private boolean active;
+
+        Rendition(int code, AudioFormat format, AudioFormat sourceFormat, int maxInputBytes) {
+            this.code = code;
+            this.format = format;
+            this.sourceFormat = sourceFormat;
+            if (code == 0) {
+                converter = null;
+                converted = null;
+            } else {
+                converter = new PcmConverter(sourceFormat, format, maxInputBytes);
+                converted = new byte[converter.getMaxOutputBytes()];
+            }
+            fec = new FecEncoder(fecK, fecD);
+        }
+
+        // start sending from the source position
+        void activate(long sourcePos) {
+            if (converter != null) {
+                converter.reset();
+                streamPos = mapPosition(sourcePos, sourceFormat, format);
+            } else {
+                streamPos = sourcePos;
+            }
+            fec.reset();
+            // the StreamHeader, followed by the format code and the
+            // offered formats
+            int[] codes = offered;
+            byte[] h = new StreamHeader(format, streamPos).toByteBuffer().array();
+            byte[] b = Arrays.copyOf(h, h.length + 2 + codes.length);
+            b[h.length] = (byte) code;
+            b[h.length + 1] = (byte) codes.length;
+            for (int i = 0; i < codes.length; i++) {
+                b[h.length + 2 + i] = (byte) codes[i];
+            }
+            formatPayload = b;
+            formatPosition = streamPos;
+            active = true;
+        }
+
+        void sendAudio(byte[] data, int len, int seq, int sendTime, Subscriber[] subs) {
+            for (Subscriber s : subs) {
+                if (s.code == code && s.needsFormat) {
+                    s.needsFormat = false;
+                    writeFormat();
+                    send(dp, s.address);
+                }
+            }
+            int n = len;
+            if (converter == null) {
+                System.arraycopy(data, 0, packet.getData(), 0, len);
+            } else {
+                n = Math.min(converter.process(data, 0, len, converted, 0),
+                        AudioPacket.MAX_AUDIO_PAYLOAD);
+                System.arraycopy(converted, 0, packet.getData(), 0, n);
+            }
+            packet.setType(AudioPacket.TYPE_AUDIO);
+            packet.setSequence(seq);
+            packet.setPosition(streamPos);
+            packet.setSendTime(sendTime);
+            packet.setFormat(code);
+            packet.setLength(n);
+            packet.write(dp);
+            sendToAll(dp, subs);
+            streamPos += n;
+            if (fecMode != FEC_OFF) {
+                int parities = fec.add(packet);
+                for (int j = 0; j < parities; j++) {
+                    fec.getParity(j, parity);
+                    parity.setFormat(code);
+                    parity.write(parityDp);
+                    sendToAll(parityDp, subs);
+                }
+            }
+        }
+
+        // send the format packet to all subscribers of this format
+        void sendFormat(Subscriber[] subs) {
+            writeFormat();
+            sendToAll(dp, subs);
+        }
+
+        private void writeFormat() {
+            packet.setType(AudioPacket.TYPE_FORMAT);
+            packet.setSequence(0);
+            packet.setPosition(formatPosition);
+            packet.setSendTime((int) System.currentTimeMillis());
+            packet.setFormat(code);
+            System.arraycopy(formatPayload, 0, packet.getData(), 0, formatPayload.length);
+            packet.setLength(formatPayload.length);
+            packet.write(dp);
+        }
+
+        private void sendToAll(DatagramPacket p, Subscriber[] subs) {
+            for (Subscriber s : subs) {
+                if (s.code == code) {
+                    send(p, s.address);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * * UdpStreamServer.java **
+ */
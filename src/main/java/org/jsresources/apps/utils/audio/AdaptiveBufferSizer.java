@@ -0,0 +1,146 @@
+/*
+ *	AdaptiveBufferSizer.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the smallest buffer size that works without glitches.
+ * <p>
+ * The audio thread reports for every buffer how late it was (scheduling
+ * jitter) and whether a glitch (underrun or overrun) occurred. After a
+ * glitch, the buffer size is increased by two steps at once; if the jitter
+ * comes close to the buffer size, by one step. The size is decreased by
+ * one step only if there was no glitch during the last WINDOW_SECONDS, and
+ * the highest jitter in that window would also fit into the smaller size.
+ */
+public class AdaptiveBufferSizer {
+
+    public static final int WINDOW_SECONDS = 10;
+
+    // the available buffer sizes in millis, ascending
+    private int[] steps;
+    private volatile int index;
+
+    // the highest jitter for each second of the window
+    private long[] windowJitter = new long[WINDOW_SECONDS];
+    private long[] windowSecond = new long[WINDOW_SECONDS];
+
+    private long lastChangeMillis;
+    private long lastGlitchMillis;
+
+    /**
+     * @param stepsMillis the available buffer sizes in milliseconds
+     * @param initialMillis the buffer size to start with
+     */
+    public AdaptiveBufferSizer(int[] stepsMillis, int initialMillis) {
+        if (stepsMillis.length == 0) {
+            throw new IllegalArgumentException("no buffer sizes");
+        }
+        steps = stepsMillis.clone();
+        Arrays.sort(steps);
+        while (index < steps.length - 1 && steps[index] < initialMillis) {
+            index++;
+        }
+        lastChangeMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * the current buffer size in milliseconds
+     */
+    public int getMillis() {
+        return steps[index];
+    }
+
+    public int getMinMillis() {
+        return steps[0];
+    }
+
+    public int getMaxMillis() {
+        return steps[steps.length - 1];
+    }
+
+    /**
+     * reports the processing of one buffer.
+     *
+     * @param jitterMillis how much later than expected the buffer was
+     *        processed
+     * @param glitch true if an underrun or overrun was detected
+     * @return true if the buffer size changed
+     */
+    public synchronized boolean update(long jitterMillis, boolean glitch) {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        int bucket = (int) (second % WINDOW_SECONDS);
+        if (windowSecond[bucket] != second) {
+            windowSecond[bucket] = second;
+            windowJitter[bucket] = 0;
+        }
+        if (jitterMillis > windowJitter[bucket]) {
+            windowJitter[bucket] = jitterMillis;
+        }
+        int oldIndex = index;
+        if (glitch) {
+            // back off quickly
+            lastGlitchMillis = now;
+            index = Math.min(index + 2, steps.length - 1);
+        } else if (jitterMillis * 2 > steps[index]) {
+            index = Math.min(index + 1, steps.length - 1);
+        } else if (index > 0
+                   && now - lastChangeMillis >= WINDOW_SECONDS * 1000L
+                   && now - lastGlitchMillis >= WINDOW_SECONDS * 1000L
+                   && getWindowJitter(second) * 2 <= steps[index - 1]) {
+            // shrink slowly
+            index--;
+        }
+        if (index != oldIndex) {
+            lastChangeMillis = now;
+            return true;
+        }
+        return false;
+    }
+
+    // the highest jitter during the window
+    private long getWindowJitter(long second) {
+        long res = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            if (second - windowSecond[i] < WINDOW_SECONDS) {
+                res = Math.max(res, windowJitter[i]);
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *	AdaptiveResampler.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Resamples 16-bit PCM audio by a ratio close to 1 that may change from one
+ * block to the next, e.g. to compensate the clock drift between a sender
+ * and the local sound card (see DriftEstimator).
+ * <p>
+ * The output is interpolated by a PolyphaseInterpolator of 2 * HALF_TAPS
+ * taps in PHASES phases. As the ratio stays close to 1, no anti-aliasing
+ * is needed and the kernel's cutoff is the Nyquist frequency: with a ratio
+ * of exactly 1, the audio passes unchanged.
+ * <p>
+ * All buffers are allocated in the constructor, the kernel table is shared
+ * by all instances. Instances are not thread safe, except for setRatio().
+ */
+public class AdaptiveResampler {
+
+    public static final double MIN_RATIO = 0.95;
+    public static final double MAX_RATIO = 1.05;
+
+    private static final int HALF_TAPS = 16;
+    private static final int PHASES = 256;
+
+    private static final float[] KERNEL =
+            PolyphaseInterpolator.createKernel(1.0, HALF_TAPS, PHASES);
+
+    private final int channels;
+    private final boolean bigEndian;
+    private final int frameSize;
+
+    private volatile double ratio = 1.0;
+
+    private final PolyphaseInterpolator interpolator;
+    private final float[] frame;
+
+    /**
+     * @param maxInputBytes the maximum length passed to process()
+     */
+    public AdaptiveResampler(AudioFormat format, int maxInputBytes) {
+        if (!isSupported(format)) {
+            throw new IllegalArgumentException("unsupported format: " + format);
+        }
+        channels = format.getChannels();
+        bigEndian = format.isBigEndian();
+        frameSize = format.getFrameSize();
+        interpolator = new PolyphaseInterpolator(KERNEL, HALF_TAPS, PHASES,
+                channels, maxInputBytes / frameSize);
+        frame = new float[channels];
+    }
+
+    public static boolean isSupported(AudioFormat format) {
+        return format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+                && format.getSampleSizeInBits() == 16
+                && format.getChannels() > 0;
+    }
+
+    /**
+     * Sets the number of input frames consumed per output frame: a ratio
+     * greater than 1 plays faster, and shortens the audio. Limited to
+     * MIN_RATIO..MAX_RATIO. Can be called from any thread.
+     */
+    public void setRatio(double ratio) {
+        this.ratio = Math.max(MIN_RATIO, Math.min(MAX_RATIO, ratio));
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * the size of the output buffer needed for process()
+     */
+    public int getMaxOutputBytes() {
+        int frames = (int) (interpolator.getCapacityFrames() / MIN_RATIO) + 2;
+        return frames * frameSize;
+    }
+
+    /**
+     * discard all buffered data
+     */
+    public void reset() {
+        interpolator.reset();
+    }
+
+    /**
+     * Resample <code>len</code> bytes of input (at most the maxInputBytes
+     * given in the constructor) and write the result to <code>out</code>,
+     * which needs to have room for getMaxOutputBytes().
+     *
+     * @return the number of bytes written to <code>out</code>
+     */
+    public int process(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        appendInput(in, inOff, len / frameSize);
+        int outStart = outOff;
+        double currRatio = ratio;
+        while (interpolator.hasNext()) {
+            interpolator.next(frame, currRatio);
+            for (int c = 0; c < channels; c++) {
+                outOff = writeSample(frame[c], out, outOff);
+            }
+        }
+        interpolator.compact();
+        return outOff - outStart;
+    }
+
+    private void appendInput(byte[] b, int off, int frames) {
+        int maxFrames = interpolator.getFreeFrames();
+        if (frames > maxFrames) {
+            // cannot happen with blocks of at most maxInputBytes
+            frames = maxFrames;
+        }
+        int samples = frames * channels;
+        float[] input = interpolator.getInput();
+        int idx = interpolator.getInputFrames() * channels;
+        for (int i = 0; i < samples; i++) {
+            int sample;
+            if (bigEndian) {
+                sample = (b[off] << 8) | (b[off + 1] & 0xFF);
+            } else {
+                sample = (b[off + 1] << 8) | (b[off] & 0xFF);
+            }
+            input[idx++] = sample;
+            off += 2;
+        }
+        interpolator.addInputFrames(frames);
+    }
+
+    private int writeSample(float sample, byte[] out, int outOff) {
+        int s = Math.round(sample);
+        if (s > 32767) {
+            s = 32767;
+        } else if (s < -32768) {
+            s = -32768;
+        }
+        if (bigEndian) {
+            out[outOff] = (byte) (s >> 8);
+            out[outOff + 1] = (byte) s;
+        } else {
+            out[outOff] = (byte) s;
+            out[outOff + 1] = (byte) (s >> 8);
+        }
+        return outOff + 2;
+    }
+}
@@ -52,6 +52,14 @@ public abstract class AudioBase implements LineListener {
 
     // current volume level: 0..128, or -1 for (none)
     protected int lastLevel = -1;
+    protected LevelMeter levelMeter = new LevelMeter();
+    protected ProcessorChain processorChain = new ProcessorChain();
+    // if not null, the buffer size is chosen automatically
+    private volatile AdaptiveBufferSizer sizer;
+    protected GlitchStats glitchStats = new GlitchStats();
+    // for detecting glitches, used by the i/o thread
+    private volatile long lastTransferNanos = -1;
+    private int lastFill;
     protected boolean levelEnabled = true;
     protected boolean muted = false;
     protected boolean started = false;
@@ -60,6 +68,7 @@ public abstract class AudioBase implements LineListener {
         this.title = title;
         this.bufferSizeMillis = bufferSizeMillis;
         this.mixer = mixer;
+        processorChain.setBudgetMillis(bufferSizeMillis);
         try {
             setFormat(netFormat, lineFormat);
         } catch (Exception e) {
@@ -124,6 +133,7 @@ public abstract class AudioBase implements LineListener {
                 debugOut(title + ": opened line");
             }
             bufferSize = line.getBufferSize();
+            processorChain.ensureCapacity(bufferSize);
             if (VERBOSE) {
                 debugOut(title + ": buffersize=" + bufferSize + " bytes.");
             }
@@ -142,10 +152,21 @@ public abstract class AudioBase implements LineListener {
         }
         line.flush();
         line.start();
+        // a new session
+        glitchStats.reset();
+        resetGlitchDetection();
         started = true;
         if (DEBUG) {
             debugOut(title + ": started line");
         }
+        notifyThread();
+    }
+
+    /**
+     * Called when the line or the stream changed, so that a waiting i/o
+     * thread can check its state again. Subclasses with a thread wake it up.
+     */
+    protected void notifyThread() {
     }
 
     public void close() {
@@ -170,6 +191,7 @@ public abstract class AudioBase implements LineListener {
                 debugOut(title + ": line closed.");
             }
         }
+        notifyThread();
     }
 
     private void destroyLine() {
@@ -187,6 +209,14 @@ public abstract class AudioBase implements LineListener {
         return (line != null) && (line.isOpen());
     }
 
+    /**
+     * the number of bytes waiting in the line's buffer: captured but not
+     * yet read, or written but not yet played
+     */
+    public int getBufferedBytes() {
+        return 0;
+    }
+
     public int getPositionMillis() {
         if (line != null) {
             return (int) line.getMicrosecondPosition() / 1000;
@@ -211,6 +241,7 @@ public abstract class AudioBase implements LineListener {
         closeLine(true);
 
         this.bufferSizeMillis = bufferSizeMillis;
+        processorChain.setBudgetMillis(bufferSizeMillis);
 
         if (wasOpen) {
             openLine();
@@ -220,6 +251,131 @@ public abstract class AudioBase implements LineListener {
         }
     }
 
+    /**
+     * Enables automatic buffer sizing: the line is opened with the largest
+     * of the given sizes, and the i/o thread only fills as much of it as
+     * the currently chosen size. The size follows the measured underruns
+     * and jitter without re-opening the line.
+     *
+     * @param stepsMillis the buffer sizes to choose from, or null to go back
+     *        to a fixed size (the currently chosen one)
+     */
+    public void setAdaptiveBufferSize(int[] stepsMillis) throws Exception {
+        if (stepsMillis == null) {
+            if (sizer != null) {
+                int millis = sizer.getMillis();
+                sizer = null;
+                setBufferSizeMillis(millis);
+                processorChain.setBudgetMillis(millis);
+            }
+            return;
+        }
+        AdaptiveBufferSizer newSizer = new AdaptiveBufferSizer(stepsMillis,
+                (sizer != null) ? sizer.getMillis() : bufferSizeMillis);
+        sizer = newSizer;
+        setBufferSizeMillis(newSizer.getMaxMillis());
+        processorChain.setBudgetMillis(newSizer.getMillis());
+    }
+
+    public boolean isAdaptiveBufferSize() {
+        return sizer != null;
+    }
+
+    /**
+     * the underruns, overruns and short reads of this line
+     */
+    public GlitchStats getGlitchStats() {
+        return glitchStats;
+    }
+
+    /**
+     * makes the next call to checkLineGlitch() not report a glitch, e.g.
+     * after starting the line or changing the stream
+     */
+    protected void resetGlitchDetection() {
+        lastTransferNanos = -1;
+    }
+
+    /**
+     * Called by the i/o thread before transferring <code>len</code> bytes
+     * to or from the line. If the line's buffer is completely empty (for
+     * playback) or full (for capture), a glitch is recorded, with the gap
+     * estimated from the time since the last transfer and the amount of
+     * data the line had then. Returns true if there was a glitch.
+     */
+    protected boolean checkLineGlitch(int len, boolean playback) {
+        DataLine l = line;
+        if (l == null || !started) {
+            resetGlitchDetection();
+            return false;
+        }
+        long now = System.nanoTime();
+        int bufSize = l.getBufferSize();
+        int avail = l.available();
+        long last = lastTransferNanos;
+        boolean glitch = false;
+        // available() is the free space for playback, the data for capture
+        if (last >= 0 && avail >= bufSize) {
+            // the time the line needed to run empty or full
+            long okMicros = AudioUtils.bytes2millis(playback ? lastFill
+                    : bufSize - lastFill, lineFormat) * 1000;
+            long gapMicros = Math.max((now - last) / 1000 - okMicros, 0);
+            glitchStats.record(playback ? GlitchStats.UNDERRUN : GlitchStats.OVERRUN,
+                               gapMicros, l.getLongFramePosition());
+            if (VERBOSE) {
+                debugOut(title + ": " + (playback ? "underrun" : "overrun")
+                         + ", gap " + gapMicros / 1000 + "ms");
+            }
+            glitch = true;
+        }
+        // the data in the line after this transfer
+        lastFill = playback ? Math.min(bufSize - avail + len, bufSize)
+            : Math.max(avail - len, 0);
+        lastTransferNanos = now;
+        return glitch;
+    }
+
+    /**
+     * the buffer size in use: the line's buffer size, or the size chosen by
+     * automatic buffer sizing
+     */
+    public int getEffectiveBufferSizeMillis() {
+        AdaptiveBufferSizer s = sizer;
+        return (s != null) ? s.getMillis() : bufferSizeMillis;
+    }
+
+    /**
+     * the number of bytes the i/o thread should transfer at once, in line
+     * format
+     */
+    protected int getChunkSize() {
+        AdaptiveBufferSizer s = sizer;
+        if (s == null || lineFormat == null) {
+            return bufferSize;
+        }
+        int size = (int) AudioUtils.millis2bytes(s.getMillis(), lineFormat);
+        size -= size % lineFormat.getFrameSize();
+        return Math.max(Math.min(size, bufferSize), lineFormat.getFrameSize());
+    }
+
+    /**
+     * called by the i/o thread after every transfer to adapt the buffer
+     * size, if enabled.
+     *
+     * @param jitterMillis how much later than expected the transfer was
+     * @param glitch if an underrun or overrun was detected
+     */
+    protected void adaptBufferSize(long jitterMillis, boolean glitch) {
+        AdaptiveBufferSizer s = sizer;
+        if (s != null && s.update(jitterMillis, glitch)) {
+            processorChain.setBudgetMillis(s.getMillis());
+            if (VERBOSE) {
+                debugOut(title + ": " + (glitch ? "glitch, " : "")
+                         + "buffer size now " + s.getMillis() + "ms");
+            }
+        }
+    }
+
     // may be null!
     public AudioInputStream getAudioInputStream() {
         return ais;
@@ -258,6 +414,7 @@ public abstract class AudioBase implements LineListener {
         }
         this.lineFormat = lineFormat;
         this.netFormat = netFormat;
+        processorChain.setFormat(lineFormat);
     }
 
     public void setMixer(Mixer mixer) throws Exception {
@@ -299,59 +456,43 @@ public abstract class AudioBase implements LineListener {
         return levelEnabled;
     }
 
-    // find the current playback level: the maximum value of this buffer
+    /**
+     * the meter measuring the data passed through this line
+     */
+    public LevelMeter getLevelMeter() {
+        return levelMeter;
+    }
+
+    /**
+     * the processors applied to the audio data, in line format
+     */
+    public ProcessorChain getProcessorChain() {
+        return processorChain;
+    }
+
+    // run the processors, muting and metering on the audio data
+    protected void processAudio(byte[] b, int off, int len) {
+        processorChain.process(b, off, len);
+        if (isMuted()) {
+            muteBuffer(b, off, len);
+        }
+        // run some simple analysis
+        calcCurrVol(b, off, len);
+    }
+
+    // find the current playback level: the falling peak of all channels
     protected void calcCurrVol(byte[] b, int off, int len) {
         if (!levelEnabled) {
             lastLevel = -1;
             return;
         }
-
-        int end = off + len;
-        int sampleSize = (lineFormat.getSampleSizeInBits() + 7) / 8;
-        int max = 0;
-        if (sampleSize == 1) {
-            // 8-bit
-            for (; off < end; off++) {
-                int sample = (byte) (b[off] + 128);
-                if (sample < 0) {
-                    sample = -sample;
-                }
-                if (sample > max) {
-                    max = sample;
-                }
-            }
-            lastLevel = max;
-        } else if (sampleSize == 2) {
-            if (lineFormat.isBigEndian()) {
-                // 16-bit big endian
-                for (; off < end; off += 2) {
-                    int sample = (short) ((b[off] << 8) | (b[off + 1] & 0xFF));
-                    if (sample < 0) {
-                        sample = -sample;
-                    }
-                    if (sample > max) {
-                        max = sample;
-                    }
-                }
-            } else {
-                // 16-bit little endian
-                for (; off < end; off += 2) {
-                    int sample = (short) ((b[off + 1] << 8) | (b[off] & 0xFF));
-                    if (sample < 0) {
-                        sample = -sample;
-                    }
-                    if (sample > max) {
-                        max = sample;
-                    }
-                }
-            }
-            //System.out.print("max="+max+" ");
-            lastLevel = max >> 8;
-	    //System.out.print(":"+len+":");
-            //System.out.print("[lL="+lastLevel+" "+getClass().toString()+"]");
-        } else {
+        levelMeter.setFormat(lineFormat);
+        if (!levelMeter.isActive()) {
             lastLevel = -1;
+            return;
         }
+        levelMeter.process(b, off, len);
+        lastLevel = Math.min((int) (levelMeter.getMaxPeak() * 128), 128);
     }
 
     // silence this array
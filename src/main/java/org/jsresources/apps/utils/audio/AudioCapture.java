@@ -33,7 +33,6 @@ package org.jsresources.utils.audio;
 
 import java.io.*;
 import javax.sound.sampled.*;
-import org.tritonus.share.sampled.AudioFormats;
 import static org.jsresources.utils.audio.AudioDebug.*;
 
 // class that provides an AudioInputStream that reads its data from the soundcard input
@@ -44,6 +43,12 @@ public class AudioCapture extends AudioBase {
 
     protected OutputStream outputStream;
     private CaptureThread thread;
+    private TargetDataLineMeter meter;
+    // the capture thread only reads the line, the sink writes outputStream
+    private CapturePipeline pipeline = new CapturePipeline();
+    private volatile CapturePipeline.Sink sink;
+    // the error that stopped writing to outputStream
+    private volatile IOException writeError;
 
     public AudioCapture(AudioFormat format, Mixer mixer, int bufferSizeMillis) {
         this(format, null, mixer, bufferSizeMillis);
@@ -73,10 +78,8 @@ public class AudioCapture extends AudioBase {
         }
         TargetDataLine tdl = (TargetDataLine) line;
         tdl.open(lineFormat, bufferSize);
-        ais = new TargetDataLineMeter(tdl);
-        if (!AudioFormats.matches(lineFormat, netFormat)) {
-            ais = AudioSystem.getAudioInputStream(netFormat, ais);
-        }
+        meter = new TargetDataLineMeter(tdl);
+        ais = FormatConversions.getAudioInputStream(netFormat, meter);
     }
 
     public synchronized void start() throws Exception {
@@ -85,9 +88,16 @@ public class AudioCapture extends AudioBase {
         }
         startThread();
         super.start();
-        if (thread != null) {
-            synchronized (thread) {
-                thread.notifyAll();
+    }
+
+    protected void notifyThread() {
+        CaptureThread t = thread;
+        if (t != null) {
+            synchronized (t) {
+                // the stream may have been re-opened
+                t.endedAIS = null;
+                t.notifications++;
+                t.notifyAll();
             }
         }
     }
@@ -111,6 +121,7 @@ public class AudioCapture extends AudioBase {
                     }
                 }
                 if (thread != null) {
+                    removeSink();
                     if (outputStream != null) {
                         try {
                             outputStream.close();
@@ -139,6 +150,57 @@ public class AudioCapture extends AudioBase {
         return ais;
     }
 
+    public int getBufferedBytes() {
+        DataLine l = line;
+        return (l == null) ? 0 : l.available();
+    }
+
+    /**
+     * the pipeline passing the captured data to the output stream, e.g. for
+     * querying overruns and the high-water mark of the queue
+     */
+    public CapturePipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * the number of times the line's buffer was found full before reading,
+     * i.e. captured data was probably lost
+     */
+    public long getLineOverruns() {
+        return glitchStats.getOverruns();
+    }
+
+    /**
+     * the error that stopped writing the captured data to the output
+     * stream, or null. Capturing stops on an error, like when the stream
+     * was written directly.
+     */
+    public IOException getWriteError() {
+        return writeError;
+    }
+
+    private void removeSink() {
+        if (sink != null) {
+            pipeline.removeSink(sink);
+            sink = null;
+        }
+    }
+
+    /**
+     * returns the wall clock time when the first frame of the last
+     * <code>bytes</code> bytes read from the audio input stream was captured.
+     */
+    protected long getCaptureTime(int bytes) {
+        TargetDataLineMeter m = meter;
+        AudioInputStream localAIS = ais;
+        if (m == null || localAIS == null) {
+            return System.currentTimeMillis();
+        }
+        return m.getLastReadEndMillis()
+                - AudioUtils.bytes2millis(bytes, localAIS.getFormat());
+    }
+
     /**
      * if OutputStream is set, start the thread (or make sure it's running). if
      * not, then stop the thread. Pre-condition: needs to be in synchronized
@@ -169,11 +231,17 @@ public class AudioCapture extends AudioBase {
      */
     public synchronized void setOutputStream(OutputStream stream) {
         if (this.outputStream != stream) {
+            removeSink();
             this.outputStream = stream;
+            if (stream != null) {
+                sink = pipeline.addSink(stream);
+            }
+            writeError = null;
             if (VERBOSE) {
                 debugOut("AudioCapture.setOutputStream(): output stream: " + this.outputStream);
             }
             startThread();
+            notifyThread();
         }
     }
 
@@ -181,51 +249,70 @@ public class AudioCapture extends AudioBase {
         return this.outputStream;
     }
 
-    // thread used for writing the captured audio data to the output stream
+    // thread used for reading the captured audio data into the pipeline
     class CaptureThread extends Thread {
 
         private volatile boolean doTerminate = false;
         private volatile boolean terminated = false;
+        // the stream that returned end of file
+        private AudioInputStream endedAIS;
+        // incremented by notifyThread() to detect concurrent re-opens
+        private int notifications;
 
         public void run() {
-            byte[] buffer = new byte[getBufferSize()];
             if (VERBOSE) {
                 debugOut("Start AudioCapture push thread");
             }
             try {
-                AudioInputStream localAIS = ais;
+                AudioInputStream localAIS = null;
                 while (!doTerminate) {
-                    if (localAIS != null && localAIS == ais) {
-                        //debugOut("CaptureThread: before read");
-                        int r = localAIS.read(buffer, 0, buffer.length);
-                        //debugOut("CaptureThread: read: read "+r+" bytes");
-                        if (r > 0) {
-                            synchronized (AudioCapture.this) {
-                                if (outputStream != null) {
-                                    outputStream.write(buffer, 0, r);
-                                }
-                            }
-                            if (outputStream == null) {
-                                //debugOut("CaptureThread: no outputstream");
-                                synchronized (this) {
-                                    this.wait(100);
-                                }
+                    // sleep until there is a stream to read from, an output
+                    // stream to write to, and the line is started
+                    synchronized (this) {
+                        while (!doTerminate && (ais == null || outputStream == null
+                                || !isStarted() || ais == endedAIS)) {
+                            this.wait();
+                        }
+                    }
+                    if (doTerminate) {
+                        break;
+                    }
+                    localAIS = ais;
+                    //debugOut("CaptureThread: before read");
+                    int notified;
+                    synchronized (this) {
+                        notified = notifications;
+                    }
+                    CapturePipeline.Block block = pipeline.acquire(getBufferSize());
+                    int len = Math.min(getChunkSize(), block.getData().length);
+                    int r = localAIS.read(block.getData(), 0, len);
+                    //debugOut("CaptureThread: read: read "+r+" bytes");
+                    if (r > 0) {
+                        // never blocks on the sinks
+                        pipeline.publish(block, r, getCaptureTime(r));
+                        CapturePipeline.Sink s = sink;
+                        if (s != null && s.getError() != null) {
+                            writeError = s.getError();
+                            if (VERBOSE) {
+                                debugOut("AudioCapture: cannot write to output stream: "
+                                        + writeError);
                             }
-                        } else {
-                            if (r == 0) {
-                                synchronized (this) {
-                                    this.wait(10);
-                                }
+                            break;
+                        }
+                    } else if (r == 0) {
+                        // the line is being stopped: wait for the state
+                        // change, but do not rely on getting notified
+                        synchronized (this) {
+                            if (!doTerminate && isStarted() && localAIS == ais) {
+                                this.wait(getBufferSizeMillis());
                             }
                         }
                     } else {
-                        //debugOut("CaptureThread: no AIS");
+                        // end of stream: wait for a new one
                         synchronized (this) {
-                            this.wait(100);
-                        }
-                        localAIS = ais;
-                        if (buffer.length != getBufferSize()) {
-                            buffer = new byte[getBufferSize()];
+                            if (notified == notifications) {
+                                endedAIS = localAIS;
+                            }
                         }
                     }
                 }
@@ -270,6 +357,11 @@ public class AudioCapture extends AudioBase {
 
         private TargetDataLine line;
 
+        // number of frames read from the line
+        private long framesRead;
+        // wall clock time when the last frame read was captured
+        private volatile long lastReadEndMillis;
+
         // for debugging
         private boolean printedBytes = false;
 
@@ -282,6 +374,10 @@ public class AudioCapture extends AudioBase {
             return line.available();
         }
 
+        long getLastReadEndMillis() {
+            return lastReadEndMillis;
+        }
+
         public int read() throws IOException {
             throw new IOException("illegal call to TargetDataLineMeter.read()!");
         }
@@ -292,7 +388,23 @@ public class AudioCapture extends AudioBase {
                 return -1;
             }
             try {
+                boolean overrun = checkLineGlitch(len, false);
                 int ret = line.read(b, off, len);
+                if (ret < len && ret >= 0 && isStarted()) {
+                    glitchStats.record(GlitchStats.SHORT_READ, 0,
+                                       line.getLongFramePosition());
+                }
+                if (ret > 0) {
+                    // the frames still in the line's buffer were captured
+                    // after the ones just read
+                    framesRead += ret / line.getFormat().getFrameSize();
+                    long pending = line.getLongFramePosition() - framesRead;
+                    if (pending < 0) {
+                        pending = 0;
+                    }
+                    lastReadEndMillis = System.currentTimeMillis()
+                            - (long) (pending * 1000 / line.getFormat().getFrameRate());
+                }
                 if (ret > 50 && DEBUG_TRANSPORT && !printedBytes) {
                     printedBytes = true;
                     debugOut("AudioCapture: first bytes being captured:");
@@ -302,12 +414,13 @@ public class AudioCapture extends AudioBase {
                     }
                     debugOut(s);
                 }
-                if (isMuted()) {
-                    muteBuffer(b, off, ret);
-                }
-                // run some simple analysis
                 if (ret > 0) {
-                    calcCurrVol(b, off, ret);
+                    processAudio(b, off, ret);
+                    if (isAdaptiveBufferSize()) {
+                        // the data waiting in the line tells how late we are
+                        adaptBufferSize(AudioUtils.bytes2millis(line.available(),
+                                line.getFormat()), overrun);
+                    }
                 }
                 return ret;
             } catch (IllegalArgumentException e) {
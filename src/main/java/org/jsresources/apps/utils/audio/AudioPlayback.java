@@ -34,7 +34,6 @@ package org.jsresources.utils.audio;
 
 import	java.io.*;
 import	javax.sound.sampled.*;
-import org.tritonus.share.sampled.AudioFormats;
 import static org.jsresources.utils.audio.AudioDebug.*;
 
 
@@ -43,8 +42,23 @@ public class AudioPlayback extends AudioBase {
 
     private static final boolean DEBUG_TRANSPORT = false;
 
+    public static final float DEFAULT_CATCH_UP_SPEED = 1.05f;
+
     private PlayThread thread;
 
+    // catch-up: play faster until the backlog is down to the target
+    private volatile int catchUpTargetMillis = -1;
+    private volatile float catchUpSpeed = DEFAULT_CATCH_UP_SPEED;
+
+    // drift compensation: resample so that the stream's fill level, and
+    // so the latency, stays constant
+    private volatile boolean driftCompensation;
+    private final DriftEstimator driftEstimator = new DriftEstimator();
+
+    // for measuring the time from attaching a stream until it is played
+    private volatile long swapNanos;
+    private volatile long swapLatencyMicros = -1;
+
     public AudioPlayback(AudioFormat format, Mixer mixer, int bufferSizeMillis) {
 	this(format, null, mixer, bufferSizeMillis);
     }
@@ -83,6 +97,19 @@ public class AudioPlayback extends AudioBase {
 	if ((ais!=null) && (ais instanceof ReopenableAIS)) {
 		((ReopenableAIS) ais).open();
 	}
+	notifyThread();
+    }
+
+    protected void notifyThread() {
+	PlayThread t = thread;
+	if (t != null) {
+	    synchronized(t) {
+		// the stream may have been re-opened
+		t.endedAIS = null;
+		t.notifications++;
+		t.notifyAll();
+	    }
+	}
     }
 
     protected void closeLine(boolean willReopen) {
@@ -113,19 +140,89 @@ public class AudioPlayback extends AudioBase {
 
     // in network format
     public void setAudioInputStream(AudioInputStream ais) {
-	if (!AudioFormats.matches(lineFormat, ais.getFormat())) {
-		this.ais = AudioSystem.getAudioInputStream(lineFormat, ais);
-	} else {
-		this.ais = ais;
-	}
+	this.ais = FormatConversions.getAudioInputStream(lineFormat, ais);
 	if ((ais!=null) && (ais instanceof ReopenableAIS)) {
 		((ReopenableAIS) ais).open();
 	}
-	if (thread != null) {
-		synchronized(thread) {
-			thread.notifyAll();
-		}
+	swapLatencyMicros = -1;
+	swapNanos = System.nanoTime();
+	notifyThread();
+    }
+
+    public int getBufferedBytes() {
+	DataLine l = line;
+	return (l == null) ? 0 : l.getBufferSize() - l.available();
+    }
+
+    /**
+     * the time in microseconds from the last call to setAudioInputStream()
+     * until the first data of the new stream was passed to the line, or -1
+     * if it was not played yet. See StreamSwapCheck for a measurement.
+     */
+    public long getStreamSwapLatencyMicros() {
+	return swapLatencyMicros;
+    }
+
+    /**
+     * Play faster, time-stretched without changing the pitch, until the
+     * audio input stream has no more than <code>targetMillis</code> of data
+     * available, then return to normal speed. Only for 16-bit PCM.
+     */
+    public void startCatchUp(int targetMillis) {
+	if (!TimeStretcher.isSupported(lineFormat)) {
+	    if (VERBOSE) debugOut("AudioPlayback: cannot catch up with "+lineFormat);
+	    return;
+	}
+	catchUpTargetMillis = targetMillis;
+    }
+
+    public void stopCatchUp() {
+	catchUpTargetMillis = -1;
+    }
+
+    public boolean isCatchingUp() {
+	return catchUpTargetMillis >= 0;
+    }
+
+    /**
+     * Set the speed used while catching up, clamped to the range 1..2
+     * supported by the time stretcher.
+     */
+    public void setCatchUpSpeed(float speed) {
+	catchUpSpeed = Math.max(1.0f, Math.min(2.0f, speed));
+    }
+
+    public float getCatchUpSpeed() {
+	return catchUpSpeed;
+    }
+
+    /**
+     * Compensate the clock drift between the producer of the audio input
+     * stream and the sound card: the playback is resampled by tiny ratios,
+     * so that the data available in the stream stays at the level measured
+     * after starting. Only for 16-bit PCM, ignored for other formats.
+     */
+    public void setDriftCompensation(boolean on) {
+	driftCompensation = on;
+    }
+
+    public boolean isDriftCompensation() {
+	return driftCompensation;
+    }
+
+    public DriftEstimator getDriftEstimator() {
+	return driftEstimator;
+    }
+
+    // stop catching up if the target is reached. Returns if still catching up
+    private boolean updateCatchUp(AudioInputStream stream) throws IOException {
+	int target = catchUpTargetMillis;
+	if (target >= 0
+	    && AudioUtils.bytes2millis(stream.available(), stream.getFormat()) <= target) {
+	    catchUpTargetMillis = -1;
+	    if (VERBOSE) debugOut("AudioPlayback: caught up");
 	}
+	return isCatchingUp();
     }
 
     class PlayThread extends Thread {
@@ -133,50 +230,115 @@ public class AudioPlayback extends AudioBase {
 	private volatile boolean terminated = false;
 	// for debugging
 	private boolean printedBytes = false;
+	// the stream that returned end of file
+	private AudioInputStream endedAIS;
+	// incremented by notifyThread() to detect concurrent re-opens
+	private int notifications;
+	// for catching up
+	private TimeStretcher stretcher;
+	private byte[] stretchBuffer;
+	// for drift compensation, after the stretcher
+	private AdaptiveResampler resampler;
+	private byte[] resampleBuffer;
+
+	private void createStretcher(int bufferSize) {
+	    stretcher = null;
+	    stretchBuffer = null;
+	    resampler = null;
+	    resampleBuffer = null;
+	    if (TimeStretcher.isSupported(lineFormat)) {
+		stretcher = new TimeStretcher(lineFormat, bufferSize);
+		stretchBuffer = new byte[stretcher.getMaxOutputBytes()];
+		resampler = new AdaptiveResampler(lineFormat,
+			Math.max(bufferSize, stretchBuffer.length));
+		resampleBuffer = new byte[resampler.getMaxOutputBytes()];
+	    }
+	}
 
 	public void run() {
 	    if (VERBOSE) debugOut("Start AudioPlayback pull thread");
 	    if (VERBOSE) debugOut("     ais="+ais);
 	    byte[] buffer = new byte[getBufferSize()];
+	    createStretcher(buffer.length);
 	    try {
-	    	AudioInputStream localAIS = ais;
+		AudioInputStream localAIS = null;
 		while (!doTerminate) {
+		    // sleep until there is a stream and the line is started
+		    synchronized(this) {
+			while (!doTerminate
+			       && (ais == null || !isStarted() || ais == endedAIS)) {
+			    this.wait();
+			}
+		    }
+		    if (doTerminate) break;
+		    if (localAIS != ais) {
+			localAIS = ais;
+			resetGlitchDetection();
+			if (buffer.length != getBufferSize()) {
+				buffer = new byte[getBufferSize()];
+				createStretcher(buffer.length);
+			}
+			driftEstimator.reset();
+			if (resampler != null) {
+			    resampler.reset();
+			}
+		    }
 		    SourceDataLine sdl = (SourceDataLine) line;
-		    if (localAIS != null && localAIS == ais) {
-			int r = localAIS.read(buffer, 0, buffer.length);
-			if (doTerminate) break;
-			if (r > 50 && DEBUG_TRANSPORT && !printedBytes) {
-			    printedBytes = true;
-			    debugOut("AudioPlayback: first bytes being played:");
-			    String s = "";
-			    for (int i = 0; i < 50; i++) {
-				s+=" "+buffer[i];
-			    }
-			    debugOut(s);
+		    int notified;
+		    synchronized(this) {
+			notified = notifications;
+		    }
+		    int r = localAIS.read(buffer, 0, getReadSize(buffer.length));
+		    if (doTerminate) break;
+		    if (r > 50 && DEBUG_TRANSPORT && !printedBytes) {
+			printedBytes = true;
+			debugOut("AudioPlayback: first bytes being played:");
+			String s = "";
+			for (int i = 0; i < 50; i++) {
+			    s+=" "+buffer[i];
 			}
-			if (r > 0) {
-			    if (isMuted()) {
-				muteBuffer(buffer, 0, r);
-			    }
-			    // run some simple analysis
-			    calcCurrVol(buffer, 0, r);
-			    if (sdl != null) {
-			    	sdl.write(buffer, 0, r);
-			    }
-			} else {
-			    if (r == 0) {
-				synchronized(this) {
-				    this.wait(40);
-				}
+			debugOut(s);
+		    }
+		    if (r > 0) {
+			byte[] out = buffer;
+			if (stretcher != null
+			    && (isCatchingUp() || stretcher.isActive())) {
+			    stretcher.setSpeed(updateCatchUp(localAIS) ? catchUpSpeed : 1.0f);
+			    r = stretcher.process(buffer, 0, r, stretchBuffer, 0);
+			    out = stretchBuffer;
+			    // the latency changes on purpose
+			    driftEstimator.reset();
+			}
+			if (resampler != null && driftCompensation) {
+			    long fill = AudioUtils.bytes2millis(localAIS.available(), localAIS.getFormat());
+			    resampler.setRatio(driftEstimator.update(fill, System.nanoTime()));
+			    r = resampler.process(out, 0, r, resampleBuffer, 0);
+			    out = resampleBuffer;
+			}
+			processAudio(out, 0, r);
+			long swap = swapNanos;
+			if (swap != 0) {
+			    swapLatencyMicros = (System.nanoTime() - swap) / 1000;
+			    swapNanos = 0;
+			    if (VERBOSE) debugOut("AudioPlayback: stream swap latency: "+swapLatencyMicros+" microseconds");
+			}
+			if (sdl != null) {
+			    writeToLine(sdl, out, r);
+			}
+		    } else if (r == 0) {
+			// the stream is being closed or the line stopped: wait
+			// for the state change, but do not rely on getting notified
+			synchronized(this) {
+			    if (!doTerminate && isStarted() && localAIS == ais) {
+				this.wait(getBufferSizeMillis());
 			    }
 			}
 		    } else {
+			// end of stream: wait for a new one
 			synchronized(this) {
-			    this.wait(50);
-			}
-			localAIS = ais;
-			if (buffer.length != getBufferSize()) {
-				buffer = new byte[getBufferSize()];
+			    if (notified == notifications) {
+				endedAIS = localAIS;
+			    }
 			}
 		    }
 		}
@@ -189,6 +351,54 @@ public class AudioPlayback extends AudioBase {
 	    terminated = true;
 	}
 
+	// with automatic buffer sizing, read half of the chosen buffer size,
+	// so that one half can be played while the other one is filled
+	private int getReadSize(int max) {
+	    if (!isAdaptiveBufferSize()) {
+		return max;
+	    }
+	    int size = getChunkSize() / 2;
+	    size -= size % lineFormat.getFrameSize();
+	    return Math.max(Math.min(size, max), lineFormat.getFrameSize());
+	}
+
+	private void writeToLine(SourceDataLine sdl, byte[] b, int len)
+		throws InterruptedException {
+	    if (!isAdaptiveBufferSize()) {
+		checkLineGlitch(len, true);
+		sdl.write(b, 0, len);
+		return;
+	    }
+	    // only fill the line up to the chosen buffer size
+	    int target = getChunkSize();
+	    int queued = sdl.getBufferSize() - sdl.available();
+	    // the line should still have target - len bytes queued
+	    boolean underrun = checkLineGlitch(len, true);
+	    long jitter = AudioUtils.bytes2millis(Math.max(target - len - queued, 0), lineFormat);
+	    // what fits is written at once, so that the line does not run dry
+	    int fs = lineFormat.getFrameSize();
+	    int now = Math.min(Math.max(target - queued, 0), len);
+	    now -= now % fs;
+	    if (now > 0) {
+		sdl.write(b, 0, now);
+	    }
+	    if (now < len) {
+		// Java Sound has no event for free space in the line: sleep
+		// once until the line has played the excess. Terminating,
+		// closing, starting and a new stream wake the thread earlier.
+		long millis = AudioUtils.bytes2millis(queued + len - target, lineFormat);
+		synchronized(this) {
+		    if (!doTerminate && isStarted()) {
+			this.wait(Math.max(millis, 1));
+		    }
+		}
+		if (!doTerminate) {
+		    sdl.write(b, now, len - now);
+		}
+	    }
+	    adaptBufferSize(jitter, underrun);
+	}
+
 	public synchronized void terminate() {
 	    doTerminate = true;
 	    this.notifyAll();
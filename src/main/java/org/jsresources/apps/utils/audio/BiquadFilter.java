@@ -0,0 +1,198 @@
+/*
+ *	BiquadFilter.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+/**
+ * a second order IIR filter for equalizing, using the formulas of Robert
+ * Bristow-Johnson's "Audio EQ Cookbook".
+ */
+public class BiquadFilter implements AudioProcessor {
+
+    public static final int LOW_PASS = 0;
+    public static final int HIGH_PASS = 1;
+    public static final int PEAKING = 2;
+    public static final int LOW_SHELF = 3;
+    public static final int HIGH_SHELF = 4;
+
+    private int type;
+    private float frequency;
+    private float q;
+    private float gainDb;
+
+    private float sampleRate;
+    private int channels;
+
+    // b0, b1, b2, a1, a2, normalized by a0. Replaced as a whole, so that the
+    // audio thread never sees half of an update.
+    private volatile double[] coefficients = {1, 0, 0, 0, 0};
+    // per channel state of the transposed direct form II
+    private double[] z1 = new double[0];
+    private double[] z2 = new double[0];
+
+    /**
+     * @param frequency the corner or center frequency in Hz
+     * @param q the quality, 0.707 for a Butterworth response
+     * @param gainDb the gain for PEAKING and the shelf filters
+     */
+    public BiquadFilter(int type, float frequency, float q, float gainDb) {
+        setParameters(type, frequency, q, gainDb);
+    }
+
+    /**
+     * a Butterworth high-pass filter, e.g. for removing rumble
+     */
+    public static BiquadFilter createHighPass(float frequency) {
+        return new BiquadFilter(HIGH_PASS, frequency, 0.7071f, 0);
+    }
+
+    public synchronized void setParameters(int type, float frequency, float q, float gainDb) {
+        if (type < LOW_PASS || type > HIGH_SHELF) {
+            throw new IllegalArgumentException("illegal filter type: " + type);
+        }
+        if (frequency <= 0 || q <= 0) {
+            throw new IllegalArgumentException("illegal filter parameters");
+        }
+        this.type = type;
+        this.frequency = frequency;
+        this.q = q;
+        this.gainDb = gainDb;
+        calcCoefficients();
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public float getFrequency() {
+        return frequency;
+    }
+
+    public float getQ() {
+        return q;
+    }
+
+    public float getGainDb() {
+        return gainDb;
+    }
+
+    public synchronized void init(float sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        z1 = new double[channels];
+        z2 = new double[channels];
+        calcCoefficients();
+    }
+
+    private void calcCoefficients() {
+        if (sampleRate <= 0) {
+            return;
+        }
+        // keep the frequency below Nyquist
+        double f = Math.min(frequency, sampleRate * 0.49);
+        double w0 = 2 * Math.PI * f / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a = Math.pow(10, gainDb / 40);
+        double b0, b1, b2, a0, a1, a2;
+        switch (type) {
+        case LOW_PASS:
+            b0 = (1 - cos) / 2;
+            b1 = 1 - cos;
+            b2 = b0;
+            a0 = 1 + alpha;
+            a1 = -2 * cos;
+            a2 = 1 - alpha;
+            break;
+        case HIGH_PASS:
+            b0 = (1 + cos) / 2;
+            b1 = -(1 + cos);
+            b2 = b0;
+            a0 = 1 + alpha;
+            a1 = -2 * cos;
+            a2 = 1 - alpha;
+            break;
+        case PEAKING:
+            b0 = 1 + alpha * a;
+            b1 = -2 * cos;
+            b2 = 1 - alpha * a;
+            a0 = 1 + alpha / a;
+            a1 = -2 * cos;
+            a2 = 1 - alpha / a;
+            break;
+        case LOW_SHELF: {
+            double s = 2 * Math.sqrt(a) * alpha;
+            b0 = a * ((a + 1) - (a - 1) * cos + s);
+            b1 = 2 * a * ((a - 1) - (a + 1) * cos);
+            b2 = a * ((a + 1) - (a - 1) * cos - s);
+            a0 = (a + 1) + (a - 1) * cos + s;
+            a1 = -2 * ((a - 1) + (a + 1) * cos);
+            a2 = (a + 1) + (a - 1) * cos - s;
+            break;
+        }
+        default: {
+            double s = 2 * Math.sqrt(a) * alpha;
+            b0 = a * ((a + 1) + (a - 1) * cos + s);
+            b1 = -2 * a * ((a - 1) + (a + 1) * cos);
+            b2 = a * ((a + 1) + (a - 1) * cos - s);
+            a0 = (a + 1) - (a - 1) * cos + s;
+            a1 = 2 * ((a - 1) - (a + 1) * cos);
+            a2 = (a + 1) - (a - 1) * cos - s;
+            break;
+        }
+        }
+        coefficients = new double[] {b0 / a0, b1 / a0, b2 / a0, a1 / a0, a2 / a0};
+    }
+
+    public void process(float[] samples, int frames) {
+        double[] k = coefficients;
+        double b0 = k[0], b1 = k[1], b2 = k[2], a1 = k[3], a2 = k[4];
+        int ch = channels;
+        for (int c = 0; c < ch; c++) {
+            double s1 = z1[c];
+            double s2 = z2[c];
+            int end = frames * ch;
+            for (int i = c; i < end; i += ch) {
+                double x = samples[i];
+                double y = b0 * x + s1;
+                s1 = b1 * x - a1 * y + s2;
+                s2 = b2 * x - a2 * y;
+                samples[i] = (float) y;
+            }
+            z1[c] = s1;
+            z2[c] = s2;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ *	CapturePipeline.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.jsresources.utils.audio.AudioDebug.*;
+
+/**
+ * Decouples the thread reading the soundcard from the threads writing the
+ * captured data to (possibly slow) sinks like files, the network, or format
+ * converters.
+ * <p>
+ * The reader thread fills pooled blocks and hands each block to every sink
+ * over a bounded single-producer single-consumer queue. Every sink is drained
+ * by its own thread. The reader never waits for a sink: if a sink's queue is
+ * full, the block is dropped for that sink and counted as an overrun. A block
+ * returns to the pool when all sinks have written it, so after adding a sink,
+ * no memory is allocated per block.
+ * <p>
+ * acquire() and publish() must only be called by the reader thread.
+ */
+public class CapturePipeline {
+
+    public static final int DEFAULT_QUEUE_BLOCKS = 16;
+
+    private int queueBlocks;
+
+    // the pool is replaced when sinks are added or the block size changes
+    private volatile Block[] pool = new Block[0];
+    private int blockSize;
+    // where to search the next free block, only used by the reader
+    private int poolPos;
+
+    private volatile Sink[] sinks = new Sink[0];
+
+    public CapturePipeline() {
+        this(DEFAULT_QUEUE_BLOCKS);
+    }
+
+    /**
+     * @param queueBlocks the maximum number of blocks queued for each sink
+     */
+    public CapturePipeline(int queueBlocks) {
+        if (queueBlocks < 1) {
+            throw new IllegalArgumentException("illegal queue size: " + queueBlocks);
+        }
+        this.queueBlocks = queueBlocks;
+    }
+
+    public int getQueueBlocks() {
+        return queueBlocks;
+    }
+
+    /**
+     * returns a free block with a capacity of <code>size</code> bytes.
+     * Only changing the size allocates memory.
+     */
+    public Block acquire(int size) {
+        if (size != blockSize) {
+            setBlockSize(size);
+        }
+        Block[] p = pool;
+        int n = p.length;
+        for (int i = 0; i < n; i++) {
+            int index = (poolPos + i) % n;
+            if (p[index].refs.get() == 0) {
+                poolPos = index + 1;
+                return p[index];
+            }
+        }
+        // cannot happen: the pool has one more block than the sinks can hold
+        throw new IllegalStateException("capture block pool exhausted");
+    }
+
+    /**
+     * passes the first <code>length</code> bytes of the block to all sinks.
+     * The block must not be used by the caller after this call.
+     *
+     * @param timeMillis the wall clock time when the first frame was captured
+     */
+    public void publish(Block block, int length, long timeMillis) {
+        block.length = length;
+        block.timeMillis = timeMillis;
+        Sink[] s = sinks;
+        for (int i = 0; i < s.length; i++) {
+            s[i].offer(block);
+        }
+    }
+
+    /**
+     * adds a sink that writes all captured data to the output stream. If the
+     * stream is a TimestampedOutput, the capture time is passed along.
+     */
+    public synchronized Sink addSink(OutputStream out) {
+        Sink sink = new Sink(out, queueBlocks);
+        Sink[] s = new Sink[sinks.length + 1];
+        System.arraycopy(sinks, 0, s, 0, sinks.length);
+        s[sinks.length] = sink;
+        // grow the pool before the sink can get blocks
+        growPool(s.length);
+        sinks = s;
+        sink.start();
+        return sink;
+    }
+
+    /**
+     * stops the sink's thread and waits for it to finish. Queued blocks are
+     * discarded. The output stream is not closed.
+     */
+    public void removeSink(Sink sink) {
+        synchronized (this) {
+            int index = -1;
+            for (int i = 0; i < sinks.length; i++) {
+                if (sinks[i] == sink) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            Sink[] s = new Sink[sinks.length - 1];
+            System.arraycopy(sinks, 0, s, 0, index);
+            System.arraycopy(sinks, index + 1, s, index, s.length - index);
+            sinks = s;
+        }
+        sink.terminate();
+        sink.waitFor();
+    }
+
+    public void removeAllSinks() {
+        Sink[] s = sinks;
+        for (int i = 0; i < s.length; i++) {
+            removeSink(s[i]);
+        }
+    }
+
+    public Sink[] getSinks() {
+        return sinks.clone();
+    }
+
+    /**
+     * the number of blocks dropped by all sinks because their queue was full
+     */
+    public long getOverruns() {
+        long res = 0;
+        Sink[] s = sinks;
+        for (int i = 0; i < s.length; i++) {
+            res += s[i].getOverruns();
+        }
+        return res;
+    }
+
+    /**
+     * the highest number of blocks that were queued for any sink
+     */
+    public int getHighWaterMark() {
+        int res = 0;
+        Sink[] s = sinks;
+        for (int i = 0; i < s.length; i++) {
+            res = Math.max(res, s[i].getHighWaterMark());
+        }
+        return res;
+    }
+
+    private synchronized void setBlockSize(int size) {
+        if (VERBOSE) {
+            debugOut("CapturePipeline: block size " + size + " bytes");
+        }
+        blockSize = size;
+        // blocks still queued with the old size are simply not reused
+        Block[] p = new Block[pool.length];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = new Block(size);
+        }
+        pool = p;
+        poolPos = 0;
+    }
+
+    // every sink may hold its queue plus the block it is writing,
+    // and the reader holds one block
+    private void growPool(int sinkCount) {
+        int needed = sinkCount * (queueBlocks + 1) + 1;
+        if (pool.length >= needed) {
+            return;
+        }
+        Block[] p = new Block[needed];
+        System.arraycopy(pool, 0, p, 0, pool.length);
+        for (int i = pool.length; i < p.length; i++) {
+            p[i] = new Block(blockSize);
+        }
+        pool = p;
+    }
+
+    /**
+     * a block of captured audio data
+     */
+    public static class Block {
+
+        private final byte[] data;
+        private int length;
+        private long timeMillis;
+        // the number of sinks that have not yet written this block
+        private final AtomicInteger refs = new AtomicInteger();
+
+        Block(int size) {
+            data = new byte[size];
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+    }
+
+    /**
+     * a thread writing the captured data to an output stream
+     */
+    public static class Sink extends Thread {
+
+        private OutputStream out;
+
+        // the queue: written by the reader thread at tail,
+        // read by this thread at head
+        private final Block[] queue;
+        private volatile long head;
+        private volatile long tail;
+        private volatile boolean waiting;
+
+        private volatile boolean doTerminate = false;
+        private volatile boolean terminated = false;
+
+        // statistics
+        private volatile long overruns;
+        private volatile int highWaterMark;
+        private volatile long blocksWritten;
+        private volatile IOException error;
+
+        Sink(OutputStream out, int queueBlocks) {
+            super("CapturePipeline.Sink");
+            this.out = out;
+            this.queue = new Block[queueBlocks];
+            setDaemon(true);
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        /**
+         * the number of blocks dropped because the queue was full
+         */
+        public long getOverruns() {
+            return overruns;
+        }
+
+        /**
+         * the highest number of blocks that were queued
+         */
+        public int getHighWaterMark() {
+            return highWaterMark;
+        }
+
+        public long getBlocksWritten() {
+            return blocksWritten;
+        }
+
+        /**
+         * the error that stopped this sink, or null
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        // only called by the reader thread
+        void offer(Block block) {
+            long t = tail;
+            int size = (int) (t - head);
+            if (size >= queue.length || terminated) {
+                overruns++;
+                return;
+            }
+            // reference before the sink can release it
+            block.refs.incrementAndGet();
+            queue[(int) (t % queue.length)] = block;
+            tail = t + 1;
+            if (size + 1 > highWaterMark) {
+                highWaterMark = size + 1;
+            }
+            if (terminated) {
+                // the sink stopped meanwhile and may have missed this block
+                releaseQueued();
+                return;
+            }
+            if (waiting) {
+                synchronized (this) {
+                    this.notifyAll();
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                while (!doTerminate) {
+                    long h = head;
+                    if (h == tail) {
+                        synchronized (this) {
+                            waiting = true;
+                            if (h == tail && !doTerminate) {
+                                this.wait();
+                            }
+                            waiting = false;
+                        }
+                        continue;
+                    }
+                    int index = (int) (h % queue.length);
+                    Block block = queue[index];
+                    queue[index] = null;
+                    try {
+                        if (out instanceof TimestampedOutput) {
+                            ((TimestampedOutput) out).write(block.data, 0,
+                                    block.length, block.timeMillis);
+                        } else {
+                            out.write(block.data, 0, block.length);
+                        }
+                    } finally {
+                        block.refs.decrementAndGet();
+                        head = h + 1;
+                    }
+                    blocksWritten++;
+                }
+            } catch (IOException ioe) {
+                error = ioe;
+                if (VERBOSE) {
+                    debugOut("CapturePipeline.Sink: " + ioe);
+                }
+            } catch (InterruptedException ie) {
+                if (DEBUG) {
+                    ie.printStackTrace();
+                }
+            }
+            terminated = true;
+            releaseQueued();
+        }
+
+        // return the blocks that will not be written to the pool
+        private synchronized void releaseQueued() {
+            // see the blocks stored before tail was written
+            long t = tail;
+            for (int i = 0; i < queue.length; i++) {
+                if (queue[i] != null) {
+                    queue[i].refs.decrementAndGet();
+                    queue[i] = null;
+                }
+            }
+        }
+
+        public synchronized void terminate() {
+            doTerminate = true;
+            this.notifyAll();
+        }
+
+        public void waitFor() {
+            if (!terminated && Thread.currentThread() != this) {
+                try {
+                    this.join();
+                } catch (InterruptedException ie) {
+                    if (DEBUG) {
+                        ie.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+}
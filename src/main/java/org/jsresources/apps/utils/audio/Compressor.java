@@ -0,0 +1,184 @@
+/*
+ *	Compressor.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+/**
+ * a feed-forward peak compressor. All channels are reduced by the same
+ * amount, so that the stereo image is kept. With a high ratio and a short
+ * attack time, it works as a limiter.
+ */
+public class Compressor implements AudioProcessor {
+
+    private volatile float thresholdDb;
+    private volatile float ratio;
+    private volatile float attackMillis;
+    private volatile float releaseMillis;
+    private volatile float makeupDb;
+
+    private float sampleRate = 44100;
+    private int channels = 1;
+
+    // the envelope of the input level, linear
+    private float envelope;
+    private volatile float attackCoeff;
+    private volatile float releaseCoeff;
+    // for display: the current gain reduction in dB
+    private volatile float reductionDb;
+
+    public Compressor(float thresholdDb, float ratio, float attackMillis,
+                      float releaseMillis, float makeupDb) {
+        setThresholdDb(thresholdDb);
+        setRatio(ratio);
+        this.attackMillis = attackMillis;
+        this.releaseMillis = releaseMillis;
+        setMakeupDb(makeupDb);
+        calcCoefficients();
+    }
+
+    /**
+     * a limiter that keeps peaks below <code>ceilingDb</code>
+     */
+    public static Compressor createLimiter(float ceilingDb) {
+        return new Compressor(ceilingDb, 100, 0.1f, 100, 0);
+    }
+
+    public void setThresholdDb(float thresholdDb) {
+        this.thresholdDb = thresholdDb;
+    }
+
+    public float getThresholdDb() {
+        return thresholdDb;
+    }
+
+    public void setRatio(float ratio) {
+        if (ratio < 1) {
+            throw new IllegalArgumentException("illegal ratio: " + ratio);
+        }
+        this.ratio = ratio;
+    }
+
+    public float getRatio() {
+        return ratio;
+    }
+
+    public synchronized void setTimes(float attackMillis, float releaseMillis) {
+        this.attackMillis = attackMillis;
+        this.releaseMillis = releaseMillis;
+        calcCoefficients();
+    }
+
+    public float getAttackMillis() {
+        return attackMillis;
+    }
+
+    public float getReleaseMillis() {
+        return releaseMillis;
+    }
+
+    public void setMakeupDb(float makeupDb) {
+        this.makeupDb = makeupDb;
+    }
+
+    public float getMakeupDb() {
+        return makeupDb;
+    }
+
+    /**
+     * the gain reduction of the last block, in dB
+     */
+    public float getReductionDb() {
+        return reductionDb;
+    }
+
+    public synchronized void init(float sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        envelope = 0;
+        calcCoefficients();
+    }
+
+    private void calcCoefficients() {
+        attackCoeff = coeff(attackMillis);
+        releaseCoeff = coeff(releaseMillis);
+    }
+
+    // the one-pole coefficient to reach 63% after millis
+    private float coeff(float millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        return (float) Math.exp(-1000.0 / (millis * sampleRate));
+    }
+
+    public void process(float[] samples, int frames) {
+        float threshold = (float) Math.pow(10.0, thresholdDb / 20.0);
+        float slope = 1.0f - 1.0f / ratio;
+        float makeup = (float) Math.pow(10.0, makeupDb / 20.0);
+        float att = attackCoeff;
+        float rel = releaseCoeff;
+        int ch = channels;
+        float env = envelope;
+        float minGain = 1.0f;
+        int i = 0;
+        for (int f = 0; f < frames; f++) {
+            // the peak of all channels
+            float peak = 0;
+            for (int c = 0; c < ch; c++) {
+                float v = Math.abs(samples[i + c]);
+                if (v > peak) {
+                    peak = v;
+                }
+            }
+            float coeff = (peak > env) ? att : rel;
+            env = peak + coeff * (env - peak);
+            float gain = makeup;
+            if (env > threshold) {
+                // reduce the level above the threshold by the ratio
+                float over = (float) Math.log10(env / threshold);
+                float g = (float) Math.pow(10.0, -over * slope);
+                if (g < minGain) {
+                    minGain = g;
+                }
+                gain *= g;
+            }
+            for (int c = 0; c < ch; c++) {
+                samples[i++] *= gain;
+            }
+        }
+        envelope = env;
+        reductionDb = (float) (20.0 * Math.log10(minGain));
+    }
+}
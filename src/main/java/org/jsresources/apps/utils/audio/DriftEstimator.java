@@ -0,0 +1,169 @@
+/*
+ *	DriftEstimator.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+/**
+ * Estimates the clock drift between the producer of a buffer (e.g. a sender
+ * on another machine) and its consumer (the local sound card) from the
+ * buffer's fill level, and computes the resampling ratio that keeps the
+ * fill level, and so the latency, constant (see AdaptiveResampler).
+ * <p>
+ * The fill level is smoothed with a low-pass filter, because it jumps with
+ * every written and read block. Once it has settled, the smoothed level is
+ * the target. A PI controller then computes the correction from the
+ * deviation from the target: the proportional part removes the deviation
+ * slowly, the integral part converges to the clock drift. The correction
+ * is limited to MAX_CORRECTION, so that the pitch change stays inaudible;
+ * larger deviations are left to catching up or skipping.
+ */
+public class DriftEstimator {
+
+    /**
+     * the maximum correction of the ratio, 1000 ppm
+     */
+    public static final double MAX_CORRECTION = 0.001;
+
+    // time constant of the fill level low-pass
+    private static final double FILTER_SECONDS = 4.0;
+    // the time after a reset until the target is set
+    private static final double SETTLE_SECONDS = 5.0;
+    // the controller's time constant: a critically damped loop with a
+    // natural frequency of 1 / LOOP_SECONDS
+    private static final double LOOP_SECONDS = 60.0;
+    private static final double KP = 2.0 / LOOP_SECONDS;
+    private static final double KI = 1.0 / (LOOP_SECONDS * LOOP_SECONDS);
+
+    private boolean started;
+    private long lastNanos;
+    private double elapsed;
+    private double fillMillis;
+    private double targetMillis = -1;
+    // the integral part: the estimated drift
+    private double drift;
+    private double correction;
+    private long updates;
+
+    /**
+     * Restarts the measurement, e.g. after the latency was changed on
+     * purpose. The target is set again after settling; the drift estimate
+     * is kept, as the clocks did not change.
+     */
+    public synchronized void reset() {
+        started = false;
+        targetMillis = -1;
+        correction = drift;
+    }
+
+    /**
+     * Adds a measurement of the fill level.
+     *
+     * @param fillMillis the data in the buffer, in milliseconds
+     * @param nanos the time of the measurement, System.nanoTime()
+     * @return the resampling ratio, input frames per output frame
+     */
+    public synchronized double update(double fillMillis, long nanos) {
+        updates++;
+        if (!started) {
+            started = true;
+            lastNanos = nanos;
+            elapsed = 0;
+            this.fillMillis = fillMillis;
+            return getRatio();
+        }
+        // ignore the gap after a pause
+        double dt = Math.min((nanos - lastNanos) / 1e9, 1.0);
+        lastNanos = nanos;
+        if (dt <= 0) {
+            return getRatio();
+        }
+        elapsed += dt;
+        this.fillMillis += (fillMillis - this.fillMillis) * Math.min(1.0, dt / FILTER_SECONDS);
+        if (targetMillis < 0) {
+            if (elapsed >= SETTLE_SECONDS) {
+                targetMillis = this.fillMillis;
+            }
+            return getRatio();
+        }
+        // positive: the producer is faster, consume faster
+        double error = (this.fillMillis - targetMillis) / 1000.0;
+        drift = clamp(drift + KI * error * dt);
+        correction = clamp(KP * error + drift);
+        return getRatio();
+    }
+
+    private static double clamp(double value) {
+        return Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, value));
+    }
+
+    /**
+     * the current resampling ratio, input frames per output frame
+     */
+    public synchronized double getRatio() {
+        return 1.0 + correction;
+    }
+
+    /**
+     * the estimated drift in ppm: positive if the producer's clock is
+     * faster than the consumer's
+     */
+    public synchronized double getDriftPpm() {
+        return drift * 1e6;
+    }
+
+    /**
+     * the smoothed fill level in milliseconds
+     */
+    public synchronized double getFillMillis() {
+        return fillMillis;
+    }
+
+    /**
+     * the fill level to keep, or -1 while settling
+     */
+    public synchronized double getTargetMillis() {
+        return targetMillis;
+    }
+
+    public synchronized long getUpdates() {
+        return updates;
+    }
+
+    public synchronized String getStats() {
+        return "drift: " + Math.round(drift * 1e6) + "ppm, correction: "
+                + Math.round(correction * 1e6) + "ppm, fill: " + Math.round(fillMillis)
+                + "ms, target: " + Math.round(targetMillis) + "ms";
+    }
+}
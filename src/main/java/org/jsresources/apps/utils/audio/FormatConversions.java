@@ -0,0 +1,394 @@
+/*
+ *	FormatConversions.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sound.sampled.*;
+import javax.sound.sampled.spi.FormatConversionProvider;
+import org.tritonus.share.sampled.AudioFormats;
+import static org.jsresources.utils.audio.AudioDebug.*;
+
+/**
+ * A replacement for AudioSystem.getAudioInputStream(AudioFormat,
+ * AudioInputStream) that remembers how a conversion is done. For every
+ * pair of source and target format, the chain of converters is resolved
+ * once and cached: nothing, a direct PCM converter, a
+ * FormatConversionProvider, or two of them via 16-bit PCM.
+ * <p>
+ * The direct converters handle PCM with the same sample rate: endianness
+ * swap, signed/unsigned, 8 and 16 bit, mono and stereo. They do not
+ * allocate memory while converting.
+ */
+public class FormatConversions {
+
+    private static final Map<String, Step[]> plans = new ConcurrentHashMap<String, Step[]>();
+    private static FormatConversionProvider[] providers;
+
+    private static final Step[] NO_CONVERSION = new Step[0];
+
+    private FormatConversions() {
+    }
+
+    /**
+     * Returns a stream in <code>target</code> format from the source
+     * stream, or the source stream itself if it is already in that format.
+     *
+     * @throws IllegalArgumentException if the conversion is not supported
+     */
+    public static AudioInputStream getAudioInputStream(AudioFormat target, AudioInputStream source) {
+        Step[] plan = getPlan(source.getFormat(), target);
+        AudioInputStream ais = source;
+        for (Step s : plan) {
+            ais = s.apply(ais);
+        }
+        return ais;
+    }
+
+    public static boolean isConversionSupported(AudioFormat target, AudioFormat source) {
+        try {
+            getPlan(source, target);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * true if the conversion is done by a direct converter, or no
+     * conversion is needed
+     */
+    public static boolean isDirect(AudioFormat target, AudioFormat source) {
+        Step[] plan = getPlan(source, target);
+        for (Step s : plan) {
+            if (!s.direct) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * forget all resolved conversions, e.g. after installing a provider
+     */
+    public static synchronized void clearCache() {
+        plans.clear();
+        providers = null;
+    }
+
+    private static Step[] getPlan(AudioFormat source, AudioFormat target) {
+        String key = getKey(source) + ">" + getKey(target);
+        Step[] plan = plans.get(key);
+        if (plan == null) {
+            // failures are not cached
+            plan = resolve(source, target);
+            plans.put(key, plan);
+            if (DEBUG) {
+                debugOut("FormatConversions: " + source + " -> " + target + ": "
+                        + Arrays.asList(plan));
+            }
+        }
+        return plan;
+    }
+
+    private static String getKey(AudioFormat f) {
+        return f.getEncoding() + "/" + f.getSampleRate() + "/"
+                + f.getSampleSizeInBits() + "/" + f.getChannels() + "/"
+                + f.getFrameSize() + "/" + f.getFrameRate() + "/"
+                + (f.isBigEndian() ? "be" : "le");
+    }
+
+    private static Step[] resolve(AudioFormat source, AudioFormat target) {
+        if (AudioFormats.matches(target, source)) {
+            return NO_CONVERSION;
+        }
+        Step step = resolveStep(source, target);
+        if (step != null) {
+            return new Step[]{step};
+        }
+        // via 16-bit PCM, e.g. for decoders that only produce that
+        for (int i = 0; i < 2; i++) {
+            AudioFormat pcm = getPCM16(i == 0 ? source : target,
+                    target.isBigEndian());
+            Step first = resolveStep(source, pcm);
+            Step second = resolveStep(pcm, target);
+            if (first != null && second != null) {
+                return new Step[]{first, second};
+            }
+        }
+        // let AudioSystem try, it throws IllegalArgumentException
+        if (!AudioSystem.isConversionSupported(target, source)) {
+            throw new IllegalArgumentException("Unsupported conversion: "
+                    + target + " from " + source);
+        }
+        return new Step[]{new Step(target, null, false)};
+    }
+
+    private static Step resolveStep(AudioFormat source, AudioFormat target) {
+        if (DirectConverter.isSupported(source, target)) {
+            return new Step(target, null, true);
+        }
+        for (FormatConversionProvider p : getProviders()) {
+            try {
+                if (p.isConversionSupported(target, source)) {
+                    return new Step(target, p, false);
+                }
+            } catch (Exception e) {
+                if (DEBUG) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static AudioFormat getPCM16(AudioFormat f, boolean bigEndian) {
+        return new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, f.getSampleRate(),
+                16, f.getChannels(), 2 * f.getChannels(), f.getSampleRate(),
+                bigEndian);
+    }
+
+    private static synchronized FormatConversionProvider[] getProviders() {
+        if (providers == null) {
+            List<FormatConversionProvider> list = new ArrayList<FormatConversionProvider>();
+            try {
+                for (FormatConversionProvider p : ServiceLoader.load(FormatConversionProvider.class)) {
+                    list.add(p);
+                }
+            } catch (ServiceConfigurationError e) {
+                if (DEBUG) {
+                    e.printStackTrace();
+                }
+            }
+            providers = list.toArray(new FormatConversionProvider[list.size()]);
+        }
+        return providers;
+    }
+
+    /**
+     * one converter in a chain
+     */
+    private static class Step {
+
+        private final AudioFormat target;
+        // if null and not direct, use AudioSystem
+        private final FormatConversionProvider provider;
+        private final boolean direct;
+
+        Step(AudioFormat target, FormatConversionProvider provider, boolean direct) {
+            this.target = target;
+            this.provider = provider;
+            this.direct = direct;
+        }
+
+        AudioInputStream apply(AudioInputStream ais) {
+            if (direct) {
+                return new DirectConverter(target, ais);
+            }
+            if (provider != null) {
+                return provider.getAudioInputStream(target, ais);
+            }
+            return AudioSystem.getAudioInputStream(target, ais);
+        }
+
+        public String toString() {
+            if (direct) {
+                return "direct";
+            }
+            if (provider != null) {
+                return provider.getClass().getName();
+            }
+            return "AudioSystem";
+        }
+    }
+
+    /**
+     * converts between 8 and 16 bit, signed and unsigned, little and big
+     * endian, mono and stereo PCM
+     */
+    private static class DirectConverter extends AudioInputStream {
+
+        private final AudioInputStream source;
+        private final int srcFrameSize;
+        private final int srcChannels;
+        private final int srcBytes;
+        private final boolean srcUnsigned;
+        private final boolean srcBigEndian;
+        private final int dstChannels;
+        private final int dstBytes;
+        private final boolean dstUnsigned;
+        private final boolean dstBigEndian;
+        // read buffer in source format, with an incomplete frame at the end
+        private byte[] buffer = new byte[0];
+        private int buffered;
+
+        DirectConverter(AudioFormat target, AudioInputStream source) {
+            super(source, target, source.getFrameLength());
+            this.source = source;
+            AudioFormat src = source.getFormat();
+            srcFrameSize = src.getFrameSize();
+            srcChannels = src.getChannels();
+            srcBytes = src.getSampleSizeInBits() / 8;
+            srcUnsigned = src.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+            srcBigEndian = src.isBigEndian();
+            dstChannels = target.getChannels();
+            dstBytes = target.getSampleSizeInBits() / 8;
+            dstUnsigned = target.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+            dstBigEndian = target.isBigEndian();
+        }
+
+        static boolean isSupported(AudioFormat src, AudioFormat dst) {
+            return AudioUtils.isPCM(src) && AudioUtils.isPCM(dst)
+                    && isSupportedPCM(src) && isSupportedPCM(dst)
+                    && src.getSampleRate() == dst.getSampleRate();
+        }
+
+        private static boolean isSupportedPCM(AudioFormat f) {
+            int bits = f.getSampleSizeInBits();
+            int ch = f.getChannels();
+            return (bits == 8 || bits == 16) && (ch == 1 || ch == 2)
+                    && f.getFrameSize() == bits / 8 * ch;
+        }
+
+        public int read() throws IOException {
+            throw new IOException("cannot read a single byte if frame size > 1");
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int frames = len / frameSize;
+            if (frames == 0) {
+                return 0;
+            }
+            int need = frames * srcFrameSize;
+            if (buffer.length < need) {
+                byte[] newBuffer = new byte[need];
+                System.arraycopy(buffer, 0, newBuffer, 0, buffered);
+                buffer = newBuffer;
+            }
+            int ret = source.read(buffer, buffered, need - buffered);
+            if (ret < 0) {
+                return -1;
+            }
+            buffered += ret;
+            frames = buffered / srcFrameSize;
+            convert(buffer, b, off, frames);
+            // keep an incomplete frame for the next read
+            int used = frames * srcFrameSize;
+            buffered -= used;
+            if (buffered > 0) {
+                System.arraycopy(buffer, used, buffer, 0, buffered);
+            }
+            return frames * frameSize;
+        }
+
+        private void convert(byte[] src, byte[] dst, int dstOff, int frames) {
+            int si = 0;
+            int di = dstOff;
+            for (int f = 0; f < frames; f++) {
+                int left = readSample(src, si);
+                int right = (srcChannels == 2) ? readSample(src, si + srcBytes) : left;
+                si += srcFrameSize;
+                if (dstChannels == 1) {
+                    di = writeSample(dst, di, (left + right) >> 1);
+                } else {
+                    di = writeSample(dst, di, left);
+                    di = writeSample(dst, di, right);
+                }
+            }
+        }
+
+        // returns a signed 16-bit sample
+        private int readSample(byte[] b, int i) {
+            if (srcBytes == 1) {
+                return srcUnsigned ? ((b[i] & 0xFF) - 128) << 8 : b[i] << 8;
+            }
+            int s = srcBigEndian ? (b[i] << 8) | (b[i + 1] & 0xFF)
+                    : (b[i + 1] << 8) | (b[i] & 0xFF);
+            return srcUnsigned ? s ^ 0xFFFF8000 : s;
+        }
+
+        private int writeSample(byte[] b, int i, int sample) {
+            if (dstBytes == 1) {
+                int s = sample >> 8;
+                b[i] = (byte) (dstUnsigned ? s + 128 : s);
+                return i + 1;
+            }
+            if (dstUnsigned) {
+                sample ^= 0x8000;
+            }
+            if (dstBigEndian) {
+                b[i] = (byte) (sample >> 8);
+                b[i + 1] = (byte) sample;
+            } else {
+                b[i] = (byte) sample;
+                b[i + 1] = (byte) (sample >> 8);
+            }
+            return i + 2;
+        }
+
+        public long skip(long n) throws IOException {
+            long frames = n / frameSize;
+            if (frames <= 0) {
+                return 0;
+            }
+            long need = frames * srcFrameSize;
+            // the buffered bytes come first
+            int fromBuffer = (int) Math.min(buffered, need);
+            buffered -= fromBuffer;
+            if (buffered > 0) {
+                System.arraycopy(buffer, fromBuffer, buffer, 0, buffered);
+            }
+            long skipped = 0;
+            if (need > fromBuffer) {
+                skipped = Math.max(source.skip(need - fromBuffer), 0);
+            }
+            return (fromBuffer + skipped) / srcFrameSize * frameSize;
+        }
+
+        public int available() throws IOException {
+            return (source.available() + buffered) / srcFrameSize * frameSize;
+        }
+
+        public void close() throws IOException {
+            source.close();
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
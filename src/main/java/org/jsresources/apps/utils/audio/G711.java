@@ -0,0 +1,120 @@
+/*
+ *	G711.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+/**
+ * G.711 u-law and A-law, in both directions: between the 8-bit codes and
+ * 16-bit linear samples.
+ */
+final class G711 {
+
+    private G711() {
+    }
+
+    /**
+     * the 16-bit linear sample of a u-law code
+     */
+    static int ulaw2linear(int ulaw) {
+        ulaw = ~ulaw & 0xFF;
+        int t = ((ulaw & 0x0F) << 3) + 0x84;
+        t <<= (ulaw & 0x70) >> 4;
+        return ((ulaw & 0x80) != 0) ? (0x84 - t) : (t - 0x84);
+    }
+
+    /**
+     * the 16-bit linear sample of an A-law code
+     */
+    static int alaw2linear(int alaw) {
+        alaw ^= 0x55;
+        int t = (alaw & 0x0F) << 4;
+        int seg = (alaw & 0x70) >> 4;
+        switch (seg) {
+        case 0:
+            t += 8;
+            break;
+        case 1:
+            t += 0x108;
+            break;
+        default:
+            t += 0x108;
+            t <<= seg - 1;
+        }
+        return ((alaw & 0x80) != 0) ? t : -t;
+    }
+
+    /**
+     * the u-law code of a 16-bit linear sample
+     */
+    static int linear2ulaw(int pcm) {
+        int sign = (pcm >> 8) & 0x80;
+        if (sign != 0) {
+            pcm = -pcm;
+        }
+        if (pcm > 32635) {
+            pcm = 32635;
+        }
+        pcm += 0x84;
+        int exponent = 7;
+        for (int mask = 0x4000; (pcm & mask) == 0 && exponent > 0; mask >>= 1) {
+            exponent--;
+        }
+        int mantissa = (pcm >> (exponent + 3)) & 0x0F;
+        return ~(sign | (exponent << 4) | mantissa) & 0xFF;
+    }
+
+    /**
+     * the A-law code of a 16-bit linear sample
+     */
+    static int linear2alaw(int pcm) {
+        int sign = ((~pcm) >> 8) & 0x80;
+        if (sign == 0) {
+            pcm = -pcm;
+        }
+        if (pcm > 32635) {
+            pcm = 32635;
+        }
+        int value;
+        if (pcm >= 256) {
+            int exponent = 7;
+            for (int mask = 0x4000; (pcm & mask) == 0; mask >>= 1) {
+                exponent--;
+            }
+            value = (exponent << 4) | ((pcm >> (exponent + 3)) & 0x0F);
+        } else {
+            value = pcm >> 4;
+        }
+        return (value ^ (sign ^ 0x55)) & 0xFF;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *	GainProcessor.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+/**
+ * changes the volume. Gain changes are ramped over one block to avoid
+ * clicks.
+ */
+public class GainProcessor implements AudioProcessor {
+
+    private int channels = 1;
+    private volatile float gain = 1.0f;
+    // the gain at the end of the last block
+    private float currentGain = 1.0f;
+
+    public GainProcessor() {
+    }
+
+    public GainProcessor(float gainDb) {
+        setGainDb(gainDb);
+    }
+
+    public void setGainDb(float gainDb) {
+        gain = (float) Math.pow(10.0, gainDb / 20.0);
+    }
+
+    public float getGainDb() {
+        return (float) (20.0 * Math.log10(gain));
+    }
+
+    public void init(float sampleRate, int channels) {
+        this.channels = channels;
+        currentGain = gain;
+    }
+
+    public void process(float[] samples, int frames) {
+        float target = gain;
+        float g = currentGain;
+        int ch = channels;
+        if (g == target) {
+            if (g != 1.0f) {
+                for (int i = 0; i < frames * ch; i++) {
+                    samples[i] *= g;
+                }
+            }
+            return;
+        }
+        float step = (target - g) / frames;
+        int i = 0;
+        for (int f = 0; f < frames; f++) {
+            g += step;
+            for (int c = 0; c < ch; c++) {
+                samples[i++] *= g;
+            }
+        }
+        currentGain = target;
+    }
+}
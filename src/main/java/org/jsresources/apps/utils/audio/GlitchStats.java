@@ -0,0 +1,206 @@
+/*
+ *	GlitchStats.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the glitches of a line: underruns of a playback line, overruns of
+ * a capture line, and short reads. The counters are lock-free, so that they
+ * can be polled while audio is running. The last RECENT_EVENTS glitches are
+ * kept with their time, the estimated length of the gap and the line's
+ * frame position.
+ */
+public class GlitchStats {
+
+    public static final int UNDERRUN = 0;
+    public static final int OVERRUN = 1;
+    public static final int SHORT_READ = 2;
+
+    private static final String[] NAMES = {
+        "underrun", "overrun", "short read"
+    };
+
+    public static final int RECENT_EVENTS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NAMES.length);
+    private volatile long totalGapMicros;
+    private volatile long sessionStartMillis = System.currentTimeMillis();
+    private volatile long lastEventMillis;
+
+    // the recent events, guarded by this
+    private final int[] eventType = new int[RECENT_EVENTS];
+    private final long[] eventMillis = new long[RECENT_EVENTS];
+    private final long[] eventGapMicros = new long[RECENT_EVENTS];
+    private final long[] eventFrame = new long[RECENT_EVENTS];
+    private long eventCount;
+
+    /**
+     * records a glitch. Does not allocate memory.
+     *
+     * @param gapMicros the estimated length of the gap in the audio
+     * @param framePosition the line's frame position
+     */
+    public void record(int type, long gapMicros, long framePosition) {
+        long now = System.currentTimeMillis();
+        counts.incrementAndGet(type);
+        totalGapMicros += gapMicros;
+        lastEventMillis = now;
+        synchronized (this) {
+            int i = (int) (eventCount % RECENT_EVENTS);
+            eventType[i] = type;
+            eventMillis[i] = now;
+            eventGapMicros[i] = gapMicros;
+            eventFrame[i] = framePosition;
+            eventCount++;
+        }
+    }
+
+    /**
+     * starts a new session: clears all counters and events
+     */
+    public void reset() {
+        for (int i = 0; i < NAMES.length; i++) {
+            counts.set(i, 0);
+        }
+        totalGapMicros = 0;
+        lastEventMillis = 0;
+        sessionStartMillis = System.currentTimeMillis();
+        synchronized (this) {
+            eventCount = 0;
+        }
+    }
+
+    /**
+     * the number of glitches of the given type in this session
+     */
+    public long getCount(int type) {
+        return counts.get(type);
+    }
+
+    public long getUnderruns() {
+        return counts.get(UNDERRUN);
+    }
+
+    public long getOverruns() {
+        return counts.get(OVERRUN);
+    }
+
+    public long getShortReads() {
+        return counts.get(SHORT_READ);
+    }
+
+    /**
+     * the estimated total length of all gaps in this session
+     */
+    public long getTotalGapMicros() {
+        return totalGapMicros;
+    }
+
+    public long getSessionStartMillis() {
+        return sessionStartMillis;
+    }
+
+    /**
+     * the wall clock time of the last glitch, or 0
+     */
+    public long getLastEventMillis() {
+        return lastEventMillis;
+    }
+
+    /**
+     * the most recent glitches, oldest first
+     */
+    public synchronized Event[] getRecentEvents() {
+        int n = (int) Math.min(eventCount, RECENT_EVENTS);
+        Event[] res = new Event[n];
+        for (int j = 0; j < n; j++) {
+            int i = (int) ((eventCount - n + j) % RECENT_EVENTS);
+            res[j] = new Event(eventType[i], eventMillis[i], eventGapMicros[i], eventFrame[i]);
+        }
+        return res;
+    }
+
+    public static String getName(int type) {
+        return NAMES[type];
+    }
+
+    public String toString() {
+        return "underruns: " + getUnderruns() + ", overruns: " + getOverruns()
+            + ", short reads: " + getShortReads() + ", gaps: "
+            + getTotalGapMicros() / 1000 + "ms in "
+            + (System.currentTimeMillis() - sessionStartMillis) / 1000 + "s";
+    }
+
+    /**
+     * a recorded glitch
+     */
+    public static class Event {
+
+        private final int type;
+        private final long timeMillis;
+        private final long gapMicros;
+        private final long framePosition;
+
+        Event(int type, long timeMillis, long gapMicros, long framePosition) {
+            this.type = type;
+            this.timeMillis = timeMillis;
+            this.gapMicros = gapMicros;
+            this.framePosition = framePosition;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public long getGapMicros() {
+            return gapMicros;
+        }
+
+        public long getFramePosition() {
+            return framePosition;
+        }
+
+        public String toString() {
+            return getName(type) + " at " + timeMillis + " (frame "
+                + framePosition + "): " + gapMicros / 1000.0 + "ms";
+        }
+    }
+}
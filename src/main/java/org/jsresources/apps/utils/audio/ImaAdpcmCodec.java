@@ -0,0 +1,258 @@
+/*
+ *	ImaAdpcmCodec.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A block codec for 16-bit signed PCM using IMA ADPCM (4 bits per sample).
+ * <p>
+ * Every encoded block starts with the predictor state of each channel, so
+ * that blocks can be decoded independently of each other. A decoded block
+ * holds <code>blockFrames</code> frames of interleaved 16-bit samples, the
+ * encoded block is roughly a fourth of that size.
+ * <p>
+ * Instances are not thread safe, and they do not allocate memory after
+ * construction.
+ */
+public class ImaAdpcmCodec {
+
+    private static final int[] INDEX_TABLE = {
+        -1, -1, -1, -1, 2, 4, 6, 8,
+        -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37,
+        41, 45, 50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173,
+        190, 209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658,
+        724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+        2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484,
+        7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818,
+        18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    // size of the per-channel header: predictor (2 bytes), index, reserved
+    private static final int HEADER_SIZE = 4;
+
+    private int channels;
+    private boolean bigEndian;
+    private int blockFrames;
+
+    // encoder state, carried over from block to block
+    private int[] encPredictor;
+    private int[] encIndex;
+
+    // decoder scratch state
+    private int[] decPredictor;
+    private int[] decIndex;
+
+    public ImaAdpcmCodec(int channels, boolean bigEndian, int blockFrames) {
+        this.channels = channels;
+        this.bigEndian = bigEndian;
+        this.blockFrames = blockFrames;
+        encPredictor = new int[channels];
+        encIndex = new int[channels];
+        decPredictor = new int[channels];
+        decIndex = new int[channels];
+    }
+
+    /**
+     * returns true if the given format can be handled by this codec
+     */
+    public static boolean isSupported(AudioFormat format) {
+        return format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+                && format.getSampleSizeInBits() == 16
+                && format.getChannels() > 0;
+    }
+
+    /**
+     * size in bytes of a block of PCM data
+     */
+    public int getDecodedBlockSize() {
+        return blockFrames * channels * 2;
+    }
+
+    /**
+     * size in bytes of an encoded block
+     */
+    public int getEncodedBlockSize() {
+        return HEADER_SIZE * channels + (blockFrames * channels + 1) / 2;
+    }
+
+    /**
+     * reset the encoder state, e.g. for a new stream
+     */
+    public void reset() {
+        for (int c = 0; c < channels; c++) {
+            encPredictor[c] = 0;
+            encIndex[c] = 0;
+        }
+    }
+
+    /**
+     * encode one block of PCM data (getDecodedBlockSize() bytes) from
+     * <code>pcm</code> to <code>dst</code> (getEncodedBlockSize() bytes).
+     */
+    public void encode(byte[] pcm, int pcmOff, byte[] dst, int dstOff) {
+        for (int c = 0; c < channels; c++) {
+            dst[dstOff++] = (byte) encPredictor[c];
+            dst[dstOff++] = (byte) (encPredictor[c] >> 8);
+            dst[dstOff++] = (byte) encIndex[c];
+            dst[dstOff++] = 0;
+        }
+        int samples = blockFrames * channels;
+        int c = 0;
+        for (int i = 0; i < samples; i++) {
+            int sample;
+            if (bigEndian) {
+                sample = (pcm[pcmOff] << 8) | (pcm[pcmOff + 1] & 0xFF);
+            } else {
+                sample = (pcm[pcmOff + 1] << 8) | (pcm[pcmOff] & 0xFF);
+            }
+            pcmOff += 2;
+
+            int predictor = encPredictor[c];
+            int index = encIndex[c];
+            int step = STEP_TABLE[index];
+            int diff = sample - predictor;
+            int code = 0;
+            if (diff < 0) {
+                code = 8;
+                diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+                code |= 4;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 2;
+                diff -= step;
+                delta += step;
+            }
+            step >>= 1;
+            if (diff >= step) {
+                code |= 1;
+                delta += step;
+            }
+            predictor += ((code & 8) != 0) ? -delta : delta;
+            encPredictor[c] = clip16(predictor);
+            encIndex[c] = clipIndex(index + INDEX_TABLE[code]);
+
+            if ((i & 1) == 0) {
+                dst[dstOff] = (byte) code;
+            } else {
+                dst[dstOff++] |= (byte) (code << 4);
+            }
+            if (++c == channels) {
+                c = 0;
+            }
+        }
+    }
+
+    /**
+     * decode one block (getEncodedBlockSize() bytes) from <code>src</code>
+     * to <code>pcm</code> (getDecodedBlockSize() bytes).
+     */
+    public void decode(byte[] src, int srcOff, byte[] pcm, int pcmOff) {
+        for (int c = 0; c < channels; c++) {
+            decPredictor[c] = (short) ((src[srcOff] & 0xFF) | (src[srcOff + 1] << 8));
+            decIndex[c] = clipIndex(src[srcOff + 2]);
+            srcOff += HEADER_SIZE;
+        }
+        int samples = blockFrames * channels;
+        int c = 0;
+        for (int i = 0; i < samples; i++) {
+            int code;
+            if ((i & 1) == 0) {
+                code = src[srcOff] & 0x0F;
+            } else {
+                code = (src[srcOff++] >> 4) & 0x0F;
+            }
+            int index = decIndex[c];
+            int step = STEP_TABLE[index];
+            int delta = step >> 3;
+            if ((code & 4) != 0) {
+                delta += step;
+            }
+            if ((code & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((code & 1) != 0) {
+                delta += step >> 2;
+            }
+            int sample = decPredictor[c];
+            sample = clip16(sample + (((code & 8) != 0) ? -delta : delta));
+            decPredictor[c] = sample;
+            decIndex[c] = clipIndex(index + INDEX_TABLE[code]);
+
+            if (bigEndian) {
+                pcm[pcmOff] = (byte) (sample >> 8);
+                pcm[pcmOff + 1] = (byte) sample;
+            } else {
+                pcm[pcmOff] = (byte) sample;
+                pcm[pcmOff + 1] = (byte) (sample >> 8);
+            }
+            pcmOff += 2;
+            if (++c == channels) {
+                c = 0;
+            }
+        }
+    }
+
+    private static int clip16(int sample) {
+        if (sample > 32767) {
+            return 32767;
+        }
+        if (sample < -32768) {
+            return -32768;
+        }
+        return sample;
+    }
+
+    private static int clipIndex(int index) {
+        if (index < 0) {
+            return 0;
+        }
+        if (index > 88) {
+            return 88;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ *	LatencyProbe.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import java.util.Arrays;
+import static org.jsresources.utils.audio.AudioDebug.*;
+
+/**
+ * Measures the latency from the capture line to the playback line.
+ * <p>
+ * A short chirp is mixed into the captured audio every interval, by a
+ * processor at the end of the capture's ProcessorChain. A processor in the
+ * playback's ProcessorChain finds the chirps again by cross-correlation.
+ * Up and down chirps alternate, so that a lost chirp does not shift all
+ * following measurements.
+ * <p>
+ * Every latency is split into the time the chirp spent in the capture
+ * line's buffer, the time between reading it from the capture line and
+ * writing it to the playback line (i.e. mostly the lag in the ring buffer),
+ * and the time in the playback line's buffer.
+ */
+public class LatencyProbe {
+
+    public static final int DEFAULT_INTERVAL_MILLIS = 1000;
+    public static final int CHIRP_MILLIS = 20;
+
+    private static final float AMPLITUDE = 0.1f;
+    // normalized correlation needed for a detection
+    private static final float THRESHOLD = 0.6f;
+    // markers not detected within this time are counted as missed
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private int intervalMillis;
+
+    private AudioCapture capture;
+    private AudioPlayback playback;
+    private Injector injector;
+    private Detector detector;
+
+    // the markers not detected yet: a ring written by the injector at tail
+    // and read by the detector at head. Preallocated, so that the audio
+    // threads do not allocate.
+    private final Marker[] markers;
+    private volatile long head;
+    private volatile long tail;
+
+    private final Statistics total = new Statistics("total");
+    private final Statistics captureLine = new Statistics("capture line");
+    private final Statistics ringBuffer = new Statistics("ring buffer");
+    private final Statistics playbackLine = new Statistics("playback line");
+
+    private volatile long injected;
+    private volatile long missed;
+
+    public LatencyProbe() {
+        this(DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param intervalMillis the time between two chirps
+     */
+    public LatencyProbe(int intervalMillis) {
+        this.intervalMillis = Math.max(intervalMillis, CHIRP_MILLIS * 4);
+        // all markers that can be pending before they time out
+        markers = new Marker[(int) (TIMEOUT_MILLIS / this.intervalMillis) + 2];
+        for (int i = 0; i < markers.length; i++) {
+            markers[i] = new Marker();
+        }
+    }
+
+    /**
+     * starts measuring the latency from capture to playback
+     */
+    public synchronized void start(AudioCapture capture, AudioPlayback playback) {
+        stop();
+        reset();
+        this.capture = capture;
+        this.playback = playback;
+        injector = new Injector();
+        detector = new Detector();
+        playback.getProcessorChain().add(detector);
+        capture.getProcessorChain().add(injector);
+    }
+
+    public synchronized void stop() {
+        if (capture != null) {
+            capture.getProcessorChain().remove(injector);
+            playback.getProcessorChain().remove(detector);
+            capture = null;
+            playback = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return capture != null;
+    }
+
+    public void reset() {
+        head = tail;
+        total.clear();
+        captureLine.clear();
+        ringBuffer.clear();
+        playbackLine.clear();
+        injected = 0;
+        missed = 0;
+    }
+
+    public Statistics getTotal() {
+        return total;
+    }
+
+    public Statistics getCaptureLine() {
+        return captureLine;
+    }
+
+    public Statistics getRingBuffer() {
+        return ringBuffer;
+    }
+
+    public Statistics getPlaybackLine() {
+        return playbackLine;
+    }
+
+    public long getInjected() {
+        return injected;
+    }
+
+    public long getMissed() {
+        return missed;
+    }
+
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("latency: ").append(total.getCount()).append(" of ")
+            .append(injected).append(" markers detected, ")
+            .append(missed).append(" missed\n");
+        sb.append(total).append('\n');
+        sb.append(captureLine).append('\n');
+        sb.append(ringBuffer).append('\n');
+        sb.append(playbackLine);
+        return sb.toString();
+    }
+
+    // a linear chirp between 1 and 4 kHz with a Hann window, normalized to
+    // an energy of 1
+    private static float[] createChirp(float sampleRate, boolean up) {
+        int n = Math.max((int) (sampleRate * CHIRP_MILLIS / 1000), 16);
+        float f0 = 1000;
+        float f1 = Math.min(4000, sampleRate * 0.4f);
+        if (!up) {
+            float f = f0;
+            f0 = f1;
+            f1 = f;
+        }
+        float[] res = new float[n];
+        double energy = 0;
+        double duration = n / (double) sampleRate;
+        for (int i = 0; i < n; i++) {
+            double t = i / (double) sampleRate;
+            double phase = 2 * Math.PI * (f0 * t + (f1 - f0) * t * t / (2 * duration));
+            double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (n - 1));
+            res[i] = (float) (Math.sin(phase) * window);
+            energy += res[i] * res[i];
+        }
+        float norm = (float) (1.0 / Math.sqrt(energy));
+        for (int i = 0; i < n; i++) {
+            res[i] *= norm;
+        }
+        return res;
+    }
+
+    private void addMeasurement(Marker m, long writeNanos, long playbackMicros) {
+        long ringMicros = (writeNanos - m.readNanos) / 1000;
+        captureLine.add(m.captureMicros);
+        ringBuffer.add(ringMicros);
+        playbackLine.add(playbackMicros);
+        total.add(m.captureMicros + ringMicros + playbackMicros);
+        if (VERBOSE) {
+            debugOut("LatencyProbe: " + (m.captureMicros + ringMicros + playbackMicros) / 1000
+                     + "ms (capture line " + m.captureMicros / 1000
+                     + "ms, ring buffer " + ringMicros / 1000
+                     + "ms, playback line " + playbackMicros / 1000 + "ms)");
+        }
+    }
+
+    // a chirp injected into the captured audio
+    private static class Marker {
+        // when the chirp was read from the capture line
+        long readNanos;
+        // how long the chirp was in the capture line's buffer
+        long captureMicros;
+        boolean up;
+    }
+
+    // mixes the chirps into the captured audio
+    private class Injector implements AudioProcessor {
+
+        private float sampleRate;
+        private int channels;
+        private float[][] chirps = new float[2][];
+        private int untilNext;
+        // position in the chirp currently injected, or -1
+        private int chirpPos = -1;
+        private boolean up;
+
+        public void init(float sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            chirps[0] = createChirp(sampleRate, false);
+            chirps[1] = createChirp(sampleRate, true);
+            untilNext = (int) (sampleRate * intervalMillis / 1000);
+        }
+
+        public void process(float[] samples, int frames) {
+            int f = 0;
+            while (f < frames) {
+                if (chirpPos < 0) {
+                    if (untilNext >= frames - f) {
+                        untilNext -= frames - f;
+                        return;
+                    }
+                    f += untilNext;
+                    untilNext = (int) (sampleRate * intervalMillis / 1000);
+                    if (!startMarker(f, frames)) {
+                        continue;
+                    }
+                }
+                float[] chirp = chirps[up ? 1 : 0];
+                // the chirp's energy is 1: scale to the wanted amplitude
+                float gain = AMPLITUDE * (float) Math.sqrt(chirp.length / 2.0);
+                while (f < frames && chirpPos < chirp.length) {
+                    float v = chirp[chirpPos++] * gain;
+                    for (int c = 0; c < channels; c++) {
+                        samples[f * channels + c] += v;
+                    }
+                    f++;
+                    untilNext--;
+                }
+                if (chirpPos >= chirp.length) {
+                    chirpPos = -1;
+                }
+            }
+        }
+
+        // returns false if the chirp is skipped because all markers are
+        // pending
+        private boolean startMarker(int offset, int frames) {
+            long t = tail;
+            if (t - head >= markers.length) {
+                return false;
+            }
+            Marker m = markers[(int) (t % markers.length)];
+            up = !up;
+            m.up = up;
+            m.readNanos = System.nanoTime();
+            // the frames after the chirp's start in this block, and the
+            // frames still in the line, were captured later
+            AudioCapture c = capture;
+            long bufferedFrames = (c == null) ? 0
+                : c.getBufferedBytes() / Math.max(c.getLineFormat().getFrameSize(), 1);
+            m.captureMicros = (long) ((frames - offset + bufferedFrames) * 1000000L / sampleRate);
+            // publish the marker after filling it
+            tail = t + 1;
+            injected++;
+            chirpPos = 0;
+            return true;
+        }
+    }
+
+    // finds the chirps in the played audio
+    private class Detector implements AudioProcessor {
+
+        // frames correlated at once: larger blocks are processed in pieces
+        private static final int PIECE_FRAMES = 4096;
+
+        private float sampleRate;
+        private int channels;
+        private float[][] chirps = new float[2][];
+        private int len;
+        // the last len - 1 samples of the previous piece, then this piece.
+        // Allocated in init(), so that the audio thread does not allocate.
+        private float[] mono = new float[0];
+        private int history;
+        // the absolute frame position of mono[0]
+        private long monoStart;
+
+        // for calculating the time when a frame is played
+        private long framesSeen;
+        private long blockStart;
+        private long blockNanos;
+        private long blockQueued;
+        private long prevBlockStart;
+        private long prevBlockNanos;
+        private long prevBlockQueued;
+        private long lastDetection = -Integer.MAX_VALUE;
+
+        public void init(float sampleRate, int channels) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            chirps[0] = createChirp(sampleRate, false);
+            chirps[1] = createChirp(sampleRate, true);
+            len = chirps[0].length;
+            mono = new float[len - 1 + PIECE_FRAMES];
+            history = 0;
+            framesSeen = 0;
+        }
+
+        public void process(float[] samples, int frames) {
+            prevBlockStart = blockStart;
+            prevBlockNanos = blockNanos;
+            prevBlockQueued = blockQueued;
+            blockStart = framesSeen;
+            blockNanos = System.nanoTime();
+            AudioPlayback p = playback;
+            blockQueued = (p == null) ? 0
+                : p.getBufferedBytes() / Math.max(p.getLineFormat().getFrameSize(), 1);
+            int f = 0;
+            while (f < frames) {
+                int piece = Math.min(frames - f, mono.length - history);
+                for (int i = 0; i < piece; i++) {
+                    float sum = 0;
+                    int idx = (f + i) * channels;
+                    for (int c = 0; c < channels; c++) {
+                        sum += samples[idx + c];
+                    }
+                    mono[history + i] = sum / channels;
+                }
+                monoStart = framesSeen + f - history;
+                int n = history + piece;
+                detect(n);
+                // keep the last len - 1 samples
+                int keep = Math.min(len - 1, n);
+                System.arraycopy(mono, n - keep, mono, 0, keep);
+                history = keep;
+                f += piece;
+            }
+            framesSeen += frames;
+        }
+
+        private void detect(int n) {
+            float[] up = chirps[1];
+            float[] down = chirps[0];
+            // energy of the window at position 0
+            double energy = 0;
+            for (int i = 0; i < len - 1 && i < n; i++) {
+                energy += mono[i] * mono[i];
+            }
+            float best = THRESHOLD;
+            int bestPos = -1;
+            boolean bestUp = false;
+            for (int t = 0; t + len <= n; t++) {
+                float last = mono[t + len - 1];
+                energy += last * last;
+                if (energy > 1e-9) {
+                    float cu = 0;
+                    float cd = 0;
+                    for (int i = 0; i < len; i++) {
+                        float v = mono[t + i];
+                        cu += v * up[i];
+                        cd += v * down[i];
+                    }
+                    float norm = (float) Math.sqrt(energy);
+                    if (cu / norm > best) {
+                        best = cu / norm;
+                        bestPos = t;
+                        bestUp = true;
+                    }
+                    if (cd / norm > best) {
+                        best = cd / norm;
+                        bestPos = t;
+                        bestUp = false;
+                    }
+                }
+                float first = mono[t];
+                energy -= first * first;
+            }
+            if (bestPos >= 0) {
+                found(bestPos, bestUp);
+            }
+        }
+
+        private void found(int pos, boolean up) {
+            // absolute frame position of the chirp's start
+            long frame = monoStart + pos;
+            if (frame - lastDetection < len * 2) {
+                return;
+            }
+            lastDetection = frame;
+            long nanos;
+            long playbackFrames;
+            if (frame >= blockStart) {
+                nanos = blockNanos;
+                playbackFrames = blockQueued + frame - blockStart;
+            } else {
+                nanos = prevBlockNanos;
+                playbackFrames = prevBlockQueued + frame - prevBlockStart;
+            }
+            long playbackMicros = (long) (playbackFrames * 1000000L / sampleRate);
+            // match with the oldest marker of the same direction
+            long h;
+            while ((h = head) != tail) {
+                Marker m = markers[(int) (h % markers.length)];
+                if (m.readNanos >= nanos) {
+                    // not injected by us
+                    return;
+                }
+                boolean match = m.up == up
+                    && nanos - m.readNanos < TIMEOUT_MILLIS * 1000000L;
+                if (match) {
+                    addMeasurement(m, nanos, playbackMicros);
+                } else {
+                    // the marker was lost: try the next one
+                    missed++;
+                }
+                // the injector may reuse the marker from now on
+                head = h + 1;
+                if (match) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * keeps the last measurements of one latency component
+     */
+    public static class Statistics {
+
+        private static final int MAX_VALUES = 1000;
+
+        private final String name;
+        private final long[] values = new long[MAX_VALUES];
+        private int count;
+        private long total;
+
+        Statistics(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long micros) {
+            values[(int) (total % MAX_VALUES)] = micros;
+            total++;
+            count = (int) Math.min(total, MAX_VALUES);
+        }
+
+        synchronized void clear() {
+            count = 0;
+            total = 0;
+        }
+
+        /**
+         * the number of measurements
+         */
+        public synchronized long getCount() {
+            return total;
+        }
+
+        /**
+         * the given percentile of the last measurements in microseconds,
+         * or -1 if there are none
+         */
+        public synchronized long getPercentile(double percent) {
+            if (count == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percent / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))];
+        }
+
+        public long getMin() {
+            return getPercentile(0);
+        }
+
+        public long getMedian() {
+            return getPercentile(50);
+        }
+
+        public long getP99() {
+            return getPercentile(99);
+        }
+
+        public long getMax() {
+            return getPercentile(100);
+        }
+
+        public String toString() {
+            if (count == 0) {
+                return name + ": no measurements";
+            }
+            return name + ": min " + getMin() / 1000.0 + "ms, median "
+                + getMedian() / 1000.0 + "ms, p99 " + getP99() / 1000.0
+                + "ms, max " + getMax() / 1000.0 + "ms";
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ *	LevelMeter.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Measures per-channel peak and RMS levels of audio data.
+ * <p>
+ * Supports signed and unsigned PCM of 8, 16, 24 and 32 bits in both byte
+ * orders, 32 and 64 bit float, and G.711 u-law and a-law. All levels are
+ * linear, 1.0 being full scale.
+ * <p>
+ * The peak falls back at PEAK_DECAY_DB_PER_SECOND. The peak hold value stays
+ * for HOLD_MILLIS before it falls back, too. The RMS value is averaged with
+ * a time constant of RMS_MILLIS.
+ * <p>
+ * process() is meant to be called by the audio thread: it looks at every
+ * sample once and does not allocate memory. The results are published with
+ * a sequence counter, so that other threads can read consistent values
+ * without blocking the audio thread. setFormat(), reset() and process() must
+ * be called by the same thread.
+ */
+public class LevelMeter {
+
+    public static final float PEAK_DECAY_DB_PER_SECOND = 20.0f;
+    public static final int HOLD_MILLIS = 1500;
+    public static final int RMS_MILLIS = 300;
+
+    // sample types
+    private static final int PCM_SIGNED = 0;
+    private static final int PCM_UNSIGNED = 1;
+    private static final int PCM_FLOAT = 2;
+    private static final int ULAW = 3;
+    private static final int ALAW = 4;
+
+    // G.711 decoding tables, normalized to full scale
+    private static final float[] ULAW_TABLE = new float[256];
+    private static final float[] ALAW_TABLE = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            ULAW_TABLE[i] = G711.ulaw2linear(i) / 32768.0f;
+            ALAW_TABLE[i] = G711.alaw2linear(i) / 32768.0f;
+        }
+    }
+
+    // the format
+    private AudioFormat format;
+    private int type = -1;
+    private int sampleBytes;
+    private boolean bigEndian;
+    private int channels;
+    private float frameRate;
+
+    // audio thread state, per channel
+    private float[] peak = new float[0];
+    private float[] hold = new float[0];
+    private float[] holdMillis = new float[0];
+    private double[] meanSquare = new double[0];
+    // per block
+    private float[] blockPeak = new float[0];
+    private double[] blockSum = new double[0];
+
+    // published values: peak, hold and rms for each channel, as float bits
+    private volatile AtomicIntegerArray published = new AtomicIntegerArray(0);
+    // odd while the audio thread updates the published values
+    private volatile int sequence;
+
+    public LevelMeter() {
+    }
+
+    public LevelMeter(AudioFormat format) {
+        setFormat(format);
+    }
+
+    public static boolean isSupported(AudioFormat format) {
+        return getType(format) >= 0;
+    }
+
+    private static int getType(AudioFormat format) {
+        AudioFormat.Encoding enc = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        if (enc.equals(AudioFormat.Encoding.PCM_SIGNED)) {
+            return (bits == 8 || bits == 16 || bits == 24 || bits == 32)
+                ? PCM_SIGNED : -1;
+        }
+        if (enc.equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+            return (bits == 8 || bits == 16 || bits == 24 || bits == 32)
+                ? PCM_UNSIGNED : -1;
+        }
+        if (enc.equals(AudioFormat.Encoding.PCM_FLOAT)) {
+            return (bits == 32 || bits == 64) ? PCM_FLOAT : -1;
+        }
+        if (enc.equals(AudioFormat.Encoding.ULAW)) {
+            return (bits == 8) ? ULAW : -1;
+        }
+        if (enc.equals(AudioFormat.Encoding.ALAW)) {
+            return (bits == 8) ? ALAW : -1;
+        }
+        return -1;
+    }
+
+    /**
+     * sets the format of the data passed to process(). Memory is only
+     * allocated if the number of channels changes. Unsupported formats are
+     * not measured.
+     */
+    public void setFormat(AudioFormat format) {
+        if (format == this.format) {
+            return;
+        }
+        this.format = format;
+        type = getType(format);
+        sampleBytes = (format.getSampleSizeInBits() + 7) / 8;
+        bigEndian = format.isBigEndian();
+        frameRate = format.getFrameRate();
+        int ch = Math.max(format.getChannels(), 1);
+        if (ch != channels) {
+            channels = ch;
+            peak = new float[ch];
+            hold = new float[ch];
+            holdMillis = new float[ch];
+            meanSquare = new double[ch];
+            blockPeak = new float[ch];
+            blockSum = new double[ch];
+            published = new AtomicIntegerArray(ch * 3);
+        }
+        reset();
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * true if the current format can be measured
+     */
+    public boolean isActive() {
+        return type >= 0;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * sets all levels to 0
+     */
+    public void reset() {
+        for (int c = 0; c < channels; c++) {
+            peak[c] = 0;
+            hold[c] = 0;
+            holdMillis[c] = 0;
+            meanSquare[c] = 0;
+        }
+        publish();
+    }
+
+    /**
+     * measures the given audio data. Only complete frames are considered.
+     */
+    public void process(byte[] b, int off, int len) {
+        if (type < 0 || len <= 0) {
+            return;
+        }
+        int ch = channels;
+        int frameSize = sampleBytes * ch;
+        int frames = len / frameSize;
+        if (frames == 0) {
+            return;
+        }
+        float[] bp = blockPeak;
+        double[] bs = blockSum;
+        for (int c = 0; c < ch; c++) {
+            bp[c] = 0;
+            bs[c] = 0;
+        }
+        int end = off + frames * frameSize;
+        int c = 0;
+        for (int pos = off; pos < end; pos += sampleBytes) {
+            float v = getSample(b, pos);
+            if (v < 0) {
+                v = -v;
+            }
+            if (v > bp[c]) {
+                bp[c] = v;
+            }
+            bs[c] += v * v;
+            if (++c == ch) {
+                c = 0;
+            }
+        }
+        applyBallistics(frames);
+        publish();
+    }
+
+    // returns the sample at pos, normalized to -1..1
+    private float getSample(byte[] b, int pos) {
+        switch (type) {
+        case ULAW:
+            return ULAW_TABLE[b[pos] & 0xFF];
+        case ALAW:
+            return ALAW_TABLE[b[pos] & 0xFF];
+        case PCM_FLOAT:
+            if (sampleBytes == 4) {
+                return Float.intBitsToFloat(getInt(b, pos, 4));
+            }
+            long bits = (getInt(b, pos + (bigEndian ? 0 : 4), 4) & 0xFFFFFFFFL) << 32
+                | (getInt(b, pos + (bigEndian ? 4 : 0), 4) & 0xFFFFFFFFL);
+            return (float) Double.longBitsToDouble(bits);
+        default:
+            int shift = 32 - 8 * sampleBytes;
+            // left-align in an int, so that the sign is correct
+            int i = getInt(b, pos, sampleBytes) << shift;
+            if (type == PCM_UNSIGNED) {
+                i ^= 0x80000000;
+            }
+            return i / 2147483648.0f;
+        }
+    }
+
+    private int getInt(byte[] b, int pos, int bytes) {
+        int res = 0;
+        if (bigEndian) {
+            for (int i = 0; i < bytes; i++) {
+                res = (res << 8) | (b[pos + i] & 0xFF);
+            }
+        } else {
+            for (int i = bytes - 1; i >= 0; i--) {
+                res = (res << 8) | (b[pos + i] & 0xFF);
+            }
+        }
+        return res;
+    }
+
+    private void applyBallistics(int frames) {
+        float millis = frames * 1000.0f / frameRate;
+        float decay = (float) Math.pow(10.0,
+                -PEAK_DECAY_DB_PER_SECOND * millis / 20000.0);
+        double rmsFactor = 1.0 - Math.exp(-millis / RMS_MILLIS);
+        for (int c = 0; c < channels; c++) {
+            float bp = blockPeak[c];
+            peak[c] = Math.max(bp, peak[c] * decay);
+            if (bp >= hold[c]) {
+                hold[c] = bp;
+                holdMillis[c] = 0;
+            } else if (holdMillis[c] < HOLD_MILLIS) {
+                holdMillis[c] += millis;
+            } else {
+                hold[c] = Math.max(bp, hold[c] * decay);
+            }
+            double ms = blockSum[c] / frames;
+            meanSquare[c] += (ms - meanSquare[c]) * rmsFactor;
+        }
+    }
+
+    private void publish() {
+        AtomicIntegerArray p = published;
+        sequence++;
+        for (int c = 0; c < channels; c++) {
+            p.set(c * 3, Float.floatToRawIntBits(peak[c]));
+            p.set(c * 3 + 1, Float.floatToRawIntBits(hold[c]));
+            p.set(c * 3 + 2, Float.floatToRawIntBits((float) Math.sqrt(meanSquare[c])));
+        }
+        sequence++;
+    }
+
+    // reads a consistent published value
+    private float read(int index) {
+        while (true) {
+            int seq = sequence;
+            AtomicIntegerArray p = published;
+            if ((seq & 1) == 0 && index < p.length()) {
+                int bits = p.get(index);
+                if (seq == sequence) {
+                    return Float.intBitsToFloat(bits);
+                }
+            } else if (index >= p.length()) {
+                return 0;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * reads the levels of all channels at once. Each array must have at
+     * least getChannels() elements, and may be null if not needed.
+     */
+    public void getLevels(float[] peaks, float[] holds, float[] rms) {
+        while (true) {
+            int seq = sequence;
+            AtomicIntegerArray p = published;
+            if ((seq & 1) == 0) {
+                int ch = p.length() / 3;
+                for (int c = 0; c < ch; c++) {
+                    if (peaks != null) {
+                        peaks[c] = Float.intBitsToFloat(p.get(c * 3));
+                    }
+                    if (holds != null) {
+                        holds[c] = Float.intBitsToFloat(p.get(c * 3 + 1));
+                    }
+                    if (rms != null) {
+                        rms[c] = Float.intBitsToFloat(p.get(c * 3 + 2));
+                    }
+                }
+                if (seq == sequence) {
+                    return;
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    public float getPeak(int channel) {
+        return read(channel * 3);
+    }
+
+    public float getPeakHold(int channel) {
+        return read(channel * 3 + 1);
+    }
+
+    public float getRMS(int channel) {
+        return read(channel * 3 + 2);
+    }
+
+    /**
+     * the highest peak of all channels
+     */
+    public float getMaxPeak() {
+        float res = 0;
+        for (int c = 0; c < channels; c++) {
+            res = Math.max(res, getPeak(c));
+        }
+        return res;
+    }
+
+    /**
+     * converts a linear level to decibels relative to full scale
+     */
+    public static float toDecibels(float level) {
+        if (level <= 0) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        return (float) (20.0 * Math.log10(level));
+    }
+}
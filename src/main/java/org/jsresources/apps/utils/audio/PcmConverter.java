@@ -0,0 +1,308 @@
+/*
+ *	PcmConverter.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Converts blocks of audio from one format to another as they come, e.g.
+ * packet by packet: PCM with 8 or 16 bits, signed or unsigned, either
+ * byte order, and G.711 u-law and A-law, with any sample rates. Mono can
+ * be converted to more channels, and more channels to mono.
+ * <p>
+ * Unlike the pull-based converters of AudioSystem, process() converts
+ * exactly the data given: there is no read-ahead, and the output is
+ * whatever the input allows. For different sample rates, a
+ * PolyphaseInterpolator computes the output; its cutoff is below the
+ * lower of the two Nyquist frequencies, so that downsampling does not
+ * alias. The interpolator keeps the input that later output frames need,
+ * so that consecutive blocks are converted without seams. The first
+ * output frame after construction or reset() is at the time of the first
+ * input frame.
+ * <p>
+ * All buffers are allocated in the constructor. Instances are not thread
+ * safe.
+ */
+public class PcmConverter {
+
+    private static final int PCM_SIGNED = 0;
+    private static final int PCM_UNSIGNED = 1;
+    private static final int ULAW = 2;
+    private static final int ALAW = 3;
+
+    // zero crossings of the kernel on each side, at the lower rate
+    private static final int HALF_TAPS = 12;
+    private static final int PHASES = 64;
+    // the kernel's cutoff relative to the lower Nyquist frequency
+    private static final double CUTOFF = 0.92;
+
+    private final AudioFormat source;
+    private final AudioFormat target;
+    private final int sourceType;
+    private final int sourceBytes;
+    private final boolean sourceBigEndian;
+    private final int sourceChannels;
+    private final int targetType;
+    private final int targetBytes;
+    private final boolean targetBigEndian;
+    private final int targetChannels;
+    private final int maxInputFrames;
+
+    // null if the sample rates are the same
+    private final PolyphaseInterpolator interpolator;
+    private final double step;
+    private final float[] frame;
+
+    // decoded input in the target's channels, interleaved: the
+    // interpolator's input if the sample rates differ
+    private final float[] input;
+
+    /**
+     * @param maxInputBytes the maximum length passed to process()
+     */
+    public PcmConverter(AudioFormat source, AudioFormat target, int maxInputBytes) {
+        if (!isSupported(source) || !isSupported(target)) {
+            throw new IllegalArgumentException("unsupported conversion: " + source + " to " + target);
+        }
+        if (source.getChannels() != target.getChannels()
+                && source.getChannels() != 1 && target.getChannels() != 1) {
+            throw new IllegalArgumentException("unsupported channel conversion: "
+                    + source + " to " + target);
+        }
+        this.source = source;
+        this.target = target;
+        sourceType = getType(source);
+        sourceBytes = source.getSampleSizeInBits() / 8;
+        sourceBigEndian = source.isBigEndian();
+        sourceChannels = source.getChannels();
+        targetType = getType(target);
+        targetBytes = target.getSampleSizeInBits() / 8;
+        targetBigEndian = target.isBigEndian();
+        targetChannels = target.getChannels();
+        maxInputFrames = maxInputBytes / source.getFrameSize();
+        if (source.getSampleRate() == target.getSampleRate()) {
+            interpolator = null;
+            step = 1;
+            frame = null;
+            input = new float[maxInputFrames * targetChannels];
+        } else {
+            step = source.getSampleRate() / (double) target.getSampleRate();
+            // relative to the input's Nyquist frequency
+            double cutoff = CUTOFF * Math.min(1.0, 1.0 / step);
+            int halfWidth = (int) Math.ceil(HALF_TAPS / cutoff);
+            float[] kernel = PolyphaseInterpolator.createKernel(cutoff,
+                    halfWidth, PHASES);
+            interpolator = new PolyphaseInterpolator(kernel, halfWidth, PHASES,
+                    targetChannels, maxInputFrames);
+            frame = new float[targetChannels];
+            input = interpolator.getInput();
+        }
+    }
+
+    /**
+     * true if the format can be converted from and to
+     */
+    public static boolean isSupported(AudioFormat format) {
+        int type = getType(format);
+        if (type < 0 || format.getChannels() < 1) {
+            return false;
+        }
+        int bits = format.getSampleSizeInBits();
+        return (bits == 8 || (bits == 16 && type <= PCM_UNSIGNED))
+                && format.getFrameSize() == bits / 8 * format.getChannels();
+    }
+
+    /**
+     * true if the conversion between the formats is supported
+     */
+    public static boolean isConversionSupported(AudioFormat source, AudioFormat target) {
+        return isSupported(source) && isSupported(target)
+                && (source.getChannels() == target.getChannels()
+                    || source.getChannels() == 1 || target.getChannels() == 1);
+    }
+
+    private static int getType(AudioFormat format) {
+        AudioFormat.Encoding enc = format.getEncoding();
+        if (enc.equals(AudioFormat.Encoding.PCM_SIGNED)) {
+            return PCM_SIGNED;
+        } else if (enc.equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+            return PCM_UNSIGNED;
+        } else if (enc.equals(AudioFormat.Encoding.ULAW)) {
+            return ULAW;
+        } else if (enc.equals(AudioFormat.Encoding.ALAW)) {
+            return ALAW;
+        }
+        return -1;
+    }
+
+    public AudioFormat getSourceFormat() {
+        return source;
+    }
+
+    public AudioFormat getTargetFormat() {
+        return target;
+    }
+
+    /**
+     * the size of the output buffer needed for process()
+     */
+    public int getMaxOutputBytes() {
+        int frames = (int) Math.ceil((input.length / targetChannels) / step) + 2;
+        return frames * target.getFrameSize();
+    }
+
+    /**
+     * discard all buffered data
+     */
+    public void reset() {
+        if (interpolator != null) {
+            interpolator.reset();
+        }
+    }
+
+    /**
+     * Convert <code>len</code> bytes of input (at most the maxInputBytes
+     * given in the constructor) and write the result to <code>out</code>,
+     * which needs to have room for getMaxOutputBytes().
+     *
+     * @return the number of bytes written to <code>out</code>
+     */
+    public int process(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        int frames = Math.min(len / source.getFrameSize(), maxInputFrames);
+        int outStart = outOff;
+        if (interpolator == null) {
+            decode(in, inOff, frames, 0);
+            int samples = frames * targetChannels;
+            for (int i = 0; i < samples; i++) {
+                outOff = encode(input[i], out, outOff);
+            }
+            return outOff - outStart;
+        }
+        decode(in, inOff, frames, interpolator.getInputFrames());
+        interpolator.addInputFrames(frames);
+        while (interpolator.hasNext()) {
+            interpolator.next(frame, step);
+            for (int c = 0; c < targetChannels; c++) {
+                outOff = encode(frame[c], out, outOff);
+            }
+        }
+        interpolator.compact();
+        return outOff - outStart;
+    }
+
+    // decode frames into input, starting at frame index, in the target's
+    // channels, scaled to 16 bit
+    private void decode(byte[] b, int off, int frames, int index) {
+        int idx = index * targetChannels;
+        for (int f = 0; f < frames; f++) {
+            if (sourceChannels == targetChannels) {
+                for (int c = 0; c < sourceChannels; c++) {
+                    input[idx++] = decodeSample(b, off);
+                    off += sourceBytes;
+                }
+            } else if (sourceChannels == 1) {
+                float s = decodeSample(b, off);
+                off += sourceBytes;
+                for (int c = 0; c < targetChannels; c++) {
+                    input[idx++] = s;
+                }
+            } else {
+                // mix down to mono
+                float s = 0;
+                for (int c = 0; c < sourceChannels; c++) {
+                    s += decodeSample(b, off);
+                    off += sourceBytes;
+                }
+                input[idx++] = s / sourceChannels;
+            }
+        }
+    }
+
+    private float decodeSample(byte[] b, int off) {
+        switch (sourceType) {
+        case ULAW:
+            return G711.ulaw2linear(b[off] & 0xFF);
+        case ALAW:
+            return G711.alaw2linear(b[off] & 0xFF);
+        case PCM_UNSIGNED:
+            if (sourceBytes == 1) {
+                return ((b[off] & 0xFF) - 128) << 8;
+            }
+            return (sourceBigEndian
+                    ? (((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF))
+                    : (((b[off + 1] & 0xFF) << 8) | (b[off] & 0xFF))) - 32768;
+        default:
+            if (sourceBytes == 1) {
+                return b[off] << 8;
+            }
+            return sourceBigEndian
+                    ? ((b[off] << 8) | (b[off + 1] & 0xFF))
+                    : ((b[off + 1] << 8) | (b[off] & 0xFF));
+        }
+    }
+
+    private int encode(float sample, byte[] out, int outOff) {
+        int s = Math.round(sample);
+        if (s > 32767) {
+            s = 32767;
+        } else if (s < -32768) {
+            s = -32768;
+        }
+        switch (targetType) {
+        case ULAW:
+            out[outOff] = (byte) G711.linear2ulaw(s);
+            return outOff + 1;
+        case ALAW:
+            out[outOff] = (byte) G711.linear2alaw(s);
+            return outOff + 1;
+        case PCM_UNSIGNED:
+            s += 32768;
+            break;
+        }
+        if (targetBytes == 1) {
+            out[outOff] = (byte) (s >> 8);
+            return outOff + 1;
+        }
+        if (targetBigEndian) {
+            out[outOff] = (byte) (s >> 8);
+            out[outOff + 1] = (byte) s;
+        } else {
+            out[outOff] = (byte) s;
+            out[outOff + 1] = (byte) (s >> 8);
+        }
+        return outOff + 2;
+    }
+}
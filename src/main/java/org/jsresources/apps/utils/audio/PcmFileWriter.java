@@ -0,0 +1,272 @@
+/*
+ *	PcmFileWriter.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Writes PCM audio to a WAVE or AU file piece by piece, as it is written to
+ * this channel. Unlike AudioSystem.write(), it does not need a thread that
+ * blocks on an AudioInputStream until the end: whoever has new data writes
+ * it, e.g. with CircularBuffer.transferTo(). The header is written with
+ * the lengths unknown, and completed by close().
+ * <p>
+ * Signed and unsigned PCM of 8, 16, 24 and 32 bits in both byte orders is
+ * supported. Samples are converted to the byte order and signedness of the
+ * file type: little endian, and unsigned for 8 bits, in WAVE files, signed
+ * big endian in AU files. Only whole samples are written; the rest of a
+ * buffer is left for the next write.
+ */
+public class PcmFileWriter implements GatheringByteChannel {
+
+    private static final int WAVE_HEADER_SIZE = 44;
+    private static final int AU_HEADER_SIZE = 24;
+    private static final int CONVERT_SIZE = 16384;
+
+    private final File file;
+    private final AudioFileFormat.Type type;
+    private final AudioFormat format;
+    private final FileChannel channel;
+    private final int sampleBytes;
+    private final boolean swap;
+    private final boolean flipSign;
+    private final ByteBuffer converted;
+    private volatile long bytesWritten;
+
+    /**
+     * whether the audio of that format can be written to files of that type
+     */
+    public static boolean isSupported(AudioFileFormat.Type type, AudioFormat format) {
+        AudioFormat.Encoding enc = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        return (type.equals(AudioFileFormat.Type.WAVE) || type.equals(AudioFileFormat.Type.AU))
+                && (enc.equals(AudioFormat.Encoding.PCM_SIGNED)
+                        || enc.equals(AudioFormat.Encoding.PCM_UNSIGNED))
+                && (bits == 8 || bits == 16 || bits == 24 || bits == 32)
+                && format.getChannels() > 0
+                && format.getFrameSize() == format.getChannels() * bits / 8;
+    }
+
+    /**
+     * creates the file, or truncates it, and writes the header
+     */
+    public PcmFileWriter(File file, AudioFileFormat.Type type, AudioFormat format) throws IOException {
+        if (!isSupported(type, format)) {
+            throw new IOException("cannot write " + format + " to " + type + " files");
+        }
+        this.file = file;
+        this.type = type;
+        this.format = format;
+        sampleBytes = format.getSampleSizeInBits() / 8;
+        boolean wave = type.equals(AudioFileFormat.Type.WAVE);
+        boolean signed = format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED);
+        swap = sampleBytes > 1 && format.isBigEndian() == wave;
+        flipSign = signed == (wave && sampleBytes == 1);
+        converted = (swap || flipSign) ? ByteBuffer.allocate(CONVERT_SIZE) : null;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            raf.setLength(0);
+            ByteBuffer header = wave ? getWaveHeader() : getAuHeader();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+    }
+
+    // the lengths are filled in by close()
+    private ByteBuffer getWaveHeader() {
+        int channels = format.getChannels();
+        int rate = Math.round(format.getSampleRate());
+        ByteBuffer b = ByteBuffer.allocate(WAVE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(ascii("RIFF")).putInt(0).put(ascii("WAVE"));
+        b.put(ascii("fmt ")).putInt(16);
+        b.putShort((short) 1); // PCM
+        b.putShort((short) channels);
+        b.putInt(rate);
+        b.putInt(rate * format.getFrameSize());
+        b.putShort((short) format.getFrameSize());
+        b.putShort((short) format.getSampleSizeInBits());
+        b.put(ascii("data")).putInt(0);
+        b.flip();
+        return b;
+    }
+
+    private ByteBuffer getAuHeader() {
+        ByteBuffer b = ByteBuffer.allocate(AU_HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        b.put(ascii(".snd")).putInt(AU_HEADER_SIZE);
+        // unknown length
+        b.putInt(-1);
+        // linear PCM: 2 for 8 bits, up to 5 for 32 bits
+        b.putInt(sampleBytes + 1);
+        b.putInt(Math.round(format.getSampleRate()));
+        b.putInt(format.getChannels());
+        b.flip();
+        return b;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src}, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        if (converted == null) {
+            // whole samples only, if a buffer does not end on one
+            for (int i = offset; i < offset + length; i++) {
+                int rest = srcs[i].remaining() % sampleBytes;
+                if (rest != 0) {
+                    int limit = srcs[i].limit();
+                    srcs[i].limit(limit - rest);
+                    total += channel.write(srcs, offset, i + 1 - offset);
+                    srcs[i].limit(limit);
+                    bytesWritten += total;
+                    return total;
+                }
+            }
+            total = channel.write(srcs, offset, length);
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                total += writeConverted(srcs[i]);
+                if (srcs[i].hasRemaining()) {
+                    // a partial sample
+                    break;
+                }
+            }
+        }
+        bytesWritten += total;
+        return total;
+    }
+
+    // converts the whole samples of src, and writes them
+    private int writeConverted(ByteBuffer src) throws IOException {
+        int total = 0;
+        byte[] c = converted.array();
+        while (src.remaining() >= sampleBytes) {
+            int len = Math.min(src.remaining(), c.length);
+            len -= len % sampleBytes;
+            src.get(c, 0, len);
+            for (int i = 0; i < len; i += sampleBytes) {
+                if (swap) {
+                    for (int j = 0; j < sampleBytes / 2; j++) {
+                        byte t = c[i + j];
+                        c[i + j] = c[i + sampleBytes - 1 - j];
+                        c[i + sampleBytes - 1 - j] = t;
+                    }
+                }
+                if (flipSign) {
+                    // the most significant byte, in the file's byte order
+                    int msb = type.equals(AudioFileFormat.Type.WAVE) ? i + sampleBytes - 1 : i;
+                    c[msb] ^= (byte) 0x80;
+                }
+            }
+            converted.clear().limit(len);
+            while (converted.hasRemaining()) {
+                channel.write(converted);
+            }
+            total += len;
+        }
+        return total;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * completes the header with the lengths, and closes the file
+     */
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            long data = bytesWritten;
+            if (type.equals(AudioFileFormat.Type.WAVE)) {
+                ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                b.putInt(0, (int) Math.min(0xFFFFFFFFL, data + WAVE_HEADER_SIZE - 8));
+                channel.write(b, 4);
+                b.clear();
+                b.putInt(0, (int) Math.min(0xFFFFFFFFL, data));
+                channel.write(b, WAVE_HEADER_SIZE - 4);
+            } else if (data < 0xFFFFFFFFL) {
+                ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN);
+                b.putInt(0, (int) data);
+                channel.write(b, 8);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * the audio data written so far, in bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *	PolyphaseInterpolator.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+/**
+ * Interpolates interleaved audio at fractional positions with a Blackman
+ * windowed sinc, for resampling by AdaptiveResampler and PcmConverter.
+ * The kernel is tabulated in a number of phases; between two phases, the
+ * coefficients are interpolated linearly.
+ * <p>
+ * The caller appends input frames to getInput(), takes output frames with
+ * next() as long as hasNext(), and then calls compact() to drop the input
+ * that no later output frame needs. So consecutive blocks are resampled
+ * without seams. After construction or reset(), the first output frame is
+ * at the time of the first input frame.
+ * <p>
+ * All buffers are allocated in the constructor. Instances are not thread
+ * safe.
+ */
+class PolyphaseInterpolator {
+
+    private final float[] kernel;
+    private final int halfWidth;
+    private final int taps;
+    private final int phases;
+    private final int channels;
+    private final float[] coefs;
+
+    // the input history, interleaved
+    private final float[] input;
+    private int inputFrames;
+    // the position of the next output frame in input
+    private double position;
+
+    /**
+     * @param kernel the table of createKernel() for halfWidth and phases
+     * @param maxInputFrames the maximum number of frames appended between
+     *            two calls of compact()
+     */
+    PolyphaseInterpolator(float[] kernel, int halfWidth, int phases,
+            int channels, int maxInputFrames) {
+        if (kernel.length != (phases + 1) * 2 * halfWidth) {
+            throw new IllegalArgumentException("kernel does not match "
+                    + halfWidth + " zero crossings and " + phases + " phases");
+        }
+        this.kernel = kernel;
+        this.halfWidth = halfWidth;
+        this.taps = 2 * halfWidth;
+        this.phases = phases;
+        this.channels = channels;
+        coefs = new float[taps];
+        input = new float[(maxInputFrames + taps + 2) * channels];
+        reset();
+    }
+
+    /**
+     * Tabulates a Blackman windowed sinc of 2 * halfWidth taps in
+     * phases + 1 phases: phase p is for a fractional position of
+     * p / phases. Every phase has unity gain at DC.
+     *
+     * @param cutoff the cutoff relative to the input's Nyquist frequency:
+     *            1 passes everything, lower values avoid aliasing when
+     *            downsampling
+     */
+    static float[] createKernel(double cutoff, int halfWidth, int phases) {
+        int taps = 2 * halfWidth;
+        float[] kernel = new float[(phases + 1) * taps];
+        for (int p = 0; p <= phases; p++) {
+            double frac = (double) p / phases;
+            double sum = 0;
+            for (int i = 0; i < taps; i++) {
+                // distance of input frame i from the output position
+                double x = frac + halfWidth - 1 - i;
+                double v;
+                if (Math.abs(x) < 1e-9) {
+                    v = 1;
+                } else {
+                    v = Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+                }
+                double w = Math.PI * x / halfWidth;
+                v *= 0.42 + 0.5 * Math.cos(w) + 0.08 * Math.cos(2 * w);
+                kernel[p * taps + i] = (float) v;
+                sum += v;
+            }
+            for (int i = 0; i < taps; i++) {
+                kernel[p * taps + i] /= sum;
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * discard all buffered data
+     */
+    void reset() {
+        // start with silence before the first frame, so that the first
+        // output frame is at the first input frame
+        inputFrames = halfWidth - 1;
+        for (int i = 0; i < inputFrames * channels; i++) {
+            input[i] = 0;
+        }
+        position = halfWidth - 1;
+    }
+
+    /**
+     * the input buffer: append interleaved frames at getInputFrames(), then
+     * call addInputFrames()
+     */
+    float[] getInput() {
+        return input;
+    }
+
+    int getInputFrames() {
+        return inputFrames;
+    }
+
+    /**
+     * the number of frames that can be appended to the input
+     */
+    int getFreeFrames() {
+        return input.length / channels - inputFrames;
+    }
+
+    /**
+     * the number of frames the input can hold
+     */
+    int getCapacityFrames() {
+        return input.length / channels;
+    }
+
+    void addInputFrames(int frames) {
+        inputFrames += frames;
+    }
+
+    /**
+     * true if the input suffices for the next output frame
+     */
+    boolean hasNext() {
+        return (int) position + halfWidth < inputFrames;
+    }
+
+    /**
+     * Interpolates the next output frame into <code>frame</code>, and
+     * moves on by <code>step</code> input frames.
+     */
+    void next(float[] frame, double step) {
+        int n = (int) position;
+        double phase = (position - n) * phases;
+        int p = (int) phase;
+        float f = (float) (phase - p);
+        int k0 = p * taps;
+        int k1 = k0 + taps;
+        for (int i = 0; i < taps; i++) {
+            coefs[i] = kernel[k0 + i] + (kernel[k1 + i] - kernel[k0 + i]) * f;
+        }
+        int base = (n - halfWidth + 1) * channels;
+        for (int c = 0; c < channels; c++) {
+            float sample = 0;
+            int idx = base + c;
+            for (int i = 0; i < taps; i++) {
+                sample += coefs[i] * input[idx];
+                idx += channels;
+            }
+            frame[c] = sample;
+        }
+        position += step;
+    }
+
+    /**
+     * keep only the input needed for the next output frame
+     */
+    void compact() {
+        int consumed = Math.min((int) position - halfWidth + 1, inputFrames);
+        if (consumed > 0) {
+            System.arraycopy(input, consumed * channels, input, 0,
+                    (inputFrames - consumed) * channels);
+            inputFrames -= consumed;
+            position -= consumed;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ *	ProcessorChain.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import javax.sound.sampled.AudioFormat;
+import static org.jsresources.utils.audio.AudioDebug.*;
+
+/**
+ * A chain of AudioProcessors that are applied to the audio data on its way
+ * through AudioCapture or AudioPlayback.
+ * <p>
+ * The data is converted to a float block that is allocated when the line is
+ * opened, passed through all processors, and converted
+ * back. Larger buffers are processed in pieces of the block's size. Signed
+ * PCM of 8 to 32 bits, unsigned 8 and 16 bit PCM and 32 bit float are
+ * supported; other formats are passed unchanged.
+ * <p>
+ * Processors can be added and removed by any thread. The audio thread
+ * picks up the new chain with the next block, without locking. The time
+ * needed for each block is measured. If processing takes longer than the
+ * budget, the remaining optional processors, e.g. meters, are skipped for
+ * that block, so that the audio thread does not fall behind. The others,
+ * e.g. a limiter, always run.
+ */
+public class ProcessorChain {
+
+    // sample types
+    private static final int NONE = -1;
+    private static final int PCM_SIGNED = 0;
+    private static final int PCM_UNSIGNED = 1;
+    private static final int PCM_FLOAT = 2;
+
+    // the block size before ensureCapacity() is called
+    private static final int MIN_BLOCK_SAMPLES = 4096;
+
+    private volatile Insert[] inserts = new Insert[0];
+
+    private AudioFormat format;
+    private volatile int type = NONE;
+    private int sampleBytes;
+    private boolean bigEndian;
+    private int channels = 1;
+
+    // replaced only by setFormat() and ensureCapacity(): the audio thread
+    // keeps using the block it started with
+    private volatile float[] block = new float[0];
+    private int capacityBytes;
+
+    private volatile long budgetNanos = 100000000L;
+
+    // statistics
+    private volatile long lastNanos;
+    private volatile long maxNanos;
+    private volatile long blocks;
+    private volatile long overBudget;
+
+    /**
+     * sets the format of the audio data. Must not be called while the audio
+     * thread processes data.
+     */
+    public synchronized void setFormat(AudioFormat format) {
+        this.format = format;
+        int t = NONE;
+        int bits = format.getSampleSizeInBits();
+        AudioFormat.Encoding enc = format.getEncoding();
+        if (enc.equals(AudioFormat.Encoding.PCM_SIGNED)
+            && (bits == 8 || bits == 16 || bits == 24 || bits == 32)) {
+            t = PCM_SIGNED;
+        } else if (enc.equals(AudioFormat.Encoding.PCM_UNSIGNED)
+                   && (bits == 8 || bits == 16)) {
+            t = PCM_UNSIGNED;
+        } else if (enc.equals(AudioFormat.Encoding.PCM_FLOAT) && bits == 32) {
+            t = PCM_FLOAT;
+        }
+        sampleBytes = (bits + 7) / 8;
+        bigEndian = format.isBigEndian();
+        channels = Math.max(format.getChannels(), 1);
+        allocateBlock();
+        Insert[] p = inserts;
+        for (int i = 0; i < p.length; i++) {
+            p[i].processor.init(format.getSampleRate(), channels);
+        }
+        type = t;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * allocates the float block for buffers of up to <code>bytes</code>
+     * bytes, typically the line's buffer size. Larger buffers are processed
+     * in pieces.
+     */
+    public synchronized void ensureCapacity(int bytes) {
+        if (bytes > capacityBytes) {
+            capacityBytes = bytes;
+            allocateBlock();
+        }
+    }
+
+    private void allocateBlock() {
+        int samples = Math.max(capacityBytes / Math.max(sampleBytes, 1), MIN_BLOCK_SAMPLES);
+        samples -= samples % channels;
+        if (block.length != samples) {
+            block = new float[samples];
+        }
+    }
+
+    /**
+     * appends a processor to the end of the chain, which always runs
+     */
+    public void add(AudioProcessor processor) {
+        add(processor, false);
+    }
+
+    /**
+     * appends a processor to the end of the chain
+     *
+     * @param optional true if the processor may be skipped when the budget
+     *            is exceeded, e.g. for meters
+     */
+    public synchronized void add(AudioProcessor processor, boolean optional) {
+        if (format != null) {
+            processor.init(format.getSampleRate(), channels);
+        }
+        Insert[] p = new Insert[inserts.length + 1];
+        System.arraycopy(inserts, 0, p, 0, inserts.length);
+        p[inserts.length] = new Insert(processor, optional);
+        inserts = p;
+    }
+
+    public synchronized void remove(AudioProcessor processor) {
+        Insert[] old = inserts;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i].processor == processor) {
+                Insert[] p = new Insert[old.length - 1];
+                System.arraycopy(old, 0, p, 0, i);
+                System.arraycopy(old, i + 1, p, i, p.length - i);
+                inserts = p;
+                return;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        inserts = new Insert[0];
+    }
+
+    public AudioProcessor[] getProcessors() {
+        Insert[] p = inserts;
+        AudioProcessor[] res = new AudioProcessor[p.length];
+        for (int i = 0; i < p.length; i++) {
+            res[i] = p[i].processor;
+        }
+        return res;
+    }
+
+    public boolean isEmpty() {
+        return inserts.length == 0;
+    }
+
+    /**
+     * sets the maximum time for processing one block
+     */
+    public void setBudgetMillis(int millis) {
+        budgetNanos = millis * 1000000L;
+    }
+
+    public int getBudgetMillis() {
+        return (int) (budgetNanos / 1000000L);
+    }
+
+    /**
+     * the time it took to process the last block, in microseconds
+     */
+    public long getLastProcessingMicros() {
+        return lastNanos / 1000;
+    }
+
+    /**
+     * the longest time it took to process a block, in microseconds
+     */
+    public long getMaxProcessingMicros() {
+        return maxNanos / 1000;
+    }
+
+    public long getProcessedBlocks() {
+        return blocks;
+    }
+
+    /**
+     * the number of blocks for which optional processors were skipped
+     * because the budget was exceeded
+     */
+    public long getOverBudgetCount() {
+        return overBudget;
+    }
+
+    public void resetStatistics() {
+        lastNanos = 0;
+        maxNanos = 0;
+        blocks = 0;
+        overBudget = 0;
+    }
+
+    /**
+     * runs all processors on the audio data, in place. Only complete frames
+     * are processed. Must only be called by the audio thread.
+     */
+    public void process(byte[] b, int off, int len) {
+        Insert[] p = inserts;
+        int t = type;
+        if (p.length == 0 || t == NONE) {
+            return;
+        }
+        long start = System.nanoTime();
+        float[] f = block;
+        int frameBytes = sampleBytes * channels;
+        int maxFrames = f.length / channels;
+        int frames = len / frameBytes;
+        long budget = budgetNanos;
+        boolean over = false;
+        while (frames > 0) {
+            int n = Math.min(frames, maxFrames);
+            int samples = n * channels;
+            toFloat(b, off, f, samples, t);
+            for (int i = 0; i < p.length; i++) {
+                if (p[i].optional && System.nanoTime() - start > budget) {
+                    if (!over) {
+                        over = true;
+                        overBudget++;
+                        if (VERBOSE) {
+                            debugOut("ProcessorChain: over budget, skipping optional processors");
+                        }
+                    }
+                    continue;
+                }
+                p[i].processor.process(f, n);
+            }
+            fromFloat(f, b, off, samples, t);
+            off += n * frameBytes;
+            frames -= n;
+        }
+        long time = System.nanoTime() - start;
+        lastNanos = time;
+        if (time > maxNanos) {
+            maxNanos = time;
+        }
+        blocks++;
+    }
+
+    private void toFloat(byte[] b, int off, float[] f, int samples, int type) {
+        int bytes = sampleBytes;
+        int shift = 32 - 8 * bytes;
+        for (int i = 0; i < samples; i++, off += bytes) {
+            int v = 0;
+            if (bigEndian) {
+                for (int j = 0; j < bytes; j++) {
+                    v = (v << 8) | (b[off + j] & 0xFF);
+                }
+            } else {
+                for (int j = bytes - 1; j >= 0; j--) {
+                    v = (v << 8) | (b[off + j] & 0xFF);
+                }
+            }
+            if (type == PCM_FLOAT) {
+                f[i] = Float.intBitsToFloat(v);
+            } else {
+                // left-align in an int, so that the sign is correct
+                v <<= shift;
+                if (type == PCM_UNSIGNED) {
+                    v ^= 0x80000000;
+                }
+                f[i] = v / 2147483648.0f;
+            }
+        }
+    }
+
+    private void fromFloat(float[] f, byte[] b, int off, int samples, int type) {
+        int bytes = sampleBytes;
+        int shift = 32 - 8 * bytes;
+        for (int i = 0; i < samples; i++, off += bytes) {
+            int v;
+            if (type == PCM_FLOAT) {
+                v = Float.floatToRawIntBits(f[i]);
+            } else {
+                // clip
+                double d = f[i] * 2147483648.0;
+                if (d > Integer.MAX_VALUE) {
+                    v = Integer.MAX_VALUE;
+                } else if (d < Integer.MIN_VALUE) {
+                    v = Integer.MIN_VALUE;
+                } else {
+                    v = (int) d;
+                }
+                if (type == PCM_UNSIGNED) {
+                    v ^= 0x80000000;
+                }
+                v >>= shift;
+            }
+            if (bigEndian) {
+                for (int j = bytes - 1; j >= 0; j--) {
+                    b[off + j] = (byte) v;
+                    v >>= 8;
+                }
+            } else {
+                for (int j = 0; j < bytes; j++) {
+                    b[off + j] = (byte) v;
+                    v >>= 8;
+                }
+            }
+        }
+    }
+
+    // a processor in the chain
+    private static class Insert {
+
+        final AudioProcessor processor;
+        final boolean optional;
+
+        Insert(AudioProcessor processor, boolean optional) {
+            this.processor = processor;
+            this.optional = optional;
+        }
+    }
+}
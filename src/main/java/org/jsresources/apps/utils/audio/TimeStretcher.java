@@ -0,0 +1,307 @@
+/*
+ *	TimeStretcher.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Changes the tempo of 16-bit PCM audio without changing its pitch, using
+ * WSOLA (waveform similarity overlap-add).
+ * <p>
+ * The input is cut into sequences of SEQUENCE_MILLIS. Each sequence is
+ * cross-faded with the continuation of the previous one over
+ * OVERLAP_MILLIS, at the offset within SEEK_MILLIS where the two are most
+ * similar. For a speed greater than 1, the start of consecutive sequences
+ * advances faster in the input than in the output.
+ * <p>
+ * With a speed of 1, the remaining data is flushed and the audio is then
+ * passed through unchanged, so that changing the speed does not cause
+ * audible cuts. All buffers are allocated in the constructor. Instances are
+ * not thread safe, except for setSpeed().
+ */
+public class TimeStretcher {
+
+    private static final int SEQUENCE_MILLIS = 40;
+    private static final int SEEK_MILLIS = 15;
+    private static final int OVERLAP_MILLIS = 8;
+
+    private int channels;
+    private boolean bigEndian;
+    private int frameSize;
+
+    // all lengths are in frames
+    private int sequence;
+    private int seek;
+    private int overlap;
+
+    private volatile float speed = 1.0f;
+
+    // buffered input, interleaved
+    private float[] input;
+    private int inputFrames;
+
+    // the continuation of the previous sequence, to be cross-faded
+    private float[] mid;
+    private boolean hasMid;
+    // position in input after the data of mid, never negative
+    private int contPos;
+    private double skipFraction;
+
+    public TimeStretcher(AudioFormat format, int maxInputBytes) {
+        if (!isSupported(format)) {
+            throw new IllegalArgumentException("unsupported format: " + format);
+        }
+        channels = format.getChannels();
+        bigEndian = format.isBigEndian();
+        frameSize = format.getFrameSize();
+        float rate = format.getFrameRate();
+        sequence = (int) (rate * SEQUENCE_MILLIS / 1000);
+        seek = (int) (rate * SEEK_MILLIS / 1000);
+        overlap = (int) (rate * OVERLAP_MILLIS / 1000);
+        if (overlap < 1) {
+            overlap = 1;
+        }
+        if (sequence < 3 * overlap) {
+            sequence = 3 * overlap;
+        }
+        // room for one input block plus the data needed for a sequence at
+        // speeds up to 2
+        int capacity = maxInputBytes / frameSize + 2 * sequence + seek;
+        input = new float[capacity * channels];
+        mid = new float[overlap * channels];
+    }
+
+    public static boolean isSupported(AudioFormat format) {
+        return format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+                && format.getSampleSizeInBits() == 16
+                && format.getChannels() > 0;
+    }
+
+    /**
+     * set the speed: 1 is normal speed, 1.05 plays 5% faster. Only speeds
+     * from 1 to 2 are supported. Can be called from any thread.
+     */
+    public void setSpeed(float speed) {
+        if (speed < 1.0f) {
+            speed = 1.0f;
+        } else if (speed > 2.0f) {
+            speed = 2.0f;
+        }
+        this.speed = speed;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * returns true if the stretcher changes the tempo or still holds data
+     * from a tempo change. If false, process() is not necessary.
+     */
+    public boolean isActive() {
+        return speed != 1.0f || hasMid || inputFrames > 0;
+    }
+
+    /**
+     * the size of the output buffer needed for process()
+     */
+    public int getMaxOutputBytes() {
+        return (input.length / channels + overlap) * frameSize;
+    }
+
+    /**
+     * discard all buffered data
+     */
+    public void reset() {
+        inputFrames = 0;
+        hasMid = false;
+        skipFraction = 0;
+    }
+
+    /**
+     * Process <code>len</code> bytes of input (at most the maxInputBytes
+     * given in the constructor) and write the result to <code>out</code>,
+     * which needs to have room for getMaxOutputBytes().
+     *
+     * @return the number of bytes written to <code>out</code>
+     */
+    public int process(byte[] in, int inOff, int len, byte[] out, int outOff) {
+        appendInput(in, inOff, len / frameSize);
+        int outStart = outOff;
+        float currSpeed = speed;
+        if (currSpeed == 1.0f) {
+            // flush and pass through
+            int from = 0;
+            if (hasMid) {
+                outOff = writeOutput(mid, 0, overlap, out, outOff);
+                // contPos is already clamped to the buffered input
+                from = Math.min(contPos, inputFrames);
+                hasMid = false;
+            }
+            outOff = writeOutput(input, from, inputFrames - from, out, outOff);
+            inputFrames = 0;
+            return outOff - outStart;
+        }
+        if (!hasMid) {
+            if (inputFrames < overlap) {
+                return 0;
+            }
+            // start with the natural continuation of what was played
+            System.arraycopy(input, 0, mid, 0, overlap * channels);
+            hasMid = true;
+            contPos = overlap;
+            skipFraction = 0;
+        }
+        double nominalSkip = currSpeed * (sequence - overlap);
+        int required = Math.max((int) nominalSkip + 1 + overlap, sequence) + seek;
+        while (inputFrames >= required) {
+            int offset = findBestOffset();
+            // cross-fade the continuation of the previous sequence
+            int base = offset * channels;
+            for (int i = 0; i < overlap; i++) {
+                float fadeIn = (float) i / overlap;
+                for (int c = 0; c < channels; c++) {
+                    int idx = i * channels + c;
+                    float sample = mid[idx] + (input[base + idx] - mid[idx]) * fadeIn;
+                    outOff = writeSample(sample, out, outOff);
+                }
+            }
+            // the middle part unchanged
+            outOff = writeOutput(input, offset + overlap, sequence - 2 * overlap, out, outOff);
+            // keep the end for the next cross-fade
+            System.arraycopy(input, (offset + sequence - overlap) * channels,
+                    mid, 0, overlap * channels);
+            contPos = offset + sequence;
+            // advance in the input
+            double skip = nominalSkip + skipFraction;
+            int intSkip = (int) skip;
+            skipFraction = skip - intSkip;
+            consumeInput(intSkip);
+            // when skipping faster than a sequence, the natural continuation
+            // of mid was consumed: continue at the oldest data still buffered
+            contPos = Math.max(0, contPos - intSkip);
+        }
+        return outOff - outStart;
+    }
+
+    // find the offset in [0, seek) where the input is most similar to mid
+    private int findBestOffset() {
+        int len = overlap * channels;
+        double norm = 0;
+        for (int i = 0; i < len; i++) {
+            norm += input[i] * input[i];
+        }
+        int bestOffset = 0;
+        double bestCorr = Double.NEGATIVE_INFINITY;
+        for (int offset = 0; offset < seek; offset++) {
+            int base = offset * channels;
+            double corr = 0;
+            for (int i = 0; i < len; i++) {
+                corr += mid[i] * input[base + i];
+            }
+            corr /= Math.sqrt(norm + 1e-9);
+            if (corr > bestCorr) {
+                bestCorr = corr;
+                bestOffset = offset;
+            }
+            // update the norm for the next offset
+            for (int c = 0; c < channels; c++) {
+                float old = input[base + c];
+                float add = input[base + len + c];
+                norm += add * add - old * old;
+            }
+            if (norm < 0) {
+                norm = 0;
+            }
+        }
+        return bestOffset;
+    }
+
+    private void appendInput(byte[] b, int off, int frames) {
+        int maxFrames = input.length / channels - inputFrames;
+        if (frames > maxFrames) {
+            // cannot happen with blocks of at most maxInputBytes
+            frames = maxFrames;
+        }
+        int samples = frames * channels;
+        int idx = inputFrames * channels;
+        for (int i = 0; i < samples; i++) {
+            int sample;
+            if (bigEndian) {
+                sample = (b[off] << 8) | (b[off + 1] & 0xFF);
+            } else {
+                sample = (b[off + 1] << 8) | (b[off] & 0xFF);
+            }
+            input[idx++] = sample;
+            off += 2;
+        }
+        inputFrames += frames;
+    }
+
+    private void consumeInput(int frames) {
+        if (frames > inputFrames) {
+            frames = inputFrames;
+        }
+        System.arraycopy(input, frames * channels, input, 0,
+                (inputFrames - frames) * channels);
+        inputFrames -= frames;
+    }
+
+    private int writeOutput(float[] src, int fromFrame, int frames, byte[] out, int outOff) {
+        int end = (fromFrame + frames) * channels;
+        for (int i = fromFrame * channels; i < end; i++) {
+            outOff = writeSample(src[i], out, outOff);
+        }
+        return outOff;
+    }
+
+    private int writeSample(float sample, byte[] out, int outOff) {
+        int s = (int) sample;
+        if (s > 32767) {
+            s = 32767;
+        } else if (s < -32768) {
+            s = -32768;
+        }
+        if (bigEndian) {
+            out[outOff] = (byte) (s >> 8);
+            out[outOff + 1] = (byte) s;
+        } else {
+            out[outOff] = (byte) s;
+            out[outOff + 1] = (byte) (s >> 8);
+        }
+        return outOff + 2;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *	StreamSwapCheck.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio.virtual;
+
+import java.io.ByteArrayInputStream;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import org.jsresources.utils.audio.AudioDebug;
+import org.jsresources.utils.audio.AudioPlayback;
+
+/**
+ * Measures how long AudioPlayback takes to play a new stream after
+ * setAudioInputStream(), on the VirtualMixer with the wall clock: the
+ * playback is started, the stream is swapped repeatedly, and the swap
+ * latencies are reported, once with a fixed and once with an adaptive
+ * buffer size. Exits with status 1 if a swap took longer than
+ * <code>-max</code> milliseconds, or a new stream was not played at all.
+ * <p>
+ * Usage: java org.jsresources.utils.audio.virtual.StreamSwapCheck
+ * [-n swaps] [-b bufferMillis] [-max millis]
+ */
+public class StreamSwapCheck {
+
+    public static void main(String[] args) throws Exception {
+        int swaps = 20;
+        int bufferMillis = 100;
+        int maxMillis = -1;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                swaps = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-b") && i + 1 < args.length) {
+                bufferMillis = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-max") && i + 1 < args.length) {
+                maxMillis = Integer.parseInt(args[++i]);
+            } else {
+                System.out.println("Usage: StreamSwapCheck [-n swaps]"
+                        + " [-b bufferMillis] [-max millis]");
+                System.exit(1);
+            }
+        }
+        if (maxMillis < 0) {
+            // a swap waits at most for the write of one buffer
+            maxMillis = bufferMillis + 20;
+        }
+        AudioDebug.VERBOSE = false;
+        AudioDebug.DEBUG = false;
+        AudioFormat format = new AudioFormat(44100.0f, 16, 2, true, false);
+        // 10 seconds of silence, shared by all streams
+        byte[] silence = new byte[(int) format.getFrameRate()
+                * format.getFrameSize() * 10];
+        VirtualMixer mixer = new VirtualMixer();
+        mixer.open();
+        boolean ok = true;
+        for (int run = 0; run < 2; run++) {
+            boolean adaptive = (run == 1);
+            AudioPlayback playback =
+                    new AudioPlayback(format, mixer, bufferMillis);
+            if (adaptive) {
+                playback.setAdaptiveBufferSize(new int[] {
+                        bufferMillis / 4, bufferMillis / 2, bufferMillis });
+            }
+            playback.open();
+            playback.start();
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long sum = 0;
+            int played = 0;
+            for (int i = 0; i < swaps; i++) {
+                playback.setAudioInputStream(new AudioInputStream(
+                        new ByteArrayInputStream(silence), format,
+                        silence.length / format.getFrameSize()));
+                // let the new stream play for a while
+                Thread.sleep(bufferMillis * 2);
+                long micros = playback.getStreamSwapLatencyMicros();
+                if (micros < 0) {
+                    continue;
+                }
+                played++;
+                min = Math.min(min, micros);
+                max = Math.max(max, micros);
+                sum += micros;
+            }
+            playback.close();
+            String latency = "-";
+            if (played > 0) {
+                latency = (min / 1000.0) + "/" + (sum / played / 1000.0) + "/"
+                        + (max / 1000.0) + "ms";
+            }
+            System.out.println((adaptive ? "adaptive" : "fixed")
+                    + " buffer of " + bufferMillis + "ms: " + played + " of "
+                    + swaps + " swaps played, latency min/avg/max " + latency);
+            if (played < swaps || max > maxMillis * 1000L) {
+                ok = false;
+            }
+        }
+        mixer.close();
+        System.out.println(ok ? "OK" : "FAILED: limit " + maxMillis + "ms");
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *	VirtualDataLine.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio.virtual;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineEvent;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.LineUnavailableException;
+
+/**
+ * Base class of the lines of the VirtualMixer: a ring buffer that the
+ * application fills or empties, and that the mixer empties or fills at the
+ * pace of the mixer's clock. All state is guarded by this line's monitor.
+ */
+public abstract class VirtualDataLine implements DataLine {
+
+    protected final VirtualMixer mixer;
+    private final DataLine.Info info;
+    private final List<LineListener> listeners = new ArrayList<LineListener>();
+
+    protected AudioFormat format;
+    protected int frameSize;
+    protected boolean open;
+    protected boolean running;
+
+    // the ring buffer
+    protected byte[] buffer = new byte[0];
+    protected int readPos;
+    protected int fill;
+
+    // frames transferred by the mixer since opening
+    protected long framesProcessed;
+    // mixer time of the last transfer, for calculating fractional frames
+    private double pendingFrames;
+
+    // statistics
+    protected volatile long underruns;
+    protected volatile long overruns;
+
+    protected VirtualDataLine(VirtualMixer mixer, DataLine.Info info) {
+        this.mixer = mixer;
+        this.info = info;
+        this.format = info.getFormats()[0];
+    }
+
+    public Line.Info getLineInfo() {
+        return info;
+    }
+
+    public void open() throws LineUnavailableException {
+        open(format);
+    }
+
+    public void open(AudioFormat format) throws LineUnavailableException {
+        open(format, AudioSystem.NOT_SPECIFIED);
+    }
+
+    public void open(AudioFormat format, int bufferSize)
+            throws LineUnavailableException {
+        if (format.getFrameSize() <= 0 || format.getFrameRate() <= 0) {
+            throw new LineUnavailableException("format not supported: " + format);
+        }
+        synchronized (this) {
+            if (open) {
+                return;
+            }
+            this.format = format;
+            frameSize = format.getFrameSize();
+            buffer = new byte[mixer.getBufferSize(format, bufferSize)];
+            readPos = 0;
+            fill = 0;
+            framesProcessed = 0;
+            pendingFrames = 0;
+            open = true;
+        }
+        mixer.lineOpened(this);
+        sendEvent(LineEvent.Type.OPEN);
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            running = false;
+            open = false;
+            this.notifyAll();
+        }
+        mixer.lineClosed(this);
+        sendEvent(LineEvent.Type.CLOSE);
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public void start() {
+        synchronized (this) {
+            if (!open || running) {
+                return;
+            }
+            running = true;
+        }
+        sendEvent(LineEvent.Type.START);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            this.notifyAll();
+        }
+        sendEvent(LineEvent.Type.STOP);
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized boolean isActive() {
+        return running && fill > 0;
+    }
+
+    public synchronized void flush() {
+        readPos = 0;
+        fill = 0;
+        this.notifyAll();
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public synchronized int getBufferSize() {
+        return buffer.length;
+    }
+
+    public int getFramePosition() {
+        return (int) getLongFramePosition();
+    }
+
+    public synchronized long getLongFramePosition() {
+        return framesProcessed;
+    }
+
+    public long getMicrosecondPosition() {
+        return (long) (getLongFramePosition() * 1000000.0 / format.getFrameRate());
+    }
+
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("control not supported: " + control);
+    }
+
+    public void addLineListener(LineListener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeLineListener(LineListener listener) {
+        synchronized (listeners) {
+            listeners.remove(listener);
+        }
+    }
+
+    protected void sendEvent(LineEvent.Type type) {
+        LineListener[] l;
+        synchronized (listeners) {
+            l = listeners.toArray(new LineListener[listeners.size()]);
+        }
+        LineEvent event = new LineEvent(this, type, getLongFramePosition());
+        for (int i = 0; i < l.length; i++) {
+            l[i].update(event);
+        }
+    }
+
+    /**
+     * called by the mixer when <code>nanos</code> nanoseconds of device time
+     * have passed. Returns the number of frames the device transfers now.
+     * Pre-condition: synchronized on this line.
+     */
+    protected int getDueFrames(long nanos) {
+        pendingFrames += nanos * (double) format.getFrameRate() / 1000000000.0;
+        int frames = (int) pendingFrames;
+        pendingFrames -= frames;
+        return frames;
+    }
+
+    /**
+     * transfers the data of <code>nanos</code> nanoseconds between the ring
+     * buffer and the mixer's loopback.
+     */
+    protected abstract void process(long nanos, VirtualMixer.Loopback loopback);
+}
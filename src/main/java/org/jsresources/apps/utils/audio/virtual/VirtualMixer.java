@@ -0,0 +1,596 @@
+/*
+ *	VirtualMixer.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio.virtual;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+import static org.jsresources.utils.audio.AudioDebug.*;
+
+/**
+ * A Java Sound mixer without sound card, for benchmarks and tests on
+ * headless machines.
+ * <p>
+ * It provides any number of SourceDataLines and TargetDataLines for PCM
+ * formats. Like a sound card, the mixer empties the source lines and fills
+ * the target lines in periods of PERIOD_MILLIS, paced by either the wall
+ * clock (a thread of the mixer) or a simulated clock that is advanced by
+ * calling advance(). The data played by a source line is looped back into
+ * the target lines of the same format, after the loopback delay.
+ * <p>
+ * For testing how the application copes with a bad sound card, jitter
+ * (irregular periods), stalls (the device stops for a while) and underruns
+ * (the playback buffers are emptied) can be injected.
+ */
+public class VirtualMixer implements Mixer {
+
+    public static final Mixer.Info INFO = new Mixer.Info("Virtual Mixer",
+            "jsresources.org", "Virtual mixer for testing and benchmarks",
+            "1.0") {
+    };
+
+    public static final int CLOCK_WALL = 0;
+    public static final int CLOCK_SIMULATED = 1;
+
+    private static final AudioFormat[] FORMATS = {
+        new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.NOT_SPECIFIED, 8, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, false),
+        new AudioFormat(AudioFormat.Encoding.PCM_UNSIGNED, AudioSystem.NOT_SPECIFIED, 8, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, false),
+        new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.NOT_SPECIFIED, 16, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, false),
+        new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.NOT_SPECIFIED, 16, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, true),
+        new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.NOT_SPECIFIED, 24, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, false),
+        new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.NOT_SPECIFIED, 24, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, true),
+        new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.NOT_SPECIFIED, 32, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, false),
+        new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, AudioSystem.NOT_SPECIFIED, 32, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, true),
+        new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, AudioSystem.NOT_SPECIFIED, 32, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED, false),
+    };
+
+    private static final DataLine.Info SOURCE_INFO =
+        new DataLine.Info(SourceDataLine.class, FORMATS, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED);
+    private static final DataLine.Info TARGET_INFO =
+        new DataLine.Info(TargetDataLine.class, FORMATS, AudioSystem.NOT_SPECIFIED, AudioSystem.NOT_SPECIFIED);
+
+    private static VirtualMixer instance;
+
+    // buffer behavior
+    private volatile int periodMillis = 5;
+    private volatile int defaultBufferMillis = 500;
+    private volatile int maxBufferMillis = 10000;
+
+    private int clock = CLOCK_WALL;
+    private Engine engine;
+    private boolean open;
+
+    private final List<VirtualDataLine> lines = new ArrayList<VirtualDataLine>();
+    private Loopback loopback;
+    private volatile int loopbackDelayMillis = 0;
+
+    // faults
+    private volatile int jitterMillis;
+    private long stallNanos;
+    private Random random = new Random();
+
+    // device time that has passed, in nanoseconds
+    private long timeNanos;
+
+    public VirtualMixer() {
+    }
+
+    /**
+     * the instance returned by VirtualMixerProvider
+     */
+    public static synchronized VirtualMixer getInstance() {
+        if (instance == null) {
+            instance = new VirtualMixer();
+        }
+        return instance;
+    }
+
+    // ------------------------------------------------------------ settings
+
+    /**
+     * selects the clock: CLOCK_WALL runs a thread that processes the lines
+     * in real time; with CLOCK_SIMULATED, time only passes in advance().
+     */
+    public synchronized void setClock(int clock) {
+        if (clock != CLOCK_WALL && clock != CLOCK_SIMULATED) {
+            throw new IllegalArgumentException("illegal clock: " + clock);
+        }
+        this.clock = clock;
+        updateEngine();
+    }
+
+    public synchronized int getClock() {
+        return clock;
+    }
+
+    /**
+     * the period in which the device transfers data
+     */
+    public void setPeriodMillis(int millis) {
+        periodMillis = Math.max(millis, 1);
+    }
+
+    public int getPeriodMillis() {
+        return periodMillis;
+    }
+
+    /**
+     * the buffer size of lines opened without buffer size, and the largest
+     * buffer size
+     */
+    public void setBufferMillis(int defaultMillis, int maxMillis) {
+        defaultBufferMillis = defaultMillis;
+        maxBufferMillis = Math.max(maxMillis, defaultMillis);
+    }
+
+    /**
+     * the delay between playing data on a source line and capturing it on a
+     * target line, in addition to the line buffers
+     */
+    public void setLoopbackDelayMillis(int millis) {
+        loopbackDelayMillis = Math.max(millis, 0);
+    }
+
+    public int getLoopbackDelayMillis() {
+        return loopbackDelayMillis;
+    }
+
+    // -------------------------------------------------------------- faults
+
+    /**
+     * with the wall clock, delay each period by a random time of up to
+     * <code>millis</code>. The device then catches up with a burst.
+     */
+    public void setJitterMillis(int millis) {
+        jitterMillis = Math.max(millis, 0);
+    }
+
+    public int getJitterMillis() {
+        return jitterMillis;
+    }
+
+    /**
+     * stops the device for <code>millis</code>: the lines are neither emptied
+     * nor filled, and that time is lost
+     */
+    public synchronized void injectStall(int millis) {
+        stallNanos += millis * 1000000L;
+    }
+
+    /**
+     * empties the buffers of all source lines at the next period
+     */
+    public synchronized void injectUnderrun() {
+        for (VirtualDataLine line : lines) {
+            if (line instanceof VirtualSourceDataLine) {
+                ((VirtualSourceDataLine) line).injectUnderrun();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- time
+
+    /**
+     * the device time that passed, in microseconds
+     */
+    public synchronized long getTimeMicros() {
+        return timeNanos / 1000;
+    }
+
+    /**
+     * advances the simulated clock, processing the lines period by period
+     */
+    public void advance(long millis) {
+        synchronized (this) {
+            if (clock != CLOCK_SIMULATED) {
+                throw new IllegalStateException("not using the simulated clock");
+            }
+        }
+        long nanos = millis * 1000000L;
+        long period = periodMillis * 1000000L;
+        while (nanos > 0) {
+            long step = Math.min(nanos, period);
+            process(step);
+            nanos -= step;
+        }
+    }
+
+    // one period of the device
+    private void process(long nanos) {
+        VirtualDataLine[] l;
+        Loopback lb;
+        synchronized (this) {
+            if (stallNanos > 0) {
+                long stalled = Math.min(stallNanos, nanos);
+                stallNanos -= stalled;
+                nanos -= stalled;
+                if (nanos == 0) {
+                    return;
+                }
+            }
+            timeNanos += nanos;
+            l = lines.toArray(new VirtualDataLine[lines.size()]);
+            lb = loopback;
+        }
+        if (lb != null) {
+            lb.beginPeriod(nanos);
+        }
+        // first playback, then capture, so that the loopback has the data
+        for (int i = 0; i < l.length; i++) {
+            if (l[i] instanceof VirtualSourceDataLine) {
+                l[i].process(nanos, lb);
+            }
+        }
+        for (int i = 0; i < l.length; i++) {
+            if (l[i] instanceof VirtualTargetDataLine) {
+                l[i].process(nanos, lb);
+            }
+        }
+    }
+
+    // start or stop the thread for the wall clock
+    private void updateEngine() {
+        boolean needed = clock == CLOCK_WALL && !lines.isEmpty();
+        if (needed && engine == null) {
+            engine = new Engine();
+            engine.start();
+        } else if (!needed && engine != null) {
+            engine.terminate();
+            engine = null;
+        }
+    }
+
+    // ---------------------------------------------------------------- lines
+
+    synchronized void lineOpened(VirtualDataLine line) {
+        lines.add(line);
+        if (loopback == null && line instanceof VirtualSourceDataLine) {
+            loopback = new Loopback(line.getFormat(), loopbackDelayMillis);
+        }
+        updateEngine();
+    }
+
+    synchronized void lineClosed(VirtualDataLine line) {
+        lines.remove(line);
+        if (loopback != null && loopback.source == line) {
+            // loop back another source line, if any
+            loopback = null;
+            for (VirtualDataLine l : lines) {
+                if (l instanceof VirtualSourceDataLine) {
+                    loopback = new Loopback(l.getFormat(), loopbackDelayMillis);
+                    break;
+                }
+            }
+        }
+        updateEngine();
+    }
+
+    // the buffer size for a line
+    int getBufferSize(AudioFormat format, int requested) {
+        int frameSize = format.getFrameSize();
+        float bytesPerMilli = format.getFrameRate() * frameSize / 1000.0f;
+        int size = requested;
+        if (size == AudioSystem.NOT_SPECIFIED || size <= 0) {
+            size = (int) (defaultBufferMillis * bytesPerMilli);
+        }
+        size = Math.min(size, (int) (maxBufferMillis * bytesPerMilli));
+        // at least 2 periods
+        size = Math.max(size, (int) (2 * periodMillis * bytesPerMilli));
+        size -= size % frameSize;
+        return Math.max(size, frameSize);
+    }
+
+    // fill with silence
+    void silence(AudioFormat format, byte[] b, int off, int len) {
+        byte filler = 0;
+        if (format.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED)
+            && format.getSampleSizeInBits() == 8) {
+            filler = (byte) 0x80;
+        }
+        for (int i = off; i < off + len; i++) {
+            b[i] = filler;
+        }
+    }
+
+    // --------------------------------------------------------------- Mixer
+
+    public Mixer.Info getMixerInfo() {
+        return INFO;
+    }
+
+    public Line.Info[] getSourceLineInfo() {
+        return new Line.Info[] {SOURCE_INFO};
+    }
+
+    public Line.Info[] getTargetLineInfo() {
+        return new Line.Info[] {TARGET_INFO};
+    }
+
+    public Line.Info[] getSourceLineInfo(Line.Info info) {
+        return info.matches(SOURCE_INFO) ? getSourceLineInfo() : new Line.Info[0];
+    }
+
+    public Line.Info[] getTargetLineInfo(Line.Info info) {
+        return info.matches(TARGET_INFO) ? getTargetLineInfo() : new Line.Info[0];
+    }
+
+    public boolean isLineSupported(Line.Info info) {
+        return info.matches(SOURCE_INFO) || info.matches(TARGET_INFO);
+    }
+
+    public Line getLine(Line.Info info) throws LineUnavailableException {
+        DataLine.Info dlInfo = getDataLineInfo(info);
+        if (info.matches(SOURCE_INFO)) {
+            return new VirtualSourceDataLine(this, dlInfo);
+        }
+        if (info.matches(TARGET_INFO)) {
+            return new VirtualTargetDataLine(this, dlInfo);
+        }
+        throw new IllegalArgumentException("line not supported: " + info);
+    }
+
+    // the info of the new line: with the requested format, if any
+    private DataLine.Info getDataLineInfo(Line.Info info) {
+        DataLine.Info mine = info.matches(SOURCE_INFO) ? SOURCE_INFO : TARGET_INFO;
+        if (info instanceof DataLine.Info) {
+            AudioFormat[] f = ((DataLine.Info) info).getFormats();
+            if (f.length > 0 && f[0].getFrameSize() > 0 && f[0].getFrameRate() > 0) {
+                return new DataLine.Info(mine.getLineClass(), f[0]);
+            }
+        }
+        return new DataLine.Info(mine.getLineClass(),
+                new AudioFormat(44100, 16, 2, true, false));
+    }
+
+    public int getMaxLines(Line.Info info) {
+        return isLineSupported(info) ? AudioSystem.NOT_SPECIFIED : 0;
+    }
+
+    public synchronized Line[] getSourceLines() {
+        List<Line> res = new ArrayList<Line>();
+        for (VirtualDataLine line : lines) {
+            if (line instanceof SourceDataLine) {
+                res.add(line);
+            }
+        }
+        return res.toArray(new Line[res.size()]);
+    }
+
+    public synchronized Line[] getTargetLines() {
+        List<Line> res = new ArrayList<Line>();
+        for (VirtualDataLine line : lines) {
+            if (line instanceof TargetDataLine) {
+                res.add(line);
+            }
+        }
+        return res.toArray(new Line[res.size()]);
+    }
+
+    public void synchronize(Line[] lines, boolean maintainSync) {
+        throw new IllegalArgumentException("synchronization not supported");
+    }
+
+    public void unsynchronize(Line[] lines) {
+        throw new IllegalArgumentException("synchronization not supported");
+    }
+
+    public boolean isSynchronizationSupported(Line[] lines, boolean maintainSync) {
+        return false;
+    }
+
+    // ---------------------------------------------------------------- Line
+
+    public Line.Info getLineInfo() {
+        return new Line.Info(Mixer.class);
+    }
+
+    public synchronized void open() {
+        open = true;
+    }
+
+    public void close() {
+        VirtualDataLine[] l;
+        synchronized (this) {
+            open = false;
+            l = lines.toArray(new VirtualDataLine[lines.size()]);
+        }
+        for (int i = 0; i < l.length; i++) {
+            l[i].close();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("control not supported: " + control);
+    }
+
+    public void addLineListener(LineListener listener) {
+    }
+
+    public void removeLineListener(LineListener listener) {
+    }
+
+    // ------------------------------------------------------- inner classes
+
+    /**
+     * the data played by the first source line opened, delayed by the
+     * loopback delay
+     */
+    class Loopback {
+
+        private final AudioFormat format;
+        private VirtualDataLine source;
+        private final byte[] ring;
+        private final int delayBytes;
+        private final byte filler;
+        // number of bytes written to the ring
+        private long writeCount;
+        private long periodStart;
+        private double pendingFrames;
+
+        Loopback(AudioFormat format, int delayMillis) {
+            this.format = format;
+            int frameSize = format.getFrameSize();
+            int bytesPerSecond = (int) (format.getFrameRate() * frameSize);
+            int delay = (int) ((long) bytesPerSecond * delayMillis / 1000);
+            delayBytes = delay - delay % frameSize;
+            int size = delayBytes + 2 * bytesPerSecond;
+            ring = new byte[size - size % frameSize];
+            byte[] b = new byte[1];
+            silence(format, b, 0, 1);
+            filler = b[0];
+        }
+
+        boolean matches(AudioFormat f) {
+            return format.matches(f);
+        }
+
+        // add silence for the next period
+        synchronized void beginPeriod(long nanos) {
+            pendingFrames += nanos * (double) format.getFrameRate() / 1000000000.0;
+            int frames = (int) pendingFrames;
+            pendingFrames -= frames;
+            periodStart = writeCount;
+            int bytes = frames * format.getFrameSize();
+            for (int i = 0; i < bytes; i++) {
+                ring[(int) ((writeCount + i) % ring.length)] = filler;
+            }
+            writeCount += bytes;
+        }
+
+        // a source line plays data during the current period
+        synchronized void put(VirtualDataLine line, byte[] b, int off, int len, int periodOffset) {
+            if (source == null && matches(line.getFormat())) {
+                source = line;
+            }
+            if (line != source) {
+                return;
+            }
+            for (int i = 0; i < len; i++) {
+                long pos = periodStart + periodOffset + i;
+                if (pos < writeCount) {
+                    ring[(int) (pos % ring.length)] = b[off + i];
+                }
+            }
+        }
+
+        // where a target line starting now starts reading
+        synchronized long getStartPosition() {
+            return periodStart - delayBytes;
+        }
+
+        // read from an absolute position, silence if not available
+        synchronized void get(long pos, byte[] b, int off, int len) {
+            for (int i = 0; i < len; i++) {
+                long p = pos + i;
+                if (p >= 0 && p < writeCount && p >= writeCount - ring.length) {
+                    b[off + i] = ring[(int) (p % ring.length)];
+                } else {
+                    b[off + i] = filler;
+                }
+            }
+        }
+    }
+
+    // the thread driving the lines with the wall clock
+    private class Engine extends Thread {
+
+        private volatile boolean doTerminate;
+
+        Engine() {
+            super("VirtualMixer");
+            setDaemon(true);
+            setPriority(Thread.MAX_PRIORITY);
+        }
+
+        public void run() {
+            if (VERBOSE) {
+                debugOut("VirtualMixer: starting wall clock");
+            }
+            long last = System.nanoTime();
+            try {
+                while (!doTerminate) {
+                    long sleep = periodMillis;
+                    int jitter = jitterMillis;
+                    if (jitter > 0) {
+                        sleep += random.nextInt(jitter + 1);
+                    }
+                    synchronized (this) {
+                        if (!doTerminate) {
+                            this.wait(sleep);
+                        }
+                    }
+                    long now = System.nanoTime();
+                    process(now - last);
+                    last = now;
+                }
+            } catch (InterruptedException ie) {
+                if (DEBUG) {
+                    ie.printStackTrace();
+                }
+            }
+            if (VERBOSE) {
+                debugOut("VirtualMixer: stopped wall clock");
+            }
+        }
+
+        public synchronized void terminate() {
+            doTerminate = true;
+            this.notifyAll();
+        }
+    }
+}
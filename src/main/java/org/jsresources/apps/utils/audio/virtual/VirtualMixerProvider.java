@@ -0,0 +1,77 @@
+/*
+ *	VirtualMixerProvider.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio.virtual;
+
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.spi.MixerProvider;
+
+/**
+ * Makes the VirtualMixer available through AudioSystem. So that the
+ * virtual mixer never replaces a sound card by accident, it is only listed
+ * if the system property <code>jsresources.virtualmixer</code> is set to
+ * <code>true</code>, e.g. on headless machines for benchmarks:
+ * <pre>
+ * java -Djsresources.virtualmixer=true AudioLoop -M "Virtual Mixer"
+ * </pre>
+ */
+public class VirtualMixerProvider extends MixerProvider {
+
+    public static final String ENABLE_PROPERTY = "jsresources.virtualmixer";
+
+    private static final Mixer.Info[] NO_MIXERS = new Mixer.Info[0];
+
+    public static boolean isEnabled() {
+        try {
+            return Boolean.getBoolean(ENABLE_PROPERTY);
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    public Mixer.Info[] getMixerInfo() {
+        if (!isEnabled()) {
+            return NO_MIXERS;
+        }
+        return new Mixer.Info[] {VirtualMixer.INFO};
+    }
+
+    public Mixer getMixer(Mixer.Info info) {
+        if (isEnabled() && (info == null || info.equals(VirtualMixer.INFO))) {
+            return VirtualMixer.getInstance();
+        }
+        throw new IllegalArgumentException("mixer not supported: " + info);
+    }
+}
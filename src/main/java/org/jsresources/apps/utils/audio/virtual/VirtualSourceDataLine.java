@@ -0,0 +1,143 @@
+/*
+ *	VirtualSourceDataLine.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio.virtual;
+
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * A playback line of the VirtualMixer. The mixer consumes the written data
+ * at the pace of its clock and passes it to the loopback. If the buffer
+ * runs empty while the line is running, an underrun is counted.
+ */
+public class VirtualSourceDataLine extends VirtualDataLine
+        implements SourceDataLine {
+
+    // incremented by flush() to make a blocking write() return
+    private int flushCount;
+    private boolean wasEmpty = true;
+    private boolean discard;
+
+    VirtualSourceDataLine(VirtualMixer mixer, DataLine.Info info) {
+        super(mixer, info);
+    }
+
+    public synchronized int available() {
+        return buffer.length - fill;
+    }
+
+    /**
+     * blocks until all data is written, or the line is closed or flushed
+     */
+    public int write(byte[] b, int off, int len) {
+        if (len % frameSize != 0) {
+            throw new IllegalArgumentException("length is not an integral number of frames");
+        }
+        int written = 0;
+        synchronized (this) {
+            int flushes = flushCount;
+            while (open && flushes == flushCount) {
+                int n = Math.min(len - written, buffer.length - fill);
+                int writePos = (readPos + fill) % buffer.length;
+                int first = Math.min(n, buffer.length - writePos);
+                System.arraycopy(b, off + written, buffer, writePos, first);
+                System.arraycopy(b, off + written + first, buffer, 0, n - first);
+                fill += n;
+                written += n;
+                if (written >= len) {
+                    break;
+                }
+                try {
+                    this.wait();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        return written;
+    }
+
+    public synchronized void drain() {
+        while (open && running && fill > 0) {
+            try {
+                this.wait();
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
+    public synchronized void flush() {
+        flushCount++;
+        super.flush();
+    }
+
+    // make the line run empty at the next step of the mixer
+    synchronized void injectUnderrun() {
+        discard = true;
+    }
+
+    protected synchronized void process(long nanos, VirtualMixer.Loopback loopback) {
+        if (!running) {
+            return;
+        }
+        if (discard) {
+            discard = false;
+            readPos = 0;
+            fill = 0;
+        }
+        int bytes = getDueFrames(nanos) * frameSize;
+        if (bytes == 0) {
+            return;
+        }
+        int n = Math.min(bytes, fill);
+        if (n < bytes && !wasEmpty) {
+            underruns++;
+        }
+        wasEmpty = (n < bytes);
+        if (n > 0) {
+            int first = Math.min(n, buffer.length - readPos);
+            if (loopback != null) {
+                loopback.put(this, buffer, readPos, first, 0);
+                loopback.put(this, buffer, 0, n - first, first);
+            }
+            readPos = (readPos + n) % buffer.length;
+            fill -= n;
+            framesProcessed += n / frameSize;
+            this.notifyAll();
+        }
+    }
+}
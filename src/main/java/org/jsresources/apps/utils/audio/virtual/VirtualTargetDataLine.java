@@ -0,0 +1,151 @@
+/*
+ *	VirtualTargetDataLine.java
+ */
+
+/*
+ * Copyright (c) 2005 by Florian Bomers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/*
+ |<---            this code is formatted to fit into 80 columns             --->|
+ */
+package org.jsresources.utils.audio.virtual;
+
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * A capture line of the VirtualMixer. The mixer fills it at the pace of its
+ * clock with the data played by a source line of the same format (or with
+ * silence). If the application does not read fast enough, the new data is
+ * dropped and an overrun is counted.
+ */
+public class VirtualTargetDataLine extends VirtualDataLine
+        implements TargetDataLine {
+
+    // incremented by flush() to make a blocking read() return
+    private int flushCount;
+    // position in the loopback
+    private VirtualMixer.Loopback lastLoopback;
+    private long loopbackPos = -1;
+    private boolean wasFull;
+
+    VirtualTargetDataLine(VirtualMixer mixer, DataLine.Info info) {
+        super(mixer, info);
+    }
+
+    public synchronized int available() {
+        return fill;
+    }
+
+    /**
+     * blocks until <code>len</code> bytes are read, or the line is stopped,
+     * closed or flushed
+     */
+    public int read(byte[] b, int off, int len) {
+        if (len % frameSize != 0) {
+            throw new IllegalArgumentException("length is not an integral number of frames");
+        }
+        int read = 0;
+        synchronized (this) {
+            int flushes = flushCount;
+            while (true) {
+                int n = Math.min(len - read, fill);
+                int first = Math.min(n, buffer.length - readPos);
+                System.arraycopy(buffer, readPos, b, off + read, first);
+                System.arraycopy(buffer, 0, b, off + read + first, n - first);
+                readPos = (readPos + n) % buffer.length;
+                fill -= n;
+                read += n;
+                if (read >= len || !open || !running || flushes != flushCount) {
+                    break;
+                }
+                try {
+                    this.wait();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        return read;
+    }
+
+    public synchronized void drain() {
+        while (open && running && fill > 0) {
+            try {
+                this.wait();
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+    }
+
+    public synchronized void flush() {
+        flushCount++;
+        super.flush();
+    }
+
+    public synchronized void stop() {
+        loopbackPos = -1;
+        super.stop();
+    }
+
+    protected synchronized void process(long nanos, VirtualMixer.Loopback loopback) {
+        if (!running) {
+            return;
+        }
+        int bytes = getDueFrames(nanos) * frameSize;
+        if (bytes == 0) {
+            return;
+        }
+        int n = Math.min(bytes, buffer.length - fill);
+        if (n < bytes && !wasFull) {
+            overruns++;
+        }
+        wasFull = (n < bytes);
+        int writePos = (readPos + fill) % buffer.length;
+        int first = Math.min(n, buffer.length - writePos);
+        if (loopback != null && loopback.matches(format)) {
+            if (loopbackPos < 0 || loopback != lastLoopback) {
+                lastLoopback = loopback;
+                loopbackPos = loopback.getStartPosition();
+            }
+            loopback.get(loopbackPos, buffer, writePos, first);
+            loopback.get(loopbackPos + first, buffer, 0, n - first);
+        } else {
+            mixer.silence(format, buffer, writePos, first);
+            mixer.silence(format, buffer, 0, n - first);
+        }
+        // the device keeps capturing, even if the data is dropped
+        if (loopbackPos >= 0) {
+            loopbackPos += bytes;
+        }
+        fill += n;
+        framesProcessed += bytes / frameSize;
+        this.notifyAll();
+    }
+}